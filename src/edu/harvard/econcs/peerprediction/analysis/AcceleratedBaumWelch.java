@@ -0,0 +1,84 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.List;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.learn.BaumWelchScaledLearner;
+import net.andrewmao.models.games.BWToleranceLearner;
+import net.andrewmao.models.games.SigActObservation;
+
+/**
+ * Baum-Welch with squared extrapolation. Each EM step is one scaled
+ * Baum-Welch iteration, over the flat parameter layout of
+ * HMMAnalysis.hmmToArray.
+ */
+public class AcceleratedBaumWelch {
+
+	int maxIterations = 100000;
+	double tolerance = Utils.eps;
+	// stop at this deadline with the last HMM reached, if not null
+	Deadline deadline;
+
+	SquaremAccelerator lastRun = null;
+
+	public Hmm<SigActObservation<CandySignal, CandyReport>> learn(
+			Hmm<SigActObservation<CandySignal, CandyReport>> initialHmm,
+			final List<List<SigActObservation<CandySignal, CandyReport>>> seq) {
+
+		final BaumWelchScaledLearner bwl = new BaumWelchScaledLearner();
+
+		EMUpdate update = new EMUpdate() {
+
+			public double update(double[] params, double[] next) {
+				Hmm<SigActObservation<CandySignal, CandyReport>> hmm = HMMAnalysis
+						.arrayToHmm(params);
+				double loglk = BWToleranceLearner.computeLogLk(hmm, seq);
+				double[] array = HMMAnalysis.hmmToArray(bwl.iterate(hmm, seq));
+				System.arraycopy(array, 0, next, 0, next.length);
+				return loglk;
+			}
+
+			public void project(double[] params) {
+				int numStates = (int) params[0];
+				int index = 1;
+				projectToSimplex(params, index, numStates);
+				index += numStates;
+				for (int j = 0; j < 2 * numStates; j++, index++) {
+					params[index] = Math.min(Math.max(params[index], 0), 1);
+				}
+				for (int i = 0; i < numStates; i++, index += numStates) {
+					projectToSimplex(params, index, numStates);
+				}
+			}
+		};
+
+		lastRun = new SquaremAccelerator(maxIterations, tolerance);
+		lastRun.deadline = deadline;
+		double[] params = lastRun.run(update,
+				HMMAnalysis.hmmToArray(initialHmm));
+		return HMMAnalysis.arrayToHmm(params);
+	}
+
+	/**
+	 * Counters of the last call to learn, or null
+	 */
+	public SquaremAccelerator getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Clip negative entries of params[from, from + length) and renormalize
+	 * them to sum to 1
+	 */
+	static void projectToSimplex(double[] params, int from, int length) {
+		double sum = 0;
+		for (int i = from; i < from + length; i++) {
+			params[i] = Math.max(params[i], 0);
+			sum += params[i];
+		}
+		for (int i = from; i < from + length; i++) {
+			params[i] = sum > 0 ? params[i] / sum : 1.0 / length;
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends a job to a running AnalysisDaemon and prints its output.
+ *
+ * Called with the arguments of PredLkAnalysis.main (treatment, model, seed,
+ * foldIndex and optionally a time budget in minutes) it runs that fold in
+ * the daemon, so existing scripts only need to change the class they start.
+ * Otherwise the first argument names the job: fit, score, status or
+ * shutdown.
+ */
+public class AnalysisClient {
+
+	static final List<String> commands = Arrays.asList("cv", "fit", "score",
+			"status", "shutdown");
+
+	/**
+	 * Send one job
+	 *
+	 * @return the output lines, without the final "ok"
+	 */
+	static List<String> send(int port, String job) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			Writer writer = new OutputStreamWriter(socket.getOutputStream(),
+					LocalTaskRunner.UTF8);
+			writer.write(job + "\n");
+			writer.flush();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), LocalTaskRunner.UTF8));
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.equals("ok"))
+					return lines;
+				if (line.startsWith("error"))
+					throw new IllegalStateException("The daemon failed to run "
+							+ job + ": " + line.substring(5).trim());
+				lines.add(line);
+			}
+			throw new IOException("The daemon closed the connection during "
+					+ job);
+		} finally {
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Please provide the arguments: treatment, model, seed, foldIndex"
+					+ " and optionally a time budget in minutes, or a job: "
+					+ commands);
+			System.exit(0);
+		}
+
+		StringBuilder job = new StringBuilder();
+		if (!commands.contains(args[0]))
+			job.append("cv ");
+		for (int i = 0; i < args.length; i++) {
+			job.append(i == 0 ? "" : " ").append(args[i]);
+		}
+
+		for (String line : send(AnalysisDaemon.getConfiguredPort(),
+				job.toString())) {
+			System.out.println(line);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * The treatment being analyzed: its name, data directory, parsed
+ * experiment, random number streams, the models to fit and the
+ * FitSettings of their fits.
+ *
+ * A context is bound to a thread with call, and threads started while it
+ * is bound inherit it, including the pools of ParallelCMAES,
+ * LikelihoodSurface and Leaderboard. LogReader, LearningModelsCustom,
+ * LearningModelsExisting, HMMAnalysis and OldEqAnalysis read the treatment
+ * and the experiment through treatment() and experiment(), so the same
+ * static methods analyze whichever treatment is bound, and several
+ * treatments can run side by side in one JVM. Outside call they fall back
+ * to PredLkAnalysis.treatment, PredLkAnalysis.rootDir, LogReader.expSet
+ * and Utils.rand, as set by the tests, and to the default FitSettings.
+ *
+ * The fields are final. The experiment's games are shared with whoever
+ * parsed them, so they must not be modified while the context is in use,
+ * and neither may the settings.
+ */
+public final class AnalysisContext {
+
+	static final InheritableThreadLocal<AnalysisContext> bound = new InheritableThreadLocal<AnalysisContext>();
+
+	final String treatment;
+	final String rootDir;
+	final Experiment experiment;
+	final long seed;
+	final List<String> models;
+	// stream for code that draws from Utils.rand outside a context
+	final Random random;
+	final FitSettings settings;
+
+	public AnalysisContext(String treatment, String rootDir,
+			Experiment experiment, long seed, List<String> models) {
+		this(treatment, rootDir, experiment, seed, models, new FitSettings());
+	}
+
+	AnalysisContext(String treatment, String rootDir, Experiment experiment,
+			long seed, List<String> models, FitSettings settings) {
+		this.treatment = treatment;
+		this.rootDir = rootDir;
+		this.experiment = experiment;
+		this.seed = seed;
+		this.models = Collections.unmodifiableList(new ArrayList<String>(
+				models));
+		this.random = newRandom("default");
+		this.settings = settings;
+	}
+
+	/**
+	 * Parse the treatment's data from rawData.txt in rootDir, with all
+	 * registered models
+	 */
+	public static AnalysisContext load(String treatment, String rootDir,
+			long seed) throws IOException {
+		Experiment experiment = LogReader.readTextfile(treatment, rootDir);
+		return new AnalysisContext(treatment, rootDir, experiment, seed,
+				ModelRegistry.getModels());
+	}
+
+	/**
+	 * The same context with another seed
+	 */
+	public AnalysisContext withSeed(long newSeed) {
+		return new AnalysisContext(treatment, rootDir, experiment, newSeed,
+				models, settings);
+	}
+
+	/**
+	 * The same context with a copy of other settings for its fits
+	 */
+	public AnalysisContext withSettings(FitSettings newSettings) {
+		return new AnalysisContext(treatment, rootDir, experiment, seed,
+				models, newSettings.copy());
+	}
+
+	/**
+	 * The context to fit model on fold foldIndex under. Its seed depends
+	 * only on this seed, the model and the fold, so the fit draws the same
+	 * random restarts whether it runs alone or beside other fits, in any
+	 * order.
+	 */
+	public AnalysisContext forFit(String model, int foldIndex) {
+		return withSeed(seed * 0x9E3779B97F4A7C15L
+				+ (model + "-" + foldIndex).hashCode());
+	}
+
+	/**
+	 * A random number stream that depends only on the seed and the stream
+	 * name, so that, for example, the fold shuffle does not change when an
+	 * estimator draws more random numbers
+	 */
+	public Random newRandom(String stream) {
+		return new Random(seed * 0x9E3779B97F4A7C15L + stream.hashCode());
+	}
+
+	/**
+	 * Run task with this context bound to the current thread
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		AnalysisContext previous = bound.get();
+		bound.set(this);
+		try {
+			return task.call();
+		} finally {
+			if (previous == null)
+				bound.remove();
+			else
+				bound.set(previous);
+		}
+	}
+
+	/**
+	 * The context bound to the current thread, or a snapshot of the static
+	 * defaults
+	 */
+	public static AnalysisContext current() {
+		AnalysisContext context = bound.get();
+		if (context != null)
+			return context;
+		return new AnalysisContext(PredLkAnalysis.treatment,
+				PredLkAnalysis.rootDir, LogReader.expSet, 0,
+				ModelRegistry.getModels());
+	}
+
+	static String treatment() {
+		AnalysisContext context = bound.get();
+		return context == null ? PredLkAnalysis.treatment : context.treatment;
+	}
+
+	static String rootDir() {
+		AnalysisContext context = bound.get();
+		return context == null ? PredLkAnalysis.rootDir : context.rootDir;
+	}
+
+	static Experiment experiment() {
+		AnalysisContext context = bound.get();
+		return context == null ? LogReader.expSet : context.experiment;
+	}
+
+	static Random random() {
+		AnalysisContext context = bound.get();
+		return context == null ? Utils.rand : context.random;
+	}
+
+	/**
+	 * The settings of the bound context, which must not be modified, or
+	 * fresh defaults
+	 */
+	static FitSettings settings() {
+		AnalysisContext context = bound.get();
+		return context == null ? new FitSettings() : context.settings;
+	}
+
+	public String getTreatment() {
+		return treatment;
+	}
+
+	public String getRootDir() {
+		return rootDir;
+	}
+
+	public Experiment getExperiment() {
+		return experiment;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public List<String> getModels() {
+		return models;
+	}
+
+	public FitSettings getSettings() {
+		return settings;
+	}
+
+}
@@ -0,0 +1,68 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class AnalysisContextTest {
+
+	@Test
+	public void testBoundContextIsInheritedAndRestored() throws Exception {
+		final AnalysisContext context = new AnalysisContext("prior2-basic",
+				"/tmp/basic/", new Experiment(), 7, ModelRegistry.getModels());
+
+		assertEquals(PredLkAnalysis.treatment, AnalysisContext.treatment());
+		String treatment = context.call(new Callable<String>() {
+			public String call() throws Exception {
+				assertSame(context, AnalysisContext.current());
+				assertSame(context.experiment, AnalysisContext.experiment());
+
+				final String[] seen = new String[1];
+				Thread child = new Thread() {
+					public void run() {
+						seen[0] = AnalysisContext.rootDir();
+					}
+				};
+				child.start();
+				child.join();
+				assertEquals("/tmp/basic/", seen[0]);
+				return AnalysisContext.treatment();
+			}
+		});
+		assertEquals("prior2-basic", treatment);
+
+		// unbound again, so back to the static defaults
+		assertEquals(PredLkAnalysis.treatment, AnalysisContext.treatment());
+		assertSame(Utils.rand, AnalysisContext.random());
+	}
+
+	@Test
+	public void testRandomStreamsDependOnSeedAndName() {
+		AnalysisContext context = new AnalysisContext("prior2-basic", "",
+				null, 3, new ArrayList<String>());
+		assertEquals(context.newRandom("folds").nextLong(), context
+				.withSeed(3).newRandom("folds").nextLong());
+		assertTrue(context.newRandom("folds").nextLong() != context
+				.newRandom("restarts").nextLong());
+		assertTrue(context.newRandom("folds").nextLong() != context
+				.withSeed(4).newRandom("folds").nextLong());
+	}
+
+	@Test
+	public void testFitSeedDependsOnModelAndFold() {
+		AnalysisContext context = new AnalysisContext("prior2-basic", "",
+				null, 3, new ArrayList<String>());
+		assertEquals(context.forFit("RLS", 2).seed, context.withSeed(3)
+				.forFit("RLS", 2).seed);
+		assertTrue(context.forFit("RLS", 2).seed != context.forFit("RLS", 3).seed);
+		assertTrue(context.forFit("RLS", 2).seed != context.forFit("s1", 2).seed);
+		assertTrue(context.forFit("RLS", 2).seed != context.withSeed(4)
+				.forFit("RLS", 2).seed);
+	}
+
+}
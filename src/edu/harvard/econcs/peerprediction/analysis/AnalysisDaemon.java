@@ -0,0 +1,237 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived analysis process that accepts jobs on a localhost socket, so
+ * a campaign of short jobs pays for starting a JVM and parsing a treatment
+ * once rather than once per job. Each treatment is parsed on first use and
+ * kept, along with the model, log likelihood and per-game caches, for the
+ * life of the daemon.
+ *
+ * A job is one line, answered by the lines of its output followed by "ok"
+ * or by "error" and a message:
+ *
+ * cv treatment model seed foldIndex [budget] - one fold as PredLkAnalysis.main
+ * runs it, appending its result line to the fold's log in
+ * PredLkAnalysis.getLogDir() and answering with it
+ *
+ * fit treatment model seed foldIndex [budget] - the parameters estimated on
+ * the training set of the fold
+ *
+ * score treatment model seed foldIndex point - the test log likelihood of
+ * the fold at a comma separated point, less that of the random model
+ *
+ * status - the treatments held in memory
+ *
+ * shutdown - stop accepting jobs
+ *
+ * Each connection is handled on its own thread, so jobs run side by side.
+ * Every job binds a context with its own seed, deadline and caches, so jobs
+ * on different treatments, seeds or budgets do not interfere. A client that
+ * does not send its job within readTimeoutMillis is dropped.
+ */
+public class AnalysisDaemon {
+
+	static final int defaultPort = 7651;
+
+	final ServerSocket server;
+	// parses the treatments and runs the folds
+	final LocalTaskRunner runner = new LocalTaskRunner(null);
+	final AtomicInteger numJobs = new AtomicInteger();
+	int readTimeoutMillis = 60000;
+	volatile boolean stopped;
+
+	/**
+	 * @param port
+	 *            on the loopback address, or 0 for any free port
+	 */
+	public AnalysisDaemon(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	static int getConfiguredPort() {
+		return Integer.getInteger("ppanalysis.port", defaultPort);
+	}
+
+	/**
+	 * Answer connections until a shutdown job
+	 */
+	public void serve() throws IOException {
+		System.out.println("Analysis daemon listening on port " + getPort());
+		try {
+			while (!stopped) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketException e) {
+					// closed by a shutdown job
+					if (stopped)
+						break;
+					throw e;
+				}
+				final Socket client = socket;
+				new Thread(new Runnable() {
+					public void run() {
+						try {
+							handle(client);
+						} catch (IOException e) {
+							// the client is gone or too slow, not the daemon
+							System.err.println("Dropped a connection: " + e);
+						}
+					}
+				}).start();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	void handle(Socket socket) throws IOException {
+		try {
+			socket.setSoTimeout(readTimeoutMillis);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), LocalTaskRunner.UTF8));
+			Writer writer = new OutputStreamWriter(socket.getOutputStream(),
+					LocalTaskRunner.UTF8);
+			String line = reader.readLine();
+			if (line == null)
+				return;
+			String response;
+			try {
+				response = execute(line.trim().split("\\s+")) + "ok\n";
+			} catch (Exception e) {
+				System.err.println("Job failed: " + line);
+				e.printStackTrace();
+				response = "error " + e + "\n";
+			}
+			writer.write(response);
+			writer.flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Run one job
+	 *
+	 * @return its output, one or more lines
+	 */
+	String execute(String[] args) throws Exception {
+		String command = args[0];
+		if (command.equals("status")) {
+			synchronized (runner.contexts) {
+				return String.format("treatments=%s jobs=%d\n",
+						runner.contexts.keySet(), numJobs.get());
+			}
+		}
+		if (command.equals("shutdown")) {
+			stopped = true;
+			server.close();
+			return "";
+		}
+		if (!AnalysisClient.commands.contains(command))
+			throw new IllegalArgumentException("Unknown job " + command);
+		if (args.length < 5)
+			throw new IllegalArgumentException("Usage: " + command
+					+ " treatment model seed foldIndex ...");
+
+		final String treatment = args[1];
+		final String model = args[2];
+		final long seed = Long.parseLong(args[3]);
+		final int foldIndex = Integer.parseInt(args[4]);
+		numJobs.incrementAndGet();
+
+		if (command.equals("fit")) {
+			long budget = args.length > 5 ? Long.parseLong(args[5]) : 0;
+			AnalysisContext context = runner.setUp(treatment, seed, budget)
+					.forFit(model, foldIndex);
+			Map<String, Object> params = context
+					.call(new Callable<Map<String, Object>>() {
+						public Map<String, Object> call() {
+							Folds folds = PredLkAnalysis.getFolds(
+									AnalysisContext.experiment().games,
+									new Random(seed));
+							return PredLkAnalysis.estimateParams(model,
+									folds.trainingSet(foldIndex));
+						}
+					});
+			if (model.equals("s5"))
+				PredLkAnalysis.shiftToEquivalentParams(params);
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(
+					params).entrySet()) {
+				Object value = entry.getValue();
+				sb.append(entry.getKey()).append('=').append(
+						value instanceof double[] ? Arrays
+								.toString((double[]) value) : value).append(
+						'\n');
+			}
+			return sb.toString();
+		}
+
+		if (command.equals("score")) {
+			if (args.length < 6)
+				throw new IllegalArgumentException(
+						"Usage: score treatment model seed foldIndex point");
+			String[] values = args[5].split(",");
+			double[] point = new double[values.length];
+			for (int i = 0; i < point.length; i++) {
+				point[i] = Double.parseDouble(values[i]);
+			}
+			final Map<String, Object> params = PredLkAnalysis.pointToParams(
+					model, point);
+			AnalysisContext context = runner.setUp(treatment, seed, 0);
+			double testLoglk = context.call(new Callable<Double>() {
+				public Double call() {
+					Folds folds = PredLkAnalysis.getFolds(
+							AnalysisContext.experiment().games, new Random(
+									seed));
+					List<Game> testSet = folds.testSet(foldIndex);
+					return PredLkAnalysis.getTestLogLk(model, params, testSet)
+							- PredLkAnalysis.getLogLkRandomModel();
+				}
+			});
+			return String.format("%.2f\n", testLoglk);
+		}
+
+		// cv
+		long budget = args.length > 5 ? Long.parseLong(args[5]) : 0;
+		String result = runner.run(new LocalTaskRunner.Task(treatment, model,
+				seed, foldIndex), budget);
+		// the client still gets the result if the log cannot be written
+		try {
+			PredLkAnalysis.writeLog(treatment, model, seed, foldIndex, result);
+		} catch (IOException e) {
+			System.err.println("Could not write the log of " + treatment
+					+ "-" + model + "-" + seed + "-" + foldIndex + ": " + e);
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0])
+				: getConfiguredPort();
+		new AnalysisDaemon(port).serve();
+	}
+
+}
@@ -0,0 +1,67 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AnalysisDaemonTest {
+
+	@Test
+	public void testJobsOverSocket() throws Exception {
+		final AnalysisDaemon daemon = new AnalysisDaemon(0) {
+			@Override
+			String execute(String[] args) throws Exception {
+				if (args[0].equals("cv"))
+					return PredLkAnalysis.formatResult(
+							Long.parseLong(args[3]), Integer.parseInt(args[4]),
+							-100, 5, false);
+				return super.execute(args);
+			}
+		};
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					daemon.serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		daemon.readTimeoutMillis = 200;
+		thread.start();
+		int port = daemon.getPort();
+
+		// a client that never sends its job is dropped
+		Socket idle = new Socket(InetAddress.getLoopbackAddress(), port);
+
+		List<String> lines = AnalysisClient.send(port,
+				"cv prior2-basic s1 1000 3");
+		assertEquals(Arrays.asList("1000,3,-100.00,5.00,false"), lines);
+
+		idle.close();
+
+		lines = AnalysisClient.send(port, "status");
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).startsWith("treatments=[]"));
+
+		try {
+			AnalysisClient.send(port, "frobnicate");
+			fail("An unknown job should fail");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("Unknown job"));
+		}
+
+		AnalysisClient.send(port, "shutdown");
+		thread.join(5000);
+		assertTrue(!thread.isAlive());
+	}
+
+}
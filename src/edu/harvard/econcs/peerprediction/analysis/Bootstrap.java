@@ -0,0 +1,383 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+/**
+ * Bootstrap confidence intervals for the parameters of a model.
+ *
+ * A replicate is a vector of counts over the games, drawn with replacement,
+ * and is fitted as a ResampledGames, so the games are never copied and the
+ * kernels that take weights only visit the distinct games. Each replicate
+ * has its own random stream for its counts, derived from the seed and its
+ * index, and each fit runs under a context with its own seed, so the random
+ * restarts drawn through AnalysisContext.random() do not come from a stream
+ * shared between threads either. The replicates therefore do not depend on
+ * the number of threads or the order in which they finish. They are fitted
+ * in parallel, by default starting from the estimate on all games followed
+ * by FitSettings.warmStartRestarts random restarts.
+ *
+ * Each replicate is written out as soon as it is fitted, and the intervals
+ * so far are printed every reportEvery replicates. The intervals are the
+ * percentile interval and, once the leave-one-game-out jackknife fits for
+ * the acceleration are in, the BCa interval.
+ *
+ * The HMM is not supported, since its states can come out in any order.
+ */
+public class Bootstrap {
+
+	/**
+	 * Intervals for one parameter
+	 */
+	static class Interval {
+		String name;
+		double estimate;
+		double lower;
+		double upper;
+		// NaN until the jackknife is complete
+		double bcaLower = Double.NaN;
+		double bcaUpper = Double.NaN;
+	}
+
+	static final NormalDistribution normal = new NormalDistribution();
+
+	final String model;
+	final List<Game> games;
+	final int numReplicates;
+	final long seed;
+	final String[] paramNames;
+
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	// start the replicates from the estimate on all games
+	boolean warmStart = true;
+	// fit the jackknife for the BCa intervals
+	boolean bca = true;
+	// the intervals cover 1 - alpha
+	double alpha = 0.05;
+	int reportEvery = 50;
+
+	double[] estimate;
+	final List<double[]> replicates = new ArrayList<double[]>();
+	double[][] jackknife;
+	int numJackknife;
+
+	public Bootstrap(String model, List<Game> games, int numReplicates,
+			long seed) {
+		if (model.equals("HMM"))
+			throw new IllegalArgumentException(
+					"The HMM cannot be bootstrapped");
+		this.model = model;
+		this.games = games;
+		this.numReplicates = numReplicates;
+		this.seed = seed;
+		this.paramNames = LikelihoodSurface.getParamNames(model);
+	}
+
+	/**
+	 * The counts of replicate r
+	 */
+	int[] getCounts(int replicate) {
+		Random rnd = new Random(seed * 0x9E3779B97F4A7C15L + replicate);
+		return ResampledGames.drawCounts(games.size(), rnd);
+	}
+
+	/**
+	 * The seed of the context that fit index of sample runs under, apart
+	 * from the stream of the counts
+	 */
+	long getFitSeed(String sample, int index) {
+		return seed * 0x9E3779B97F4A7C15L + (sample + "-" + index).hashCode();
+	}
+
+	/**
+	 * Fit the replicates and the jackknife, writing each fit to file as it
+	 * finishes
+	 *
+	 * @return the intervals for each parameter
+	 */
+	public List<Interval> run(File file) throws IOException {
+		System.out.println("Fitting " + model + " on all games");
+		estimate = fit(games, null);
+		System.out.println("Estimate: " + Arrays.toString(estimate));
+
+		final int n = games.size();
+		if (bca)
+			jackknife = new double[n][];
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write("sample,index");
+		for (String name : paramNames) {
+			writer.write("," + name);
+		}
+		writer.write("\n");
+		writeRow(writer, "estimate", 0, estimate);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				numThreads));
+		CompletionService<Object[]> completion = new ExecutorCompletionService<Object[]>(
+				executor);
+		final double[] start = warmStart ? estimate : null;
+		try {
+			int numTasks = 0;
+			if (bca) {
+				for (int i = 0; i < n; i++) {
+					final int[] counts = new int[n];
+					Arrays.fill(counts, 1);
+					counts[i] = 0;
+					completion.submit(task("jackknife", i, counts, start));
+					numTasks++;
+				}
+			}
+			for (int r = 0; r < numReplicates; r++) {
+				completion.submit(task("replicate", r, null, start));
+				numTasks++;
+			}
+
+			for (int t = 0; t < numTasks; t++) {
+				Object[] result;
+				try {
+					result = completion.take().get();
+				} catch (ExecutionException e) {
+					System.err.println("A bootstrap fit failed");
+					e.getCause().printStackTrace();
+					continue;
+				}
+				String sample = (String) result[0];
+				int index = (Integer) result[1];
+				double[] point = (double[]) result[2];
+				if (sample.equals("jackknife")) {
+					jackknife[index] = point;
+					numJackknife++;
+				} else {
+					replicates.add(point);
+					if (replicates.size() % reportEvery == 0)
+						print(intervals());
+				}
+				writeRow(writer, sample, index, point);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+		}
+
+		List<Interval> intervals = intervals();
+		if (replicates.size() % reportEvery != 0)
+			print(intervals);
+		return intervals;
+	}
+
+	Callable<Object[]> task(final String sample, final int index,
+			final int[] jackknifeCounts, final double[] start) {
+		// inherited from the thread that submits the fits
+		final AnalysisContext context = AnalysisContext.current().withSeed(
+				getFitSeed(sample, index));
+		return new Callable<Object[]>() {
+			public Object[] call() throws Exception {
+				int[] counts = jackknifeCounts != null ? jackknifeCounts
+						: getCounts(index);
+				final List<Game> resampled = new ResampledGames(games, counts);
+				double[] point = context.call(new Callable<double[]>() {
+					public double[] call() {
+						return fit(resampled, start);
+					}
+				});
+				return new Object[] { sample, index, point };
+			}
+		};
+	}
+
+	double[] fit(List<Game> sample, double[] start) {
+		double[] point = PredLkAnalysis.fitParams(model, sample, start);
+		// label the s5 strategies the same way in every fit
+		if (model.equals("s5")) {
+			Map<String, Object> params = PredLkAnalysis.pointToParams(model,
+					point);
+			PredLkAnalysis.shiftToEquivalentParams(params);
+			point = LearningModelsCustom.mapToPoint(model, params);
+		}
+		return point;
+	}
+
+	static void writeRow(BufferedWriter writer, String sample, int index,
+			double[] point) throws IOException {
+		writer.write(sample + "," + index);
+		for (double value : point) {
+			writer.write(String.format(",%.6f", value));
+		}
+		writer.write("\n");
+		writer.flush();
+	}
+
+	/**
+	 * The intervals from the replicates fitted so far
+	 */
+	List<Interval> intervals() {
+		List<Interval> intervals = new ArrayList<Interval>();
+		boolean haveJackknife = jackknife != null
+				&& numJackknife == jackknife.length;
+		for (int d = 0; d < paramNames.length; d++) {
+			double[] values = new double[replicates.size()];
+			for (int r = 0; r < values.length; r++) {
+				values[r] = replicates.get(r)[d];
+			}
+			Arrays.sort(values);
+
+			Interval interval = new Interval();
+			interval.name = paramNames[d];
+			interval.estimate = estimate[d];
+			interval.lower = quantile(values, alpha / 2);
+			interval.upper = quantile(values, 1 - alpha / 2);
+			if (haveJackknife) {
+				double[] jack = new double[jackknife.length];
+				for (int i = 0; i < jack.length; i++) {
+					jack[i] = jackknife[i][d];
+				}
+				double[] bcaInterval = bcaInterval(values, estimate[d], jack,
+						alpha);
+				interval.bcaLower = bcaInterval[0];
+				interval.bcaUpper = bcaInterval[1];
+			}
+			intervals.add(interval);
+		}
+		return intervals;
+	}
+
+	void print(List<Interval> intervals) {
+		System.out.printf("%d of %d replicates, %.0f%% intervals\n",
+				replicates.size(), numReplicates, 100 * (1 - alpha));
+		System.out.printf("%-16s %10s %10s %10s %10s %10s\n", "parameter",
+				"estimate", "lower", "upper", "BCa lower", "BCa upper");
+		for (Interval interval : intervals) {
+			System.out.printf("%-16s %10.4f %10.4f %10.4f %10.4f %10.4f\n",
+					interval.name, interval.estimate, interval.lower,
+					interval.upper, interval.bcaLower, interval.bcaUpper);
+		}
+	}
+
+	/**
+	 * Quantile q of sorted values, interpolating between order statistics
+	 */
+	static double quantile(double[] sorted, double q) {
+		if (sorted.length == 0)
+			return Double.NaN;
+		double position = q * (sorted.length - 1);
+		int below = (int) Math.floor(position);
+		if (below >= sorted.length - 1)
+			return sorted[sorted.length - 1];
+		double fraction = position - below;
+		return sorted[below] + fraction * (sorted[below + 1] - sorted[below]);
+	}
+
+	/**
+	 * Bias-corrected and accelerated interval. The bias correction comes
+	 * from the fraction of replicates below the estimate and the
+	 * acceleration from the skewness of the jackknife values.
+	 *
+	 * @param sorted
+	 *            replicate values, sorted
+	 * @return lower and upper end, or NaNs if every replicate is on one
+	 *         side of the estimate
+	 */
+	static double[] bcaInterval(double[] sorted, double estimate,
+			double[] jackknife, double alpha) {
+		double below = 0;
+		for (double value : sorted) {
+			if (value < estimate)
+				below++;
+			else if (value == estimate)
+				below += 0.5;
+		}
+		double fraction = below / sorted.length;
+		if (fraction <= 0 || fraction >= 1)
+			return new double[] { Double.NaN, Double.NaN };
+		double z0 = normal.inverseCumulativeProbability(fraction);
+
+		double mean = 0;
+		for (double value : jackknife) {
+			mean += value;
+		}
+		mean /= jackknife.length;
+		double sumSquares = 0;
+		double sumCubes = 0;
+		for (double value : jackknife) {
+			double diff = mean - value;
+			sumSquares += diff * diff;
+			sumCubes += diff * diff * diff;
+		}
+		double acceleration = sumSquares > 0 ? sumCubes
+				/ (6 * Math.pow(sumSquares, 1.5)) : 0;
+
+		double[] interval = new double[2];
+		double[] levels = new double[] { alpha / 2, 1 - alpha / 2 };
+		for (int i = 0; i < 2; i++) {
+			double z = z0 + normal.inverseCumulativeProbability(levels[i]);
+			double adjusted = normal.cumulativeProbability(z0 + z
+					/ (1 - acceleration * z));
+			interval[i] = quantile(sorted, adjusted);
+		}
+		return interval;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 4) {
+			System.err.println("Please provide the arguments: treatment, model,"
+					+ " number of replicates, seed and optionally the number"
+					+ " of threads");
+			System.exit(0);
+		}
+
+		String treatment = args[0];
+		String model = args[1];
+		int numReplicates = Integer.parseInt(args[2]);
+		long seed = Long.parseLong(args[3]);
+
+		// set root directory for data
+		String homeDir = System.getProperty("user.home");
+		String separator = System.getProperty("file.separator");
+		final String rootDir = homeDir + separator + "ppdata" + separator
+				+ treatment + separator;
+
+		FitSettings settings = new FitSettings();
+		settings.seed = seed;
+		settings.logLkCache = new LogLkCache(100000);
+		AnalysisContext context = AnalysisContext.load(treatment, rootDir,
+				seed).withSettings(settings);
+		// the replicates already run in parallel
+		LearningModelsExisting.cmaesThreads = 1;
+
+		final Bootstrap bootstrap = new Bootstrap(model,
+				context.experiment.games, numReplicates, seed);
+		if (args.length > 4)
+			bootstrap.numThreads = Integer.parseInt(args[4]);
+		final File file = new File(String.format("%sbootstrap-%s-%s-%d.csv",
+				rootDir, treatment, model, seed));
+
+		PredLkAnalysis.printCurrentDateTime();
+		context.call(new Callable<List<Interval>>() {
+			public List<Interval> call() throws IOException {
+				return bootstrap.run(file);
+			}
+		});
+		PredLkAnalysis.printCurrentDateTime();
+	}
+
+}
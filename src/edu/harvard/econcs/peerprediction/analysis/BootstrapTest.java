@@ -0,0 +1,122 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class BootstrapTest {
+
+	@Test
+	public void testResampledGamesRepeatsByCount() {
+		List<Game> games = new ArrayList<Game>();
+		for (int i = 0; i < 4; i++) {
+			Game game = new Game();
+			game.id = String.format("%d", i);
+			games.add(game);
+		}
+
+		ResampledGames sample = new ResampledGames(games, new int[] { 2, 0,
+				1, 3 });
+		assertEquals(6, sample.size());
+		int[] expected = new int[] { 0, 0, 2, 3, 3, 3 };
+		for (int i = 0; i < expected.length; i++) {
+			assertSame(games.get(expected[i]), sample.get(i));
+		}
+		assertEquals(3, sample.getDistinctGames().size());
+		assertTrue(Arrays.equals(new int[] { 2, 1, 3 },
+				sample.getDistinctCounts()));
+
+		int[] counts = ResampledGames.drawCounts(50, new Random(1));
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		assertEquals(50, total);
+	}
+
+	@Test
+	public void testQuantileInterpolates() {
+		double[] sorted = new double[] { 1, 2, 3, 4, 5 };
+		assertEquals(1, Bootstrap.quantile(sorted, 0), 0.0);
+		assertEquals(3, Bootstrap.quantile(sorted, 0.5), 0.0);
+		assertEquals(4.5, Bootstrap.quantile(sorted, 0.875), 1e-12);
+		assertEquals(5, Bootstrap.quantile(sorted, 1), 0.0);
+	}
+
+	@Test
+	public void testBcaWithoutBiasOrSkewIsPercentile() {
+		Random rnd = new Random(7);
+		double[] replicates = new double[2001];
+		for (int r = 0; r < replicates.length; r++) {
+			replicates[r] = rnd.nextGaussian();
+		}
+		Arrays.sort(replicates);
+		double median = replicates[1000];
+		double[] jackknife = new double[] { -1, 0, 1 };
+
+		double[] bca = Bootstrap.bcaInterval(replicates, median, jackknife,
+				0.1);
+		assertEquals(Bootstrap.quantile(replicates, 0.05), bca[0], 1e-9);
+		assertEquals(Bootstrap.quantile(replicates, 0.95), bca[1], 1e-9);
+
+		// an estimate below every replicate has no bias correction
+		bca = Bootstrap.bcaInterval(replicates, -100, jackknife, 0.1);
+		assertTrue(Double.isNaN(bca[0]));
+
+		// one game pulling the estimate up, as with right-skewed data,
+		// moves the interval up
+		bca = Bootstrap.bcaInterval(replicates, median, new double[] { 1, 1,
+				1, -3 }, 0.1);
+		assertTrue(bca[0] > Bootstrap.quantile(replicates, 0.05));
+	}
+
+	@Test
+	public void testFitsDrawFromTheirOwnStream() throws Exception {
+		List<Game> games = new ArrayList<Game>();
+		for (int i = 0; i < 3; i++) {
+			games.add(new Game());
+		}
+		// a fit that only draws a random restart
+		Bootstrap bootstrap = new Bootstrap("RLS", games, 2, 5) {
+			double[] fit(List<Game> sample, double[] start) {
+				return new double[] { AnalysisContext.random().nextDouble() };
+			}
+		};
+
+		// the same draw whatever was drawn before, on any thread
+		double first = ((double[]) bootstrap.task("replicate", 1, null, null)
+				.call()[2])[0];
+		AnalysisContext.random().nextDouble();
+		final Callable<Object[]> task = bootstrap.task("replicate", 1, null,
+				null);
+		final Object[][] result = new Object[1][];
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					result[0] = task.call();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(first, ((double[]) result[0][2])[0], 0.0);
+
+		double other = ((double[]) bootstrap.task("replicate", 2, null, null)
+				.call()[2])[0];
+		double jackknife = ((double[]) bootstrap.task("jackknife", 1,
+				new int[] { 1, 0, 1 }, null).call()[2])[0];
+		assertTrue(first != other);
+		assertTrue(first != jackknife);
+	}
+
+}
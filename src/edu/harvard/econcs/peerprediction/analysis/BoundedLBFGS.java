@@ -0,0 +1,265 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.LinkedList;
+
+/**
+ * Limited-memory BFGS over a box, in the spirit of L-BFGS-B. Variables that
+ * sit on a bound with the gradient pointing out of the box are held fixed,
+ * the quasi-Newton direction is computed over the remaining variables, and
+ * each trial step is projected back into the box before the Armijo test.
+ * There is no generalized Cauchy point search, which matters little for the
+ * handful of parameters fitted here.
+ */
+public class BoundedLBFGS {
+
+	int memory = 10;
+	int maxIterations = 500;
+	int maxLineSearchSteps = 40;
+	double armijo = 1e-4;
+
+	// stop when the largest projected gradient entry or the relative
+	// decrease of the objective is below these
+	double gradientTolerance = 1e-6;
+	double relativeTolerance = 1e-12;
+
+	// stop at this deadline with the current point, if not null
+	Deadline deadline;
+
+	// counters for the last run
+	int numEvaluations;
+	int numIterations;
+	boolean converged;
+	double value;
+
+	/**
+	 * @param function
+	 * @param start
+	 *            projected into the box first
+	 * @param lb
+	 * @param ub
+	 * @return the point with the largest value found
+	 */
+	public double[] maximize(GradientFunction function, double[] start,
+			double[] lb, double[] ub) {
+
+		numEvaluations = 0;
+		numIterations = 0;
+		converged = false;
+
+		int n = start.length;
+		double[] x = project(start, lb, ub);
+		double[] g = new double[n];
+		double f = evaluate(function, x, g);
+
+		LinkedList<double[]> sHistory = new LinkedList<double[]>();
+		LinkedList<double[]> yHistory = new LinkedList<double[]>();
+
+		double[] xNew = new double[n];
+		double[] gNew = new double[n];
+		double[] direction = new double[n];
+		boolean[] free = new boolean[n];
+
+		while (numIterations < maxIterations) {
+			if (deadline != null && deadline.isExpired())
+				break;
+
+			// variables pushed against a bound are held fixed
+			double maxProjected = 0;
+			for (int i = 0; i < n; i++) {
+				free[i] = !((x[i] <= lb[i] && g[i] > 0) || (x[i] >= ub[i] && g[i] < 0));
+				if (free[i])
+					maxProjected = Math.max(maxProjected, Math.abs(g[i]));
+			}
+			if (maxProjected < gradientTolerance) {
+				converged = true;
+				break;
+			}
+
+			computeDirection(g, free, sHistory, yHistory, direction);
+			double slope = 0;
+			for (int i = 0; i < n; i++) {
+				slope += g[i] * direction[i];
+			}
+			if (!(slope < 0)) {
+				// not a descent direction, start the memory over
+				sHistory.clear();
+				yHistory.clear();
+				computeDirection(g, free, sHistory, yHistory, direction);
+			}
+
+			// first step of a fresh memory has unit length
+			double step = 1;
+			if (sHistory.isEmpty()) {
+				double norm = 0;
+				for (int i = 0; i < n; i++) {
+					norm += direction[i] * direction[i];
+				}
+				step = Math.min(1, 1 / Math.sqrt(norm));
+			}
+
+			// backtracking line search along the projected path
+			boolean accepted = false;
+			double fNew = Double.NaN;
+			for (int t = 0; t < maxLineSearchSteps; t++) {
+				for (int i = 0; i < n; i++) {
+					xNew[i] = Math.min(Math.max(x[i] + step * direction[i],
+							lb[i]), ub[i]);
+				}
+				fNew = evaluate(function, xNew, gNew);
+				double decrease = 0;
+				for (int i = 0; i < n; i++) {
+					decrease += g[i] * (xNew[i] - x[i]);
+				}
+				if (fNew <= f + armijo * decrease) {
+					accepted = true;
+					break;
+				}
+				step *= 0.5;
+			}
+			if (!accepted) {
+				if (sHistory.isEmpty())
+					break;
+				sHistory.clear();
+				yHistory.clear();
+				continue;
+			}
+
+			double[] s = new double[n];
+			double[] y = new double[n];
+			double sy = 0;
+			double yy = 0;
+			for (int i = 0; i < n; i++) {
+				s[i] = xNew[i] - x[i];
+				y[i] = gNew[i] - g[i];
+				sy += s[i] * y[i];
+				yy += y[i] * y[i];
+			}
+			if (sy > 1e-10 * yy) {
+				sHistory.addLast(s);
+				yHistory.addLast(y);
+				if (sHistory.size() > memory) {
+					sHistory.removeFirst();
+					yHistory.removeFirst();
+				}
+			}
+
+			double previous = f;
+			System.arraycopy(xNew, 0, x, 0, n);
+			System.arraycopy(gNew, 0, g, 0, n);
+			f = fNew;
+			numIterations++;
+
+			if (previous - f <= relativeTolerance
+					* Math.max(1, Math.max(Math.abs(previous), Math.abs(f)))) {
+				converged = true;
+				break;
+			}
+		}
+
+		value = -f;
+		return x;
+	}
+
+	/**
+	 * Minus the function, so the search minimizes
+	 */
+	double evaluate(GradientFunction function, double[] x, double[] g) {
+		numEvaluations++;
+		double f = function.valueAndGradient(x, g);
+		for (int i = 0; i < g.length; i++) {
+			g[i] = -g[i];
+		}
+		return -f;
+	}
+
+	/**
+	 * Two-loop recursion over the free variables
+	 */
+	static void computeDirection(double[] g, boolean[] free,
+			LinkedList<double[]> sHistory, LinkedList<double[]> yHistory,
+			double[] direction) {
+
+		int n = g.length;
+		int m = sHistory.size();
+		double[] q = new double[n];
+		for (int i = 0; i < n; i++) {
+			q[i] = free[i] ? -g[i] : 0;
+		}
+
+		double[] alpha = new double[m];
+		double[] rho = new double[m];
+		for (int k = m - 1; k >= 0; k--) {
+			double[] s = sHistory.get(k);
+			double[] y = yHistory.get(k);
+			double ys = dot(y, s, free);
+			if (!(ys > 0))
+				continue;
+			rho[k] = 1 / ys;
+			alpha[k] = rho[k] * dot(s, q, free);
+			for (int i = 0; i < n; i++) {
+				if (free[i])
+					q[i] -= alpha[k] * y[i];
+			}
+		}
+
+		if (m > 0) {
+			double[] s = sHistory.getLast();
+			double[] y = yHistory.getLast();
+			double gamma = dot(s, y, free) / dot(y, y, free);
+			if (gamma > 0 && !Double.isInfinite(gamma)) {
+				for (int i = 0; i < n; i++) {
+					q[i] *= gamma;
+				}
+			}
+		}
+
+		for (int k = 0; k < m; k++) {
+			double[] s = sHistory.get(k);
+			double[] y = yHistory.get(k);
+			double beta = rho[k] * dot(y, q, free);
+			for (int i = 0; i < n; i++) {
+				if (free[i])
+					q[i] += s[i] * (alpha[k] - beta);
+			}
+		}
+
+		System.arraycopy(q, 0, direction, 0, n);
+	}
+
+	static double dot(double[] a, double[] b, boolean[] free) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (free[i])
+				sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	static double[] project(double[] x, double[] lb, double[] ub) {
+		double[] projected = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			projected[i] = Math.min(Math.max(x[i], lb[i]), ub[i]);
+		}
+		return projected;
+	}
+
+	public int getNumEvaluations() {
+		return numEvaluations;
+	}
+
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * Value of the function at the returned point
+	 */
+	public double getValue() {
+		return value;
+	}
+
+}
@@ -0,0 +1,60 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+/**
+ * Wall-clock budget for the estimators.
+ *
+ * The estimators poll isExpired between evaluations, iterations or restarts,
+ * and once it returns true they stop and return the best parameters found
+ * so far. The first time that happens the deadline remembers it, so
+ * isBudgetExhausted tells the caller that a fit was cut short. One deadline
+ * can be shared by threads.
+ */
+public class Deadline {
+
+	final long deadlineNanos;
+	volatile boolean budgetExhausted;
+
+	/**
+	 * @param budgetMillis
+	 *            time from now until the deadline
+	 */
+	public Deadline(long budgetMillis) {
+		deadlineNanos = System.nanoTime() + budgetMillis * 1000000L;
+	}
+
+	/**
+	 * Whether the deadline has passed. If so, the budget is marked as
+	 * exhausted, since the caller is expected to stop.
+	 */
+	public boolean isExpired() {
+		if (System.nanoTime() - deadlineNanos < 0)
+			return false;
+		budgetExhausted = true;
+		return true;
+	}
+
+	/**
+	 * Whether any estimator stopped early because of this deadline
+	 */
+	public boolean isBudgetExhausted() {
+		return budgetExhausted;
+	}
+
+	public long getRemainingMillis() {
+		return Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000L);
+	}
+
+	/**
+	 * Thrown from inside an objective function to stop an optimizer that
+	 * cannot poll the deadline itself
+	 */
+	public static class ExpiredException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public ExpiredException() {
+			super("Deadline expired");
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.junit.Test;
+
+public class DeadlineTest {
+
+	// maximum at (0.3, -0.2)
+	static class Quadratic implements MultivariateFunction, GradientFunction {
+		public double value(double[] point) {
+			return valueAndGradient(point, new double[2]);
+		}
+
+		public double valueAndGradient(double[] point, double[] gradient) {
+			gradient[0] = -2 * (point[0] - 0.3);
+			gradient[1] = -2 * (point[1] + 0.2);
+			return -(point[0] - 0.3) * (point[0] - 0.3) - (point[1] + 0.2)
+					* (point[1] + 0.2);
+		}
+	}
+
+	static final Quadratic quadratic = new Quadratic();
+
+	@Test
+	public void testMarksExhaustedWhenPolledLate() {
+		Deadline later = new Deadline(60 * 60 * 1000);
+		assertFalse(later.isExpired());
+		assertFalse(later.isBudgetExhausted());
+
+		Deadline now = new Deadline(0);
+		assertFalse(now.isBudgetExhausted());
+		assertTrue(now.isExpired());
+		assertTrue(now.isBudgetExhausted());
+	}
+
+	@Test
+	public void testOptimizersStopAtDeadline() {
+		double[] lb = new double[] { -1, -1 };
+		double[] ub = new double[] { 1, 1 };
+
+		Deadline deadline = new Deadline(0);
+		ParallelCMAES cmaes = new ParallelCMAES(1, null);
+		cmaes.deadline = deadline;
+		double[] point = cmaes.maximize(quadratic, null, null, lb, ub);
+		assertEquals(2, point.length);
+		assertEquals(1, cmaes.getNumGenerations());
+		assertTrue(deadline.isBudgetExhausted());
+
+		BoundedLBFGS lbfgs = new BoundedLBFGS();
+		lbfgs.deadline = new Deadline(0);
+		point = lbfgs.maximize(quadratic, new double[] { 0.9, 0.9 }, lb, ub);
+		assertEquals(0, lbfgs.getNumIterations());
+		assertEquals(0.9, point[0], 0.0);
+
+		lbfgs.deadline = new Deadline(60 * 60 * 1000);
+		point = lbfgs.maximize(quadratic, new double[] { 0.9, 0.9 }, lb, ub);
+		assertFalse(lbfgs.deadline.isBudgetExhausted());
+		assertEquals(0.3, point[0], 1e-6);
+	}
+
+}
@@ -80,10 +80,10 @@ public class EMTest {
 			count++;
 		}
 		
-		Utils.em_K = strategies.length;
-		Utils.runEMAlgorithm(signalReportPairs);
-		System.out.printf("strategies: %s\n", Arrays.toString(Utils.em_strategies));
-		System.out.printf("probs: %s\n", Arrays.toString(Utils.em_pi));
+		MixtureEMResult result = Utils.runEMAlgorithm(signalReportPairs,
+				strategies.length, null, null);
+		System.out.printf("strategies: %s\n", Arrays.toString(result.getStrategies()));
+		System.out.printf("probs: %s\n", Arrays.toString(result.getPi()));
 		
 	}
 
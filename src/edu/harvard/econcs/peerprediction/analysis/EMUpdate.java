@@ -0,0 +1,21 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+/**
+ * The update map of an EM algorithm over a flat parameter vector
+ */
+public interface EMUpdate {
+
+	/**
+	 * Apply one EM step to params and write the result to next
+	 * 
+	 * @return log likelihood at params
+	 */
+	double update(double[] params, double[] next);
+
+	/**
+	 * Move a point that may be outside the parameter space, such as an
+	 * extrapolated point, back into it
+	 */
+	void project(double[] params);
+
+}
@@ -0,0 +1,126 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Games encoded once into flat primitive arrays for the likelihood kernels
+ * of the existing learning models. The data for player j of game g in round
+ * i is at index (g * numRounds + i) * numPlayers + j, with signals and
+ * reports stored as LearningModelsExisting.MM or GB.
+ *
+ * Everything that does not depend on the model parameters, including the
+ * treatment's expected payoffs and the log likelihood of the rewards, is
+ * computed here, so the encoding is only valid for the treatment that was
+ * set when it was built.
+ *
+ * Each game has a weight, the number of times it counts in the log
+ * likelihood, which is 1 unless the games are a bootstrap sample.
+ */
+public class EncodedGames {
+
+	final int numGames;
+	final int numPlayers;
+	final int numRounds;
+
+	final String[] gameIds;
+
+	final byte[] signals;
+	final byte[] reports;
+	final double[] rewards;
+	// number of MM reports by the other players in the same round
+	final byte[] numOtherMM;
+
+	// log likelihood of each reward, used if hasRewardLogLk
+	final boolean hasRewardLogLk;
+	final double[] rewardLogLk;
+
+	// log likelihood of the reports in the first round
+	final double firstRoundLogLk;
+
+	// indexed by [report][numOtherMMReports]
+	final double[][] expectedPayoffs;
+
+	// how many times each game counts in the log likelihood
+	final double[] weights;
+
+	/**
+	 * A ResampledGames is encoded once per distinct game, weighted by its
+	 * count
+	 */
+	public EncodedGames(List<Game> games) {
+		this(games instanceof ResampledGames ? ((ResampledGames) games)
+				.getDistinctGames() : games,
+				games instanceof ResampledGames ? ((ResampledGames) games)
+						.getDistinctCounts() : null);
+	}
+
+	/**
+	 * @param counts
+	 *            weight of each game, or null to weight all games by 1
+	 */
+	public EncodedGames(List<Game> games, int[] counts) {
+		numGames = games.size();
+		weights = new double[numGames];
+		for (int g = 0; g < numGames; g++) {
+			weights[g] = counts == null ? 1 : counts[g];
+		}
+		numPlayers = AnalysisContext.experiment().numPlayers;
+		numRounds = AnalysisContext.experiment().numRounds;
+
+		gameIds = new String[numGames];
+		int size = numGames * numRounds * numPlayers;
+		signals = new byte[size];
+		reports = new byte[size];
+		rewards = new double[size];
+		numOtherMM = new byte[size];
+		rewardLogLk = new double[size];
+
+		hasRewardLogLk = AnalysisContext.treatment().equals("prior2-basic")
+				|| AnalysisContext.treatment().equals("prior2-outputagreement");
+		firstRoundLogLk = Math.log(Math.pow(0.5, numPlayers));
+		expectedPayoffs = LearningModelsExisting.getExpectedPayoffTable();
+
+		for (int g = 0; g < numGames; g++) {
+			Game game = games.get(g);
+			gameIds[g] = game.id;
+			if (game.playerHitIds.length != numPlayers)
+				throw new IllegalArgumentException(String.format(
+						"Game %s has %d players, expected %d", game.id,
+						game.playerHitIds.length, numPlayers));
+
+			for (int i = 0; i < numRounds; i++) {
+				Map<String, Map<String, Object>> result = game.rounds.get(i).result;
+				int row = (g * numRounds + i) * numPlayers;
+
+				for (int j = 0; j < numPlayers; j++) {
+					String playerId = game.playerHitIds[j];
+					Map<String, Object> playerResult = result.get(playerId);
+					signals[row + j] = (byte) LearningModelsExisting
+							.toIndex((String) playerResult.get("signal"));
+					reports[row + j] = (byte) LearningModelsExisting
+							.toIndex((String) playerResult.get("report"));
+					rewards[row + j] = (double) playerResult.get("reward");
+					numOtherMM[row + j] = (byte) Utils.getNumOfGivenReport(
+							result, "MM", playerId);
+
+					if (hasRewardLogLk && i != numRounds - 1) {
+						int numPossibleRefPlayers = LearningModelsExisting
+								.getNumPossibleRefPlayers(result, playerId);
+						rewardLogLk[row + j] = Math.log(numPossibleRefPlayers
+								* 1.0 / (numPlayers - 1));
+					}
+				}
+			}
+		}
+	}
+
+	public int getNumGames() {
+		return numGames;
+	}
+
+	int row(int game, int round) {
+		return (game * numRounds + round) * numPlayers;
+	}
+
+}
@@ -0,0 +1,64 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+/**
+ * How the fits made under a context are run: the seed of their model cache
+ * keys, the caches, the time budget and the choice of estimators.
+ *
+ * The settings are carried by AnalysisContext, and PredLkAnalysis and the
+ * estimators read them through AnalysisContext.settings(), so fits with
+ * different seeds, budgets or estimators can run side by side in one JVM.
+ * Outside a context they are the defaults below, with no caches and no
+ * budget.
+ *
+ * Fill in the settings before passing them to AnalysisContext.withSettings,
+ * which keeps a copy. The caches and the deadline are shared by the copies.
+ */
+public class FitSettings {
+
+	// seed of the model cache keys
+	long seed;
+	ModelCache modelCache;
+	LogLkCache logLkCache;
+	// estimator for RL, SFP and EWA: "cmaes" or "lbfgs"
+	String existingModelEstimator = "cmaes";
+	// estimator for the custom models: "cobyla", "simplex" or, for s1, s4
+	// and s5 only, "em"
+	String customModelEstimator = "cobyla";
+	// abort hopeless restarts of the cobyla and simplex estimators
+	boolean raceRestarts = false;
+	// wall-clock budget of the estimators, or null
+	Deadline deadline;
+	// start each fit from the optimum on the full data set, followed by
+	// warmStartRestarts random restarts
+	boolean warmStart = false;
+	int warmStartRestarts = 2;
+
+	FitSettings copy() {
+		FitSettings copy = new FitSettings();
+		copy.seed = seed;
+		copy.modelCache = modelCache;
+		copy.logLkCache = logLkCache;
+		copy.existingModelEstimator = existingModelEstimator;
+		copy.customModelEstimator = customModelEstimator;
+		copy.raceRestarts = raceRestarts;
+		copy.deadline = deadline;
+		copy.warmStart = warmStart;
+		copy.warmStartRestarts = warmStartRestarts;
+		return copy;
+	}
+
+	/**
+	 * Whether the deadline cut a fit short
+	 */
+	boolean isBudgetExhausted() {
+		return deadline != null && deadline.isBudgetExhausted();
+	}
+
+	/**
+	 * Whether the deadline has passed
+	 */
+	boolean isExpired() {
+		return deadline != null && deadline.isExpired();
+	}
+
+}
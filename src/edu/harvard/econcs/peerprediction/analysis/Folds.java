@@ -0,0 +1,254 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+
+import com.google.common.base.Function;
+
+/**
+ * A division of a list of games into cross validation folds, as views over
+ * a permutation of the game indices.
+ *
+ * The games are neither copied nor reordered: the test and training sets
+ * are read-only lists that look up the games through the permutation, so
+ * any number of seeds can be run side by side over the same experiment.
+ * The likelihood functions take them like any other list of games.
+ *
+ * Without strata, fold f is the f-th block of the permutation, as in the
+ * old in-place shuffle, so a seed gives the same folds, and the same model
+ * cache keys, as before. With strata, the permutation is ordered by
+ * stratum and dealt to the folds in turn, so each stratum is spread evenly
+ * over the folds. Games left over are then dropped at even intervals along
+ * the strata, so each stratum loses games in proportion to its size, and
+ * which of its games it loses is up to the permutation.
+ */
+public class Folds {
+
+	/**
+	 * What to do with the games left over when the number of games is not
+	 * a multiple of the number of folds
+	 */
+	public enum Remainder {
+		// leave them out of every fold, as the old getTestSet did
+		DROP,
+		// give one each to the first folds
+		SPREAD
+	}
+
+	/**
+	 * Stratify by the equilibrium a game converged to, as set by
+	 * OldEqAnalysis. Games that were not classified are one stratum.
+	 */
+	public static final Function<Game, String> BY_CONVERGENCE_TYPE = new Function<Game, String>() {
+		public String apply(Game game) {
+			return game.convergenceType == null ? "" : game.convergenceType;
+		}
+	};
+
+	public static final Function<Game, String> BY_RELAXED_CONVERGENCE_TYPE = new Function<Game, String>() {
+		public String apply(Game game) {
+			return game.convergenceTypeRelaxed == null ? ""
+					: game.convergenceTypeRelaxed;
+		}
+	};
+
+	final List<Game> games;
+	final int numFolds;
+	// game indices, fold by fold, followed by the dropped games
+	final int[] order;
+	// fold f is order[starts[f]] to order[starts[f + 1] - 1]
+	final int[] starts;
+
+	/**
+	 * @param permutation
+	 *            a permutation of 0 to games.size() - 1
+	 * @param strata
+	 *            the stratum of a game, or null
+	 */
+	public Folds(List<Game> games, int numFolds, int[] permutation,
+			Function<Game, String> strata, Remainder remainder) {
+		if (numFolds < 1)
+			throw new IllegalArgumentException("Need at least one fold");
+		if (permutation.length != games.size())
+			throw new IllegalArgumentException("Permutation of "
+					+ permutation.length + " indices for " + games.size()
+					+ " games");
+
+		this.games = games;
+		this.numFolds = numFolds;
+		int n = games.size();
+		int groupSize = n / numFolds;
+		int numUsed = remainder == Remainder.DROP ? numFolds * groupSize : n;
+
+		starts = new int[numFolds + 1];
+		for (int f = 0; f <= numFolds; f++) {
+			starts[f] = f * groupSize;
+			if (remainder == Remainder.SPREAD)
+				starts[f] += Math.min(f, n % numFolds);
+		}
+
+		if (strata == null) {
+			order = permutation.clone();
+			return;
+		}
+
+		// order by stratum, keeping the permutation within each
+		Map<String, List<Integer>> byStratum = new TreeMap<String, List<Integer>>();
+		for (int index : permutation) {
+			String stratum = strata.apply(games.get(index));
+			List<Integer> members = byStratum.get(stratum);
+			if (members == null) {
+				members = new ArrayList<Integer>();
+				byStratum.put(stratum, members);
+			}
+			members.add(index);
+		}
+		int[] byStratumOrder = new int[n];
+		int k = 0;
+		for (List<Integer> members : byStratum.values()) {
+			for (int index : members) {
+				byStratumOrder[k++] = index;
+			}
+		}
+
+		// drop numDropped games spaced evenly over the strata, and keep the
+		// dropped games at the end
+		int numDropped = n - numUsed;
+		int[] dealt = new int[n];
+		int kept = 0;
+		int dropped = 0;
+		for (k = 0; k < n; k++) {
+			if (dropped < numDropped
+					&& k == (int) ((2L * dropped + 1) * n / (2L * numDropped)))
+				dealt[numUsed + dropped++] = byStratumOrder[k];
+			else
+				dealt[kept++] = byStratumOrder[k];
+		}
+
+		// the k-th dealt game goes to fold k % numFolds
+		order = new int[n];
+		int[] next = starts.clone();
+		for (k = 0; k < numUsed; k++) {
+			order[next[k % numFolds]++] = dealt[k];
+		}
+		System.arraycopy(dealt, numUsed, order, numUsed, numDropped);
+	}
+
+	/**
+	 * The folds of the old in-place shuffle with rnd, without the shuffle
+	 */
+	public static Folds shuffled(List<Game> games, int numFolds, Random rnd) {
+		return new Folds(games, numFolds, permutation(games.size(), rnd),
+				null, Remainder.DROP);
+	}
+
+	/**
+	 * Folds in the order of the list
+	 */
+	public static Folds inOrder(List<Game> games, int numFolds) {
+		return new Folds(games, numFolds, identity(games.size()), null,
+				Remainder.DROP);
+	}
+
+	/**
+	 * The permutation Collections.shuffle would apply to a list of n
+	 * elements with rnd: element i of the result is the index of the element
+	 * that the shuffle moves to position i.
+	 */
+	public static int[] permutation(int n, Random rnd) {
+		int[] permutation = identity(n);
+		for (int i = n; i > 1; i--) {
+			int j = rnd.nextInt(i);
+			int tmp = permutation[i - 1];
+			permutation[i - 1] = permutation[j];
+			permutation[j] = tmp;
+		}
+		return permutation;
+	}
+
+	static int[] identity(int n) {
+		int[] identity = new int[n];
+		for (int i = 0; i < n; i++) {
+			identity[i] = i;
+		}
+		return identity;
+	}
+
+	public int getNumFolds() {
+		return numFolds;
+	}
+
+	public List<Game> testSet(int foldIndex) {
+		checkFold(foldIndex);
+		int end = starts[foldIndex + 1];
+		return new View(games, order, starts[foldIndex], end, end, end);
+	}
+
+	/**
+	 * The games of all other folds. Dropped games are in no training set.
+	 */
+	public List<Game> trainingSet(int foldIndex) {
+		checkFold(foldIndex);
+		return new View(games, order, 0, starts[numFolds], starts[foldIndex],
+				starts[foldIndex + 1]);
+	}
+
+	/**
+	 * The games left out of every fold
+	 */
+	public List<Game> dropped() {
+		int n = order.length;
+		return new View(games, order, starts[numFolds], n, n, n);
+	}
+
+	void checkFold(int foldIndex) {
+		if (foldIndex < 0 || foldIndex >= numFolds)
+			throw new IndexOutOfBoundsException("Fold " + foldIndex + " of "
+					+ numFolds);
+	}
+
+	/**
+	 * The games at order[from] to order[to - 1], skipping order[skipFrom] to
+	 * order[skipTo - 1]
+	 */
+	static class View extends AbstractList<Game> implements RandomAccess {
+		final List<Game> games;
+		final int[] order;
+		final int from;
+		final int skipFrom;
+		final int skipLength;
+		final int size;
+
+		View(List<Game> games, int[] order, int from, int to, int skipFrom,
+				int skipTo) {
+			this.games = games;
+			this.order = order;
+			this.from = from;
+			this.skipFrom = skipFrom;
+			this.skipLength = skipTo - skipFrom;
+			this.size = to - from - skipLength;
+		}
+
+		@Override
+		public Game get(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index " + index
+						+ ", size " + size);
+			int position = from + index;
+			if (position >= skipFrom)
+				position += skipLength;
+			return games.get(order[position]);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+}
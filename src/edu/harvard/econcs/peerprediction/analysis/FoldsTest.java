@@ -0,0 +1,115 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FoldsTest {
+
+	static List<Game> games(int n) {
+		List<Game> games = new ArrayList<Game>();
+		for (int i = 0; i < n; i++) {
+			Game game = new Game();
+			game.id = String.format("%d", i);
+			game.convergenceType = i % 4 == 0 ? "MM" : "GB";
+			games.add(game);
+		}
+		return games;
+	}
+
+	@Test
+	public void testShuffledMatchesInPlaceShuffle() {
+		List<Game> games = games(53);
+		List<Game> shuffled = new ArrayList<Game>(games);
+		Collections.shuffle(shuffled, new Random(17));
+
+		Folds folds = Folds.shuffled(games, 10, new Random(17));
+		for (int f = 0; f < 10; f++) {
+			assertEquals(PredLkAnalysis.getTestSet(shuffled, f),
+					folds.testSet(f));
+			assertEquals(PredLkAnalysis.getTrainingSet(shuffled, f),
+					folds.trainingSet(f));
+		}
+		assertEquals(3, folds.dropped().size());
+		// the games themselves are untouched
+		assertEquals(games(53).get(5).id, games.get(5).id);
+	}
+
+	@Test
+	public void testSpreadRemainder() {
+		List<Game> games = games(53);
+		Folds folds = new Folds(games, 10, Folds.permutation(53,
+				new Random(3)), null, Folds.Remainder.SPREAD);
+
+		Set<Game> tested = new HashSet<Game>();
+		for (int f = 0; f < 10; f++) {
+			List<Game> testSet = folds.testSet(f);
+			List<Game> trainingSet = folds.trainingSet(f);
+			assertEquals(f < 3 ? 6 : 5, testSet.size());
+			assertEquals(53 - testSet.size(), trainingSet.size());
+			for (Game game : testSet) {
+				assertFalse(trainingSet.contains(game));
+				assertTrue(tested.add(game));
+			}
+		}
+		assertEquals(53, tested.size());
+		assertTrue(folds.dropped().isEmpty());
+	}
+
+	@Test
+	public void testStrataAreSpreadEvenly() {
+		// 10 MM and 30 GB games
+		List<Game> games = games(40);
+		Folds folds = new Folds(games, 5, Folds.permutation(40,
+				new Random(5)), Folds.BY_CONVERGENCE_TYPE,
+				Folds.Remainder.DROP);
+
+		for (int f = 0; f < 5; f++) {
+			int numMM = 0;
+			for (Game game : folds.testSet(f)) {
+				if (game.convergenceType.equals("MM"))
+					numMM++;
+			}
+			assertEquals(8, folds.testSet(f).size());
+			assertEquals(2, numMM);
+			assertEquals(32, folds.trainingSet(f).size());
+		}
+	}
+
+	@Test
+	public void testDroppedGamesComeFromEveryStratum() {
+		// 11 MM and 32 GB games, 3 left over
+		List<Game> games = games(43);
+		Folds folds = new Folds(games, 5, Folds.permutation(43,
+				new Random(5)), Folds.BY_CONVERGENCE_TYPE,
+				Folds.Remainder.DROP);
+
+		int numMM = 0;
+		for (Game game : folds.dropped()) {
+			if (game.convergenceType.equals("MM"))
+				numMM++;
+		}
+		assertEquals(3, folds.dropped().size());
+		assertEquals(1, numMM);
+
+		Set<Game> tested = new HashSet<Game>(folds.dropped());
+		for (int f = 0; f < 5; f++) {
+			assertEquals(8, folds.testSet(f).size());
+			assertEquals(32, folds.trainingSet(f).size());
+			for (Game game : folds.testSet(f)) {
+				assertTrue(tested.add(game));
+			}
+		}
+		assertEquals(43, tested.size());
+	}
+
+}
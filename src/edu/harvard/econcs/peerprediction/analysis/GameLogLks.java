@@ -0,0 +1,178 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The log likelihood of each game at one parameter point.
+ *
+ * The log likelihood of every model is a sum over games, since each game
+ * starts the players afresh. Once the contribution of each game is known,
+ * the log likelihood of any subset of the games, such as a fold, a
+ * training set or all games but one, is a sum or a difference of these
+ * contributions, without another pass over the data. This is what makes
+ * leave-one-game-out and repeated k-fold scores under fixed parameters
+ * cheap.
+ *
+ * The contributions of the most recently used points are cached, keyed like
+ * LogLkCache by the model, the ordered game IDs and the exact bits of the
+ * point.
+ */
+public class GameLogLks {
+
+	static int cacheCapacity = 64;
+	static final LinkedHashMap<LogLkCache.Key, GameLogLks> cache = new LinkedHashMap<LogLkCache.Key, GameLogLks>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<LogLkCache.Key, GameLogLks> eldest) {
+			return size() > cacheCapacity;
+		}
+	};
+
+	final String model;
+	final String[] gameIds;
+	final double[] logLks;
+	final double total;
+	final Map<String, Integer> indexOf;
+
+	GameLogLks(String model, String[] gameIds, double[] logLks) {
+		this.model = model;
+		this.gameIds = gameIds;
+		this.logLks = logLks;
+		double sum = 0;
+		indexOf = new HashMap<String, Integer>();
+		for (int g = 0; g < logLks.length; g++) {
+			sum += logLks[g];
+			indexOf.put(gameIds[g], g);
+		}
+		total = sum;
+	}
+
+	/**
+	 * The contributions of games at point, from the cache if they were
+	 * computed before
+	 *
+	 * @param point
+	 *            in the layout of PredLkAnalysis.pointToParams
+	 */
+	public static GameLogLks get(String model, double[] point,
+			List<Game> games) {
+		LogLkCache.Key key = new LogLkCache.Key(model,
+				LogLkCache.dataId(games), point);
+		synchronized (cache) {
+			GameLogLks cached = cache.get(key);
+			if (cached != null)
+				return cached;
+		}
+		GameLogLks result = compute(model, point, games);
+		synchronized (cache) {
+			cache.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * One pass over the games. The existing models go through
+	 * computeLogLkBatch; the others evaluate each game on its own.
+	 */
+	static GameLogLks compute(String model, double[] point, List<Game> games) {
+		String[] gameIds = new String[games.size()];
+		for (int g = 0; g < gameIds.length; g++) {
+			gameIds[g] = games.get(g).id;
+		}
+
+		double[] logLks;
+		if (model.startsWith("RL") || model.startsWith("SFP")
+				|| model.startsWith("EWA")) {
+			double[][] gameLogLks = new double[1][games.size()];
+			LearningModelsExisting.computeLogLkBatch(model,
+					new double[][] { point }, new EncodedGames(games, null),
+					gameLogLks);
+			logLks = gameLogLks[0];
+		} else {
+			if (!ModelRegistry.isRegistered(model))
+				throw new IllegalArgumentException("Unknown model " + model);
+			Map<String, Object> params = PredLkAnalysis.pointToParams(model,
+					point);
+			logLks = new double[games.size()];
+			for (int g = 0; g < logLks.length; g++) {
+				logLks[g] = PredLkAnalysis.getTestLogLk(model, params,
+						Collections.singletonList(games.get(g)));
+			}
+		}
+		return new GameLogLks(model, gameIds, logLks);
+	}
+
+	public double getTotal() {
+		return total;
+	}
+
+	public double[] getLogLks() {
+		return logLks.clone();
+	}
+
+	/**
+	 * Log likelihood of some of the games
+	 */
+	public double sum(List<Game> games) {
+		double sum = 0;
+		for (Game game : games) {
+			Integer g = indexOf.get(game.id);
+			if (g == null)
+				throw new IllegalArgumentException("No log likelihood for game "
+						+ game.id);
+			sum += logLks[g];
+		}
+		return sum;
+	}
+
+	/**
+	 * Log likelihood of all games but the held out ones
+	 */
+	public double totalWithout(List<Game> heldOut) {
+		return total - sum(heldOut);
+	}
+
+	/**
+	 * For each game, the log likelihood of all the other games
+	 */
+	public double[] leaveOneOut() {
+		double[] rest = new double[logLks.length];
+		for (int g = 0; g < logLks.length; g++) {
+			rest[g] = total - logLks[g];
+		}
+		return rest;
+	}
+
+	/**
+	 * Log likelihood of the test set of each fold
+	 */
+	public double[] testLogLks(Folds folds) {
+		double[] test = new double[folds.getNumFolds()];
+		for (int f = 0; f < test.length; f++) {
+			test[f] = sum(folds.testSet(f));
+		}
+		return test;
+	}
+
+	/**
+	 * Log likelihood of the training set of each fold, as the log likelihood
+	 * of all folds minus the test set
+	 */
+	public double[] trainingLogLks(Folds folds) {
+		double[] test = testLogLks(folds);
+		double used = totalWithout(folds.dropped());
+		double[] training = new double[test.length];
+		for (int f = 0; f < test.length; f++) {
+			training[f] = used - test[f];
+		}
+		return training;
+	}
+
+}
@@ -0,0 +1,16 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+/**
+ * A function that computes its gradient along with its value
+ */
+public interface GradientFunction {
+
+	/**
+	 * @param point
+	 * @param gradient
+	 *            receives the gradient at point
+	 * @return the value at point
+	 */
+	double valueAndGradient(double[] point, double[] gradient);
+
+}
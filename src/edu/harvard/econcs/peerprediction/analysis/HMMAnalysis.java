@@ -8,11 +8,10 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,42 +27,221 @@ import net.andrewmao.models.games.SigActObservation;
 
 public class HMMAnalysis {
 
+	// The treatment analyzed, and the HMM learned for it with the
+	// strategies its states are matched to. Several analyses can run side by
+	// side, each on its own context.
+	final AnalysisContext context;
+	int mmState = -1;
+	int gbState = -1;
+	int truthfulState = -1;
+	int mixedState = -1;
+	int mixed2State = -1;
+	Hmm<SigActObservation<CandySignal, CandyReport>> learntHmm = null;
+	String[] strategyNames = null;
+	int numStrategies = -1;
+	// report tables, from the state sequences and strategy names
+	StateAggregates aggregates = null;
+
+	public HMMAnalysis(AnalysisContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Analyze the context bound to the current thread, or the static
+	 * defaults
+	 */
+	public HMMAnalysis() {
+		this(AnalysisContext.current());
+	}
+
 	public static void performAnalysis() throws IOException {
+		new HMMAnalysis().analyze();
+	}
+
+	/**
+	 * Run the stages of buildPipeline, reusing the fitted HMM and the state
+	 * sequences of the last run if nothing they depend on has changed
+	 */
+	public void analyze() throws IOException {
+		setNumStrategies();
+		Pipeline pipeline = buildPipeline(new File(context.rootDir
+				+ "pipelineCache"));
+		pipeline.run();
+		System.out.printf("Stages run: %s, read from cache: %s\n",
+				pipeline.ran, pipeline.loaded);
+	}
+
+	/**
+	 * parse, encode, fit, decode and classify, then the reports. The fitted
+	 * HMM and the state sequences are cached, so changing a report does not
+	 * learn the HMM again. The fit still starts from and updates the best HMM
+	 * so far in learntHMM<n>strategies.txt; delete the cache directory to
+	 * learn again with the same settings.
+	 */
+	Pipeline buildPipeline(File cacheDir) throws IOException {
+		final String rawDataDigest = Pipeline.digest(new File(context.rootDir
+				+ "rawData.txt"));
+		Pipeline pipeline = new Pipeline(cacheDir);
+
+		pipeline.add(new Pipeline.Stage("parse") {
+			String getSettings() {
+				return context.treatment + ";" + rawDataDigest;
+			}
+
+			Object run(Object[] inputs) {
+				return context.experiment.games;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("encode", "parse") {
+			Object run(Object[] inputs) {
+				return getActObsSequence(games(inputs[0]));
+			}
+		});
+		pipeline.add(new Pipeline.Stage("fit", "encode") {
+			String getSettings() {
+				return String.format("numStrategies=%d;numRestarts=%d;"
+						+ "accelerateBaumWelch=%b;tol=%s;seed=%d",
+						numStrategies, numRestarts, accelerateBaumWelch, tol,
+						context.seed);
+			}
+
+			boolean isCached() {
+				return true;
+			}
 
-		learnHMM();
-		setStrategyNames();
-		writeStateSeq();
-		eqConvergenceHmm();
-		writeStrategyChangeHeatMap();
+			Object run(final Object[] inputs) throws Exception {
+				System.out.println("Learning HMM");
+				final String filename = String.format(
+						"%slearntHMM%dstrategies.txt", context.rootDir,
+						numStrategies);
+				// the random restarts from a fresh stream of the seed, so the
+				// fit depends on nothing that is not in the settings
+				return context.withSeed(context.seed).call(
+						new Callable<double[]>() {
+							public double[] call() throws IOException {
+								return hmmToArray(learnHMMFromSequences(
+										sequences(inputs[0]), numStrategies,
+										numRestarts, filename, null, null));
+							}
+						});
+			}
+		});
+		pipeline.add(new Pipeline.Stage("decode", "parse", "fit") {
+			boolean isCached() {
+				return true;
+			}
 
-		writeStrategyDistribution();
-		genStrategyChangePredictedByHmm();
-		graphLogLikelihood();
+			Object run(Object[] inputs) {
+				return decodeStates(games(inputs[0]),
+						arrayToHmm((double[]) inputs[1]));
+			}
+		});
+		pipeline.add(new Pipeline.Stage("classify", "parse", "fit", "decode") {
+			@SuppressWarnings("unchecked")
+			Object run(Object[] inputs) throws IOException {
+				learntHmm = arrayToHmm((double[]) inputs[1]);
+				setStateSeqs(games(inputs[0]),
+						(Map<String, int[]>) inputs[2]);
+				setStrategyNames();
+				aggregates = null;
+				getAggregates();
+				return null;
+			}
+		});
+
+		pipeline.add(new Pipeline.Stage("hmmReport", "encode", "classify") {
+			Object run(Object[] inputs) throws IOException {
+				writeHmm(sequences(inputs[0]));
+				return null;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("eqConvergence", "classify") {
+			Object run(Object[] inputs) throws IOException {
+				eqConvergenceHmm();
+				return null;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("stateSeqReport", "classify") {
+			Object run(Object[] inputs) throws IOException {
+				writeStateSeq();
+				return null;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("heatMap", "classify") {
+			Object run(Object[] inputs) throws IOException {
+				writeStrategyChangeHeatMap();
+				return null;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("strategyDistribution", "classify") {
+			Object run(Object[] inputs) throws IOException {
+				writeStrategyDistribution();
+				return null;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("strategyChangePredicted", "classify") {
+			Object run(Object[] inputs) throws IOException {
+				genStrategyChangePredictedByHmm();
+				return null;
+			}
+		});
+		// reads the HMMs saved for each number of states, so after the fit
+		pipeline.add(new Pipeline.Stage("logLikelihood", "encode", "fit") {
+			Object run(Object[] inputs) throws IOException {
+				graphLogLikelihood();
+				return null;
+			}
+		});
+		return pipeline;
 	}
 
-	
-	public static void learnHMM() throws IOException {
+	@SuppressWarnings("unchecked")
+	static List<Game> games(Object output) {
+		return (List<Game>) output;
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<List<SigActObservation<CandySignal, CandyReport>>> sequences(
+			Object output) {
+		return (List<List<SigActObservation<CandySignal, CandyReport>>>) output;
+	}
+
+	public void learnHMM() throws IOException {
 		System.out.println("Learning HMM");
-	
+		setNumStrategies();
+		learntHmm = HMMAnalysis
+				.learnHMM(context.experiment.games, numStrategies, HMMAnalysis.numRestarts);
+		writeHmm(HMMAnalysis.getActObsSequence(context.experiment.games));
+	}
+
+	/**
+	 * Four strategies for every treatment, unless numStrategies is already
+	 * set
+	 */
+	void setNumStrategies() {
 		// Set number of strategies
-		if (PredLkAnalysis.treatment.equals("prior2-basic")
-				|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
-			HMMAnalysis.numStrategies = 4;
-		} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
-			HMMAnalysis.numStrategies = 4;
-		} else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
-			HMMAnalysis.numStrategies = 4;
-		} else if (PredLkAnalysis.treatment.equals("prior2-constant")) {
-			HMMAnalysis.numStrategies = 4;
+		if (numStrategies > 0) {
+			// chosen by the caller
+		} else if (context.treatment.equals("prior2-basic")
+				|| context.treatment.equals("prior2-outputagreement")) {
+			numStrategies = 4;
+		} else if (context.treatment.equals("prior2-uniquetruthful")) {
+			numStrategies = 4;
+		} else if (context.treatment.equals("prior2-symmlowpay")) {
+			numStrategies = 4;
+		} else if (context.treatment.equals("prior2-constant")) {
+			numStrategies = 4;
 		}
-		HMMAnalysis.strategyNames = new String[HMMAnalysis.numStrategies];
-		System.out.printf("numStrategies: %d\n", HMMAnalysis.numStrategies);
-	
-		HMMAnalysis.learntHmm = HMMAnalysis
-				.learnHMM(LogReader.expSet.games, HMMAnalysis.numStrategies, HMMAnalysis.numRestarts);
-		List<List<SigActObservation<CandySignal, CandyReport>>> seq = HMMAnalysis
-				.getActObsSequence(LogReader.expSet.games);
-		double loglk = BWToleranceLearner.computeLogLk(HMMAnalysis.learntHmm, seq);
+		strategyNames = new String[numStrategies];
+		System.out.printf("numStrategies: %d\n", numStrategies);
+	}
+
+	/**
+	 * Write the learned HMM and its log likelihood on seq
+	 */
+	void writeHmm(List<List<SigActObservation<CandySignal, CandyReport>>> seq)
+			throws IOException {
+		double loglk = BWToleranceLearner.computeLogLk(learntHmm, seq);
 	
 		/*
 		 * // list of signal and report observations
@@ -96,19 +274,19 @@ public class HMMAnalysis {
 		 * saveHMMDataToFile(filename, learntHmm); } }
 		 */
 		// compute steady state prob
-		double[] steadyState = HMMAnalysis.calcSteadyStateProb(HMMAnalysis.learntHmm);
+		double[] steadyState = HMMAnalysis.calcSteadyStateProb(learntHmm);
 	
 		// write HMM to console
 		System.out.printf("Ending loglikelihood : %.5f\n"
 				+ "Resulting HMM: %s\n" + "Steady state probabilities: %s\n",
-				loglk, HMMAnalysis.learntHmm, Arrays.toString(steadyState));
+				loglk, learntHmm, Arrays.toString(steadyState));
 	
 		// write HMM to file
-		BufferedWriter writer = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
-				+ HMMAnalysis.numStrategies + "StateHmm.txt"));
+		BufferedWriter writer = new BufferedWriter(new FileWriter(context.rootDir
+				+ numStrategies + "StateHmm.txt"));
 		writer.write(String.format("Ending loglikelihood : %.5f\n"
 				+ "Resulting HMM: %s\n" + "Steady state probabilities: %s\n",
-				loglk, HMMAnalysis.learntHmm, Arrays.toString(steadyState)));
+				loglk, learntHmm, Arrays.toString(steadyState)));
 		writer.flush();
 		writer.close();
 	
@@ -117,32 +295,82 @@ public class HMMAnalysis {
 	public static Hmm<SigActObservation<CandySignal, CandyReport>> learnHMM(
 			List<Game> games, int numStrategies, int numRestarts)
 			throws IOException {
+		String filename = String.format("%slearntHMM%dstrategies.txt",
+				AnalysisContext.rootDir(), numStrategies);
+		return learnHMM(games, numStrategies, numRestarts, filename);
+	}
+
+	/**
+	 * @param games
+	 * @param numStrategies
+	 * @param numRestarts
+	 * @param fileame
+	 *            file holding the best HMM so far for these games, or null
+	 *            to always learn from scratch
+	 * @return
+	 * @throws IOException
+	 */
+	public static Hmm<SigActObservation<CandySignal, CandyReport>> learnHMM(
+			List<Game> games, int numStrategies, int numRestarts,
+			String fileame) throws IOException {
+		return learnHMM(games, numStrategies, numRestarts, fileame, null);
+	}
+
+	/**
+	 * @param initialHmm
+	 *            if not null, the first restart learns from this HMM instead
+	 *            of a random one
+	 */
+	public static Hmm<SigActObservation<CandySignal, CandyReport>> learnHMM(
+			List<Game> games, int numStrategies, int numRestarts,
+			String fileame,
+			Hmm<SigActObservation<CandySignal, CandyReport>> initialHmm)
+			throws IOException {
+		return learnHMMFromSequences(HMMAnalysis.getActObsSequence(games),
+				numStrategies, numRestarts, fileame, initialHmm, null);
+	}
+
+	/**
+	 * @param deadline
+	 *            stop at this deadline with the best HMM so far, if not null
+	 */
+	static Hmm<SigActObservation<CandySignal, CandyReport>> learnHMMFromSequences(
+			List<List<SigActObservation<CandySignal, CandyReport>>> seq,
+			int numStrategies, int numRestarts, String fileame,
+			Hmm<SigActObservation<CandySignal, CandyReport>> initialHmm,
+			Deadline deadline) throws IOException {
 	
 		Hmm<SigActObservation<CandySignal, CandyReport>> bestHMM = null;
 	
-		List<List<SigActObservation<CandySignal, CandyReport>>> seq = HMMAnalysis
-				.getActObsSequence(LogReader.expSet.games);
 		BWToleranceLearner bwl = new BWToleranceLearner();
+		AcceleratedBaumWelch abw = new AcceleratedBaumWelch();
+		abw.deadline = deadline;
 		double loglk = Double.NEGATIVE_INFINITY;
 	
-		String fileame = String.format("%slearntHMM%dstrategies.txt", PredLkAnalysis.rootDir,
-				numStrategies);
-	
 		// load last best HMM if it exists
-		File hmmFile = new File(fileame);
-		if (hmmFile.exists()) {
+		if (fileame != null && new File(fileame).exists()) {
 			bestHMM = HMMAnalysis.createHMMFromFile(fileame);
 			loglk = BWToleranceLearner.computeLogLk(bestHMM, seq);
 			// System.out.printf("Starting loglikelihood : %.5f\n", loglk);
 		}
 	
 		for (int i = 0; i < numRestarts; i++) {
+			if (bestHMM != null && deadline != null && deadline.isExpired())
+				break;
 	
 			Hmm<SigActObservation<CandySignal, CandyReport>> origHmmTemp = Utils
 					.getRandomHmm(numStrategies);
-	
-			Hmm<SigActObservation<CandySignal, CandyReport>> learntHmmTemp = bwl
-					.learn(origHmmTemp, seq);
+			if (i == 0 && initialHmm != null)
+				origHmmTemp = initialHmm;
+	
+			Hmm<SigActObservation<CandySignal, CandyReport>> learntHmmTemp;
+			if (accelerateBaumWelch) {
+				learntHmmTemp = abw.learn(origHmmTemp, seq);
+				System.out.printf("Accelerated Baum-Welch: %s\n",
+						abw.getLastRun());
+			} else {
+				learntHmmTemp = bwl.learn(origHmmTemp, seq);
+			}
 	
 			double loglkTemp = BWToleranceLearner.computeLogLk(learntHmmTemp,
 					seq);
@@ -152,320 +380,335 @@ public class HMMAnalysis {
 				bestHMM = learntHmmTemp;
 				loglk = loglkTemp;
 	
-				HMMAnalysis.saveHMMDataToFile(fileame, bestHMM);
+				if (fileame != null)
+					HMMAnalysis.saveHMMDataToFile(fileame, bestHMM);
 			}
 		}
 	
 		return bestHMM;
 	}
 
-	public static void setStrategyNames() throws IOException {
+	public void setStrategyNames() throws IOException {
 		System.out.println("Give strategies names");
 	
-		for (int i = 0; i < HMMAnalysis.numStrategies; i++) {
-			Opdf<SigActObservation<CandySignal, CandyReport>> opdf = HMMAnalysis.learntHmm
+		for (int i = 0; i < numStrategies; i++) {
+			Opdf<SigActObservation<CandySignal, CandyReport>> opdf = learntHmm
 					.getOpdf(i);
 	
-			Opdf<SigActObservation<CandySignal, CandyReport>> opdf1 = HMMAnalysis.learntHmm
+			Opdf<SigActObservation<CandySignal, CandyReport>> opdf1 = learntHmm
 					.getOpdf(i);
 	
 			if (Utils.isMMStrategy(opdf)) {
-				if (HMMAnalysis.mmState == -1) {
-					HMMAnalysis.strategyNames[i] = "MM";
-					HMMAnalysis.mmState = i;
+				if (mmState == -1) {
+					strategyNames[i] = "MM";
+					mmState = i;
 				} else {
-					Opdf<SigActObservation<CandySignal, CandyReport>> opdf2 = HMMAnalysis.learntHmm
-							.getOpdf(HMMAnalysis.mmState);
+					Opdf<SigActObservation<CandySignal, CandyReport>> opdf2 = learntHmm
+							.getOpdf(mmState);
 	
 					if (Utils.isBetterMMStrategy(opdf1, opdf2)) {
 	
-						HMMAnalysis.strategyNames[HMMAnalysis.mmState] = "Mixed";
-						HMMAnalysis.mixedState = HMMAnalysis.mmState;
+						strategyNames[mmState] = "Mixed";
+						mixedState = mmState;
 	
-						HMMAnalysis.strategyNames[i] = "MM";
-						HMMAnalysis.mmState = i;
+						strategyNames[i] = "MM";
+						mmState = i;
 					}
 				}
 			} else if (Utils.isGBStrategy(opdf)) {
-				if (HMMAnalysis.gbState == -1) {
-					HMMAnalysis.strategyNames[i] = "GB";
-					HMMAnalysis.gbState = i;
+				if (gbState == -1) {
+					strategyNames[i] = "GB";
+					gbState = i;
 				} else {
-					Opdf<SigActObservation<CandySignal, CandyReport>> opdf4 = HMMAnalysis.learntHmm
-							.getOpdf(HMMAnalysis.gbState);
+					Opdf<SigActObservation<CandySignal, CandyReport>> opdf4 = learntHmm
+							.getOpdf(gbState);
 	
 					if (Utils.isBetterGBStrategy(opdf1, opdf4)) {
-						HMMAnalysis.strategyNames[HMMAnalysis.gbState] = "Mixed";
-						HMMAnalysis.mixedState = HMMAnalysis.gbState;
+						strategyNames[gbState] = "Mixed";
+						mixedState = gbState;
 	
-						HMMAnalysis.strategyNames[i] = "GB";
-						HMMAnalysis.gbState = i;
+						strategyNames[i] = "GB";
+						gbState = i;
 					}
 				}
 			} else if (Utils.isTruthfulStrategy(opdf)) {
-				if (HMMAnalysis.truthfulState == -1) {
-					HMMAnalysis.strategyNames[i] = "Truthful";
-					HMMAnalysis.truthfulState = i;
+				if (truthfulState == -1) {
+					strategyNames[i] = "Truthful";
+					truthfulState = i;
 				} else {
-					Opdf<SigActObservation<CandySignal, CandyReport>> opdf3 = HMMAnalysis.learntHmm
-							.getOpdf(HMMAnalysis.truthfulState);
+					Opdf<SigActObservation<CandySignal, CandyReport>> opdf3 = learntHmm
+							.getOpdf(truthfulState);
 	
 					if (Utils.isBetterTruthfulStrategy(opdf1, opdf3)) {
 	
-						HMMAnalysis.strategyNames[HMMAnalysis.truthfulState] = "Mixed";
-						HMMAnalysis.mixedState = HMMAnalysis.truthfulState;
+						strategyNames[truthfulState] = "Mixed";
+						mixedState = truthfulState;
 	
-						HMMAnalysis.strategyNames[i] = "Truthful";
-						HMMAnalysis.truthfulState = i;
+						strategyNames[i] = "Truthful";
+						truthfulState = i;
 					}
 				}
 			}
 	
-			if (HMMAnalysis.strategyNames[i] == null) {
-				if (HMMAnalysis.mixedState == -1) {
-					HMMAnalysis.strategyNames[i] = "Mixed";
-					HMMAnalysis.mixedState = i;
+			if (strategyNames[i] == null) {
+				if (mixedState == -1) {
+					strategyNames[i] = "Mixed";
+					mixedState = i;
 				} else {
-					HMMAnalysis.strategyNames[i] = "Mixed2";
-					HMMAnalysis.mixed2State = i;
+					strategyNames[i] = "Mixed2";
+					mixed2State = i;
 				}
 			}
 		}
 		System.out.printf("Strategy names: %s\n"
 				+ "MM strategy: %d, GB strategy: %d, "
 				+ "Truthful strategy: %d, Mixed strategies: %d, %d\n",
-				Arrays.toString(HMMAnalysis.strategyNames), HMMAnalysis.mmState, HMMAnalysis.gbState,
-				HMMAnalysis.truthfulState, HMMAnalysis.mixedState, HMMAnalysis.mixed2State);
+				Arrays.toString(strategyNames), mmState, gbState,
+				truthfulState, mixedState, mixed2State);
 	}
 
-	public static void writeStateSeq() throws IOException {
-		System.out.println("Write state sequence");
-	
-		// Calculate most likely state sequence
-		for (Game game : LogReader.expSet.games) {
-			game.stateSeq = new HashMap<String, int[]>();
-	
+	/**
+	 * Most likely state sequence of each player, by hit ID
+	 */
+	static HashMap<String, int[]> decodeStates(List<Game> games,
+			Hmm<SigActObservation<CandySignal, CandyReport>> hmm) {
+		HashMap<String, int[]> stateSeqs = new HashMap<String, int[]>();
+		for (Game game : games) {
 			for (String hitId : game.playerHitIds) {
 				List<SigActObservation<CandySignal, CandyReport>> observList = game.getSignalReportPairList(hitId);
-				ViterbiCalculator vi = new ViterbiCalculator(observList,
-						HMMAnalysis.learntHmm);
-				int[] stateSeq = vi.stateSequence();
-				game.stateSeq.put(hitId, stateSeq);
+				ViterbiCalculator vi = new ViterbiCalculator(observList, hmm);
+				stateSeqs.put(hitId, vi.stateSequence());
 			}
 		}
+		return stateSeqs;
+	}
+
+	static void setStateSeqs(List<Game> games, Map<String, int[]> stateSeqs) {
+		for (Game game : games) {
+			game.stateSeq = new HashMap<String, int[]>();
+			for (String hitId : game.playerHitIds) {
+				game.stateSeq.put(hitId, stateSeqs.get(hitId));
+			}
+		}
+	}
+
+	/**
+	 * Write the state sequences set by setStateSeqs
+	 */
+	public void writeStateSeq() throws IOException {
+		System.out.println("Write state sequence");
 	
-		// Write state sequence to csv
-		BufferedWriter writer = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
-				+ "stateSeq" + HMMAnalysis.numStrategies + "States.csv"));
-	
-		writer.write(String.format("hitId,"));
-		for (int i = 1; i <= LogReader.expSet.numRounds; i++) {
-			writer.write(String.format("%d,", i));
+		StateAggregates aggregates = getAggregates();
+		StringBuilder sb = new StringBuilder();
+		sb.append("hitId,");
+		for (int i = 1; i <= context.experiment.numRounds; i++) {
+			sb.append(i).append(',');
 		}
-		writer.write(String.format("actual payoff\n"));
+		sb.append("actual payoff\n");
 	
-		for (Game game : LogReader.expSet.games) {
-			for (String hitId : game.playerHitIds) {
-				int[] stateSeq = game.stateSeq.get(hitId);
-				writer.write(String.format("%s,", hitId));
-				for (int state : stateSeq) {
-					writer.write(state + ",");
+		for (int g = 0; g < aggregates.gameIds.length; g++) {
+			for (int row = aggregates.gameStarts[g]; row < aggregates.gameStarts[g + 1]; row++) {
+				sb.append(aggregates.hitIds[row]).append(',');
+				for (int state : aggregates.states[row]) {
+					sb.append(state).append(',');
 				}
-				writer.write(String.format("%.2f", game.bonus.get(hitId)));
-				writer.write("\n");
+				sb.append(StateAggregates.formatFixed(aggregates.bonuses[row], 2));
+				sb.append('\n');
 			}
-			writer.write("\n");
+			sb.append('\n');
 		}
+	
+		// Write state sequence to csv
+		BufferedWriter writer = new BufferedWriter(new FileWriter(context.rootDir
+				+ "stateSeq" + numStrategies + "States.csv"));
+		writer.write(sb.toString());
 		writer.flush();
 		writer.close();
 	
 	}
 
-	public static void eqConvergenceHmm() throws IOException {
-		System.out.println("Classify equilibrium convergence using HMM");
-	
-		for (Game game : LogReader.expSet.games) {
-	
-			game.strategyComboTypeArray = new int[LogReader.expSet.numRounds];
-	
-			for (int roundIndex = 0; roundIndex < LogReader.expSet.numRounds; roundIndex++) {
-				int[] numPlayerForStrategy = new int[HMMAnalysis.numStrategies];
-				for (String hitId : game.playerHitIds) {
-	
-					int strategyIndexForRound = game.stateSeq.get(hitId)[roundIndex];
-					numPlayerForStrategy[strategyIndexForRound]++;
-				}
-	
-				if (!PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
-					// other treatments
-	
-					for (int strategyIndex = 0; strategyIndex < HMMAnalysis.numStrategies; strategyIndex++) {
-						if (numPlayerForStrategy[strategyIndex] == LogReader.expSet.numPlayers
-								&& (strategyIndex == HMMAnalysis.mmState
-										|| strategyIndex == HMMAnalysis.gbState || strategyIndex == HMMAnalysis.truthfulState)) {
-							// all players are playing MM, GB or Truthful
-							// strategy
-							game.strategyComboTypeArray[roundIndex] = strategyIndex;
-							break;
-						} else if (numPlayerForStrategy[strategyIndex] > 0) {
-							game.strategyComboTypeArray[roundIndex] = -1;
-							break;
-						}
-					}
-				} else {
-					// "prior2-uniquetruthful"
-					if (HMMAnalysis.truthfulState != -1
-							&& numPlayerForStrategy[HMMAnalysis.truthfulState] == HMMAnalysis.numStrategies) {
-						// truthful equilibrium
-						game.strategyComboTypeArray[roundIndex] = HMMAnalysis.truthfulState;
-					} else if (HMMAnalysis.mixedState != -1
-							&& numPlayerForStrategy[HMMAnalysis.mixedState] == HMMAnalysis.numStrategies) {
-						// mixed strategy equilibrium
-						game.strategyComboTypeArray[roundIndex] = HMMAnalysis.mixedState;
-					} else if (HMMAnalysis.mmState != -1 && HMMAnalysis.gbState != -1
-							&& numPlayerForStrategy[HMMAnalysis.mmState] == 1
-							&& numPlayerForStrategy[HMMAnalysis.gbState] == 3) {
-						// 1 MM 3 GB
-						game.strategyComboTypeArray[roundIndex] = 4;
-					} else if (HMMAnalysis.mmState != -1 && HMMAnalysis.gbState != -1
-							&& numPlayerForStrategy[HMMAnalysis.mmState] == 3
-							&& numPlayerForStrategy[HMMAnalysis.gbState] == 1) {
-						// 3 MM 1 GB
-						game.strategyComboTypeArray[roundIndex] = 5;
-					} else {
-						// unclassified
-						game.strategyComboTypeArray[roundIndex] = -1;
-					}
-	
+	/**
+	 * The equilibrium type of one round of a game from the number of players
+	 * of each strategy
+	 */
+	int comboType(int[] numPlayerForStrategy) {
+		if (!context.treatment.equals("prior2-uniquetruthful")) {
+			// other treatments
+			for (int strategyIndex = 0; strategyIndex < numStrategies; strategyIndex++) {
+				if (numPlayerForStrategy[strategyIndex] == context.experiment.numPlayers
+						&& (strategyIndex == mmState
+								|| strategyIndex == gbState || strategyIndex == truthfulState)) {
+					// all players are playing MM, GB or Truthful
+					// strategy
+					return strategyIndex;
+				} else if (numPlayerForStrategy[strategyIndex] > 0) {
+					return -1;
 				}
 			}
+			return 0;
+		}
+
+		// "prior2-uniquetruthful"
+		if (truthfulState != -1
+				&& numPlayerForStrategy[truthfulState] == numStrategies) {
+			// truthful equilibrium
+			return truthfulState;
+		} else if (mixedState != -1
+				&& numPlayerForStrategy[mixedState] == numStrategies) {
+			// mixed strategy equilibrium
+			return mixedState;
+		} else if (mmState != -1 && gbState != -1
+				&& numPlayerForStrategy[mmState] == 1
+				&& numPlayerForStrategy[gbState] == 3) {
+			// 1 MM 3 GB
+			return 4;
+		} else if (mmState != -1 && gbState != -1
+				&& numPlayerForStrategy[mmState] == 3
+				&& numPlayerForStrategy[gbState] == 1) {
+			// 3 MM 1 GB
+			return 5;
+		}
+		// unclassified
+		return -1;
+	}
+
+	/**
+	 * The report tables, computed on first use from the state sequences and
+	 * strategy names. Also sets the equilibrium type of each game.
+	 */
+	synchronized StateAggregates getAggregates() {
+		if (aggregates != null)
+			return aggregates;
+		System.out.println("Classify equilibrium convergence using HMM");
+		List<Game> games = context.experiment.games;
+		aggregates = new StateAggregates(games, numStrategies,
+				context.experiment.numRounds,
+				new StateAggregates.ComboClassifier() {
+					public int comboType(int[] numPlayerForStrategy) {
+						return HMMAnalysis.this
+								.comboType(numPlayerForStrategy);
+					}
+				});
+		for (int g = 0; g < games.size(); g++) {
+			games.get(g).strategyComboTypeArray = aggregates.comboTypes[g];
 		}
+		return aggregates;
+	}
+
+	public void eqConvergenceHmm() throws IOException {
+		StateAggregates aggregates = getAggregates();
+		int[][] hmmTypeCount = aggregates.comboTypeCount;
 	
 		// Write hmm type to CSV
-		BufferedWriter writerCsv = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
-				+ "hmmType" + HMMAnalysis.numStrategies + "Strategies.csv"));
-		for (Game game : LogReader.expSet.games) {
-			writerCsv.write(String.format("%s,", game.id));
-			for (int i = 0; i < game.strategyComboTypeArray.length; i++) {
-				if (i == game.strategyComboTypeArray.length - 1) {
-					writerCsv.write(String.format("%d\n",
-							game.strategyComboTypeArray[i]));
-				} else {
-					writerCsv.write(String.format("%d,",
-							game.strategyComboTypeArray[i]));
-				}
+		StringBuilder sb = new StringBuilder();
+		for (int g = 0; g < aggregates.gameIds.length; g++) {
+			sb.append(aggregates.gameIds[g]).append(',');
+			int[] types = aggregates.comboTypes[g];
+			for (int i = 0; i < types.length; i++) {
+				sb.append(types[i]).append(i == types.length - 1 ? '\n' : ',');
 			}
 		}
+		BufferedWriter writerCsv = new BufferedWriter(new FileWriter(context.rootDir
+				+ "hmmType" + numStrategies + "Strategies.csv"));
+		writerCsv.write(sb.toString());
 		writerCsv.flush();
 		writerCsv.close();
 	
-		// Determine hmm type count
-		int[][] hmmTypeCount = new int[LogReader.expSet.numRounds][HMMAnalysis.numStrategies + 2];
-		for (Game game : LogReader.expSet.games) {
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
-				if (game.strategyComboTypeArray[i] == -1)
-					continue;
-				else
-					hmmTypeCount[i][game.strategyComboTypeArray[i]]++;
-			}
-		}
-	
 		// Write hmmTypeCount to CSV file
-		writerCsv = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir + "hmmTypeCount"
-				+ HMMAnalysis.numStrategies + "Strategies.csv"));
+		sb = new StringBuilder();
 	
 		// write headings
-		for (int j = 0; j < HMMAnalysis.numStrategies; j++) {
-			writerCsv.write(String.format("%s,", HMMAnalysis.strategyNames[j]));
+		for (int j = 0; j < numStrategies; j++) {
+			sb.append(strategyNames[j]).append(',');
 		}
-		if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
-			writerCsv.write(String.format("%s,", "1MM3GB"));
-			writerCsv.write(String.format("%s,", "3MM1GB"));
+		if (context.treatment.equals("prior2-uniquetruthful")) {
+			sb.append("1MM3GB,3MM1GB,");
 		}
-		writerCsv.write("\n");
+		sb.append('\n');
 	
 		// write data
-		for (int i = 0; i < LogReader.expSet.numRounds; i++) {
-			for (int j = 0; j < HMMAnalysis.numStrategies; j++) {
-				writerCsv.write(String.format("%d,", hmmTypeCount[i][j]));
+		for (int i = 0; i < context.experiment.numRounds; i++) {
+			for (int j = 0; j < numStrategies; j++) {
+				sb.append(hmmTypeCount[i][j]).append(',');
 			}
-			if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
-				writerCsv.write(String.format("%d,",
-						hmmTypeCount[i][HMMAnalysis.numStrategies]));
-				writerCsv.write(String.format("%d,",
-						hmmTypeCount[i][HMMAnalysis.numStrategies + 1]));
+			if (context.treatment.equals("prior2-uniquetruthful")) {
+				sb.append(hmmTypeCount[i][numStrategies]).append(',');
+				sb.append(hmmTypeCount[i][numStrategies + 1]).append(',');
 			}
-			writerCsv.write("\n");
+			sb.append('\n');
 		}
+		writerCsv = new BufferedWriter(new FileWriter(context.rootDir + "hmmTypeCount"
+				+ numStrategies + "Strategies.csv"));
+		writerCsv.write(sb.toString());
 		writerCsv.flush();
 		writerCsv.close();
 	
 		// Write hmmTypeCount to matlab file
-		BufferedWriter writerMatlab = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
-				+ "hmmType" + HMMAnalysis.numStrategies + "Strategies.m"));
+		BufferedWriter writerMatlab = new BufferedWriter(new FileWriter(context.rootDir
+				+ "hmmType" + numStrategies + "Strategies.m"));
 	
 		// write data arrays
-		for (int j = 0; j < HMMAnalysis.numStrategies; j++) {
+		for (int j = 0; j < numStrategies; j++) {
 	
-			if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+			if (context.treatment.equals("prior2-symmlowpay")) {
 				// treatment 4
-				if (HMMAnalysis.strategyNames[j].equals("Mixed")
-						|| HMMAnalysis.strategyNames[j].equals("Mixed2")) {
+				if (strategyNames[j].equals("Mixed")
+						|| strategyNames[j].equals("Mixed2")) {
 					continue;
 				}
-			} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+			} else if (context.treatment.equals("prior2-uniquetruthful")) {
 				// treatment 3, skip MM and GB strategies
-				if (HMMAnalysis.strategyNames[j].equals("MM")
-						|| HMMAnalysis.strategyNames[j].equals("GB")) {
+				if (strategyNames[j].equals("MM")
+						|| strategyNames[j].equals("GB")) {
 					continue;
 				}
 			} else {
 				// not treatment 3, skip mixed strategy
-				if (HMMAnalysis.strategyNames[j].equals("Mixed")) {
+				if (strategyNames[j].equals("Mixed")) {
 					continue;
 				}
 			}
 	
-			writerMatlab.write(String.format("%s = [", HMMAnalysis.strategyNames[j]));
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
-				double percent = hmmTypeCount[i][j] * 1.0 / LogReader.expSet.nonKilledGames;
-				writerMatlab.write(String.format("%.10f ", percent));
+			writerMatlab.write(String.format("%s = [", strategyNames[j]));
+			for (int i = 0; i < context.experiment.numRounds; i++) {
+				double percent = hmmTypeCount[i][j] * 1.0 / context.experiment.nonKilledGames;
+				writerMatlab.write(StateAggregates.formatFixed(percent, 10) + " ");
 			}
 			writerMatlab.write("]';\n");
 	
 		}
-		if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		if (context.treatment.equals("prior2-uniquetruthful")) {
 			// write data for treatment 3
 			writerMatlab.write(String.format("oneMMThreeGB = ["));
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
-				double percent = hmmTypeCount[i][HMMAnalysis.numStrategies] * 1.0
-						/ LogReader.expSet.nonKilledGames;
-				writerMatlab.write(String.format("%.10f ", percent));
+			for (int i = 0; i < context.experiment.numRounds; i++) {
+				double percent = hmmTypeCount[i][numStrategies] * 1.0
+						/ context.experiment.nonKilledGames;
+				writerMatlab.write(StateAggregates.formatFixed(percent, 10) + " ");
 			}
 			writerMatlab.write("]';\n");
 	
 			writerMatlab.write(String.format("threeMMOneGB = ["));
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
-				double percent = hmmTypeCount[i][HMMAnalysis.numStrategies + 1] * 1.0
-						/ LogReader.expSet.nonKilledGames;
-				writerMatlab.write(String.format("%.10f ", percent));
+			for (int i = 0; i < context.experiment.numRounds; i++) {
+				double percent = hmmTypeCount[i][numStrategies + 1] * 1.0
+						/ context.experiment.nonKilledGames;
+				writerMatlab.write(StateAggregates.formatFixed(percent, 10) + " ");
 			}
 			writerMatlab.write("]';\n");
 		}
 	
 		writerMatlab.write(String.format("Unclassified = ["));
-		for (int i = 0; i < LogReader.expSet.numRounds; i++) {
+		for (int i = 0; i < context.experiment.numRounds; i++) {
 			double num = 1.0;
-			for (int j = 0; j < HMMAnalysis.numStrategies; j++) {
-				num -= hmmTypeCount[i][j] * 1.0 / LogReader.expSet.nonKilledGames;
+			for (int j = 0; j < numStrategies; j++) {
+				num -= hmmTypeCount[i][j] * 1.0 / context.experiment.nonKilledGames;
 			}
-			if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
-				num -= hmmTypeCount[i][HMMAnalysis.numStrategies] * 1.0 / LogReader.expSet.nonKilledGames;
-				num -= hmmTypeCount[i][HMMAnalysis.numStrategies + 1] * 1.0
-						/ LogReader.expSet.nonKilledGames;
+			if (context.treatment.equals("prior2-uniquetruthful")) {
+				num -= hmmTypeCount[i][numStrategies] * 1.0 / context.experiment.nonKilledGames;
+				num -= hmmTypeCount[i][numStrategies + 1] * 1.0
+						/ context.experiment.nonKilledGames;
 			}
 			num -= 0.0000000001;
-			writerMatlab.write(String.format("%.10f ", num));
+			writerMatlab.write(StateAggregates.formatFixed(num, 10) + " ");
 		}
 		writerMatlab.write("]';\n\n");
 	
@@ -474,14 +717,14 @@ public class HMMAnalysis {
 	
 		// plot bar chart
 		writerMatlab.write(String.format("hBar = bar(0:%d, [",
-				LogReader.expSet.numRounds - 1));
-		if (PredLkAnalysis.treatment.equals("prior2-basic")) {
+				context.experiment.numRounds - 1));
+		if (context.treatment.equals("prior2-basic")) {
 			writerMatlab.write("MM GB Truthful");
-		} else if (PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+		} else if (context.treatment.equals("prior2-outputagreement")) {
 			writerMatlab.write("GB MM Truthful");
-		} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		} else if (context.treatment.equals("prior2-uniquetruthful")) {
 			writerMatlab.write("Mixed threeMMOneGB oneMMThreeGB ");
-		} else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+		} else if (context.treatment.equals("prior2-symmlowpay")) {
 			writerMatlab.write("MM");
 		} else {
 			writerMatlab.write("Truthful GB MM");
@@ -494,13 +737,13 @@ public class HMMAnalysis {
 		int axisFontSize = 20;
 	
 		String ytick = "";
-		if (PredLkAnalysis.treatment.equals("prior2-basic")) {
+		if (context.treatment.equals("prior2-basic")) {
 			ytick = "[0 0.45 0.54 1]";
-		} else if (PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+		} else if (context.treatment.equals("prior2-outputagreement")) {
 			ytick = "[0 0.36 0.46 1]";
-		} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		} else if (context.treatment.equals("prior2-uniquetruthful")) {
 			ytick = "[0 0.12 0.17 1]";
-		} else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+		} else if (context.treatment.equals("prior2-symmlowpay")) {
 			ytick = "[0.02 1]";
 		} else {
 			ytick = "[0 1]";
@@ -515,20 +758,20 @@ public class HMMAnalysis {
 				+ "set(B, 'yaxislocation', 'right', 'ytick', %s);\n"
 				+ "ylh = ylabel('Percentage of games');\n"
 				+ "set(ylh, 'FontSize', %d);\n", xylabelfontSize, axisFontSize,
-				LogReader.expSet.numRounds - 1, ytick, xylabelfontSize));
+				context.experiment.numRounds - 1, ytick, xylabelfontSize));
 	
 		// set axis range
 		writerMatlab.write(String.format("axis([-1 %d 0 1]);\n",
-				LogReader.expSet.numRounds));
+				context.experiment.numRounds));
 	
 		// write legend
 		writerMatlab.write("lh = legend(");
 	
-		if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		if (context.treatment.equals("prior2-uniquetruthful")) {
 			writerMatlab.write("'Mixed', 'threeMMOneGB', 'oneMMThreeGB', ");
-		} else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+		} else if (context.treatment.equals("prior2-symmlowpay")) {
 			writerMatlab.write("'MM', ");
-		} else if (PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+		} else if (context.treatment.equals("prior2-outputagreement")) {
 			writerMatlab.write("'GB', 'MM', 'Truthful', ");
 		} else {
 			writerMatlab.write("'MM', 'GB', 'Truthful', ");
@@ -538,11 +781,11 @@ public class HMMAnalysis {
 	
 		// set colors
 		writerMatlab.write(String.format("set(hBar,{'FaceColor'},{"));
-		if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		if (context.treatment.equals("prior2-uniquetruthful")) {
 			writerMatlab.write("[0.6 0.6 0.6];'y';'r';");
-		} else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+		} else if (context.treatment.equals("prior2-symmlowpay")) {
 			writerMatlab.write("[1 0.64 0];");
-		} else if (PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+		} else if (context.treatment.equals("prior2-outputagreement")) {
 			writerMatlab.write("'b';[1 0.64 0];'g';");
 		} else {
 			writerMatlab.write("[1 0.64 0];'b';'g';");
@@ -554,109 +797,33 @@ public class HMMAnalysis {
 	
 	}
 
-	public static void writeStrategyChangeHeatMap() throws IOException {
+	public void writeStrategyChangeHeatMap() throws IOException {
 		System.out.println("Write hmm strategy change heat map");
 	
-		BufferedWriter writer1 = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
-				+ "heatMap" + HMMAnalysis.numStrategies + "StrategiesReverseCompare.m"));
-	
-		List<int[]> seqList = new ArrayList<int[]>();
-		for (Game game : LogReader.expSet.games) {
-			for (String hitId : game.playerHitIds) {
-				int[] strategySeq = game.stateSeq.get(hitId);
-				seqList.add(strategySeq);
-			}
-		}
-	
-		Collections.sort(seqList, new Comparator<int[]>() {
-	
-			public int compare(int[] o1, int[] o2) {
-				return util(o1, o2, o1.length - 1);
-			}
-	
-			private int util(int[] o1, int[] o2, int index) {
-				if (index == 0) {
-					return o1[index] - o2[index];
-				} else {
-					if (o1[index] < o2[index])
-						return -1;
-					else if (o1[index] > o2[index])
-						return 1;
-					else
-						return util(o1, o2, index - 1);
-				}
-	
-			}
-	
-		});
-	
-		List<int[]> newSeqList = new ArrayList<int[]>();
-	
-		for (int endStrIndex = 0; endStrIndex < 4; endStrIndex++) {
-	
-			boolean blockFound = false;
-			boolean inBlock = false;
-	
-			List<int[]> str0List = new ArrayList<int[]>();
-			List<int[]> str1List = new ArrayList<int[]>();
-			List<int[]> str2List = new ArrayList<int[]>();
-			List<int[]> str3List = new ArrayList<int[]>();
-	
-			for (int seqIndex = 0; seqIndex < seqList.size(); seqIndex++) {
-	
-				int[] seq = seqList.get(seqIndex);
-	
-				if (!inBlock) {
-					if (seq[LogReader.expSet.numRounds - 1] == endStrIndex) {
-						blockFound = true;
-						inBlock = true;
-					}
-				} else {
-					if (seq[LogReader.expSet.numRounds - 1] != endStrIndex)
-						inBlock = false;
-				}
-	
-				if (blockFound == false) {
-					continue;
-				} else if (inBlock == false) {
-					break;
-				} else {
-					if (seq[0] == 0)
-						str0List.add(seq);
-					else if (seq[0] == 1)
-						str1List.add(seq);
-					else if (seq[0] == 2)
-						str2List.add(seq);
-					else if (seq[0] == 3)
-						str3List.add(seq);
-				}
-			}
-	
-			newSeqList.addAll(str0List);
-			newSeqList.addAll(str1List);
-			newSeqList.addAll(str2List);
-			newSeqList.addAll(str3List);
-	
-		}
-	
-		seqList.clear();
-		seqList.addAll(newSeqList);
+		BufferedWriter writer1 = new BufferedWriter(new FileWriter(context.rootDir
+				+ "heatMap" + numStrategies + "StrategiesReverseCompare.m"));
 	
+		StateAggregates aggregates = getAggregates();
+		StringBuilder sb = new StringBuilder();
 		int index = 0;
-		for (int i = 0; i < seqList.size(); i++) {
-			int[] strategySeq = seqList.get(i);
-			writer1.write(String.format("x%d = %s;\n", index,
-					Arrays.toString(strategySeq)));
+		for (int row : aggregates.heatMapOrder) {
+			sb.append('x').append(index).append(" = [");
+			int[] strategySeq = aggregates.states[row];
+			for (int i = 0; i < strategySeq.length; i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(strategySeq[i]);
+			}
+			sb.append("];\n");
 			index++;
 		}
 	
-		index = 0;
-		writer1.write("m = [");
-		for (int i = 0; i < seqList.size(); i++) {
-			writer1.write(String.format("x%d;", index));
-			index++;
+		sb.append("m = [");
+		for (int i = 0; i < index; i++) {
+			sb.append('x').append(i).append(';');
 		}
-		writer1.write("];\n\n");
+		sb.append("];\n\n");
+		writer1.write(sb.toString());
 		writer1.write("api_path = '~/plotly';\n"
 				+ "addpath(genpath(api_path));\n" + "api_key = 'vivdmp4vf4';\n"
 				+ "username = 'alice.gao';\n" + "signin(username, api_key);\n");
@@ -668,19 +835,21 @@ public class HMMAnalysis {
 		String mmColor = "255,140,0";
 	
 		writer1.write("cs={{");
-		for (int i = 0; i <= 3; i++) {
-			double num = i * 1.0 / 3;
-			if (HMMAnalysis.mmState == i) {
+		for (int i = 0; i < numStrategies; i++) {
+			double num = numStrategies > 1 ? i * 1.0 / (numStrategies - 1) : 0;
+			if (mmState == i) {
 				writer1.write(String.format("{%.2f, 'rgb(%s)'},", num, mmColor));
-			} else if (HMMAnalysis.gbState == i) {
+			} else if (gbState == i) {
 				writer1.write(String.format("{%.2f, 'rgb(%s)'},", num, gbColor));
-			} else if (HMMAnalysis.truthfulState == i) {
+			} else if (truthfulState == i) {
 				writer1.write(String.format("{%.2f, 'rgb(%s)'},", num,
 						truthfulColor));
-			} else if (HMMAnalysis.mixedState == i) {
+			} else if (mixedState == i) {
 				writer1.write(String.format("{%.2f, 'rgb(%s)'},", num,
 						mixedColor));
-			} else if (HMMAnalysis.mixed2State == i) {
+			} else if (mixed2State == i
+					|| strategyNames[i].startsWith("Mixed")) {
+				// with more than four states, several can be mixed
 				writer1.write(String.format("{%.2f, 'rgb(%s)'},", num,
 						mixed2Color));
 			}
@@ -691,46 +860,34 @@ public class HMMAnalysis {
 		writer1.close();
 	}
 
-	public static void writeStrategyDistribution() throws IOException {
+	public void writeStrategyDistribution() throws IOException {
 		System.out.println("Write hmm strategy distribution");
 	
-		int[][] strategyCount = new int[HMMAnalysis.numStrategies][LogReader.expSet.numRounds];
-		for (Game game : LogReader.expSet.games) {
-			for (String hitId : game.playerHitIds) {
-				int[] strategySeq = game.stateSeq.get(hitId);
-				for (int roundIndex = 0; roundIndex < LogReader.expSet.numRounds; roundIndex++) {
-					int strategyIndex = strategySeq[roundIndex];
-					strategyCount[strategyIndex][roundIndex]++;
-				}
-			}
-		}
-		double[][] strategyDistribution = new double[HMMAnalysis.numStrategies][LogReader.expSet.numRounds];
-		int totalNumPlayers = LogReader.expSet.nonKilledGames * LogReader.expSet.numPlayers;
-		for (int roundIndex = 0; roundIndex < LogReader.expSet.numRounds; roundIndex++) {
-			for (int strategyIndex = 0; strategyIndex < HMMAnalysis.numStrategies; strategyIndex++) {
-				strategyDistribution[strategyIndex][roundIndex] = strategyCount[strategyIndex][roundIndex]
-						* 1.0 / totalNumPlayers;
+		int totalNumPlayers = context.experiment.nonKilledGames * context.experiment.numPlayers;
+		double[][] strategyDistribution = getAggregates()
+				.getStrategyDistribution(totalNumPlayers);
+	
+		StringBuilder sb = new StringBuilder();
+		for (int strategyIndex = 0; strategyIndex < numStrategies; strategyIndex++) {
+			sb.append(strategyNames[strategyIndex]).append(" = [");
+			for (int roundIndex = 0; roundIndex < context.experiment.numRounds; roundIndex++) {
+				sb.append(StateAggregates.formatFixed(
+						strategyDistribution[strategyIndex][roundIndex], 10))
+						.append(' ');
 			}
+			sb.append("]';\n");
 		}
 	
-		BufferedWriter writer = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
-				+ "strategyDistribution" + HMMAnalysis.numStrategies + "Strategies.m"));
-	
-		for (int strategyIndex = 0; strategyIndex < HMMAnalysis.numStrategies; strategyIndex++) {
-			writer.write(HMMAnalysis.strategyNames[strategyIndex] + " = [");
-			for (int roundIndex = 0; roundIndex < LogReader.expSet.numRounds; roundIndex++) {
-				writer.write(String.format("%.10f ",
-						strategyDistribution[strategyIndex][roundIndex]));
-			}
-			writer.write("]';\n");
-		}
+		BufferedWriter writer = new BufferedWriter(new FileWriter(context.rootDir
+				+ "strategyDistribution" + numStrategies + "Strategies.m"));
+		writer.write(sb.toString());
 	
 		writer.write(String.format("\n\n" + "figure;\n" + "hBar = bar(1:%d, ",
-				LogReader.expSet.numRounds));
-		if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
-			if (HMMAnalysis.numStrategies == 4)
+				context.experiment.numRounds));
+		if (context.treatment.equals("prior2-symmlowpay")) {
+			if (numStrategies == 4)
 				writer.write("[Truthful MM Mixed Mixed2]");
-			else if (HMMAnalysis.numStrategies == 3)
+			else if (numStrategies == 3)
 				writer.write("[Truthful MM Mixed]");
 		} else {
 			writer.write("[Truthful GB MM Mixed]");
@@ -743,23 +900,23 @@ public class HMMAnalysis {
 				+ "axes = findobj(gcf,'type','axes');\n"
 				+ "set(axes, 'FontSize', 20);\n");
 	
-		writer.write(String.format("axis([0 %d 0 1]);\n", LogReader.expSet.numRounds + 1));
+		writer.write(String.format("axis([0 %d 0 1]);\n", context.experiment.numRounds + 1));
 	
 		writer.write("lh = legend(");
-		if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
-			if (HMMAnalysis.numStrategies == 4)
+		if (context.treatment.equals("prior2-symmlowpay")) {
+			if (numStrategies == 4)
 				writer.write("'Truthful', 'MM', 'Mixed', 'Mixed2'");
-			else if (HMMAnalysis.numStrategies == 3)
+			else if (numStrategies == 3)
 				writer.write("'Truthful', 'MM', 'Mixed'");
 		} else {
 			writer.write("'Truthful', 'GB', 'MM', 'Mixed'");
 		}
 		writer.write(", 'Location', 'Best');\n" + "set(lh, 'FontSize', 20);\n");
 	
-		if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
-			if (HMMAnalysis.numStrategies == 4)
+		if (context.treatment.equals("prior2-symmlowpay")) {
+			if (numStrategies == 4)
 				writer.write("set(hBar,{'FaceColor'},{'g';[1 0.64 0];[0.5 0.5 0.5];[0.8 0.8 0.8];});\n");
-			else if (HMMAnalysis.numStrategies == 3)
+			else if (numStrategies == 3)
 				writer.write("set(hBar,{'FaceColor'},{'g';[1 0.64 0];[0.8 0.8 0.8];});\n");
 		} else {
 			writer.write("set(hBar,{'FaceColor'},{'g';'b';[1 0.64 0];[0.8 0.8 0.8];});\n");
@@ -768,18 +925,18 @@ public class HMMAnalysis {
 		writer.close();
 	}
 
-	public static void genStrategyChangePredictedByHmm() throws IOException {
+	public void genStrategyChangePredictedByHmm() throws IOException {
 		System.out.println("Write strategy change predicted by HMM");
 	
-		BufferedWriter writer3 = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
+		BufferedWriter writer3 = new BufferedWriter(new FileWriter(context.rootDir
 				+ "strategyChangePredictedByHmm.m"));
 	
 		writer3.write("a = [");
-		for (int i = 0; i < HMMAnalysis.numStrategies; i++) {
-			for (int j = 0; j < HMMAnalysis.numStrategies; j++) {
-				double aij = HMMAnalysis.learntHmm.getAij(i, j);
+		for (int i = 0; i < numStrategies; i++) {
+			for (int j = 0; j < numStrategies; j++) {
+				double aij = learntHmm.getAij(i, j);
 				writer3.write(" " + aij);
-				if (j < HMMAnalysis.numStrategies - 1)
+				if (j < numStrategies - 1)
 					writer3.write(",");
 				else
 					writer3.write(";");
@@ -788,25 +945,25 @@ public class HMMAnalysis {
 		writer3.write("];\n");
 	
 		writer3.write("p = [");
-		for (int i = 0; i < HMMAnalysis.numStrategies; i++) {
-			writer3.write(HMMAnalysis.learntHmm.getPi(i) + ",");
+		for (int i = 0; i < numStrategies; i++) {
+			writer3.write(learntHmm.getPi(i) + ",");
 		}
 		writer3.write("];\n");
 	
-		writer3.write("m = zeros(50," + HMMAnalysis.numStrategies + ");\n"
+		writer3.write("m = zeros(50," + numStrategies + ");\n"
 				+ "m(1,:) = p;\n" + "for i =2:50\n" + "m(i,:) = m(i-1,:)*a;\n"
 				+ "end\n" + "x = 1:50;\n" + "plot(");
-		for (int i = 1; i <= HMMAnalysis.numStrategies; i++) {
+		for (int i = 1; i <= numStrategies; i++) {
 			writer3.write("x, m(:," + i + ")");
-			if (i < HMMAnalysis.numStrategies)
+			if (i < numStrategies)
 				writer3.write(",");
 		}
 		writer3.write(")\n");
 	
 		writer3.write("legend(");
-		for (int i = 0; i < HMMAnalysis.numStrategies; i++) {
-			writer3.write("'" + HMMAnalysis.strategyNames[i] + "'");
-			if (i < HMMAnalysis.numStrategies - 1)
+		for (int i = 0; i < numStrategies; i++) {
+			writer3.write("'" + strategyNames[i] + "'");
+			if (i < numStrategies - 1)
 				writer3.write(",");
 		}
 		writer3.write(")");
@@ -815,31 +972,31 @@ public class HMMAnalysis {
 		writer3.close();
 	}
 
-	public static void graphLogLikelihood() throws IOException {
+	public void graphLogLikelihood() throws IOException {
 		System.out.println("Graph log likelihood");
 	
 		List<List<SigActObservation<CandySignal, CandyReport>>> seq = HMMAnalysis
-				.getActObsSequence(LogReader.expSet.games);
+				.getActObsSequence(context.experiment.games);
 		double loglk;
 	
-		BufferedWriter writer = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
+		BufferedWriter writer = new BufferedWriter(new FileWriter(context.rootDir
 				+ "logLikelihood.m"));
 	
-		if (PredLkAnalysis.treatment.equals("prior2-basic"))
+		if (context.treatment.equals("prior2-basic"))
 			writer.write("treatment1loglk = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-outputagreement"))
+		else if (context.treatment.equals("prior2-outputagreement"))
 			writer.write("treatment2loglk = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful"))
+		else if (context.treatment.equals("prior2-uniquetruthful"))
 			writer.write("treatment3loglk = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay"))
+		else if (context.treatment.equals("prior2-symmlowpay"))
 			writer.write("treatment4loglk = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-constant"))
+		else if (context.treatment.equals("prior2-constant"))
 			writer.write("treatment5loglk = [");
 	
 		for (int numStates = 2; numStates <= 6; numStates++) {
 	
 			String filename = String.format("%slearntHMM%dstrategies.txt",
-					PredLkAnalysis.rootDir, numStates);
+					context.rootDir, numStates);
 			Hmm<SigActObservation<CandySignal, CandyReport>> savedHmm = HMMAnalysis.createHMMFromFile(filename);
 			loglk = BWToleranceLearner.computeLogLk(savedHmm, seq);
 	
@@ -850,27 +1007,27 @@ public class HMMAnalysis {
 		System.out.println("Graph Bayesian information criterion");
 		double bic;
 	
-		if (PredLkAnalysis.treatment.equals("prior2-basic"))
+		if (context.treatment.equals("prior2-basic"))
 			writer.write("treatment1bic = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-outputagreement"))
+		else if (context.treatment.equals("prior2-outputagreement"))
 			writer.write("treatment2bic = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful"))
+		else if (context.treatment.equals("prior2-uniquetruthful"))
 			writer.write("treatment3bic = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay"))
+		else if (context.treatment.equals("prior2-symmlowpay"))
 			writer.write("treatment4bic = [");
-		else if (PredLkAnalysis.treatment.equals("prior2-constant"))
+		else if (context.treatment.equals("prior2-constant"))
 			writer.write("treatment5bic = [");
 	
 		for (int numStates = 2; numStates <= 6; numStates++) {
 	
 			String filename = String.format("%slearntHMM%dstrategies.txt",
-					PredLkAnalysis.rootDir, numStates);
+					context.rootDir, numStates);
 			Hmm<SigActObservation<CandySignal, CandyReport>> savedHmm = HMMAnalysis.createHMMFromFile(filename);
 			loglk = BWToleranceLearner.computeLogLk(savedHmm, seq);
 	
 			int numParams = (numStates * numStates + 2 * numStates - 1);
-			int numData = LogReader.expSet.nonKilledGames * LogReader.expSet.numPlayers
-					* LogReader.expSet.numRounds;
+			int numData = context.experiment.nonKilledGames * context.experiment.numPlayers
+					* context.experiment.numRounds;
 			bic = -2 * loglk + numParams * Math.log(numData);
 	
 			writer.write(String.format("%.6f ", bic));
@@ -948,6 +1105,65 @@ public class HMMAnalysis {
 		writer.close();
 	}
 
+	/**
+	 * Flatten an HMM into {numStates, pi, opdf (MM|MM, MM|GB), aij}, the same
+	 * values written by saveHMMDataToFile
+	 */
+	static double[] hmmToArray(
+			Hmm<SigActObservation<CandySignal, CandyReport>> hmm) {
+		int numStates = hmm.nbStates();
+		double[] array = new double[1 + numStates + 2 * numStates + numStates
+				* numStates];
+		int index = 0;
+		array[index++] = numStates;
+		for (int i = 0; i < numStates; i++) {
+			array[index++] = hmm.getPi(i);
+		}
+		for (int i = 0; i < numStates; i++) {
+			Opdf<SigActObservation<CandySignal, CandyReport>> opdf = hmm
+					.getOpdf(i);
+			array[index++] = opdf
+					.probability(new SigActObservation<CandySignal, CandyReport>(
+							CandySignal.MM, CandyReport.MM));
+			array[index++] = opdf
+					.probability(new SigActObservation<CandySignal, CandyReport>(
+							CandySignal.GB, CandyReport.MM));
+		}
+		for (int i = 0; i < numStates; i++) {
+			for (int j = 0; j < numStates; j++) {
+				array[index++] = hmm.getAij(i, j);
+			}
+		}
+		return array;
+	}
+
+	static Hmm<SigActObservation<CandySignal, CandyReport>> arrayToHmm(
+			double[] array) {
+		int numStates = (int) array[0];
+		int index = 1;
+		double[] pi = new double[numStates];
+		for (int i = 0; i < numStates; i++) {
+			pi[i] = array[index++];
+		}
+		List<OpdfStrategy<CandySignal, CandyReport>> opdfs = new ArrayList<OpdfStrategy<CandySignal, CandyReport>>();
+		for (int i = 0; i < numStates; i++) {
+			double[][] probs = new double[2][2];
+			probs[0][0] = array[index++];
+			probs[0][1] = 1 - probs[0][0];
+			probs[1][0] = array[index++];
+			probs[1][1] = 1 - probs[1][0];
+			opdfs.add(Utils.createOpdf(probs));
+		}
+		double[][] aij = new double[numStates][numStates];
+		for (int i = 0; i < numStates; i++) {
+			for (int j = 0; j < numStates; j++) {
+				aij[i][j] = array[index++];
+			}
+		}
+		return new Hmm<SigActObservation<CandySignal, CandyReport>>(pi, aij,
+				opdfs);
+	}
+
 	static Hmm<SigActObservation<CandySignal, CandyReport>> createHMMFromFile(
 			String filename) throws IOException {
 	
@@ -1022,20 +1238,36 @@ public class HMMAnalysis {
 		return hmm;
 	}
 
-	static int mmState = -1;
-	static int gbState = -1;
-	static int truthfulState = -1;
-	static int mixedState = -1;
-	static int mixed2State = -1;
-	static Hmm<SigActObservation<CandySignal, CandyReport>> learntHmm = null;
 	static double tol = 0.02;
-	static String[] strategyNames = null;
+	static boolean accelerateBaumWelch = false;
 	// For HMM estimation
-	static int numStrategies = -1;
 	public static Map<String, Object> estimateHMM(List<Game> trainingSet) {
+		return estimateHMM(trainingSet, null, null);
+	}
+
+	/**
+	 * @param warmStart
+	 *            if not null, an HMM in the layout of hmmToArray that the
+	 *            first restart learns from, followed by
+	 *            FitSettings.warmStartRestarts random restarts
+	 * @param deadline
+	 *            stop at this deadline with the best HMM so far, if not null
+	 */
+	public static Map<String, Object> estimateHMM(List<Game> trainingSet,
+			double[] warmStart, Deadline deadline) {
 		Hmm<SigActObservation<CandySignal, CandyReport>> bestHmm = null;
 		try {
-			bestHmm = learnHMM(trainingSet, HMMAnalysis.numHmmStates, HMMAnalysis.numRestarts);
+			// never reuse the HMM saved for the full data set, since it was
+			// not trained on this training set
+			if (warmStart == null)
+				bestHmm = learnHMMFromSequences(getActObsSequence(trainingSet),
+						HMMAnalysis.numHmmStates, HMMAnalysis.numRestarts,
+						null, null, deadline);
+			else
+				bestHmm = learnHMMFromSequences(getActObsSequence(trainingSet),
+						HMMAnalysis.numHmmStates,
+						1 + AnalysisContext.settings().warmStartRestarts, null,
+						arrayToHmm(warmStart), deadline);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
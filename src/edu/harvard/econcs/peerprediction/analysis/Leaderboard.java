@@ -0,0 +1,330 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits several models on the same folds in one run and ranks them.
+ *
+ * The games are parsed and divided into folds once, and every (model, fold)
+ * fit is a task on a shared thread pool. Fits go through
+ * PredLkAnalysis.estimateParams, so they share the model cache with the
+ * single-model runs for the same seed. Each fit runs under
+ * AnalysisContext.forFit of its model and fold, so its random restarts do
+ * not depend on the fits running beside it. For each model the leaderboard
+ * reports the mean training and test log likelihood over the folds, the
+ * mean improvement of the test log likelihood over the random model, the
+ * number of parameters, the mean BIC on the training sets and the total
+ * fit time. The training and test scores of a fit come from one GameLogLks
+ * pass over the games, and the scores of every fit are kept for a per-fold
+ * table.
+ */
+public class Leaderboard {
+
+	/**
+	 * One model fitted on one fold
+	 */
+	static class Entry {
+		final String model;
+		final int foldIndex;
+		final double trainingLogLk;
+		final double testLogLk;
+		// number of reports in the training set
+		final int numObservations;
+		final long fitMillis;
+
+		Entry(String model, int foldIndex, double trainingLogLk,
+				double testLogLk, int numObservations, long fitMillis) {
+			this.model = model;
+			this.foldIndex = foldIndex;
+			this.trainingLogLk = trainingLogLk;
+			this.testLogLk = testLogLk;
+			this.numObservations = numObservations;
+			this.fitMillis = fitMillis;
+		}
+	}
+
+	/**
+	 * A model's results averaged over the folds
+	 */
+	static class Row {
+		String model;
+		int numFolds;
+		int numParams;
+		double trainingLogLk;
+		double testLogLk;
+		double improvement;
+		double bic;
+		long fitMillis;
+	}
+
+	final List<String> models;
+	final Folds partition;
+	final List<Integer> folds;
+	final double randomLogLk;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	// every fit of the last run, in the order of the models and folds
+	final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * @param games
+	 *            already shuffled, divided into folds as in
+	 *            PredLkAnalysis.getTestSet
+	 * @param randomLogLk
+	 *            log likelihood of the random model on a test set
+	 */
+	public Leaderboard(List<String> models, List<Game> games,
+			List<Integer> folds, double randomLogLk) {
+		this(models, Folds.inOrder(games, PredLkAnalysis.numFolds), folds,
+				randomLogLk);
+	}
+
+	/**
+	 * @param folds
+	 *            the indices of the folds of partition to fit
+	 */
+	public Leaderboard(List<String> models, Folds partition,
+			List<Integer> folds, double randomLogLk) {
+		for (String model : models) {
+			if (!ModelRegistry.isRegistered(model))
+				throw new IllegalArgumentException("Unknown model " + model);
+		}
+		this.models = models;
+		this.partition = partition;
+		this.folds = folds;
+		this.randomLogLk = randomLogLk;
+	}
+
+	/**
+	 * Fit every model on every fold. A fit that throws is reported and left
+	 * out of its model's averages.
+	 *
+	 * @return one row per model, best test log likelihood first
+	 */
+	public List<Row> run() {
+		Map<Integer, List<Game>> trainingSets = new LinkedHashMap<Integer, List<Game>>();
+		Map<Integer, List<Game>> testSets = new LinkedHashMap<Integer, List<Game>>();
+		for (int foldIndex : folds) {
+			trainingSets.put(foldIndex, partition.trainingSet(foldIndex));
+			testSets.put(foldIndex, partition.testSet(foldIndex));
+		}
+
+		final AnalysisContext context = AnalysisContext.current();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				numThreads));
+		List<String> taskNames = new ArrayList<String>();
+		List<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+		try {
+			for (final String model : models) {
+				for (final int foldIndex : folds) {
+					final List<Game> trainingSet = trainingSets.get(foldIndex);
+					final List<Game> testSet = testSets.get(foldIndex);
+					taskNames.add(model + " on fold " + foldIndex);
+					final Callable<Entry> task = new Callable<Entry>() {
+						public Entry call() {
+							return fit(model, foldIndex, trainingSet, testSet);
+						}
+					};
+					futures.add(executor.submit(new Callable<Entry>() {
+						public Entry call() throws Exception {
+							return context.forFit(model, foldIndex).call(task);
+						}
+					}));
+				}
+			}
+
+			entries.clear();
+			for (int t = 0; t < futures.size(); t++) {
+				try {
+					entries.add(futures.get(t).get());
+				} catch (ExecutionException e) {
+					System.err.println("Fitting " + taskNames.get(t)
+							+ " failed");
+					e.getCause().printStackTrace();
+				}
+			}
+			return summarize(entries);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	Entry fit(String model, int foldIndex, List<Game> trainingSet,
+			List<Game> testSet) {
+		long start = System.nanoTime();
+		double[] point = PredLkAnalysis.estimatePoint(model, trainingSet);
+		long fitMillis = (System.nanoTime() - start) / 1000000L;
+
+		GameLogLks gameLogLks = GameLogLks.get(model, point, partition.games);
+		double trainingLogLk = gameLogLks.trainingLogLks(partition)[foldIndex];
+		double testLogLk = gameLogLks.sum(testSet);
+		Experiment experiment = AnalysisContext.experiment();
+		int numObservations = trainingSet.size() * experiment.numRounds
+				* experiment.numPlayers;
+		System.out.printf("%s, fold %d: training loglk = %.2f, "
+				+ "test loglk = %.2f, %.1f s\n", model, foldIndex,
+				trainingLogLk, testLogLk, fitMillis / 1000.0);
+		return new Entry(model, foldIndex, trainingLogLk, testLogLk,
+				numObservations, fitMillis);
+	}
+
+	List<Row> summarize(List<Entry> entries) {
+		Map<String, Row> rows = new LinkedHashMap<String, Row>();
+		for (Entry entry : entries) {
+			Row row = rows.get(entry.model);
+			if (row == null) {
+				row = new Row();
+				row.model = entry.model;
+				row.numParams = ModelRegistry.getNumParams(entry.model);
+				rows.put(entry.model, row);
+			}
+			row.numFolds++;
+			row.trainingLogLk += entry.trainingLogLk;
+			row.testLogLk += entry.testLogLk;
+			row.improvement += entry.testLogLk - randomLogLk;
+			row.bic += bic(row.numParams, entry.trainingLogLk,
+					entry.numObservations);
+			row.fitMillis += entry.fitMillis;
+		}
+
+		List<Row> result = new ArrayList<Row>(rows.values());
+		for (Row row : result) {
+			row.trainingLogLk /= row.numFolds;
+			row.testLogLk /= row.numFolds;
+			row.improvement /= row.numFolds;
+			row.bic /= row.numFolds;
+		}
+		Collections.sort(result, new Comparator<Row>() {
+			public int compare(Row a, Row b) {
+				return Double.compare(b.testLogLk, a.testLogLk);
+			}
+		});
+		return result;
+	}
+
+	static double bic(int numParams, double logLk, int numObservations) {
+		return numParams * Math.log(numObservations) - 2 * logLk;
+	}
+
+	static void print(List<Row> rows) {
+		System.out.printf("%-8s %6s %7s %14s %12s %12s %12s %10s\n", "model",
+				"folds", "params", "training loglk", "test loglk",
+				"vs random", "BIC", "fit time s");
+		for (Row row : rows) {
+			System.out.printf("%-8s %6d %7d %14.2f %12.2f %12.2f %12.2f %10.1f\n",
+					row.model, row.numFolds, row.numParams, row.trainingLogLk,
+					row.testLogLk, row.improvement, row.bic,
+					row.fitMillis / 1000.0);
+		}
+	}
+
+	static void write(List<Row> rows, File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write("model,folds,params,trainingLoglk,testLoglk,improvement,bic,fitSeconds\n");
+		for (Row row : rows) {
+			writer.write(String.format("%s,%d,%d,%.4f,%.4f,%.4f,%.4f,%.1f\n",
+					row.model, row.numFolds, row.numParams, row.trainingLogLk,
+					row.testLogLk, row.improvement, row.bic,
+					row.fitMillis / 1000.0));
+		}
+		writer.flush();
+		writer.close();
+	}
+
+	/**
+	 * The scores of each fit, one row per model and fold
+	 */
+	static void writeFolds(List<Entry> entries, double randomLogLk,
+			File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write("model,fold,trainingLoglk,testLoglk,improvement,fitSeconds\n");
+		for (Entry entry : entries) {
+			writer.write(String.format("%s,%d,%.4f,%.4f,%.4f,%.1f\n",
+					entry.model, entry.foldIndex, entry.trainingLogLk,
+					entry.testLogLk, entry.testLogLk - randomLogLk,
+					entry.fitMillis / 1000.0));
+		}
+		writer.flush();
+		writer.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			System.err.println("Please provide the arguments: treatment, seed"
+					+ " and optionally the number of threads");
+			System.exit(0);
+		}
+
+		String treatment = args[0];
+		long seed = Long.parseLong(args[1]);
+
+		// set root directory for data
+		String homeDir = System.getProperty("user.home");
+		String separator = System.getProperty("file.separator");
+		String rootDir = homeDir + separator + "ppdata" + separator
+				+ treatment + separator;
+
+		FitSettings settings = new FitSettings();
+		settings.seed = seed;
+		settings.modelCache = new ModelCache(new File(rootDir + "modelCache"));
+		settings.logLkCache = new LogLkCache(100000);
+		final AnalysisContext context = AnalysisContext.load(treatment,
+				rootDir, seed).withSettings(settings);
+
+		// the fits already run in parallel, and CMA-ES gives the same
+		// result on any number of threads
+		LearningModelsExisting.cmaesThreads = 1;
+
+		// same folds as PredLkAnalysis.main with this seed
+		Folds partition = PredLkAnalysis.getFolds(context.experiment.games,
+				new Random(seed));
+		List<Integer> folds = new ArrayList<Integer>();
+		for (int i = 0; i < PredLkAnalysis.numFolds; i++) {
+			folds.add(i);
+		}
+
+		double randomLogLk = context.call(new Callable<Double>() {
+			public Double call() {
+				LogReader.printTreatmentInfo();
+				return PredLkAnalysis.getLogLkRandomModel();
+			}
+		});
+		final Leaderboard leaderboard = new Leaderboard(context.models,
+				partition, folds, randomLogLk);
+		if (args.length > 2)
+			leaderboard.numThreads = Integer.parseInt(args[2]);
+
+		PredLkAnalysis.printCurrentDateTime();
+		List<Row> rows = context.call(new Callable<List<Row>>() {
+			public List<Row> call() {
+				return leaderboard.run();
+			}
+		});
+		PredLkAnalysis.printCurrentDateTime();
+
+		print(rows);
+		write(rows, new File(String.format("%sleaderboard-%s-%d.csv",
+				rootDir, treatment, seed)));
+		writeFolds(leaderboard.entries, randomLogLk, new File(String.format(
+				"%sleaderboard-folds-%s-%d.csv", rootDir, treatment, seed)));
+	}
+
+}
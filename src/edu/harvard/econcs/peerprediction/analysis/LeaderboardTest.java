@@ -0,0 +1,95 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LeaderboardTest {
+
+	@Test
+	public void testFoldsPartitionGames() {
+		List<Game> games = new ArrayList<Game>();
+		for (int i = 0; i < 53; i++) {
+			Game game = new Game();
+			game.id = String.format("%d", i);
+			games.add(game);
+		}
+
+		Set<Game> tested = new HashSet<Game>();
+		for (int fold = 0; fold < PredLkAnalysis.numFolds; fold++) {
+			List<Game> testSet = PredLkAnalysis.getTestSet(games, fold);
+			List<Game> trainingSet = PredLkAnalysis.getTrainingSet(games, fold);
+			assertEquals(5, testSet.size());
+			assertEquals(45, trainingSet.size());
+			for (Game game : testSet) {
+				assertFalse(trainingSet.contains(game));
+				assertTrue(tested.add(game));
+			}
+		}
+		// the leftover games are never tested
+		assertEquals(50, tested.size());
+	}
+
+	@Test
+	public void testSummarizeRanksByTestLogLk() {
+		Leaderboard leaderboard = new Leaderboard(Arrays.asList("s1", "RLS"),
+				new ArrayList<Game>(), Arrays.asList(0, 1), -100);
+		List<Leaderboard.Entry> entries = new ArrayList<Leaderboard.Entry>();
+		entries.add(new Leaderboard.Entry("s1", 0, -900, -95, 1000, 10));
+		entries.add(new Leaderboard.Entry("s1", 1, -910, -97, 1000, 20));
+		entries.add(new Leaderboard.Entry("RLS", 0, -880, -90, 1000, 30));
+		entries.add(new Leaderboard.Entry("RLS", 1, -890, -92, 1000, 40));
+
+		List<Leaderboard.Row> rows = leaderboard.summarize(entries);
+		assertEquals(2, rows.size());
+		Leaderboard.Row best = rows.get(0);
+		assertEquals("RLS", best.model);
+		assertEquals(2, best.numFolds);
+		assertEquals(2, best.numParams);
+		assertEquals(-885, best.trainingLogLk, 1e-10);
+		assertEquals(-91, best.testLogLk, 1e-10);
+		assertEquals(9, best.improvement, 1e-10);
+		assertEquals(2 * Math.log(1000) + 2 * 885, best.bic, 1e-10);
+		assertEquals(70, best.fitMillis);
+		assertEquals(5 * Math.log(1000) + 2 * 905, rows.get(1).bic, 1e-10);
+	}
+
+	/**
+	 * The mean random restart drawn by the fits of each model
+	 */
+	static List<Double> drawRestarts(List<Game> games, int numThreads) {
+		// a fit that only draws a random restart
+		Leaderboard leaderboard = new Leaderboard(Arrays.asList("s1", "RLS"),
+				games, Arrays.asList(0, 1, 2), -100) {
+			Entry fit(String model, int foldIndex, List<Game> trainingSet,
+					List<Game> testSet) {
+				return new Entry(model, foldIndex, AnalysisContext.random()
+						.nextDouble(), -90, 1000, 0);
+			}
+		};
+		leaderboard.numThreads = numThreads;
+		List<Double> draws = new ArrayList<Double>();
+		for (Leaderboard.Row row : leaderboard.run()) {
+			draws.add(row.trainingLogLk);
+		}
+		return draws;
+	}
+
+	@Test
+	public void testFitsDrawTheSameOnAnyNumberOfThreads() {
+		List<Game> games = new ArrayList<Game>();
+		for (int i = 0; i < 53; i++) {
+			games.add(new Game());
+		}
+		assertEquals(drawRestarts(games, 1), drawRestarts(games, 4));
+	}
+
+}
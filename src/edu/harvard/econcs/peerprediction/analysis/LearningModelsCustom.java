@@ -7,6 +7,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.SimpleValueChecker;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+
 import com.cureos.numerics.Calcfc;
 import com.cureos.numerics.Cobyla;
 
@@ -33,6 +43,23 @@ public class LearningModelsCustom {
 		return Double.NEGATIVE_INFINITY;
 	}
 
+	/**
+	 * Log likelihood at a point in the pointToMap layout, going through the
+	 * cache if there is one
+	 */
+	static double computeLogLk(String model, double[] point,
+			List<Game> games, LogLkCache cache, String dataId) {
+		if (cache == null)
+			return computeLogLk(model, pointToMap(model, point), games);
+
+		Double cached = cache.get(model, dataId, point);
+		if (cached != null)
+			return cached;
+		double loglk = computeLogLk(model, pointToMap(model, point), games);
+		cache.put(model, dataId, point, loglk);
+		return loglk;
+	}
+
 	/**
 	 * Model s5
 	 * @param params
@@ -69,11 +96,11 @@ public class LearningModelsCustom {
 
 			for (String playerId : game.playerHitIds) {
 
-				double lkPlayer = probTR* helperGetLkStrategy(game, playerId, 0, LogReader.expSet.numRounds, "TR", eps, null)
-						+ probMM * helperGetLkStrategy(game, playerId, 0, LogReader.expSet.numRounds, "CU", eps, strParamsMM)
-						+ probGB* helperGetLkStrategy(game, playerId, 0, LogReader.expSet.numRounds, "GB", eps, null)
-						+ probOP* helperGetLkStrategy(game, playerId, 0, LogReader.expSet.numRounds, "OP", eps, null)
-						+ probMixed	* helperGetLkStrategy(game, playerId, 0, LogReader.expSet.numRounds, "CU", eps,strParamsCustom);
+				double lkPlayer = probTR* helperGetLkStrategy(game, playerId, 0, AnalysisContext.experiment().numRounds, "TR", eps, null)
+						+ probMM * helperGetLkStrategy(game, playerId, 0, AnalysisContext.experiment().numRounds, "CU", eps, strParamsMM)
+						+ probGB* helperGetLkStrategy(game, playerId, 0, AnalysisContext.experiment().numRounds, "GB", eps, null)
+						+ probOP* helperGetLkStrategy(game, playerId, 0, AnalysisContext.experiment().numRounds, "OP", eps, null)
+						+ probMixed	* helperGetLkStrategy(game, playerId, 0, AnalysisContext.experiment().numRounds, "CU", eps,strParamsCustom);
 
 				loglk += Math.log(lkPlayer);
 			}
@@ -124,13 +151,13 @@ public class LearningModelsCustom {
 
 			for (String playerId : game.playerHitIds) {
 
-				double lkPlayer = probTR* helperGetLkStrategy(game, playerId, 0,LogReader.expSet.numRounds, "TR", eps, null)
-						+ probMM* helperGetLkStrategy(game, playerId, 0,LogReader.expSet.numRounds, "MM", eps, null)
+				double lkPlayer = probTR* helperGetLkStrategy(game, playerId, 0,AnalysisContext.experiment().numRounds, "TR", eps, null)
+						+ probMM* helperGetLkStrategy(game, playerId, 0,AnalysisContext.experiment().numRounds, "MM", eps, null)
 						// + probMM * helperGetLkStrategy(game, playerId, 0,
-						// LogReader.expSet.numRounds, "CU", eps, strParamsMM)
-						+ probGB* helperGetLkStrategy(game, playerId, 0,LogReader.expSet.numRounds, "GB", eps, null)
-						+ probOP* helperGetLkStrategy(game, playerId, 0,LogReader.expSet.numRounds, "OP", eps, null)
-						+ probMixed	* helperGetLkStrategy(game, playerId, 0,LogReader.expSet.numRounds, "CU", eps,strParamsCustom);
+						// AnalysisContext.experiment().numRounds, "CU", eps, strParamsMM)
+						+ probGB* helperGetLkStrategy(game, playerId, 0,AnalysisContext.experiment().numRounds, "GB", eps, null)
+						+ probOP* helperGetLkStrategy(game, playerId, 0,AnalysisContext.experiment().numRounds, "OP", eps, null)
+						+ probMixed	* helperGetLkStrategy(game, playerId, 0,AnalysisContext.experiment().numRounds, "CU", eps,strParamsCustom);
 
 				loglk += Math.log(lkPlayer);
 			}
@@ -171,19 +198,19 @@ public class LearningModelsCustom {
 
 				double lkPlayer = probTR
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "TR", eps, null)
+								AnalysisContext.experiment().numRounds, "TR", eps, null)
 						+ probMM
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "MM", eps, null)
+								AnalysisContext.experiment().numRounds, "MM", eps, null)
 						+ probGB
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "GB", eps, null)
+								AnalysisContext.experiment().numRounds, "GB", eps, null)
 						+ probOP
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "OP", eps, null)
+								AnalysisContext.experiment().numRounds, "OP", eps, null)
 						+ probRA
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "RA", eps, null);
+								AnalysisContext.experiment().numRounds, "RA", eps, null);
 
 				loglk += Math.log(lkPlayer);
 			}
@@ -226,24 +253,24 @@ public class LearningModelsCustom {
 
 				double lkPlayer = probTR
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "TR", eps, null)
+								AnalysisContext.experiment().numRounds, "TR", eps, null)
 						+ probMM
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "MM", eps, null)
+								AnalysisContext.experiment().numRounds, "MM", eps, null)
 						+ probGB
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "GB", eps, null)
+								AnalysisContext.experiment().numRounds, "GB", eps, null)
 						+ probOP
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "OP", eps, null)
+								AnalysisContext.experiment().numRounds, "OP", eps, null)
 						+ probRA
 						* helperGetLkStrategy(game, playerId, 0,
-								LogReader.expSet.numRounds, "RA", eps, null)
+								AnalysisContext.experiment().numRounds, "RA", eps, null)
 						+ probRAChange
 						* helperGetLkStrategy(game, playerId, 0, roundSwitched,
 								"RA", eps, null)
 						* helperGetLkStrategy(game, playerId, roundSwitched,
-								LogReader.expSet.numRounds, newStrategy, eps,
+								AnalysisContext.experiment().numRounds, newStrategy, eps,
 								null);
 
 				loglk += Math.log(lkPlayer);
@@ -312,7 +339,7 @@ public class LearningModelsCustom {
 						* helperGetLkStrategy(game, playerId, 0, roundSwitched,
 								"RA", eps, null);
 
-				if (roundSwitched == LogReader.expSet.numRounds) {
+				if (roundSwitched == AnalysisContext.experiment().numRounds) {
 					// did not switch
 					loglk += Math.log(lkBeforeSwitch);
 				} else {
@@ -320,7 +347,7 @@ public class LearningModelsCustom {
 					String newStrategy = strategyIndexToString("s3",
 							indexNewStrategy);
 					double lkAfterSwitch = helperGetLkStrategy(game, playerId,
-							roundSwitched, LogReader.expSet.numRounds,
+							roundSwitched, AnalysisContext.experiment().numRounds,
 							newStrategy, eps, null);
 
 					loglk += Math.log(lkBeforeSwitch) + Math.log(lkAfterSwitch);
@@ -340,7 +367,7 @@ public class LearningModelsCustom {
 
 		int round;
 		int indexStrategy = -1;
-		for (round = 0; round < LogReader.expSet.numRounds; round++) {
+		for (round = 0; round < AnalysisContext.experiment().numRounds; round++) {
 
 			Double bestAltPayoff = Collections.max(hypoPayoffs);
 			if ((isAbs && shouldSwitchAbsS3(bestAltPayoff, actualPayoff, delta))
@@ -358,7 +385,7 @@ public class LearningModelsCustom {
 			// update actual and hypothetical payoffs
 			actualPayoff += reward;
 			updateHypoPayoffs(hypoPayoffs, playerId, signal, r,
-					PredLkAnalysis.treatment);
+					AnalysisContext.treatment());
 
 		}
 		return new int[] { round, indexStrategy };
@@ -522,6 +549,21 @@ public class LearningModelsCustom {
 
 	public static double[] estimateUsingCobyla(String model,
 			List<Game> trainingSet) {
+		return estimateUsingCobyla(model, trainingSet, null, null);
+	}
+
+	/**
+	 * @param warmStart
+	 *            if not null, the first restart starts from this point and
+	 *            only FitSettings.warmStartRestarts random restarts follow
+	 * @param deadline
+	 *            stop at this deadline with the best point so far, if not
+	 *            null
+	 */
+	public static double[] estimateUsingCobyla(String model,
+			List<Game> trainingSet, double[] warmStart, Deadline deadline) {
+
+		FitSettings settings = AnalysisContext.settings();
 
 		double rhobeg = 0.5;
 		double rhoend = 1e-10;
@@ -534,6 +576,12 @@ public class LearningModelsCustom {
 
 		// objective function
 		Calcfc function = new LogLkFunctionCobyla(trainingSet, model);
+		((LogLkFunctionCobyla) function).deadline = deadline;
+		RestartRacer racer = null;
+		if (settings.raceRestarts) {
+			racer = new RestartRacer(maxfun);
+			((LogLkFunctionCobyla) function).racer = racer;
+		}
 
 		// num of restarts
 		int numRestarts = 10;
@@ -542,6 +590,8 @@ public class LearningModelsCustom {
 		} else if (model.startsWith("s1") || model.startsWith("s4") || model.equals("s5")) {
 			numRestarts = 10;
 		}
+		if (warmStart != null)
+			numRestarts = 1 + settings.warmStartRestarts;
 
 		int restartIndex = 0;
 		double[] point = null;
@@ -554,7 +604,11 @@ public class LearningModelsCustom {
 			point = getRandomPoint(model);
 
 			// modify starting point
-			if (model.startsWith("s2") || model.startsWith("s3")) {
+			if (warmStart != null && restartIndex == 0) {
+				point = warmStart.clone();
+				System.out.println("Starting from the warm start");
+
+			} else if (model.startsWith("s2") || model.startsWith("s3")) {
 				point[5] = getUBCobyla(model, "delta") / numRestarts
 						* restartIndex;
 				System.out.printf("Starting delta = %.2f\n", point[5]);
@@ -564,29 +618,224 @@ public class LearningModelsCustom {
 				System.out.printf("Starting eps = %.2f\n", point[4]);
 			}
 
-			Cobyla.FindMinimum(function, cobylaParams[0], cobylaParams[1],
-					point, rhobeg, rhoend, iprint, maxfun);
+			if (racer != null)
+				racer.startRestart();
+			boolean aborted = false;
+			try {
+				Cobyla.FindMinimum(function, cobylaParams[0], cobylaParams[1],
+						point, rhobeg, rhoend, iprint, maxfun);
+			} catch (RestartRacer.RaceAbortedException e) {
+				System.out.println("Restart aborted: " + e.getMessage());
+				aborted = true;
+			} catch (Deadline.ExpiredException e) {
+				LogLkFunctionCobyla cobylaFunction = (LogLkFunctionCobyla) function;
+				if (cobylaFunction.bestLogLk > bestLogLk)
+					bestPoint = cobylaFunction.bestPoint;
+				System.out.println("Deadline reached after restart "
+						+ restartIndex + ", keeping the best point so far");
+				break;
+			}
+
+			if (!aborted) {
+				// if constraints are violated
+				if (LearningModelsCustom.oConstraintsViolated(model, point)) {
+					if (racer != null)
+						racer.discardRestart();
+					((LogLkFunctionCobyla) function).squarePenCoeff();
+					continue;
+				}
+
+				double loglk = ((LogLkFunctionCobyla) function).logLk(point);
+				if (racer != null)
+					racer.finishRestart(loglk);
+				if (loglk > bestLogLk) {
+					Utils.printParams(pointToMap(model, point));
+					System.out.printf("loglk = %.2f, better\n", loglk);
+					bestLogLk = loglk;
+					bestPoint = point;
+				}
+			}
+
+			// aborted restarts count towards the stop check too
+			restartIndex++;
+			if (restartIndex == numRestarts)
+				shouldStop = true;
+			else if (racer != null && racer.shouldStop()) {
+				racer.skipRestarts(numRestarts - restartIndex);
+				shouldStop = true;
+			}
+
+		}
+		if (racer != null)
+			System.out.println("Restart racing: " + racer);
+		return bestPoint;
+	}
+
+	/**
+	 * Fit s1, s4 or s5 with StrategyMixtureEM, restarting from the same
+	 * spread of starting eps as estimateUsingCobyla. Every EM iterate is
+	 * feasible, so no restart is thrown away.
+	 */
+	public static double[] estimateUsingEM(String model, List<Game> trainingSet) {
+		return estimateUsingEM(model, trainingSet, null, null);
+	}
+
+	/**
+	 * @param warmStart
+	 *            if not null, the first restart starts from this point and
+	 *            only FitSettings.warmStartRestarts random restarts follow
+	 * @param deadline
+	 *            stop at this deadline with the best point so far, if not
+	 *            null
+	 */
+	public static double[] estimateUsingEM(String model,
+			List<Game> trainingSet, double[] warmStart, Deadline deadline) {
+
+		StrategyMixtureEM em = new StrategyMixtureEM(model, trainingSet);
+		SquaremAccelerator accelerator = new SquaremAccelerator(10000, 1e-10);
+		accelerator.deadline = deadline;
+		int numRestarts = 10;
+		if (warmStart != null)
+			numRestarts = 1 + AnalysisContext.settings().warmStartRestarts;
 
-			// if constraints are violated
-			if (LearningModelsCustom.oConstraintsViolated(model, point)) {
-				((LogLkFunctionCobyla) function).squarePenCoeff();
-				continue;
+		double bestLogLk = Double.NEGATIVE_INFINITY;
+		double[] bestPoint = null;
+
+		for (int restartIndex = 0; restartIndex < numRestarts; restartIndex++) {
+			if (bestPoint != null && deadline != null && deadline.isExpired())
+				break;
+			double[] point = getRandomPoint(model);
+			if (warmStart != null && restartIndex == 0) {
+				point = warmStart.clone();
+			} else {
+				// eps = 0 is a fixed point of the eps update, so start half
+				// a step in
+				point[4] = 0.5 / numRestarts * (restartIndex + 0.5);
 			}
+			em.project(point);
 
-			double loglk = computeLogLk(model, pointToMap(model, point),
-					trainingSet);
+			point = accelerator.run(em, point);
+			double loglk = em.getLogLikelihood(point);
 			if (loglk > bestLogLk) {
-				Utils.printParams(pointToMap(model, point));
-				System.out.printf("loglk = %.2f, better\n", loglk);
 				bestLogLk = loglk;
 				bestPoint = point;
 			}
+		}
 
-			restartIndex++;
-			if (restartIndex == numRestarts)
-				shouldStop = true;
+		Utils.printParams(pointToMap(model, bestPoint));
+		System.out.printf("loglk = %.2f\n", bestLogLk);
+		return bestPoint;
+	}
+
+	// evaluations per restart of estimateUsingSimplex
+	static int simplexMaxEval = 10000;
+
+	/**
+	 * Fit any custom model with Nelder-Mead over UnconstrainedParams, from
+	 * the same starting points as estimateUsingCobyla. There are no
+	 * constraints to violate, so every restart counts, including one that
+	 * is still moving after simplexMaxEval evaluations, which gives the best
+	 * point it evaluated.
+	 */
+	public static double[] estimateUsingSimplex(String model,
+			List<Game> trainingSet) {
+		return estimateUsingSimplex(model, trainingSet, null, null);
+	}
 
+	/**
+	 * @param warmStart
+	 *            if not null, the first restart starts from this point and
+	 *            only FitSettings.warmStartRestarts random restarts follow
+	 * @param deadline
+	 *            stop at this deadline with the best point so far, if not
+	 *            null
+	 */
+	public static double[] estimateUsingSimplex(String model,
+			List<Game> trainingSet, double[] warmStart, Deadline deadline) {
+
+		FitSettings settings = AnalysisContext.settings();
+		UnconstrainedParams reparam = new UnconstrainedParams(model);
+		LogLkFunctionUnconstrained function = new LogLkFunctionUnconstrained(
+				trainingSet, model);
+		function.deadline = deadline;
+		SimplexOptimizer optimizer = new SimplexOptimizer(
+				new SimpleValueChecker(1e-10, 1e-10));
+		int maxEval = simplexMaxEval;
+		RestartRacer racer = null;
+		if (settings.raceRestarts) {
+			racer = new RestartRacer(maxEval);
+			function.racer = racer;
+		}
+
+		int numRestarts = 10;
+		if (model.startsWith("s2") || model.startsWith("s3"))
+			numRestarts = (int) Math.round(getUBCobyla(model, "delta"));
+		if (warmStart != null)
+			numRestarts = 1 + settings.warmStartRestarts;
+
+		double bestLogLk = Double.NEGATIVE_INFINITY;
+		double[] bestPoint = null;
+
+		for (int restartIndex = 0; restartIndex < numRestarts; restartIndex++) {
+			double[] point = getRandomPoint(model);
+			if (warmStart != null && restartIndex == 0) {
+				point = warmStart.clone();
+			} else if (model.startsWith("s2") || model.startsWith("s3")) {
+				point[5] = getUBCobyla(model, "delta") / numRestarts
+						* restartIndex;
+			} else {
+				point[4] = 0.5 / numRestarts * restartIndex;
+			}
+
+			if (racer != null)
+				racer.startRestart();
+			function.bestPoint = null;
+			function.bestLogLk = Double.NEGATIVE_INFINITY;
+			double loglk = Double.NEGATIVE_INFINITY;
+			boolean aborted = false;
+			try {
+				PointValuePair optimum = optimizer.optimize(new MaxEval(
+						maxEval), new ObjectiveFunction(function),
+						GoalType.MAXIMIZE, new InitialGuess(reparam
+								.fromPoint(point)), new NelderMeadSimplex(
+								reparam.getDimension()));
+				point = reparam.toPoint(optimum.getPoint());
+				loglk = optimum.getValue();
+			} catch (TooManyEvaluationsException e) {
+				System.out.println("Restart " + restartIndex + " used all "
+						+ maxEval + " evaluations, keeping its best point");
+				point = function.bestPoint;
+				loglk = function.bestLogLk;
+			} catch (RestartRacer.RaceAbortedException e) {
+				System.out.println("Restart aborted: " + e.getMessage());
+				aborted = true;
+			} catch (Deadline.ExpiredException e) {
+				if (function.bestLogLk > bestLogLk)
+					bestPoint = function.bestPoint;
+				System.out.println("Deadline reached after restart "
+						+ restartIndex + ", keeping the best point so far");
+				break;
+			}
+			if (!aborted) {
+				if (racer != null)
+					racer.finishRestart(loglk);
+				if (loglk > bestLogLk) {
+					Utils.printParams(pointToMap(model, point));
+					System.out.printf("loglk = %.2f, better\n", loglk);
+					bestLogLk = loglk;
+					bestPoint = point;
+				}
+			}
+
+			// aborted restarts count towards the stop check too
+			if (racer != null && racer.shouldStop()
+					&& restartIndex + 1 < numRestarts) {
+				racer.skipRestarts(numRestarts - restartIndex - 1);
+				break;
+			}
 		}
+		if (racer != null)
+			System.out.println("Restart racing: " + racer);
 		return bestPoint;
 	}
 
@@ -622,31 +871,31 @@ public class LearningModelsCustom {
 		double[] randomVec5 = Utils.getRandomVec(5);
 
 		if (model.equals("s5")) {
-			double epsStart = Utils.rand.nextDouble() * getUBCobyla(model, "eps");
-			double mmGivenMM = Utils.rand.nextDouble();
-			double mmGivenGB = Utils.rand.nextDouble();
+			double epsStart = AnalysisContext.random().nextDouble() * getUBCobyla(model, "eps");
+			double mmGivenMM = AnalysisContext.random().nextDouble();
+			double mmGivenGB = AnalysisContext.random().nextDouble();
 
-			 double mmGivenMMForMM = Utils.rand.nextDouble();
-			 double mmGivenGBForMM = Utils.rand.nextDouble();
+			 double mmGivenMMForMM = AnalysisContext.random().nextDouble();
+			 double mmGivenGBForMM = AnalysisContext.random().nextDouble();
 
 			 return new double[] { randomVec5[0], randomVec5[1], randomVec5[2], randomVec5[3],
 			 epsStart, mmGivenMM, mmGivenGB, mmGivenMMForMM, mmGivenGBForMM};
 			 
 		} else if (model.equals("s4")) {
 
-			double epsStart = Utils.rand.nextDouble()
+			double epsStart = AnalysisContext.random().nextDouble()
 					* getUBCobyla(model, "eps");
-			double mmGivenMM = Utils.rand.nextDouble();
-			double mmGivenGB = Utils.rand.nextDouble();
+			double mmGivenMM = AnalysisContext.random().nextDouble();
+			double mmGivenGB = AnalysisContext.random().nextDouble();
 
 			return new double[] { randomVec5[0], randomVec5[1], randomVec5[2],
 					randomVec5[3], epsStart, mmGivenMM, mmGivenGB };
 
 		} else if (model.startsWith("s2")) {
 
-			double epsStart = Utils.rand.nextDouble()
+			double epsStart = AnalysisContext.random().nextDouble()
 					* getUBCobyla(model, "eps");
-			double deltaStart = Utils.rand.nextDouble()
+			double deltaStart = AnalysisContext.random().nextDouble()
 					* getUBCobyla(model, "delta");
 			double[] randomVec6 = Utils.getRandomVec(6);
 
@@ -655,9 +904,9 @@ public class LearningModelsCustom {
 
 		} else if (model.startsWith("s3")) {
 
-			double epsStart = Utils.rand.nextDouble()
+			double epsStart = AnalysisContext.random().nextDouble()
 					* getUBCobyla(model, "eps");
-			double deltaStart = Utils.rand.nextDouble()
+			double deltaStart = AnalysisContext.random().nextDouble()
 					* getUBCobyla(model, "delta");
 
 			return new double[] { randomVec5[0], randomVec5[1], randomVec5[2],
@@ -665,7 +914,7 @@ public class LearningModelsCustom {
 
 		} else if (model.equals("s1")) {
 
-			double epsStart = Utils.rand.nextDouble()
+			double epsStart = AnalysisContext.random().nextDouble()
 					* getUBCobyla(model, "eps");
 
 			return new double[] { randomVec5[0], randomVec5[1], randomVec5[2],
@@ -865,9 +1114,9 @@ public class LearningModelsCustom {
 
 			if (paramName.equals("delta")) {
 				if (model.endsWith("abs")) {
-					return (1.5 - 0.1) * LogReader.expSet.numRounds;
+					return (1.5 - 0.1) * AnalysisContext.experiment().numRounds;
 				} else if (model.endsWith("rel")) {
-					return (1.5 / 0.1) * LogReader.expSet.numRounds;
+					return (1.5 / 0.1) * AnalysisContext.experiment().numRounds;
 				}
 			}
 
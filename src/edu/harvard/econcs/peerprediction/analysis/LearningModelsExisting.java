@@ -1,20 +1,19 @@
 package edu.harvard.econcs.peerprediction.analysis;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.andrewmao.misc.Pair;
 
-import org.apache.commons.math3.exception.MathIllegalStateException;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.SimpleBounds;
-import org.apache.commons.math3.optim.SimpleValueChecker;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.CMAESOptimizer;
-import org.apache.commons.math3.random.JDKRandomGenerator;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularMatrixException;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -32,31 +31,32 @@ public class LearningModelsExisting {
 	
 		double firstRoundMMProb = 0.5;
 		double loglk = 0;
+		double[] attraction = new double[AnalysisContext.experiment().numPlayers * 4];
 		for (Game game : games) {
 	
 			double logLkGame = 0;
 	
 			// initialize attraction
-			Map<String, Map<Pair<String, String>, Double>> attraction = LearningModelsExisting.initAttraction(game.playerHitIds);
+			Arrays.fill(attraction, 0.0);
 	
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
+			for (int i = 0; i < AnalysisContext.experiment().numRounds; i++) {
 	
 				Map<String, Map<String, Object>> resultCurrRound = game.rounds
 						.get(i).result;
 	
 				// if first two treatments, add LogLk for reward except last
 				// round
-				if (PredLkAnalysis.treatment.equals("prior2-basic")
-						|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+				if (AnalysisContext.treatment().equals("prior2-basic")
+						|| AnalysisContext.treatment().equals("prior2-outputagreement")) {
 	
-					if (i != LogReader.expSet.numRounds - 1) {
+					if (i != AnalysisContext.experiment().numRounds - 1) {
 	
 						for (String currPlayerId : game.playerHitIds) {
 	
 							int numRefReport = LearningModelsExisting.getNumPossibleRefPlayers(
 									resultCurrRound, currPlayerId);
 							double logLkReward = Math.log(numRefReport * 1.0
-									/ (LogReader.expSet.numPlayers - 1));
+									/ (AnalysisContext.experiment().numPlayers - 1));
 							logLkGame += logLkReward;
 						}
 	
@@ -68,39 +68,37 @@ public class LearningModelsExisting {
 				if (i == 0) {
 	
 					logLkGame += Math.log(Math.pow(firstRoundMMProb,
-							LogReader.expSet.numPlayers));
+							AnalysisContext.experiment().numPlayers));
 	
 				} else {
 	
 					Map<String, Map<String, Object>> resultPrevRound = game.rounds
 							.get(i - 1).result;
 	
-					for (String playerId : game.playerHitIds) {
+					for (int j = 0; j < game.playerHitIds.length; j++) {
 	
-						String signalCurrRound = (String) resultCurrRound.get(
-								playerId).get("signal");
-						String reportCurrRound = (String) resultCurrRound.get(
-								playerId).get("report");
-						String signalPrevRound = (String) resultPrevRound.get(
-								playerId).get("signal");
-						String reportPrevRound = (String) resultPrevRound.get(
-								playerId).get("report");
+						String playerId = game.playerHitIds[j];
+						int signalCurrRound = toIndex((String) resultCurrRound
+								.get(playerId).get("signal"));
+						int reportCurrRound = toIndex((String) resultCurrRound
+								.get(playerId).get("report"));
+						int reportPrevRound = toIndex((String) resultPrevRound
+								.get(playerId).get("report"));
 						double rewardPrevRound = (double) resultPrevRound.get(
 								playerId).get("reward");
 	
 						// update attractions
-						LearningModelsExisting.updateAttractionsRL(attraction, playerId, phi,
-								signalPrevRound, reportPrevRound,
-								rewardPrevRound);
+						LearningModelsExisting.updateAttractionsRL(attraction, j,
+								phi, reportPrevRound, rewardPrevRound);
 	
 						// determine strategy
-						Map<String, Double> strategy = LearningModelsExisting.getStrategy(attraction,
-								playerId, considerSignal, lambda,
-								signalCurrRound, signalPrevRound);
+						double mmProb = LearningModelsExisting.getMMProb(
+								attraction, j, considerSignal, lambda,
+								signalCurrRound);
 	
 						// get loglk for report
-						logLkGame += LearningModelsExisting.getLogLkForReport(strategy,
-								reportCurrRound, playerId);
+						logLkGame += LearningModelsExisting.getLogLkForReport(
+								mmProb, reportCurrRound);
 	
 					}
 				}
@@ -122,24 +120,27 @@ public class LearningModelsExisting {
 	
 		double loglk = 0;
 		double firstRoundMMProb = 0.5;
+		double[] attractions = new double[AnalysisContext.experiment().numPlayers * 4];
+		double[][] expectedPayoffs = LearningModelsExisting
+				.getExpectedPayoffTable();
 		for (Game game : games) {
 	
 			double logLkGame = 0;
 	
 			// initialize
 			double experiences = Utils.eps;
-			Map<String, Map<Pair<String, String>, Double>> attractions = LearningModelsExisting.initAttraction(game.playerHitIds);
+			Arrays.fill(attractions, 0.0);
 	
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
+			for (int i = 0; i < AnalysisContext.experiment().numRounds; i++) {
 	
 				Map<String, Map<String, Object>> resultCurrRound = game.rounds
 						.get(i).result;
 	
-				if (PredLkAnalysis.treatment.equals("prior2-basic")
-						|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+				if (AnalysisContext.treatment().equals("prior2-basic")
+						|| AnalysisContext.treatment().equals("prior2-outputagreement")) {
 	
 					// add LogLk for reward except last round
-					if (i != LogReader.expSet.numRounds - 1) {
+					if (i != AnalysisContext.experiment().numRounds - 1) {
 	
 						for (String currPlayerId : game.playerHitIds) {
 	
@@ -151,7 +152,7 @@ public class LearningModelsExisting {
 							int numPossibleRefPlayers = LearningModelsExisting.getNumPossibleRefPlayers(
 									resultCurrRound, currPlayerId);
 							double logLkReward = Math.log(numPossibleRefPlayers
-									* 1.0 / (LogReader.expSet.numPlayers - 1));
+									* 1.0 / (AnalysisContext.experiment().numPlayers - 1));
 							logLkGame += logLkReward;
 						}
 	
@@ -162,44 +163,43 @@ public class LearningModelsExisting {
 				if (i == 0) {
 	
 					logLkGame += Math.log(Math.pow(firstRoundMMProb,
-							LogReader.expSet.numPlayers));
+							AnalysisContext.experiment().numPlayers));
 	
 				} else {
 	
 					Map<String, Map<String, Object>> resultPrevRound = game.rounds
 							.get(i - 1).result;
 	
-					for (String playerId : game.playerHitIds) {
+					for (int j = 0; j < game.playerHitIds.length; j++) {
 	
-						String signalPrev = (String) resultPrevRound.get(
-								playerId).get("signal");
-						String reportPrev = (String) resultPrevRound.get(
-								playerId).get("report");
+						String playerId = game.playerHitIds[j];
+						int reportPrev = toIndex((String) resultPrevRound.get(
+								playerId).get("report"));
 						double rewardPrev = (double) resultPrevRound.get(
 								playerId).get("reward");
-						String signalCurr = (String) resultCurrRound.get(
-								playerId).get("signal");
-						String reportCurr = (String) resultCurrRound.get(
-								playerId).get("report");
+						int signalCurr = toIndex((String) resultCurrRound.get(
+								playerId).get("signal"));
+						int reportCurr = toIndex((String) resultCurrRound.get(
+								playerId).get("report"));
 						int numOtherMMReportsPrev = Utils.getNumOfGivenReport(
 								resultPrevRound, "MM", playerId);
 	
 						// update attractions
-						LearningModelsExisting.updateAttractionsSFP(attractions, experiences,
-								playerId, rho, reportPrev, rewardPrev,
-								numOtherMMReportsPrev);
+						LearningModelsExisting.updateAttractionsSFP(attractions,
+								experiences, j, rho, reportPrev, rewardPrev,
+								expectedPayoffs, numOtherMMReportsPrev);
 	
 						// update experiences
 						experiences = LearningModelsExisting.updateExperience(experiences, rho);
 	
 						// get strategy
-						Map<String, Double> strategy = LearningModelsExisting.getStrategy(attractions,
-								playerId, considerSignal, lambda, signalCurr,
-								signalPrev);
+						double mmProb = LearningModelsExisting.getMMProb(
+								attractions, j, considerSignal, lambda,
+								signalCurr);
 	
 						// add loglk for report
-						logLkGame += LearningModelsExisting.getLogLkForReport(strategy, reportCurr,
-								playerId);
+						logLkGame += LearningModelsExisting.getLogLkForReport(
+								mmProb, reportCurr);
 	
 					}
 				}
@@ -227,24 +227,27 @@ public class LearningModelsExisting {
 	
 		double firstRoundMMProb = 0.5;
 		double loglk = 0;
+		double[] attractions = new double[AnalysisContext.experiment().numPlayers * 4];
+		double[][] expectedPayoffs = LearningModelsExisting
+				.getExpectedPayoffTable();
 		for (Game game : games) {
 	
 			double logLkGame = 0;
 	
 			// initialize experience and attractions
 			double experience = Utils.eps;
-			Map<String, Map<Pair<String, String>, Double>> attractions = LearningModelsExisting.initAttraction(game.playerHitIds);
+			Arrays.fill(attractions, 0.0);
 	
-			for (int i = 0; i < LogReader.expSet.numRounds; i++) {
+			for (int i = 0; i < AnalysisContext.experiment().numRounds; i++) {
 	
 				Map<String, Map<String, Object>> resultCurrRound = game.rounds
 						.get(i).result;
 	
-				if (PredLkAnalysis.treatment.equals("prior2-basic")
-						|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+				if (AnalysisContext.treatment().equals("prior2-basic")
+						|| AnalysisContext.treatment().equals("prior2-outputagreement")) {
 	
 					// add LogLk for reward except last round
-					if (i != LogReader.expSet.numRounds - 1) {
+					if (i != AnalysisContext.experiment().numRounds - 1) {
 	
 						for (String currPlayerId : game.playerHitIds) {
 	
@@ -256,7 +259,7 @@ public class LearningModelsExisting {
 							int numPossibleRefPlayers = LearningModelsExisting.getNumPossibleRefPlayers(
 									resultCurrRound, currPlayerId);
 							double logLkReward = Math.log(numPossibleRefPlayers
-									* 1.0 / (LogReader.expSet.numPlayers - 1));
+									* 1.0 / (AnalysisContext.experiment().numPlayers - 1));
 							logLkGame += logLkReward;
 						}
 	
@@ -268,45 +271,44 @@ public class LearningModelsExisting {
 				if (i == 0) {
 	
 					logLkGame += Math.log(Math.pow(firstRoundMMProb,
-							LogReader.expSet.numPlayers));
+							AnalysisContext.experiment().numPlayers));
 	
 				} else {
 	
 					Map<String, Map<String, Object>> resultPrevRound = game.rounds
 							.get(i - 1).result;
 	
-					for (String playerId : game.playerHitIds) {
+					for (int j = 0; j < game.playerHitIds.length; j++) {
 	
-						String reportCurrRound = (String) resultCurrRound.get(
-								playerId).get("report");
-						String signalCurrRound = (String) resultCurrRound.get(
-								playerId).get("signal");
-						String signalPrevRound = (String) resultPrevRound.get(
-								playerId).get("signal");
-						String reportPrevRound = (String) resultPrevRound.get(
-								playerId).get("report");
+						String playerId = game.playerHitIds[j];
+						int reportCurrRound = toIndex((String) resultCurrRound
+								.get(playerId).get("report"));
+						int signalCurrRound = toIndex((String) resultCurrRound
+								.get(playerId).get("signal"));
+						int reportPrevRound = toIndex((String) resultPrevRound
+								.get(playerId).get("report"));
 						double rewardPrevRound = (double) resultPrevRound.get(
 								playerId).get("reward");
 						int numOtherMMReportsPrev = Utils.getNumOfGivenReport(
 								resultPrevRound, "MM", playerId);
 	
 						// update attractions
-						LearningModelsExisting.updateAttractionsEWA(attractions, experience, playerId,
-								rho, delta, phi, signalPrevRound,
-								reportPrevRound, rewardPrevRound,
-								reportCurrRound, numOtherMMReportsPrev);
+						LearningModelsExisting.updateAttractionsEWA(attractions,
+								experience, j, rho, delta, phi, reportPrevRound,
+								rewardPrevRound, expectedPayoffs,
+								numOtherMMReportsPrev);
 	
 						// update experiences
 						experience = LearningModelsExisting.updateExperience(experience, rho);
 	
 						// get strategy
-						Map<String, Double> strategy = LearningModelsExisting.getStrategy(attractions,
-								playerId, considerSignal, lambda,
-								signalCurrRound, signalPrevRound);
+						double mmProb = LearningModelsExisting.getMMProb(
+								attractions, j, considerSignal, lambda,
+								signalCurrRound);
 	
 						// add loglk for report
-						logLkGame += LearningModelsExisting.getLogLkForReport(strategy,
-								reportCurrRound, playerId);
+						logLkGame += LearningModelsExisting.getLogLkForReport(
+								mmProb, reportCurrRound);
 					}
 				}
 			}
@@ -315,6 +317,572 @@ public class LearningModelsExisting {
 		return loglk;
 	}
 
+	/**
+	 * Log likelihood of RL, SFP or EWA at several points in one pass over
+	 * the games. The recursions for all points run in lockstep, with the
+	 * attractions in structure-of-arrays layout: entry (player j, signal s,
+	 * report r) of point k is at ((j * 4 + s * 2 + r) * numPoints + k), so
+	 * the innermost loops run over points. Each point gets exactly the value
+	 * of computeLogLkRL, computeLogLkSFP or computeLogLkEWA. Each game's log
+	 * likelihood is multiplied by its weight in data.
+	 * 
+	 * @param model
+	 *            RLS, RLNS, SFPS, SFPNS, EWAS or EWANS
+	 * @param points
+	 *            in the layout used by LogLkFunctionApache
+	 * @param data
+	 * @return log likelihood for each point
+	 */
+	public static double[] computeLogLkBatch(String model, double[][] points,
+			EncodedGames data) {
+		return computeLogLkBatch(model, points, data, null);
+	}
+
+	/**
+	 * @param gameLogLks
+	 *            if not null, receives the unweighted log likelihood of
+	 *            each game at each point, indexed by [point][game]
+	 */
+	public static double[] computeLogLkBatch(String model, double[][] points,
+			EncodedGames data, double[][] gameLogLks) {
+
+		int n = points.length;
+		double[] phi = new double[n];
+		double[] rho = new double[n];
+		double[] delta = new double[n];
+		double[] lambda = new double[n];
+
+		boolean isRL = model.equals("RLS") || model.equals("RLNS");
+		boolean isSFP = model.equals("SFPS") || model.equals("SFPNS");
+		boolean isEWA = model.equals("EWAS") || model.equals("EWANS");
+		boolean considerSignal = model.equals("RLS") || model.equals("SFPS")
+				|| model.equals("EWAS");
+		for (int k = 0; k < n; k++) {
+			if (isRL) {
+				phi[k] = points[k][0];
+				lambda[k] = points[k][1];
+			} else if (isSFP) {
+				rho[k] = points[k][0];
+				lambda[k] = points[k][1];
+			} else if (isEWA) {
+				rho[k] = points[k][0];
+				phi[k] = points[k][1];
+				delta[k] = points[k][2];
+				lambda[k] = points[k][3];
+			} else {
+				throw new IllegalArgumentException("Unknown model " + model);
+			}
+		}
+
+		int numPlayers = data.numPlayers;
+		int numRounds = data.numRounds;
+		double[][] expectedPayoffs = data.expectedPayoffs;
+
+		double[] loglk = new double[n];
+		double[] logLkGame = new double[n];
+		double[] experience = new double[n];
+		double[] attraction = new double[numPlayers * 4 * n];
+		double[] mmProb = new double[n];
+
+		for (int g = 0; g < data.numGames; g++) {
+
+			Arrays.fill(logLkGame, 0.0);
+			Arrays.fill(experience, Utils.eps);
+			Arrays.fill(attraction, 0.0);
+
+			for (int i = 0; i < numRounds; i++) {
+
+				int row = data.row(g, i);
+
+				// add LogLk for reward except last round
+				if (data.hasRewardLogLk && i != numRounds - 1) {
+					for (int j = 0; j < numPlayers; j++) {
+						double logLkReward = data.rewardLogLk[row + j];
+						for (int k = 0; k < n; k++) {
+							logLkGame[k] += logLkReward;
+						}
+					}
+				}
+
+				if (i == 0) {
+					for (int k = 0; k < n; k++) {
+						logLkGame[k] += data.firstRoundLogLk;
+					}
+					continue;
+				}
+
+				int prevRow = data.row(g, i - 1);
+				for (int j = 0; j < numPlayers; j++) {
+
+					int reportPrev = data.reports[prevRow + j];
+					double rewardPrev = data.rewards[prevRow + j];
+					int numMMPrev = data.numOtherMM[prevRow + j];
+					int signalCurr = data.signals[row + j];
+					int reportCurr = data.reports[row + j];
+
+					// update attractions
+					for (int signal = 0; signal < 2; signal++) {
+						for (int report = 0; report < 2; report++) {
+							int base = (j * 4 + signal * 2 + report) * n;
+							boolean chosen = report == reportPrev;
+							double payoff = expectedPayoffs[report][numMMPrev];
+							if (isRL) {
+								for (int k = 0; k < n; k++) {
+									attraction[base + k] = chosen ? phi[k]
+											* attraction[base + k] + rewardPrev
+											: phi[k] * attraction[base + k];
+								}
+							} else if (isSFP) {
+								for (int k = 0; k < n; k++) {
+									attraction[base + k] = (rho[k]
+											* experience[k]
+											* attraction[base + k] + (chosen ? rewardPrev
+											: payoff))
+											/ (rho[k] * experience[k] + 1);
+								}
+							} else {
+								for (int k = 0; k < n; k++) {
+									attraction[base + k] = (phi[k]
+											* experience[k]
+											* attraction[base + k] + (chosen ? rewardPrev
+											: delta[k] * payoff))
+											/ (rho[k] * experience[k] + 1);
+								}
+							}
+						}
+					}
+
+					// update experiences
+					if (!isRL) {
+						for (int k = 0; k < n; k++) {
+							experience[k] = updateExperience(experience[k],
+									rho[k]);
+						}
+					}
+
+					// get strategy
+					int base = j * 4 * n;
+					if (!considerSignal) {
+						int mmMM = base + (MM * 2 + MM) * n;
+						int gbMM = base + (GB * 2 + MM) * n;
+						int mmGB = base + (MM * 2 + GB) * n;
+						int gbGB = base + (GB * 2 + GB) * n;
+						for (int k = 0; k < n; k++) {
+							mmProb[k] = Utils.calcMMProb(lambda[k],
+									attraction[mmMM + k] + attraction[gbMM + k],
+									attraction[mmGB + k] + attraction[gbGB + k]);
+						}
+					} else {
+						int sMM = base + (signalCurr * 2 + MM) * n;
+						int sGB = base + (signalCurr * 2 + GB) * n;
+						for (int k = 0; k < n; k++) {
+							mmProb[k] = Utils.calcMMProb(lambda[k],
+									attraction[sMM + k], attraction[sGB + k]);
+						}
+					}
+
+					// add loglk for report
+					for (int k = 0; k < n; k++) {
+						double p = mmProb[k];
+						if (1.0 - p < Utils.eps)
+							p = 1.0 - Utils.eps;
+						if (p < Utils.eps)
+							p = Utils.eps;
+						logLkGame[k] += getLogLkForReport(p, reportCurr);
+					}
+				}
+			}
+
+			double weight = data.weights[g];
+			for (int k = 0; k < n; k++) {
+				loglk[k] += weight * logLkGame[k];
+			}
+			if (gameLogLks != null) {
+				for (int k = 0; k < n; k++) {
+					gameLogLks[k][g] = logLkGame[k];
+				}
+			}
+		}
+		return loglk;
+	}
+
+	/**
+	 * Log likelihood of RL, SFP or EWA at one point, with its gradient with
+	 * respect to the point. The derivatives of the attractions and of the
+	 * experience are carried forward through the recursion alongside their
+	 * values, so the gradient costs one pass over the games. The value is
+	 * the same as from computeLogLkBatch.
+	 * 
+	 * Where the probability of a report is clamped to [eps, 1 - eps], its
+	 * derivative is taken to be 0.
+	 * 
+	 * @param model
+	 *            RLS, RLNS, SFPS, SFPNS, EWAS or EWANS
+	 * @param point
+	 *            in the layout used by LogLkFunctionApache
+	 * @param data
+	 * @param gradient
+	 *            receives the gradient of the log likelihood
+	 * @param gameGradients
+	 *            if not null, receives the unweighted gradient of the log
+	 *            likelihood of each game, indexed by [game][parameter]
+	 * @return log likelihood
+	 */
+	public static double computeLogLkGradient(String model, double[] point,
+			EncodedGames data, double[] gradient, double[][] gameGradients) {
+
+		int dim = point.length;
+		boolean isRL = model.equals("RLS") || model.equals("RLNS");
+		boolean isSFP = model.equals("SFPS") || model.equals("SFPNS");
+		boolean isEWA = model.equals("EWAS") || model.equals("EWANS");
+		boolean considerSignal = model.equals("RLS") || model.equals("SFPS")
+				|| model.equals("EWAS");
+
+		// position of each parameter in the point, or -1
+		int iPhi = -1;
+		int iRho = -1;
+		int iDelta = -1;
+		int iLambda;
+		if (isRL) {
+			iPhi = 0;
+			iLambda = 1;
+		} else if (isSFP) {
+			iRho = 0;
+			iLambda = 1;
+		} else if (isEWA) {
+			iRho = 0;
+			iPhi = 1;
+			iDelta = 2;
+			iLambda = 3;
+		} else {
+			throw new IllegalArgumentException("Unknown model " + model);
+		}
+		double phi = iPhi >= 0 ? point[iPhi] : 0;
+		double rho = iRho >= 0 ? point[iRho] : 0;
+		double delta = iDelta >= 0 ? point[iDelta] : 0;
+		double lambda = point[iLambda];
+
+		// SFP weighs old attractions by rho, EWA by phi
+		double decay = isSFP ? rho : phi;
+		int iDecay = isSFP ? iRho : iPhi;
+
+		int numPlayers = data.numPlayers;
+		int numRounds = data.numRounds;
+		double[][] expectedPayoffs = data.expectedPayoffs;
+
+		double[] attraction = new double[numPlayers * 4];
+		double[] dAttraction = new double[numPlayers * 4 * dim];
+		double[] dExperience = new double[dim];
+		double[] gameGradient = new double[dim];
+		double[] dMM = new double[dim];
+		double[] dGB = new double[dim];
+
+		double loglk = 0;
+		Arrays.fill(gradient, 0.0);
+		for (int g = 0; g < data.numGames; g++) {
+
+			double logLkGame = 0;
+			double experience = Utils.eps;
+			Arrays.fill(attraction, 0.0);
+			Arrays.fill(dAttraction, 0.0);
+			Arrays.fill(dExperience, 0.0);
+			Arrays.fill(gameGradient, 0.0);
+
+			for (int i = 0; i < numRounds; i++) {
+
+				int row = data.row(g, i);
+
+				// add LogLk for reward except last round
+				if (data.hasRewardLogLk && i != numRounds - 1) {
+					for (int j = 0; j < numPlayers; j++) {
+						logLkGame += data.rewardLogLk[row + j];
+					}
+				}
+
+				if (i == 0) {
+					logLkGame += data.firstRoundLogLk;
+					continue;
+				}
+
+				int prevRow = data.row(g, i - 1);
+				for (int j = 0; j < numPlayers; j++) {
+
+					int reportPrev = data.reports[prevRow + j];
+					double rewardPrev = data.rewards[prevRow + j];
+					int numMMPrev = data.numOtherMM[prevRow + j];
+					int signalCurr = data.signals[row + j];
+					int reportCurr = data.reports[row + j];
+
+					// update attractions and their derivatives
+					for (int c = 0; c < 4; c++) {
+						int index = j * 4 + c;
+						int report = c % 2;
+						double a = attraction[index];
+						boolean chosen = report == reportPrev;
+						double payoff = expectedPayoffs[report][numMMPrev];
+
+						if (isRL) {
+							attraction[index] = chosen ? phi * a + rewardPrev
+									: phi * a;
+							for (int d = 0; d < dim; d++) {
+								dAttraction[index * dim + d] = phi
+										* dAttraction[index * dim + d]
+										+ (d == iPhi ? a : 0);
+							}
+						} else {
+							double x = chosen ? rewardPrev : isSFP ? payoff
+									: delta * payoff;
+							double u = decay * experience * a + x;
+							double v = rho * experience + 1;
+							attraction[index] = u / v;
+							for (int d = 0; d < dim; d++) {
+								double du = (d == iDecay ? experience * a : 0)
+										+ decay * dExperience[d] * a + decay
+										* experience
+										* dAttraction[index * dim + d]
+										+ (!chosen && d == iDelta ? payoff : 0);
+								double dv = (d == iRho ? experience : 0) + rho
+										* dExperience[d];
+								dAttraction[index * dim + d] = (du * v - u * dv)
+										/ (v * v);
+							}
+						}
+					}
+
+					// update experiences
+					if (!isRL) {
+						for (int d = 0; d < dim; d++) {
+							dExperience[d] = rho * dExperience[d]
+									+ (d == iRho ? experience : 0);
+						}
+						experience = updateExperience(experience, rho);
+					}
+
+					// get strategy
+					double attrMMReport;
+					double attrGBReport;
+					int base = j * 4;
+					if (!considerSignal) {
+						attrMMReport = attraction[base + MM * 2 + MM]
+								+ attraction[base + GB * 2 + MM];
+						attrGBReport = attraction[base + MM * 2 + GB]
+								+ attraction[base + GB * 2 + GB];
+						for (int d = 0; d < dim; d++) {
+							dMM[d] = dAttraction[(base + MM * 2 + MM) * dim + d]
+									+ dAttraction[(base + GB * 2 + MM) * dim + d];
+							dGB[d] = dAttraction[(base + MM * 2 + GB) * dim + d]
+									+ dAttraction[(base + GB * 2 + GB) * dim + d];
+						}
+					} else {
+						attrMMReport = attraction[base + signalCurr * 2 + MM];
+						attrGBReport = attraction[base + signalCurr * 2 + GB];
+						for (int d = 0; d < dim; d++) {
+							dMM[d] = dAttraction[(base + signalCurr * 2 + MM)
+									* dim + d];
+							dGB[d] = dAttraction[(base + signalCurr * 2 + GB)
+									* dim + d];
+						}
+					}
+
+					double mmProb = Utils.calcMMProb(lambda, attrMMReport,
+							attrGBReport);
+					boolean clamped = false;
+					if (1.0 - mmProb < Utils.eps) {
+						mmProb = 1.0 - Utils.eps;
+						clamped = true;
+					}
+					if (mmProb < Utils.eps) {
+						mmProb = Utils.eps;
+						clamped = true;
+					}
+
+					// add loglk for report
+					logLkGame += getLogLkForReport(mmProb, reportCurr);
+
+					// mmProb is the logistic function of
+					// lambda * (attrMMReport - attrGBReport)
+					if (!clamped) {
+						double slope = reportCurr == MM ? 1 - mmProb : -mmProb;
+						for (int d = 0; d < dim; d++) {
+							double dExponent = (d == iLambda ? attrMMReport
+									- attrGBReport : 0)
+									+ lambda * (dMM[d] - dGB[d]);
+							gameGradient[d] += slope * dExponent;
+						}
+					}
+				}
+			}
+
+			double weight = data.weights[g];
+			loglk += weight * logLkGame;
+			for (int d = 0; d < dim; d++) {
+				gradient[d] += weight * gameGradient[d];
+			}
+			if (gameGradients != null)
+				System.arraycopy(gameGradient, 0, gameGradients[g], 0, dim);
+		}
+		return loglk;
+	}
+
+	/**
+	 * Standard errors from the outer product of the per-game gradients of
+	 * the log likelihood at a fitted point. They are not meaningful for
+	 * parameters that sit on a bound.
+	 * 
+	 * @return one standard error per parameter, or NaNs if the outer product
+	 *         is singular
+	 */
+	public static double[] getStandardErrors(String model, double[] point,
+			EncodedGames data) {
+		int dim = point.length;
+		double[][] gameGradients = new double[data.numGames][dim];
+		computeLogLkGradient(model, point, data, new double[dim],
+				gameGradients);
+
+		double[][] opg = new double[dim][dim];
+		for (int g = 0; g < data.numGames; g++) {
+			double[] score = gameGradients[g];
+			for (int a = 0; a < dim; a++) {
+				for (int b = 0; b < dim; b++) {
+					opg[a][b] += data.weights[g] * score[a] * score[b];
+				}
+			}
+		}
+
+		double[] standardErrors = new double[dim];
+		try {
+			RealMatrix covariance = new LUDecomposition(
+					new Array2DRowRealMatrix(opg)).getSolver().getInverse();
+			for (int a = 0; a < dim; a++) {
+				standardErrors[a] = Math.sqrt(covariance.getEntry(a, a));
+			}
+		} catch (SingularMatrixException e) {
+			Arrays.fill(standardErrors, Double.NaN);
+		}
+		return standardErrors;
+	}
+
+	/*
+	 * Primitive attraction state: a double[numPlayers * 4] buffer holding,
+	 * for the j-th player of a game, the attraction of reporting r after
+	 * signal s at j * 4 + s * 2 + r, with MM = 0 and GB = 1. The buffer is
+	 * reused across games. The map-based methods below compute the same
+	 * values.
+	 */
+
+	static final int MM = 0;
+	static final int GB = 1;
+
+	static int toIndex(String signalOrReport) {
+		return signalOrReport.equals("MM") ? MM : GB;
+	}
+
+	static void updateAttractionsRL(double[] attraction, int player,
+			double phi, int reportPrev, double rewardPrev) {
+		int base = player * 4;
+		for (int signal = 0; signal < 2; signal++) {
+			for (int report = 0; report < 2; report++) {
+				int index = base + signal * 2 + report;
+				if (report == reportPrev)
+					attraction[index] = phi * attraction[index] + rewardPrev;
+				else
+					attraction[index] = phi * attraction[index];
+			}
+		}
+	}
+
+	/**
+	 * @param expectedPayoffs
+	 *            from getExpectedPayoffTable
+	 */
+	static void updateAttractionsSFP(double[] attraction, double experience,
+			int player, double rho, int reportPrev, double rewardPrev,
+			double[][] expectedPayoffs, int numMMPrev) {
+		int base = player * 4;
+		for (int signal = 0; signal < 2; signal++) {
+			for (int report = 0; report < 2; report++) {
+				int index = base + signal * 2 + report;
+				if (report == reportPrev)
+					attraction[index] = (rho * experience * attraction[index] + rewardPrev)
+							/ (rho * experience + 1);
+				else
+					attraction[index] = (rho * experience * attraction[index] + expectedPayoffs[report][numMMPrev])
+							/ (rho * experience + 1);
+			}
+		}
+	}
+
+	/**
+	 * @param expectedPayoffs
+	 *            from getExpectedPayoffTable
+	 */
+	static void updateAttractionsEWA(double[] attraction, double experience,
+			int player, double rho, double delta, double phi, int reportPrev,
+			double rewardPrev, double[][] expectedPayoffs, int numMMPrev) {
+		int base = player * 4;
+		for (int signal = 0; signal < 2; signal++) {
+			for (int report = 0; report < 2; report++) {
+				int index = base + signal * 2 + report;
+				if (report == reportPrev)
+					attraction[index] = (phi * experience * attraction[index] + rewardPrev)
+							/ (rho * experience + 1);
+				else
+					attraction[index] = (phi * experience * attraction[index] + delta
+							* expectedPayoffs[report][numMMPrev])
+							/ (rho * experience + 1);
+			}
+		}
+	}
+
+	/**
+	 * Probability of reporting MM, corrected the same way as in getStrategy
+	 */
+	static double getMMProb(double[] attraction, int player,
+			boolean considerSignal, double lambda, int signalCurrRound) {
+		int base = player * 4;
+		double attrMMReport;
+		double attrGBReport;
+		if (!considerSignal) {
+			attrMMReport = attraction[base + MM * 2 + MM]
+					+ attraction[base + GB * 2 + MM];
+			attrGBReport = attraction[base + MM * 2 + GB]
+					+ attraction[base + GB * 2 + GB];
+		} else {
+			attrMMReport = attraction[base + signalCurrRound * 2 + MM];
+			attrGBReport = attraction[base + signalCurrRound * 2 + GB];
+		}
+
+		double mmProb = Utils.calcMMProb(lambda, attrMMReport, attrGBReport);
+		// Correct for the case when mmProb=1 or mmProb=0
+		if (1.0 - mmProb < Utils.eps)
+			mmProb = 1.0 - Utils.eps;
+		if (mmProb < Utils.eps)
+			mmProb = Utils.eps;
+		return mmProb;
+	}
+
+	static double getLogLkForReport(double mmProb, int reportCurrRound) {
+		if (reportCurrRound == MM)
+			return Math.log(mmProb);
+		else
+			return Math.log(1 - mmProb);
+	}
+
+	/**
+	 * getExpectedPayoff for every report and number of other MM reports, so
+	 * the treatment is looked up once per likelihood evaluation
+	 * 
+	 * @return table indexed by [report][numOtherMMReports]
+	 */
+	static double[][] getExpectedPayoffTable() {
+		double[][] table = new double[2][AnalysisContext.experiment().numPlayers];
+		for (int n = 0; n < AnalysisContext.experiment().numPlayers; n++) {
+			table[MM][n] = getExpectedPayoff("MM", n);
+			table[GB][n] = getExpectedPayoff("GB", n);
+		}
+		return table;
+	}
+
 	public static Map<String, Map<Pair<String, String>, Double>> initAttraction(
 			String[] playerHitIds) {
 		Map<String, Map<Pair<String, String>, Double>> attraction = new HashMap<String, Map<Pair<String, String>, Double>>();
@@ -462,21 +1030,21 @@ public class LearningModelsExisting {
 
 	public static double getExpectedPayoff(String report, int numOtherMMReports) {
 	
-		if (PredLkAnalysis.treatment.equals("prior2-basic")
-				|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+		if (AnalysisContext.treatment().equals("prior2-basic")
+				|| AnalysisContext.treatment().equals("prior2-outputagreement")) {
 	
 			if (numOtherMMReports == 2) {
-				return Utils.getPayment(PredLkAnalysis.treatment, report, "MM");
+				return Utils.getPayment(AnalysisContext.treatment(), report, "MM");
 			} else if (numOtherMMReports == 0) {
-				return Utils.getPayment(PredLkAnalysis.treatment, report, "GB");
+				return Utils.getPayment(AnalysisContext.treatment(), report, "GB");
 			} else if (numOtherMMReports == 1) {
-				return 0.5 * Utils.getPayment(PredLkAnalysis.treatment, report, "MM") + 0.5
-						* Utils.getPayment(PredLkAnalysis.treatment, report, "GB");
+				return 0.5 * Utils.getPayment(AnalysisContext.treatment(), report, "MM") + 0.5
+						* Utils.getPayment(AnalysisContext.treatment(), report, "GB");
 			}
 	
-		} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")
-				|| PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
-			return Utils.getPayment(PredLkAnalysis.treatment, report, numOtherMMReports);
+		} else if (AnalysisContext.treatment().equals("prior2-uniquetruthful")
+				|| AnalysisContext.treatment().equals("prior2-symmlowpay")) {
+			return Utils.getPayment(AnalysisContext.treatment(), report, numOtherMMReports);
 		}
 	
 		return -1;
@@ -505,64 +1073,160 @@ public class LearningModelsExisting {
 		return bounds;
 	}
 
-	static double[] estimateUsingApacheOptimizer(List<Game> games, String model) {
-	
+	static long lbfgsSeed = 1503;
+	static int lbfgsNumStarts = 5;
+
+	/**
+	 * Fit with BoundedLBFGS and the analytic gradient, from the model's
+	 * starting point and lbfgsNumStarts - 1 random points in the bounds, and
+	 * print the standard errors at the best fit
+	 */
+	static double[] estimateUsingLBFGS(List<Game> games, String model) {
+		return estimateUsingLBFGS(games, model, null, null);
+	}
+
+	/**
+	 * @param warmStart
+	 *            if not null, the first start is this point and only
+	 *            FitSettings.warmStartRestarts random starts follow
+	 * @param deadline
+	 *            stop at this deadline with the best point so far, if not
+	 *            null
+	 */
+	static double[] estimateUsingLBFGS(List<Game> games, String model,
+			double[] warmStart, Deadline deadline) {
+
+		LogLkFunctionApache function = new LogLkFunctionApache(games, model);
+
+		Map<String, Object> bounds = getBounds(model);
+		double[] lb = (double[]) bounds.get("lb");
+		double[] ub = (double[]) bounds.get("ub");
+
+		Random rnd = new Random(lbfgsSeed);
+		double[] bestPoint = null;
+		double bestLoglk = Double.NEGATIVE_INFINITY;
+		int numEvaluations = 0;
+		int numStarts = warmStart == null ? lbfgsNumStarts
+				: 1 + AnalysisContext.settings().warmStartRestarts;
+		for (int start = 0; start < numStarts; start++) {
+			if (bestPoint != null && deadline != null && deadline.isExpired())
+				break;
+
+			double[] startPoint = null;
+			if (start == 0)
+				startPoint = warmStart != null ? warmStart.clone()
+						: LearningModelsCustom.getRandomPoint(model);
+			if (startPoint == null) {
+				startPoint = new double[lb.length];
+				for (int i = 0; i < lb.length; i++) {
+					startPoint[i] = lb[i] + rnd.nextDouble() * (ub[i] - lb[i]);
+				}
+			}
+
+			BoundedLBFGS optimizer = new BoundedLBFGS();
+			optimizer.deadline = deadline;
+			double[] point = optimizer.maximize(function, startPoint, lb, ub);
+			numEvaluations += optimizer.getNumEvaluations();
+			if (optimizer.getValue() > bestLoglk) {
+				bestLoglk = optimizer.getValue();
+				bestPoint = point;
+			}
+		}
+
+		System.out.printf("L-BFGS: %d evaluations, loglk %.5f\n",
+				numEvaluations, bestLoglk);
+		System.out.printf("Standard errors: %s\n", Arrays
+				.toString(getStandardErrors(model, bestPoint, function.data)));
+		return bestPoint;
+	}
+
+	static long cmaesSeed = 1503;
+	static int cmaesThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Fit with ParallelCMAES, evaluating each generation on cmaesThreads
+	 * threads. The result only depends on cmaesSeed.
+	 */
+	static double[] estimateUsingCMAES(List<Game> games, String model) {
+		return estimateUsingCMAES(games, model, null, null);
+	}
+
+	/**
+	 * @param warmStart
+	 *            if not null, the first search starts from this point with a
+	 *            step size of 0.1 of the width of the bounds, and
+	 *            FitSettings.warmStartRestarts searches from random points
+	 *            follow, as in estimateUsingLBFGS
+	 * @param deadline
+	 *            stop at this deadline with the best point so far, if not
+	 *            null
+	 */
+	static double[] estimateUsingCMAES(List<Game> games, String model,
+			double[] warmStart, Deadline deadline) {
+
 		// objective function
 		LogLkFunctionApache function = new LogLkFunctionApache(games, model);
-	
+
 		// simple upper and lower bounds
 		Map<String, Object> bounds = getBounds(model);
 		double[] lb = (double[]) bounds.get("lb");
 		double[] ub = (double[]) bounds.get("ub");
 		double[] sigma = (double[]) bounds.get("sigma");
-	
-		// optimizer
-		// BOBYQAOptimizer optimizer = new BOBYQAOptimizer(lb.length + 2, 10,
-		// 1e-12);
-		JDKRandomGenerator random = new JDKRandomGenerator();
-		random.setSeed(1503);
-		SimpleValueChecker checker = new SimpleValueChecker(1E-3, 1E-6);
-		CMAESOptimizer cmaesOptimizer = new CMAESOptimizer(Integer.MAX_VALUE,
-				1e-10, true, 1, 1, random, false, checker);
-	
-		// starting point
-		double[] startPoint = LearningModelsCustom.getRandomPoint(model);
-	
-		double[] point = startPoint;
-		boolean shouldStop = false;
-		while (!shouldStop) {
-	
-			PointValuePair optimum = null;
-			try {
-				optimum = cmaesOptimizer.optimize(new ObjectiveFunction(
-						function), GoalType.MAXIMIZE, new CMAESOptimizer.Sigma(
-						sigma), new CMAESOptimizer.PopulationSize(25),
-						new InitialGuess(startPoint), new SimpleBounds(lb, ub));
-	
-				// optimum = optimizer.optimize(new MaxEval(10000000),
-				// new ObjectiveFunction(function), GoalType.MAXIMIZE,
-				// new InitialGuess(startPoint), new SimpleBounds(lb, ub));
-			} catch (MathIllegalStateException e) {
-				e.printStackTrace();
-				System.exit(0);
-				shouldStop = false;
-				startPoint = LearningModelsCustom.getRandomPoint(model);
-				continue;
+
+		ExecutorService executor = null;
+		if (cmaesThreads > 1)
+			executor = Executors.newFixedThreadPool(cmaesThreads);
+		try {
+			ParallelCMAES optimizer = new ParallelCMAES(cmaesSeed, executor);
+			optimizer.numTasks = cmaesThreads;
+			optimizer.deadline = deadline;
+
+			if (warmStart == null) {
+				// starting point, random in the bounds if the model has none
+				double[] point = optimizer.maximize(function,
+						LearningModelsCustom.getRandomPoint(model), sigma, lb,
+						ub);
+				System.out.printf(
+						"CMA-ES: %d evaluations, %d generations, %d restarts\n",
+						optimizer.getNumEvaluations(),
+						optimizer.getNumGenerations(),
+						optimizer.getNumRestarts());
+				return point;
 			}
-	
-			point = optimum.getPoint();
-			// System.out.println(Arrays.toString(point));
-	
-			if (!LearningModelsCustom.oConstraintsViolated(model, point)) {
-				System.out.println("constraints violated");
-				shouldStop = true;
-			} else {
-				function.squarePenCoeff();
-				startPoint = LearningModelsCustom.getRandomPoint(model);
+
+			double[] warmSigma = new double[lb.length];
+			for (int i = 0; i < lb.length; i++) {
+				warmSigma[i] = 0.1 * (ub[i] - lb[i]);
+			}
+
+			double[] bestPoint = null;
+			double bestLoglk = Double.NEGATIVE_INFINITY;
+			int numEvaluations = 0;
+			int numStarts = 1 + AnalysisContext.settings().warmStartRestarts;
+			for (int start = 0; start < numStarts; start++) {
+				if (bestPoint != null && deadline != null
+						&& deadline.isExpired())
+					break;
+
+				// a null start is a random point in the bounds, drawn from
+				// cmaesSeed
+				double[] point = start == 0 ? optimizer.maximize(function,
+						warmStart.clone(), warmSigma, lb, ub) : optimizer
+						.maximize(function, null, sigma, lb, ub);
+				numEvaluations += optimizer.getNumEvaluations();
+				double loglk = function.value(point);
+				if (bestPoint == null || loglk > bestLoglk) {
+					bestLoglk = loglk;
+					bestPoint = point;
+				}
 			}
+			System.out.printf("CMA-ES: %d evaluations, loglk %.5f\n",
+					numEvaluations, bestLoglk);
+			return bestPoint;
+		} finally {
+			if (executor != null)
+				executor.shutdown();
 		}
-	
-		return point;
 	}
 
 }
@@ -4,11 +4,13 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import net.andrewmao.math.RandomSelection;
 import net.andrewmao.misc.Pair;
@@ -77,6 +79,499 @@ public class LearningModelsTest {
 		
 	}
 
+	@Test
+	public void testPrimitiveAttractionsMatchMaps() {
+		String[] playerHitIds = new String[LogReader.expSet.numPlayers];
+		for (int j = 0; j < playerHitIds.length; j++) {
+			playerHitIds[j] = String.format("%d", j);
+		}
+		Map<String, Map<Pair<String, String>, Double>> attrRL = LearningModelsExisting
+				.initAttraction(playerHitIds);
+		Map<String, Map<Pair<String, String>, Double>> attrSFP = LearningModelsExisting
+				.initAttraction(playerHitIds);
+		Map<String, Map<Pair<String, String>, Double>> attrEWA = LearningModelsExisting
+				.initAttraction(playerHitIds);
+		double[] primRL = new double[playerHitIds.length * 4];
+		double[] primSFP = new double[playerHitIds.length * 4];
+		double[] primEWA = new double[playerHitIds.length * 4];
+		double[][] expectedPayoffs = LearningModelsExisting
+				.getExpectedPayoffTable();
+
+		Random rnd = new Random(11);
+		double experience = Utils.eps;
+		for (int step = 0; step < 50; step++) {
+			int j = rnd.nextInt(playerHitIds.length);
+			String signalPrev = signalList[rnd.nextInt(2)];
+			String reportPrev = signalList[rnd.nextInt(2)];
+			String signalCurr = signalList[rnd.nextInt(2)];
+			double rewardPrev = rnd.nextDouble() * 1.5;
+			int numMMPrev = rnd.nextInt(playerHitIds.length);
+			int reportIndex = LearningModelsExisting.toIndex(reportPrev);
+
+			LearningModelsExisting.updateAttractionsRL(attrRL,
+					playerHitIds[j], 0.7, signalPrev, reportPrev, rewardPrev);
+			LearningModelsExisting.updateAttractionsRL(primRL, j, 0.7,
+					reportIndex, rewardPrev);
+			LearningModelsExisting.updateAttractionsSFP(attrSFP, experience,
+					playerHitIds[j], 0.4, reportPrev, rewardPrev, numMMPrev);
+			LearningModelsExisting.updateAttractionsSFP(primSFP, experience,
+					j, 0.4, reportIndex, rewardPrev, expectedPayoffs,
+					numMMPrev);
+			LearningModelsExisting.updateAttractionsEWA(attrEWA, experience,
+					playerHitIds[j], 0.4, 0.6, 0.7, signalPrev, reportPrev,
+					rewardPrev, signalCurr, numMMPrev);
+			LearningModelsExisting.updateAttractionsEWA(primEWA, experience,
+					j, 0.4, 0.6, 0.7, reportIndex, rewardPrev,
+					expectedPayoffs, numMMPrev);
+			experience = LearningModelsExisting.updateExperience(experience,
+					0.4);
+
+			for (boolean considerSignal : new boolean[] { true, false }) {
+				int signalIndex = LearningModelsExisting.toIndex(signalCurr);
+				assertEquals(
+						LearningModelsExisting.getStrategy(attrRL,
+								playerHitIds[j], considerSignal, 3,
+								signalCurr, signalPrev).get("MM"),
+						LearningModelsExisting.getMMProb(primRL, j,
+								considerSignal, 3, signalIndex), 0.0);
+				assertEquals(
+						LearningModelsExisting.getStrategy(attrSFP,
+								playerHitIds[j], considerSignal, 3,
+								signalCurr, signalPrev).get("MM"),
+						LearningModelsExisting.getMMProb(primSFP, j,
+								considerSignal, 3, signalIndex), 0.0);
+				assertEquals(
+						LearningModelsExisting.getStrategy(attrEWA,
+								playerHitIds[j], considerSignal, 3,
+								signalCurr, signalPrev).get("MM"),
+						LearningModelsExisting.getMMProb(primEWA, j,
+								considerSignal, 3, signalIndex), 0.0);
+			}
+		}
+	}
+
+	/**
+	 * n games of the RL, SFP or EWA model with the given parameters
+	 */
+	static List<Game> simulateGames(String model, Map<String, Object> params,
+			int n) {
+		List<Game> games = new ArrayList<Game>();
+		for (int i = 0; i < n; i++) {
+			Game game = new Game();
+			game.id = String.format("%d", i);
+			if (model.equals("EWA"))
+				game.rounds = LearningModelsTest.simulateEWA(params);
+			else if (model.equals("SFP"))
+				game.rounds = LearningModelsTest.simulateSFP(params);
+			else
+				game.rounds = LearningModelsTest.simulateRL(params);
+			game.playerHitIds = new String[LogReader.expSet.numPlayers];
+			for (int j = 0; j < LogReader.expSet.numPlayers; j++) {
+				game.playerHitIds[j] = String.format("%d", j);
+			}
+			games.add(game);
+		}
+		return games;
+	}
+
+	/**
+	 * Run task under the current context with other fit settings
+	 */
+	static <T> T callWith(FitSettings settings, Callable<T> task)
+			throws Exception {
+		return AnalysisContext.current().withSettings(settings).call(task);
+	}
+
+	@Test
+	public void testExpiredDeadlineSkipsWarmStart() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+		final List<Game> games = simulateGames("RL", params, 20);
+
+		// the full data is the training set
+		Experiment experiment = new Experiment();
+		experiment.numPlayers = LogReader.expSet.numPlayers;
+		experiment.numRounds = LogReader.expSet.numRounds;
+		experiment.priorProbs = LogReader.expSet.priorProbs;
+		experiment.worlds = LogReader.expSet.worlds;
+		experiment.games = games;
+		FitSettings settings = new FitSettings();
+		settings.warmStart = true;
+		final AnalysisContext context = new AnalysisContext(
+				PredLkAnalysis.treatment, PredLkAnalysis.rootDir, experiment,
+				0, Arrays.asList("RLS")).withSettings(settings);
+		Callable<double[]> fullDataFit = new Callable<double[]>() {
+			public double[] call() {
+				return PredLkAnalysis.getFullDataFit("RLS");
+			}
+		};
+		Callable<double[]> warmStart = new Callable<double[]>() {
+			public double[] call() {
+				return PredLkAnalysis.getWarmStart("RLS");
+			}
+		};
+		try {
+			PredLkAnalysis.fullDataFits.clear();
+
+			// a full data fit cut short is not used as a warm start
+			settings.deadline = new Deadline(0);
+			AnalysisContext expired = context.withSettings(settings);
+			assertNull(expired.call(fullDataFit));
+			assertTrue(PredLkAnalysis.fullDataFits.isEmpty());
+
+			// nor is one fitted before the budget ran out
+			double[] fullData = context.call(fullDataFit);
+			assertNotNull(fullData);
+			assertSame(fullData, context.call(warmStart));
+			assertNull(expired.call(warmStart));
+			double[] point = expired.call(new Callable<double[]>() {
+				public double[] call() {
+					return PredLkAnalysis.estimatePoint("RLS", games);
+				}
+			});
+			assertNotNull(point);
+		} finally {
+			PredLkAnalysis.fullDataFits.clear();
+		}
+	}
+
+	@Test
+	public void testCMAESWarmStartRestarts() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+		final List<Game> games = simulateGames("RL", params, 20);
+		LogLkFunctionApache function = new LogLkFunctionApache(games, "RLS");
+		final double[] warmStart = (double[]) LearningModelsExisting
+				.getBounds("RLS").get("ub");
+		Callable<double[]> fit = new Callable<double[]>() {
+			public double[] call() {
+				return LearningModelsExisting.estimateUsingCMAES(games, "RLS",
+						warmStart, null);
+			}
+		};
+
+		FitSettings settings = new FitSettings();
+		settings.warmStartRestarts = 0;
+		double[] warmOnly = callWith(settings, fit);
+
+		// the first search is the same, so the restarts can only improve on
+		// it
+		settings.warmStartRestarts = 2;
+		double[] restarted = callWith(settings, fit);
+		assertTrue(function.value(restarted) >= function.value(warmOnly));
+	}
+
+	@Test
+	public void testSimplexKeepsBestPointAtMaxEval() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+		List<Game> games = simulateGames("RL", params, 20);
+
+		int maxEval = LearningModelsCustom.simplexMaxEval;
+		try {
+			// far too few evaluations for any restart to converge
+			LearningModelsCustom.simplexMaxEval = 20;
+			double[] point = LearningModelsCustom.estimateUsingSimplex("s1",
+					games);
+			assertFalse(LearningModelsCustom.oConstraintsViolated("s1", point));
+			double loglk = LearningModelsCustom.computeLogLk("s1",
+					LearningModelsCustom.pointToMap("s1", point), games);
+			assertTrue(loglk > Double.NEGATIVE_INFINITY);
+		} finally {
+			LearningModelsCustom.simplexMaxEval = maxEval;
+		}
+	}
+
+	@Test
+	public void testBatchLogLkMatchesScalar() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("rho", 0.4);
+		params.put("phi", 0.7);
+		params.put("delta", 0.6);
+		params.put("lambda", 3.0);
+
+		List<Game> games = simulateGames("EWA", params, 20);
+		EncodedGames data = new EncodedGames(games);
+
+		double[][] points = new double[][] { { 0.2, 0.9, 0.1, 2 },
+				{ 0.8, 0.3, 0.5, 7 }, { 0.5, 0.5, 0.9, 10 } };
+		for (boolean considerSignal : new boolean[] { true, false }) {
+			String suffix = considerSignal ? "S" : "NS";
+			double[] rl = LearningModelsExisting.computeLogLkBatch("RL"
+					+ suffix, twoParams(points), data);
+			double[] sfp = LearningModelsExisting.computeLogLkBatch("SFP"
+					+ suffix, twoParams(points), data);
+			double[] ewa = LearningModelsExisting.computeLogLkBatch("EWA"
+					+ suffix, points, data);
+
+			for (int k = 0; k < points.length; k++) {
+				params.put("considerSignal", considerSignal);
+				params.put("rho", points[k][0]);
+				params.put("phi", points[k][1]);
+				params.put("delta", points[k][2]);
+				params.put("lambda", points[k][3]);
+				assertEquals(ewa[k],
+						LearningModelsExisting.computeLogLkEWA(params, games),
+						0.0);
+
+				params.put("phi", points[k][0]);
+				params.put("rho", points[k][0]);
+				assertEquals(rl[k],
+						LearningModelsExisting.computeLogLkRL(params, games),
+						0.0);
+				assertEquals(sfp[k],
+						LearningModelsExisting.computeLogLkSFP(params, games),
+						0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testGradientMatchesFiniteDifferences() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", false);
+		params.put("rho", 0.4);
+		params.put("phi", 0.7);
+		params.put("delta", 0.6);
+		params.put("lambda", 3.0);
+
+		List<Game> games = simulateGames("EWA", params, 20);
+		EncodedGames data = new EncodedGames(games);
+
+		String[] models = new String[] { "RLS", "RLNS", "SFPS", "SFPNS",
+				"EWAS", "EWANS" };
+		for (String model : models) {
+			double[] point = model.startsWith("EWA") ? new double[] { 0.3,
+					0.8, 0.5, 4 } : new double[] { 0.6, 2.5 };
+			double[] gradient = new double[point.length];
+			double loglk = LearningModelsExisting.computeLogLkGradient(model,
+					point, data, gradient, null);
+			assertEquals(LearningModelsExisting.computeLogLkBatch(model,
+					new double[][] { point }, data)[0], loglk, 0.0);
+
+			double h = 1e-6;
+			for (int d = 0; d < point.length; d++) {
+				double[] plus = point.clone();
+				double[] minus = point.clone();
+				plus[d] += h;
+				minus[d] -= h;
+				double[] values = LearningModelsExisting.computeLogLkBatch(
+						model, new double[][] { plus, minus }, data);
+				double numeric = (values[0] - values[1]) / (2 * h);
+				assertEquals(numeric, gradient[d],
+						1e-5 * Math.max(1, Math.abs(numeric)));
+			}
+		}
+	}
+
+	@Test
+	public void testStrategyMixtureEM() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+
+		List<Game> games = simulateGames("RL", params, 50);
+
+		for (String model : new String[] { "s1", "s4", "s5" }) {
+			StrategyMixtureEM em = new StrategyMixtureEM(model, games);
+			double[] point = LearningModelsCustom.getRandomPoint(model);
+			em.project(point);
+
+			double[] next = new double[point.length];
+			double previous = Double.NEGATIVE_INFINITY;
+			for (int t = 0; t < 20; t++) {
+				double loglk = em.update(point, next);
+				assertEquals(LearningModelsCustom.computeLogLk(model,
+						LearningModelsCustom.pointToMap(model, point), games),
+						loglk, 1e-8 * Math.abs(loglk));
+				assertTrue(loglk >= previous - 1e-8);
+				assertFalse(LearningModelsCustom.oConstraintsViolated(model,
+						next));
+				previous = loglk;
+				point = next.clone();
+			}
+		}
+	}
+
+	@Test
+	public void testLikelihoodSurface() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+
+		List<Game> games = simulateGames("RL", params, 20);
+
+		LikelihoodSurface surface = new LikelihoodSurface("RLS", games,
+				new double[] { 0.5, 2.0 });
+		surface.addAxis("phi", LikelihoodSurface.range(0, 1, 5));
+		surface.addAxis("lambda", LikelihoodSurface.range(1, 10, 4));
+		double[][] rows = surface.compute();
+		assertEquals(20, rows.length);
+		for (double[] row : rows) {
+			Map<String, Object> point = PredLkAnalysis.pointToParams("RLS",
+					new double[] { row[0], row[1] });
+			assertEquals(LearningModelsExisting.computeLogLkRL(point, games),
+					row[2], 1e-8 * Math.abs(row[2]));
+		}
+		assertEquals(0.25, rows[5][0], 0.0);
+		assertEquals(4.0, rows[5][1], 0.0);
+
+		// profiling over the strategy weights can only improve on the base
+		double[] base = new double[] { 0.2, 0.2, 0.2, 0.2, 0.1 };
+		LikelihoodSurface fixed = new LikelihoodSurface("s1", games, base);
+		fixed.addAxis("eps", LikelihoodSurface.range(0.05, 0.45, 3));
+		double[][] fixedRows = fixed.compute();
+		LikelihoodSurface profile = new LikelihoodSurface("s1", games, base);
+		profile.addAxis("eps", LikelihoodSurface.range(0.05, 0.45, 3));
+		profile.profile = true;
+		double[][] profileRows = profile.compute();
+		for (int r = 0; r < 3; r++) {
+			assertEquals(fixedRows[r][4], profileRows[r][4], 0.0);
+			assertTrue(profileRows[r][5] >= fixedRows[r][5]);
+			assertFalse(LearningModelsCustom.oConstraintsViolated("s1",
+					Arrays.copyOf(profileRows[r], 5)));
+		}
+	}
+
+	@Test
+	public void testLeaderboardScoresFromGameLogLks() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+		List<Game> games = simulateGames("RL", params, 23);
+		Folds partition = Folds.inOrder(games, 5);
+
+		// outside a context there is no deadline or model cache
+		Leaderboard leaderboard = new Leaderboard(Arrays.asList("RLS"),
+				partition, Arrays.asList(0, 1), -100);
+		leaderboard.numThreads = 1;
+		leaderboard.run();
+
+		assertEquals(2, leaderboard.entries.size());
+		for (Leaderboard.Entry entry : leaderboard.entries) {
+			List<Game> trainingSet = partition.trainingSet(entry.foldIndex);
+			Map<String, Object> fit = PredLkAnalysis.estimateParams("RLS",
+					trainingSet);
+			double trainingLogLk = PredLkAnalysis.getTestLogLk("RLS", fit,
+					trainingSet);
+			double testLogLk = PredLkAnalysis.getTestLogLk("RLS", fit,
+					partition.testSet(entry.foldIndex));
+			assertEquals(trainingLogLk, entry.trainingLogLk,
+					1e-10 * Math.abs(trainingLogLk));
+			assertEquals(testLogLk, entry.testLogLk,
+					1e-10 * Math.abs(testLogLk));
+		}
+	}
+
+	@Test
+	public void testGameLogLksAddUp() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+
+		List<Game> games = simulateGames("RL", params, 20);
+
+		Folds folds = Folds.inOrder(games, 4);
+		for (String model : new String[] { "RLS", "s1" }) {
+			double[] point = model.equals("RLS") ? new double[] { 0.3, 4.0 }
+					: new double[] { 0.3, 0.2, 0.2, 0.1, 0.1 };
+			Map<String, Object> pointParams = PredLkAnalysis.pointToParams(
+					model, point);
+			GameLogLks contributions = GameLogLks.get(model, point, games);
+			double total = PredLkAnalysis.getTestLogLk(model, pointParams,
+					games);
+			assertEquals(total, contributions.getTotal(),
+					1e-10 * Math.abs(total));
+			assertTrue(contributions == GameLogLks.get(model, point, games));
+
+			double[] rest = contributions.leaveOneOut();
+			for (int g = 0; g < games.size(); g++) {
+				List<Game> others = new ArrayList<Game>(games);
+				others.remove(g);
+				double expected = PredLkAnalysis.getTestLogLk(model,
+						pointParams, others);
+				assertEquals(expected, rest[g], 1e-10 * Math.abs(expected));
+			}
+
+			double[] test = contributions.testLogLks(folds);
+			double[] training = contributions.trainingLogLks(folds);
+			for (int f = 0; f < 4; f++) {
+				double expectedTest = PredLkAnalysis.getTestLogLk(model,
+						pointParams, folds.testSet(f));
+				double expectedTraining = PredLkAnalysis.getTestLogLk(model,
+						pointParams, folds.trainingSet(f));
+				assertEquals(expectedTest, test[f],
+						1e-10 * Math.abs(expectedTest));
+				assertEquals(expectedTraining, training[f],
+						1e-10 * Math.abs(expectedTraining));
+			}
+		}
+	}
+
+	@Test
+	public void testWeightsMatchRepeatedGames() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("considerSignal", true);
+		params.put("phi", 0.5);
+		params.put("lambda", 2.0);
+
+		List<Game> games = simulateGames("RL", params, 20);
+
+		ResampledGames sample = new ResampledGames(games,
+				ResampledGames.drawCounts(games.size(), new Random(11)));
+		List<Game> repeated = new ArrayList<Game>(sample);
+
+		double[] point = new double[] { 0.3, 4.0 };
+		double weighted = LearningModelsExisting.computeLogLkBatch("RLS",
+				new double[][] { point }, new EncodedGames(sample))[0];
+		double expected = LearningModelsExisting.computeLogLkRL(
+				PredLkAnalysis.pointToParams("RLS", point), repeated);
+		assertEquals(expected, weighted, 1e-10 * Math.abs(expected));
+
+		double[] gradient = new double[2];
+		double[] expectedGradient = new double[2];
+		LearningModelsExisting.computeLogLkGradient("RLS", point,
+				new EncodedGames(sample), gradient, null);
+		LearningModelsExisting.computeLogLkGradient("RLS", point,
+				new EncodedGames(repeated), expectedGradient, null);
+		for (int d = 0; d < 2; d++) {
+			assertEquals(expectedGradient[d], gradient[d],
+					1e-10 * Math.abs(expectedGradient[d]));
+		}
+
+		double[] s4 = new double[] { 0.3, 0.2, 0.2, 0.1, 0.1, 0.7, 0.4 };
+		StrategyMixtureEM em = new StrategyMixtureEM("s4", sample);
+		expected = new StrategyMixtureEM("s4", repeated).getLogLikelihood(s4);
+		assertEquals(expected, em.getLogLikelihood(s4),
+				1e-10 * Math.abs(expected));
+		double[] next = new double[s4.length];
+		double[] expectedNext = new double[s4.length];
+		em.update(s4, next);
+		new StrategyMixtureEM("s4", repeated).update(s4, expectedNext);
+		for (int d = 0; d < s4.length; d++) {
+			assertEquals(expectedNext[d], next[d], 1e-10);
+		}
+	}
+
+	static double[][] twoParams(double[][] points) {
+		double[][] result = new double[points.length][];
+		for (int k = 0; k < points.length; k++) {
+			result[k] = new double[] { points[k][0], points[k][3] };
+		}
+		return result;
+	}
+
 	@Test
 	public void testS1() {
 		testModel("s1", 3);
@@ -643,10 +1138,10 @@ public class LearningModelsTest {
 
 		double[] point = null;
 		if (considerSignal)
-			point = LearningModelsExisting.estimateUsingApacheOptimizer(games,
+			point = LearningModelsExisting.estimateUsingCMAES(games,
 					"RLS");
 		else
-			point = LearningModelsExisting.estimateUsingApacheOptimizer(games,
+			point = LearningModelsExisting.estimateUsingCMAES(games,
 					"RLNS");
 		System.out.printf("Actual parameters: phi=%.2f lambda=%.2f, \n",
 				point[0], point[1]);
@@ -676,10 +1171,10 @@ public class LearningModelsTest {
 
 		double[] point = null;
 		if (considerSignal)
-			point = LearningModelsExisting.estimateUsingApacheOptimizer(games,
+			point = LearningModelsExisting.estimateUsingCMAES(games,
 					"SFPS");
 		else
-			point = LearningModelsExisting.estimateUsingApacheOptimizer(games,
+			point = LearningModelsExisting.estimateUsingCMAES(games,
 					"SFPNS");
 		System.out.printf("Actual parameters: rho=%.2f lambda=%.2f, \n",
 				point[0], point[1]);
@@ -709,10 +1204,10 @@ public class LearningModelsTest {
 		boolean considerSignal = (Boolean) params.get("considerSignal");
 		double[] point = null;
 		if (considerSignal)
-			point = LearningModelsExisting.estimateUsingApacheOptimizer(games,
+			point = LearningModelsExisting.estimateUsingCMAES(games,
 					"EWAS");
 		else
-			point = LearningModelsExisting.estimateUsingApacheOptimizer(games,
+			point = LearningModelsExisting.estimateUsingCMAES(games,
 					"EWANS");
 		System.out
 				.printf("Actual parameters: rho=%.2f, phi=%.2f, delta=%.2f, lambda=%.2f\n",
@@ -0,0 +1,514 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.SimpleValueChecker;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+
+/**
+ * Log likelihood of a model over a grid of one or two of its parameters,
+ * such as eps x delta for s3-abs or phi x lambda for RLS.
+ *
+ * The parameters that are not on the grid are held at a base point, or with
+ * profile set, maximized at every grid point: by BoundedLBFGS with the
+ * analytic gradient for RL, SFP and EWA, and by Nelder-Mead over
+ * UnconstrainedParams for the custom models. Each profile maximization
+ * starts from the optimum at the previous point of the same row.
+ *
+ * The rows of the grid, one for each value of the first parameter, are
+ * evaluated in parallel. The games are encoded once: RL, SFP and EWA
+ * evaluate a whole row in one pass of computeLogLkBatch over EncodedGames,
+ * and s1, s4 and s5 use the per-player counts of StrategyMixtureEM. s2 and
+ * s3 go through LearningModelsCustom.computeLogLk, so their surfaces take
+ * much longer.
+ *
+ * Each result row holds the full point followed by the log likelihood, and
+ * is written as soon as all the rows before it are done, either as CSV with
+ * a header or in binary: the number of columns as an int, the column names
+ * as UTF strings, then the rows as doubles.
+ */
+public class LikelihoodSurface {
+
+	final String model;
+	final List<Game> games;
+	final String[] paramNames;
+	final double[] base;
+
+	// indices into the point of the parameters on the grid, and their values
+	final List<Integer> axisIndices = new ArrayList<Integer>();
+	final List<double[]> axisValues = new ArrayList<double[]>();
+
+	// maximize over the parameters that are not on the grid
+	boolean profile = false;
+	// evaluations of each Nelder-Mead profile maximization, after which it
+	// gives the best point it evaluated
+	int profileMaxEval = 10000;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+
+	// per-model precomputed data, built on first use
+	EncodedGames data;
+	StrategyMixtureEM mixture;
+
+	/**
+	 * @param base
+	 *            values of the parameters that are not on the grid, or the
+	 *            starting point of the profile maximization, in the layout of
+	 *            PredLkAnalysis.pointToParams
+	 */
+	public LikelihoodSurface(String model, List<Game> games, double[] base) {
+		this.model = model;
+		this.games = games;
+		this.paramNames = getParamNames(model);
+		if (base.length != paramNames.length)
+			throw new IllegalArgumentException(String.format(
+					"%s has %d parameters, got %d", model,
+					paramNames.length, base.length));
+		this.base = base.clone();
+	}
+
+	static String[] getParamNames(String model) {
+		if (model.equals("RLS") || model.equals("RLNS"))
+			return new String[] { "phi", "lambda" };
+		if (model.equals("SFPS") || model.equals("SFPNS"))
+			return new String[] { "rho", "lambda" };
+		if (model.equals("EWAS") || model.equals("EWANS"))
+			return new String[] { "rho", "phi", "delta", "lambda" };
+		if (model.equals("s1"))
+			return new String[] { "probTR", "probMM", "probGB", "probOP",
+					"eps" };
+		if (model.equals("s4"))
+			return new String[] { "probTR", "probMM", "probGB", "probOP",
+					"eps", "mmGivenMM", "mmGivenGB" };
+		if (model.equals("s5"))
+			return new String[] { "probTR", "probMM", "probGB", "probOP",
+					"eps", "mmGivenMM", "mmGivenGB", "mmGivenMMForMM",
+					"mmGivenGBForMM" };
+		if (model.startsWith("s2"))
+			return new String[] { "probTR", "probMM", "probGB", "probOP",
+					"eps", "delta", "probRA" };
+		if (model.startsWith("s3"))
+			return new String[] { "probTR", "probMM", "probGB", "probOP",
+					"eps", "delta" };
+		throw new IllegalArgumentException("Unknown model " + model);
+	}
+
+	static boolean isExistingModel(String model) {
+		return model.startsWith("RL") || model.startsWith("SFP")
+				|| model.startsWith("EWA");
+	}
+
+	/**
+	 * numPoints evenly spaced values from lo to hi inclusive
+	 */
+	public static double[] range(double lo, double hi, int numPoints) {
+		double[] values = new double[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			values[i] = numPoints == 1 ? lo : lo + (hi - lo) * i
+					/ (numPoints - 1);
+		}
+		return values;
+	}
+
+	/**
+	 * Put a parameter on the grid. The first axis gives the rows and the
+	 * second, if any, the points within a row.
+	 */
+	public void addAxis(String paramName, double[] values) {
+		if (axisIndices.size() == 2)
+			throw new IllegalStateException("At most two axes");
+		int index = Arrays.asList(paramNames).indexOf(paramName);
+		if (index < 0)
+			throw new IllegalArgumentException(model + " has no parameter "
+					+ paramName);
+		if (axisIndices.contains(index))
+			throw new IllegalArgumentException(paramName
+					+ " is already an axis");
+		axisIndices.add(index);
+		axisValues.add(values.clone());
+	}
+
+	public String[] getColumnNames() {
+		String[] columns = Arrays.copyOf(paramNames, paramNames.length + 1);
+		columns[paramNames.length] = "loglk";
+		return columns;
+	}
+
+	/**
+	 * @return one row per grid point, with the point followed by the log
+	 *         likelihood
+	 */
+	public double[][] compute() {
+		final List<double[]> results = new ArrayList<double[]>();
+		try {
+			run(new RowSink() {
+				public void write(double[][] rows) {
+					results.addAll(Arrays.asList(rows));
+				}
+
+				public void close() {
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return results.toArray(new double[results.size()][]);
+	}
+
+	/**
+	 * Stream the surface to file, in binary if its name ends in .bin and as
+	 * CSV otherwise
+	 */
+	public void write(File file) throws IOException {
+		// before the sink creates the file, so bad input leaves no file
+		validate();
+		if (file.getName().endsWith(".bin"))
+			run(new BinarySink(file, getColumnNames()));
+		else
+			run(new CsvSink(file, getColumnNames()));
+	}
+
+	void run(RowSink sink) throws IOException {
+		ExecutorService executor = null;
+		try {
+			validate();
+			prepare();
+
+			final double[] rowValues = axisValues.get(0);
+			if (numThreads > 1)
+				executor = Executors.newFixedThreadPool(numThreads);
+			if (executor == null) {
+				for (int r = 0; r < rowValues.length; r++) {
+					sink.write(computeRow(rowValues[r]));
+				}
+				return;
+			}
+
+			List<Future<double[][]>> futures = new ArrayList<Future<double[][]>>();
+			for (int r = 0; r < rowValues.length; r++) {
+				final double rowValue = rowValues[r];
+				futures.add(executor.submit(new Callable<double[][]>() {
+					public double[][] call() {
+						return computeRow(rowValue);
+					}
+				}));
+			}
+			for (Future<double[][]> future : futures) {
+				sink.write(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+			sink.close();
+		}
+	}
+
+	/**
+	 * Check that the surface has axes and can be computed as set up
+	 */
+	void validate() {
+		if (axisIndices.isEmpty())
+			throw new IllegalStateException("No axes");
+		if (profile && !isExistingModel(model)) {
+			int[] strategyIndices = new UnconstrainedParams(model).strategyIndices;
+			for (int index : axisIndices) {
+				for (int s : strategyIndices) {
+					if (index == s)
+						throw new IllegalArgumentException(
+								"Cannot profile with a strategy probability on the grid: "
+										+ paramNames[index]);
+				}
+			}
+		}
+	}
+
+	void prepare() {
+		if (isExistingModel(model)) {
+			if (data == null)
+				data = new EncodedGames(games);
+		} else if (model.equals("s1") || model.equals("s4")
+				|| model.equals("s5")) {
+			if (mixture == null)
+				mixture = new StrategyMixtureEM(model, games);
+		}
+	}
+
+	double[][] computeRow(double rowValue) {
+		double[] colValues = axisValues.size() > 1 ? axisValues.get(1)
+				: new double[] { Double.NaN };
+		int rowIndex = axisIndices.get(0);
+		int colIndex = axisValues.size() > 1 ? axisIndices.get(1) : -1;
+
+		double[][] points = new double[colValues.length][];
+		for (int c = 0; c < colValues.length; c++) {
+			points[c] = base.clone();
+			points[c][rowIndex] = rowValue;
+			if (colIndex >= 0)
+				points[c][colIndex] = colValues[c];
+		}
+
+		double[] loglks;
+		if (profile)
+			loglks = profileRow(points);
+		else
+			loglks = evaluate(points);
+
+		double[][] rows = new double[points.length][];
+		for (int c = 0; c < points.length; c++) {
+			rows[c] = Arrays.copyOf(points[c], points[c].length + 1);
+			rows[c][points[c].length] = loglks[c];
+		}
+		return rows;
+	}
+
+	double[] evaluate(double[][] points) {
+		if (data != null)
+			return LearningModelsExisting.computeLogLkBatch(model, points,
+					data);
+
+		double[] loglks = new double[points.length];
+		for (int k = 0; k < points.length; k++) {
+			loglks[k] = evaluate(points[k]);
+		}
+		return loglks;
+	}
+
+	double evaluate(double[] point) {
+		if (data != null)
+			return LearningModelsExisting.computeLogLkBatch(model,
+					new double[][] { point }, data)[0];
+		if (mixture != null)
+			return mixture.getLogLikelihood(point);
+		return LearningModelsCustom.computeLogLk(model, point, games, null,
+				null);
+	}
+
+	/**
+	 * Maximize over the free parameters at each point of the row, in place,
+	 * starting each point from the optimum of the one before
+	 */
+	double[] profileRow(double[][] points) {
+		int dim = paramNames.length;
+		boolean[] onAxis = new boolean[dim];
+		for (int index : axisIndices) {
+			onAxis[index] = true;
+		}
+		int numFree = 0;
+		for (int i = 0; i < dim; i++) {
+			if (!onAxis[i])
+				numFree++;
+		}
+		int[] free = new int[numFree];
+		for (int i = 0, f = 0; i < dim; i++) {
+			if (!onAxis[i])
+				free[f++] = i;
+		}
+
+		double[] loglks = new double[points.length];
+		double[] previous = null;
+		for (int c = 0; c < points.length; c++) {
+			if (previous != null) {
+				for (int i : free) {
+					points[c][i] = previous[i];
+				}
+			}
+			if (numFree > 0) {
+				if (data != null)
+					profileExisting(points[c], free);
+				else
+					profileCustom(points[c], free);
+			}
+			loglks[c] = evaluate(points[c]);
+			previous = points[c];
+		}
+		return loglks;
+	}
+
+	void profileExisting(final double[] point, final int[] free) {
+		Map<String, Object> bounds = LearningModelsExisting.getBounds(model);
+		double[] lb = (double[]) bounds.get("lb");
+		double[] ub = (double[]) bounds.get("ub");
+
+		double[] start = new double[free.length];
+		double[] freeLB = new double[free.length];
+		double[] freeUB = new double[free.length];
+		for (int f = 0; f < free.length; f++) {
+			start[f] = point[free[f]];
+			freeLB[f] = lb[free[f]];
+			freeUB[f] = ub[free[f]];
+		}
+
+		GradientFunction function = new GradientFunction() {
+			double[] full = point.clone();
+			double[] fullGradient = new double[point.length];
+
+			public double valueAndGradient(double[] x, double[] gradient) {
+				for (int f = 0; f < free.length; f++) {
+					full[free[f]] = x[f];
+				}
+				double loglk = LearningModelsExisting.computeLogLkGradient(
+						model, full, data, fullGradient, null);
+				for (int f = 0; f < free.length; f++) {
+					gradient[f] = fullGradient[free[f]];
+				}
+				return loglk;
+			}
+		};
+		double[] optimum = new BoundedLBFGS().maximize(function, start,
+				freeLB, freeUB);
+		for (int f = 0; f < free.length; f++) {
+			point[free[f]] = optimum[f];
+		}
+	}
+
+	void profileCustom(double[] point, final int[] free) {
+		final UnconstrainedParams reparam = new UnconstrainedParams(model);
+		final double[] coords = reparam.fromPoint(point);
+		final double[] fixed = point.clone();
+
+		double[] start = new double[free.length];
+		for (int f = 0; f < free.length; f++) {
+			start[f] = coords[free[f]];
+		}
+
+		// remembers the best x, for a maximization cut off at profileMaxEval
+		final double[][] best = new double[][] { start.clone() };
+		final double[] bestValue = new double[] { Double.NEGATIVE_INFINITY };
+		MultivariateFunction function = new MultivariateFunction() {
+			public double value(double[] x) {
+				double value = evaluate(toPoint(x));
+				if (value > bestValue[0]) {
+					bestValue[0] = value;
+					best[0] = x.clone();
+				}
+				return value;
+			}
+
+			double[] toPoint(double[] x) {
+				double[] full = coords.clone();
+				for (int f = 0; f < free.length; f++) {
+					full[free[f]] = x[f];
+				}
+				double[] p = reparam.toPoint(full);
+				// the grid values exactly, not through the sigmoid
+				for (int index : axisIndices) {
+					p[index] = fixed[index];
+				}
+				return p;
+			}
+		};
+
+		SimplexOptimizer optimizer = new SimplexOptimizer(
+				new SimpleValueChecker(1e-10, 1e-10));
+		double[] x;
+		try {
+			PointValuePair optimum = optimizer.optimize(new MaxEval(
+					profileMaxEval), new ObjectiveFunction(function),
+					GoalType.MAXIMIZE, new InitialGuess(start),
+					new NelderMeadSimplex(free.length));
+			x = optimum.getPoint();
+		} catch (TooManyEvaluationsException e) {
+			x = best[0];
+		}
+
+		for (int f = 0; f < free.length; f++) {
+			coords[free[f]] = x[f];
+		}
+		double[] result = reparam.toPoint(coords);
+		for (int index : axisIndices) {
+			result[index] = fixed[index];
+		}
+		System.arraycopy(result, 0, point, 0, point.length);
+	}
+
+	/**
+	 * Receives the result rows in grid order
+	 */
+	interface RowSink extends Closeable {
+		void write(double[][] rows) throws IOException;
+	}
+
+	static class CsvSink implements RowSink {
+		final BufferedWriter writer;
+
+		CsvSink(File file, String[] columns) throws IOException {
+			writer = new BufferedWriter(new FileWriter(file));
+			for (int i = 0; i < columns.length; i++) {
+				writer.write(i == 0 ? columns[i] : "," + columns[i]);
+			}
+			writer.newLine();
+		}
+
+		public void write(double[][] rows) throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (double[] row : rows) {
+				line.setLength(0);
+				for (int i = 0; i < row.length; i++) {
+					if (i > 0)
+						line.append(',');
+					line.append(row[i]);
+				}
+				writer.write(line.toString());
+				writer.newLine();
+			}
+		}
+
+		public void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	static class BinarySink implements RowSink {
+		final DataOutputStream out;
+
+		BinarySink(File file, String[] columns) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			out.writeInt(columns.length);
+			for (String column : columns) {
+				out.writeUTF(column);
+			}
+		}
+
+		public void write(double[][] rows) throws IOException {
+			for (double[] row : rows) {
+				for (double value : row) {
+					out.writeDouble(value);
+				}
+			}
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+}
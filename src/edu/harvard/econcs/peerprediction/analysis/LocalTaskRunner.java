@@ -0,0 +1,471 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a campaign of cross validation folds on one machine with several
+ * worker JVMs, in place of the PBS array jobs of ResultsWritePBSScript.
+ *
+ * The campaign lives in one directory. The parent enumerates the (treatment,
+ * model, seed, fold) tasks into tasks.txt and starts the workers, which go
+ * through the list and claim a task by taking an exclusive lock on its file
+ * in locks/. A crashed worker's locks are released by the operating system,
+ * so its task is claimed again by another worker, and the parent starts a
+ * new worker in its place. Each attempt is recorded in attempts/, and a task
+ * is given up after maxAttempts.
+ *
+ * A finished task writes its result line to its own file in pplogs/, in
+ * the layout that ResultsGatherLogs reads, appends it to results.csv, then
+ * gets a marker in done/. Files are written to a temporary file and
+ * renamed, and the append is a single write under a file lock that is
+ * skipped if results.csv already has a line for the task, so a task that is
+ * interrupted at any point and run again leaves exactly one result in each.
+ * Running the parent again on the same directory resumes the campaign.
+ */
+public class LocalTaskRunner {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * One fold of one seed
+	 */
+	static class Task {
+		final String treatment;
+		final String model;
+		final long seed;
+		final int foldIndex;
+
+		Task(String treatment, String model, long seed, int foldIndex) {
+			this.treatment = treatment;
+			this.model = model;
+			this.seed = seed;
+			this.foldIndex = foldIndex;
+		}
+
+		/**
+		 * Same as the log file names of PredLkAnalysis.main
+		 */
+		String getId() {
+			return String.format("%s-%s-%d-%d", treatment, model, seed,
+					foldIndex);
+		}
+
+		String toLine() {
+			return String.format("%s %s %d %d", treatment, model, seed,
+					foldIndex);
+		}
+
+		static Task parse(String line) {
+			String[] parts = line.trim().split(" ");
+			return new Task(parts[0], parts[1], Long.parseLong(parts[2]),
+					Integer.parseInt(parts[3]));
+		}
+	}
+
+	final File dir;
+	int maxAttempts = 3;
+	// budget of each fit in minutes, or 0 for none
+	long budgetMinutes = 0;
+
+	// parsed treatments, kept for the life of the worker
+	final Map<String, AnalysisContext> contexts = new HashMap<String, AnalysisContext>();
+	// shared by the fits of every task
+	final LogLkCache logLkCache = new LogLkCache(100000);
+
+	public LocalTaskRunner(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Every fold of every seed of every model and treatment
+	 */
+	static List<Task> enumerate(List<String> treatments, List<String> models,
+			long firstSeed, int numSeeds, int numFolds) {
+		List<Task> tasks = new ArrayList<Task>();
+		for (String treatment : treatments) {
+			for (String model : models) {
+				for (long seed = firstSeed; seed < firstSeed + numSeeds; seed++) {
+					for (int f = 0; f < numFolds; f++) {
+						tasks.add(new Task(treatment, model, seed, f));
+					}
+				}
+			}
+		}
+		return tasks;
+	}
+
+	void writeTasks(List<Task> tasks) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Task task : tasks) {
+			sb.append(task.toLine()).append('\n');
+		}
+		writeAtomically(new File(dir, "tasks.txt"), sb.toString());
+	}
+
+	List<Task> readTasks() throws IOException {
+		List<Task> tasks = new ArrayList<Task>();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(
+				dir, "tasks.txt")));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty())
+					tasks.add(Task.parse(line));
+			}
+		} finally {
+			reader.close();
+		}
+		return tasks;
+	}
+
+	boolean isDone(Task task) {
+		return new File(new File(dir, "done"), task.getId()).exists();
+	}
+
+	int getNumAttempts(Task task) throws IOException {
+		File file = new File(new File(dir, "attempts"), task.getId());
+		if (!file.exists())
+			return 0;
+		return Files.readAllLines(file.toPath(), UTF8).size();
+	}
+
+	/**
+	 * Tasks that are neither done nor given up
+	 */
+	List<Task> getPending() throws IOException {
+		List<Task> pending = new ArrayList<Task>();
+		for (Task task : readTasks()) {
+			if (!isDone(task) && getNumAttempts(task) < maxAttempts)
+				pending.add(task);
+		}
+		return pending;
+	}
+
+	/**
+	 * Claim and run tasks until a pass over the list runs none. A task that
+	 * throws is tried again on the next pass, up to maxAttempts in all.
+	 */
+	public void work() throws IOException {
+		new File(dir, "locks").mkdirs();
+		boolean ranAny = true;
+		while (ranAny) {
+			ranAny = false;
+			for (Task task : readTasks()) {
+				if (isDone(task) || getNumAttempts(task) >= maxAttempts)
+					continue;
+				if (tryRun(task))
+					ranAny = true;
+			}
+		}
+	}
+
+	/**
+	 * @return whether this worker claimed the task
+	 */
+	boolean tryRun(Task task) throws IOException {
+		RandomAccessFile lockFile = new RandomAccessFile(new File(new File(
+				dir, "locks"), task.getId()), "rw");
+		FileChannel channel = lockFile.getChannel();
+		FileLock lock = null;
+		try {
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// held by another runner in this JVM
+				return false;
+			}
+			if (lock == null)
+				return false;
+			// it may have finished between the check and the lock
+			if (isDone(task) || getNumAttempts(task) >= maxAttempts)
+				return false;
+
+			append(new File(new File(dir, "attempts"), task.getId()),
+					String.format("%d\n", System.currentTimeMillis()));
+			System.out.println("Running " + task.getId());
+			try {
+				String result = run(task);
+				writeAtomically(new File(new File(dir, "pplogs"), task.getId()
+						+ ".log"), result);
+				appendOnce(new File(dir, "results.csv"), task.treatment + ","
+						+ task.model + "," + result, 4);
+				writeAtomically(new File(new File(dir, "done"),
+						task.getId()), result);
+			} catch (Exception e) {
+				System.err.println("Task " + task.getId() + " failed");
+				e.printStackTrace();
+			}
+			return true;
+		} finally {
+			if (lock != null)
+				lock.release();
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Run one fold as PredLkAnalysis.main would, in this JVM
+	 *
+	 * @return the result line
+	 */
+	String run(Task task) throws Exception {
+		return run(task, budgetMinutes);
+	}
+
+	/**
+	 * @param budgetMinutes
+	 *            budget of the fit in minutes, or 0 for none
+	 */
+	String run(final Task task, long budgetMinutes) throws Exception {
+		AnalysisContext context = setUp(task.treatment, task.seed,
+				budgetMinutes).forFit(task.model, task.foldIndex);
+		double[] loglks = context.call(
+				new Callable<double[]>() {
+					public double[] call() {
+						return PredLkAnalysis.getPredictiveLogLk(task.model,
+								task.foldIndex, new Random(task.seed),
+								PredLkAnalysis.getLogLkRandomModel());
+					}
+				});
+		return PredLkAnalysis.formatResult(task.seed, task.foldIndex,
+				loglks[0], loglks[1], context.settings.isBudgetExhausted());
+	}
+
+	/**
+	 * The treatment's context with seed, parsing it on first use, and the
+	 * settings of PredLkAnalysis.main for a fit with this seed. The budget
+	 * starts now.
+	 */
+	AnalysisContext setUp(String treatment, long seed, long budgetMinutes)
+			throws IOException {
+		AnalysisContext context;
+		synchronized (contexts) {
+			context = contexts.get(treatment);
+			if (context == null) {
+				String separator = System.getProperty("file.separator");
+				String rootDir = System.getProperty("user.home") + separator
+						+ "ppdata" + separator + treatment + separator;
+				context = AnalysisContext.load(treatment, rootDir, seed);
+				contexts.put(treatment, context);
+			}
+		}
+
+		FitSettings settings = new FitSettings();
+		settings.seed = seed;
+		settings.modelCache = new ModelCache(new File(context.rootDir
+				+ "modelCache"));
+		settings.logLkCache = logLkCache;
+		settings.deadline = budgetMinutes > 0 ? new Deadline(
+				budgetMinutes * 60 * 1000) : null;
+		return context.withSeed(seed).withSettings(settings);
+	}
+
+	/**
+	 * Start numWorkers worker JVMs and wait for the campaign to finish,
+	 * replacing workers that crash while tasks are pending
+	 *
+	 * @param jvmArgs
+	 *            options for the worker JVMs, such as -Xmx
+	 */
+	public void launch(int numWorkers, List<String> jvmArgs)
+			throws IOException, InterruptedException {
+		File logDir = new File(dir, "workers");
+		logDir.mkdirs();
+
+		int numStarted = 0;
+		Process[] workers = new Process[numWorkers];
+		for (int w = 0; w < numWorkers; w++) {
+			workers[w] = startWorker(numStarted++, jvmArgs, logDir);
+		}
+
+		int maxStarts = numWorkers * (maxAttempts + 1);
+		boolean running = true;
+		while (running) {
+			Thread.sleep(1000);
+			running = false;
+			for (int w = 0; w < numWorkers; w++) {
+				if (workers[w] == null)
+					continue;
+				int exitValue;
+				try {
+					exitValue = workers[w].exitValue();
+				} catch (IllegalThreadStateException e) {
+					running = true;
+					continue;
+				}
+				workers[w] = null;
+				if (exitValue != 0 && numStarted < maxStarts
+						&& !getPending().isEmpty()) {
+					System.err.printf("Worker exited with %d, starting another\n",
+							exitValue);
+					workers[w] = startWorker(numStarted++, jvmArgs, logDir);
+					running = true;
+				}
+			}
+		}
+
+		List<Task> tasks = readTasks();
+		int numDone = 0;
+		for (Task task : tasks) {
+			if (isDone(task))
+				numDone++;
+			else
+				System.err.println("Gave up on " + task.getId());
+		}
+		System.out.printf("%d of %d tasks done\n", numDone, tasks.size());
+	}
+
+	Process startWorker(int index, List<String> jvmArgs, File logDir)
+			throws IOException {
+		String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.addAll(jvmArgs);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(LocalTaskRunner.class.getName());
+		command.add("worker");
+		command.add(dir.getPath());
+		command.add(Integer.toString(maxAttempts));
+		command.add(Long.toString(budgetMinutes));
+
+		File log = new File(logDir, String.format("worker-%d.log", index));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(Redirect.appendTo(log));
+		return builder.start();
+	}
+
+	/**
+	 * Append text in a single write under an exclusive lock, so the lines of
+	 * concurrent workers never interleave
+	 */
+	static void append(File file, String text) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			FileLock lock = out.getChannel().lock();
+			try {
+				out.write(text.getBytes(UTF8));
+				out.flush();
+			} finally {
+				lock.release();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Append a line in a single write under an exclusive lock, unless the
+	 * file already has a line that starts with the same numKeyFields comma
+	 * separated fields
+	 */
+	static void appendOnce(File file, String line, int numKeyFields)
+			throws IOException {
+		String[] fields = line.split(",", numKeyFields + 1);
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < numKeyFields; i++) {
+			key.append(fields[i]).append(',');
+		}
+
+		file.getParentFile().mkdirs();
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = out.getChannel().lock();
+			try {
+				byte[] contents = new byte[(int) out.length()];
+				out.readFully(contents);
+				for (String existing : new String(contents, UTF8).split("\n")) {
+					if (existing.startsWith(key.toString()))
+						return;
+				}
+				out.write(line.getBytes(UTF8));
+			} finally {
+				lock.release();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static void writeAtomically(File file, String text) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", parent);
+		Files.write(temp.toPath(), text.getBytes(UTF8));
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static List<String> split(String list) {
+		return Arrays.asList(list.split(","));
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length >= 2 && args[0].equals("worker")) {
+			LocalTaskRunner worker = new LocalTaskRunner(new File(args[1]));
+			if (args.length > 2)
+				worker.maxAttempts = Integer.parseInt(args[2]);
+			if (args.length > 3)
+				worker.budgetMinutes = Long.parseLong(args[3]);
+			worker.work();
+			return;
+		}
+
+		if (args.length < 6) {
+			System.err.println("Please provide the arguments: campaign directory,"
+					+ " number of workers, treatments, models, first seed,"
+					+ " number of seeds and optionally a time budget in minutes"
+					+ " and options for the worker JVMs."
+					+ " Treatments and models are comma separated.");
+			System.exit(0);
+		}
+
+		LocalTaskRunner runner = new LocalTaskRunner(new File(args[0]));
+		int numWorkers = Integer.parseInt(args[1]);
+		List<Task> tasks = enumerate(split(args[2]), split(args[3]),
+				Long.parseLong(args[4]), Integer.parseInt(args[5]),
+				PredLkAnalysis.numFolds);
+		if (args.length > 6)
+			runner.budgetMinutes = Long.parseLong(args[6]);
+		List<String> jvmArgs = new ArrayList<String>();
+		for (int i = 7; i < args.length; i++) {
+			jvmArgs.add(args[i]);
+		}
+
+		for (String model : split(args[3])) {
+			if (!ModelRegistry.isRegistered(model))
+				throw new IllegalArgumentException("Unknown model " + model);
+		}
+
+		runner.dir.mkdirs();
+		runner.writeTasks(tasks);
+		System.out.printf("%d tasks, %d pending\n", tasks.size(), runner
+				.getPending().size());
+		runner.launch(numWorkers, jvmArgs);
+	}
+
+}
@@ -0,0 +1,104 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LocalTaskRunnerTest {
+
+	@Test
+	public void testWorkerRetriesAndGivesUp() throws IOException {
+		File dir = Files.createTempDirectory("campaign").toFile();
+		final LocalTaskRunner runner = new LocalTaskRunner(dir) {
+			int numCalls;
+
+			@Override
+			String run(Task task) {
+				numCalls++;
+				// s1 fails on the first try, s4 always
+				if (task.model.equals("s4")
+						|| (task.model.equals("s1") && numCalls == 1))
+					throw new IllegalStateException("crash");
+				return PredLkAnalysis.formatResult(task.seed,
+						task.foldIndex, -100, 5, false);
+			}
+		};
+		List<LocalTaskRunner.Task> tasks = LocalTaskRunner.enumerate(
+				Arrays.asList("prior2-basic"), Arrays.asList("s1", "s4"),
+				1000, 1, 2);
+		assertEquals(4, tasks.size());
+		runner.writeTasks(tasks);
+
+		// another worker holds the second fold of s1
+		LocalTaskRunner.Task held = tasks.get(1);
+		new File(dir, "locks").mkdirs();
+		RandomAccessFile lockFile = new RandomAccessFile(new File(new File(
+				dir, "locks"), held.getId()), "rw");
+		FileLock lock = lockFile.getChannel().lock();
+		runner.work();
+		assertFalse(runner.isDone(held));
+		lock.release();
+		lockFile.close();
+		runner.work();
+
+		assertTrue(runner.isDone(tasks.get(0)));
+		assertTrue(runner.isDone(held));
+		assertEquals(2, runner.getNumAttempts(tasks.get(0)));
+		assertFalse(runner.isDone(tasks.get(2)));
+		assertEquals(3, runner.getNumAttempts(tasks.get(2)));
+		assertTrue(runner.getPending().isEmpty());
+
+		List<String> log = Files.readAllLines(new File(new File(dir,
+				"pplogs"), "prior2-basic-s1-1000-0.log").toPath(),
+				LocalTaskRunner.UTF8);
+		assertEquals(Arrays.asList("1000,0,-100.00,5.00,false"), log);
+		assertEquals(2, Files.readAllLines(
+				new File(dir, "results.csv").toPath(), LocalTaskRunner.UTF8)
+				.size());
+	}
+
+	@Test
+	public void testRerunAfterCrashWritesOneResult() throws IOException {
+		File dir = Files.createTempDirectory("campaign").toFile();
+		LocalTaskRunner runner = new LocalTaskRunner(dir) {
+			@Override
+			String run(Task task) {
+				return PredLkAnalysis.formatResult(task.seed,
+						task.foldIndex, -100, 5, false);
+			}
+		};
+		LocalTaskRunner.Task task = new LocalTaskRunner.Task("prior2-basic",
+				"s1", 1000, 0);
+		runner.writeTasks(Arrays.asList(task));
+
+		// a worker that died after its appends but before the done marker
+		String result = PredLkAnalysis.formatResult(1000, 0, -100, 5, false);
+		LocalTaskRunner.writeAtomically(new File(new File(dir, "pplogs"),
+				task.getId() + ".log"), result);
+		LocalTaskRunner.appendOnce(new File(dir, "results.csv"),
+				"prior2-basic,s1," + result, 4);
+		LocalTaskRunner.appendOnce(new File(dir, "results.csv"),
+				"prior2-basic,s1,1000,1,-100.00,5.00,false\n", 4);
+		assertFalse(runner.isDone(task));
+
+		runner.work();
+		assertTrue(runner.isDone(task));
+		assertEquals(1, Files.readAllLines(new File(new File(dir, "pplogs"),
+				task.getId() + ".log").toPath(), LocalTaskRunner.UTF8).size());
+		assertEquals(Arrays.asList("prior2-basic,s1,1000,0,-100.00,5.00,false",
+				"prior2-basic,s1,1000,1,-100.00,5.00,false"), Files
+				.readAllLines(new File(dir, "results.csv").toPath(),
+						LocalTaskRunner.UTF8));
+	}
+
+}
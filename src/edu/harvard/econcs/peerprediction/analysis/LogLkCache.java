@@ -0,0 +1,126 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of log likelihoods, shared by the objective
+ * functions of the optimizers.
+ *
+ * An entry is keyed by the model, the identity of the training set and the
+ * exact bits of the point, so only bit-identical points hit. The least
+ * recently used entry is evicted once the cache is full. All methods are
+ * synchronized, so one cache can serve several optimizer threads.
+ */
+public class LogLkCache {
+
+	final int capacity;
+	final LinkedHashMap<Key, Double> entries;
+
+	long hits;
+	long misses;
+
+	public LogLkCache(final int capacity) {
+		this.capacity = capacity;
+		entries = new LinkedHashMap<Key, Double>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Identity of a training set, computed once per objective function. The
+	 * treatment is included because it changes the payoffs the existing
+	 * models see.
+	 */
+	public static String dataId(List<Game> games) {
+		return AnalysisContext.treatment() + "|" + ModelCache.fingerprint(games);
+	}
+
+	/**
+	 * @return the cached log likelihood, or null on a miss
+	 */
+	public synchronized Double get(String model, String dataId, double[] point) {
+		Double loglk = entries.get(new Key(model, dataId, point));
+		if (loglk == null)
+			misses++;
+		else
+			hits++;
+		return loglk;
+	}
+
+	public synchronized void put(String model, String dataId, double[] point,
+			double loglk) {
+		entries.put(new Key(model, dataId, point), loglk);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("hits=%d, misses=%d, hit rate=%.3f, size=%d/%d",
+				hits, misses, getHitRate(), entries.size(), capacity);
+	}
+
+	static final class Key {
+
+		final String model;
+		final String dataId;
+		final long[] bits;
+		final int hash;
+
+		Key(String model, String dataId, double[] point) {
+			this.model = model;
+			this.dataId = dataId;
+			bits = new long[point.length];
+			for (int i = 0; i < point.length; i++) {
+				bits[i] = Double.doubleToLongBits(point[i]);
+			}
+			hash = 31 * (31 * model.hashCode() + dataId.hashCode())
+					+ Arrays.hashCode(bits);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && model.equals(other.model)
+					&& dataId.equals(other.dataId)
+					&& Arrays.equals(bits, other.bits);
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LogLkCacheTest {
+
+	@Test
+	public void testHitsAndMisses() {
+		LogLkCache cache = new LogLkCache(10);
+		double[] point = new double[] { 0.1, 0.2 };
+
+		assertNull(cache.get("s1", "a", point));
+		cache.put("s1", "a", point, -3.5);
+		assertEquals(-3.5, cache.get("s1", "a", point.clone()), 0.0);
+
+		// a different model, training set or bit pattern misses
+		assertNull(cache.get("s4", "a", point));
+		assertNull(cache.get("s1", "b", point));
+		assertNull(cache.get("s1", "a", new double[] { 0.1, Math.nextUp(0.2) }));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		LogLkCache cache = new LogLkCache(2);
+		double[] a = new double[] { 1 };
+		double[] b = new double[] { 2 };
+		double[] c = new double[] { 3 };
+
+		cache.put("s1", "x", a, 1);
+		cache.put("s1", "x", b, 2);
+		cache.get("s1", "x", a);
+		cache.put("s1", "x", c, 3);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.get("s1", "x", a), 0.0);
+		assertNull(cache.get("s1", "x", b));
+		assertEquals(3, cache.get("s1", "x", c), 0.0);
+	}
+
+}
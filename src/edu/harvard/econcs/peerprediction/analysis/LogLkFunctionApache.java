@@ -1,21 +1,27 @@
 package edu.harvard.econcs.peerprediction.analysis;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import org.apache.commons.math3.analysis.MultivariateFunction;
-
-public class LogLkFunctionApache implements MultivariateFunction {
+public class LogLkFunctionApache implements MultiPointFunction,
+		GradientFunction {
 
 	List<Game> games;
+	EncodedGames data;
 	String model;
 	double penCoeff;
 
+	// shared cache of log likelihoods, or null
+	LogLkCache cache;
+	String dataId;
+
 	public LogLkFunctionApache(List<Game> g, String mod) {
 		games = g;
+		data = new EncodedGames(g);
 		model = mod;
 		penCoeff = 2;
+		cache = AnalysisContext.settings().logLkCache;
+		if (cache != null)
+			dataId = LogLkCache.dataId(g);
 	}
 
 	public void squarePenCoeff() {
@@ -24,59 +30,49 @@ public class LogLkFunctionApache implements MultivariateFunction {
 
 	@Override
 	public double value(double[] point) {
+		return values(new double[][] { point })[0];
+	}
 
-		Map<String, Object> params = new HashMap<String, Object>();
-		double loglk = Double.NEGATIVE_INFINITY;
-
-		if (model.equals("RLS")) {
-
-			params.put("considerSignal", true);
-			params.put("phi", 	 point[0]);
-			params.put("lambda", point[1]);
-			loglk = LearningModelsExisting.computeLogLkRL(params, games);
-
-		} else if (model.equals("RLNS")) {
-
-			params.put("considerSignal", false);
-			params.put("phi", 	 point[0]);
-			params.put("lambda", point[1]);
-			loglk =  LearningModelsExisting.computeLogLkRL(params, games);
-
-		} else if (model.equals("SFPS")) {
-
-			params.put("considerSignal", true);
-			params.put("rho", 	 point[0]);
-			params.put("lambda", point[1]);
-			loglk = LearningModelsExisting.computeLogLkSFP(params, games);
-
-		} else if (model.equals("SFPNS")) {
-
-			params.put("considerSignal", false);
-			params.put("rho", 	 point[0]);
-			params.put("lambda", point[1]);
-			loglk = LearningModelsExisting.computeLogLkSFP(params, games);
-
-		} else if (model.equals("EWAS")) {
-
-			params.put("considerSignal", true);
-			params.put("rho", 	 point[0]);
-			params.put("phi", 	 point[1]);
-			params.put("delta",  point[2]);
-			params.put("lambda", point[3]);
-			loglk =  LearningModelsExisting.computeLogLkEWA(params, games);
-
-		} else if (model.equals("EWANS")) {
-
-			params.put("considerSignal", false);
-			params.put("rho", 	 point[0]);
-			params.put("phi", 	 point[1]);
-			params.put("delta",  point[2]);
-			params.put("lambda", point[3]);
-			loglk = LearningModelsExisting.computeLogLkEWA(params, games);
+	/**
+	 * Evaluate several points, such as one generation of CMA-ES, in a
+	 * single pass over the games. Only the points that miss the cache are
+	 * evaluated.
+	 */
+	public double[] values(double[][] points) {
+		if (cache == null)
+			return LearningModelsExisting.computeLogLkBatch(model, points,
+					data);
+
+		double[] loglks = new double[points.length];
+		int[] missing = new int[points.length];
+		int numMissing = 0;
+		for (int p = 0; p < points.length; p++) {
+			Double cached = cache.get(model, dataId, points[p]);
+			if (cached == null)
+				missing[numMissing++] = p;
+			else
+				loglks[p] = cached;
+		}
+		if (numMissing == 0)
+			return loglks;
 
+		double[][] missingPoints = new double[numMissing][];
+		for (int m = 0; m < numMissing; m++) {
+			missingPoints[m] = points[missing[m]];
+		}
+		double[] computed = LearningModelsExisting.computeLogLkBatch(model,
+				missingPoints, data);
+		for (int m = 0; m < numMissing; m++) {
+			loglks[missing[m]] = computed[m];
+			cache.put(model, dataId, missingPoints[m], computed[m]);
 		}
+		return loglks;
+	}
 
-		return loglk;
+	@Override
+	public double valueAndGradient(double[] point, double[] gradient) {
+		return LearningModelsExisting.computeLogLkGradient(model, point,
+				data, gradient, null);
 	}
 
 }
@@ -12,10 +12,34 @@ public class LogLkFunctionCobyla implements Calcfc {
 	String model;
 	double penCoeff;
 
+	// shared cache of the log likelihood before penalty terms, or null
+	LogLkCache cache;
+	String dataId;
+
+	// races the restarts of estimateUsingCobyla, or null
+	RestartRacer racer;
+
+	// best feasible point evaluated so far, returned if the deadline
+	// stops the optimizer
+	Deadline deadline;
+	double[] bestPoint;
+	double bestLogLk = Double.NEGATIVE_INFINITY;
+
 	public LogLkFunctionCobyla(List<Game> g, String mod) {
 		games = g;
 		model = mod;
 		penCoeff = 2;
+		cache = AnalysisContext.settings().logLkCache;
+		if (cache != null)
+			dataId = LogLkCache.dataId(g);
+	}
+
+	/**
+	 * Log likelihood of a custom model at point, without penalty terms
+	 */
+	public double logLk(double[] point) {
+		return LearningModelsCustom.computeLogLk(model, point, games, cache,
+				dataId);
 	}
 
 	/**
@@ -25,6 +49,9 @@ public class LogLkFunctionCobyla implements Calcfc {
 	@Override
 	public double Compute(int n, int m, double[] point, double[] con) {
 
+		if (bestPoint != null && deadline != null && deadline.isExpired())
+			throw new Deadline.ExpiredException();
+
 		Map<String, Object> params = new HashMap<String, Object>();
 		double loglk = Double.NEGATIVE_INFINITY;
 			
@@ -54,8 +81,7 @@ public class LogLkFunctionCobyla implements Calcfc {
 			con[13] = point[8] - 0.5;
 			con[14] = 1.0 - point[8];
 			
-			params = LearningModelsCustom.pointToMap(model, point);
-			loglk = LearningModelsCustom.computeLogLk(model, params, games);
+			loglk = logLk(point);
 			loglk = oAddPenaltyTerms(model, point, loglk);
 			
 		} else if (model.equals("s4")) {
@@ -79,8 +105,7 @@ public class LogLkFunctionCobyla implements Calcfc {
 			
 			con[10] = 1.0 - point[0] - point[1] - point[2] - point[3];
 						
-			params = LearningModelsCustom.pointToMap(model, point);
-			loglk = LearningModelsCustom.computeLogLk(model, params, games);
+			loglk = logLk(point);
 			loglk = oAddPenaltyTerms(model, point, loglk);
 			
 		} else if (model.startsWith("s2")) {
@@ -100,8 +125,7 @@ public class LogLkFunctionCobyla implements Calcfc {
 			con[8] = point[6];
 			con[9] = 1.0 - point[0] - point[1] - point[2] - point[3] - point[6];
 
-			params = LearningModelsCustom.pointToMap(model, point);
-			loglk = LearningModelsCustom.computeLogLk(model, params, games);
+			loglk = logLk(point);
 			loglk = oAddPenaltyTerms(model, point, loglk);
 
 		} else if (model.startsWith("s3")) {
@@ -120,8 +144,7 @@ public class LogLkFunctionCobyla implements Calcfc {
 			
 			con[8] = 1.0 - point[0] - point[1] - point[2] - point[3];
 
-			params = LearningModelsCustom.pointToMap(model, point);
-			loglk = LearningModelsCustom.computeLogLk(model, params, games);
+			loglk = logLk(point);
 			loglk = oAddPenaltyTerms(model, point, loglk);
 			
 		} else if (model.equals("s1")) {
@@ -138,8 +161,7 @@ public class LogLkFunctionCobyla implements Calcfc {
 			con[5] = epsUB - point[4];
 			con[6] = 1.0 - point[0] - point[1] - point[2] - point[3];
 
-			params = LearningModelsCustom.pointToMap(model, point);
-			loglk = LearningModelsCustom.computeLogLk(model, params, games);
+			loglk = logLk(point);
 			loglk = oAddPenaltyTerms(model, point, loglk);
 
 		} else if (model.equals("SFPS")) {
@@ -170,6 +192,14 @@ public class LogLkFunctionCobyla implements Calcfc {
 
 		}
 
+		if (loglk > bestLogLk
+				&& !LearningModelsCustom.oConstraintsViolated(model, point)) {
+			bestLogLk = loglk;
+			bestPoint = point.clone();
+		}
+		if (racer != null)
+			racer.record(loglk);
+
 		return -loglk; // because we are doing minimization
 	}
 
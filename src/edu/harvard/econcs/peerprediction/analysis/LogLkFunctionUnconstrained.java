@@ -0,0 +1,58 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.List;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+/**
+ * Log likelihood of a custom model over the coordinates of
+ * UnconstrainedParams. Every coordinate vector is a feasible point, so there
+ * are no penalty terms.
+ */
+public class LogLkFunctionUnconstrained implements MultivariateFunction {
+
+	List<Game> games;
+	String model;
+	UnconstrainedParams params;
+
+	// keyed by the constrained point, so entries are shared with
+	// LogLkFunctionCobyla
+	LogLkCache cache;
+	String dataId;
+
+	// races the restarts of estimateUsingSimplex, or null
+	RestartRacer racer;
+
+	// best point evaluated since the last reset, returned if the deadline
+	// or the evaluation limit stops the optimizer
+	Deadline deadline;
+	double[] bestPoint;
+	double bestLogLk = Double.NEGATIVE_INFINITY;
+
+	public LogLkFunctionUnconstrained(List<Game> g, String mod) {
+		games = g;
+		model = mod;
+		params = new UnconstrainedParams(mod);
+		cache = AnalysisContext.settings().logLkCache;
+		if (cache != null)
+			dataId = LogLkCache.dataId(g);
+	}
+
+	@Override
+	public double value(double[] coords) {
+		if (bestPoint != null && deadline != null && deadline.isExpired())
+			throw new Deadline.ExpiredException();
+
+		double[] point = params.toPoint(coords);
+		double loglk = LearningModelsCustom.computeLogLk(model, point, games,
+				cache, dataId);
+		if (loglk > bestLogLk) {
+			bestLogLk = loglk;
+			bestPoint = point;
+		}
+		if (racer != null)
+			racer.record(loglk);
+		return loglk;
+	}
+
+}
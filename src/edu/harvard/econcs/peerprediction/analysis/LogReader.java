@@ -51,12 +51,6 @@ public class LogReader {
 	public static void parseDB() {
 		System.out.println("Parsing mysql database");
 
-		if (PredLkAnalysis.treatment.equals("prior2-constant")
-				|| PredLkAnalysis.treatment.equals("prior2-symmlowpay"))
-			MatchStrings.choseReport = MatchStrings.chosenReport1;
-		else
-			MatchStrings.choseReport = MatchStrings.chosenReport2;
-
 		expSet = new Experiment();
 		expSet.setId = setId;
 
@@ -85,7 +79,7 @@ public class LogReader {
 			// get total number of games
 			String numGameQuery = String
 					.format("select count(*) from experiment where setId='%s' and inputdata='%s'",
-							setId, PredLkAnalysis.treatment);
+							setId, AnalysisContext.treatment());
 			Statement numGameStmt = con.createStatement();
 			ResultSet numGameRS = numGameStmt.executeQuery(numGameQuery);
 			numGameRS.next();
@@ -95,7 +89,7 @@ public class LogReader {
 					.format("select * from experiment "
 							+ "where setId='%s' and inputdata = '%s' "
 							+ "and id not in (select distinct experimentId from round where results like '%%killed%%')",
-							setId, PredLkAnalysis.treatment);
+							setId, AnalysisContext.treatment());
 			expStmt = con.createStatement();
 			expRS = expStmt.executeQuery(expQuery);
 
@@ -177,10 +171,19 @@ public class LogReader {
 	}
 
 	public static void parseTextfile() throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(PredLkAnalysis.rootDir
+		expSet = readTextfile(PredLkAnalysis.treatment, PredLkAnalysis.rootDir);
+	}
+
+	/**
+	 * Parse rawData.txt in rootDir, as written by writeRawDataToFile,
+	 * without touching expSet
+	 */
+	static Experiment readTextfile(String treatment, String rootDir)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(rootDir
 				+ "rawData.txt"));
 
-		expSet = new Experiment();
+		Experiment expSet = new Experiment();
 		expSet.setId = setId;
 
 		String str = reader.readLine();
@@ -244,8 +247,8 @@ public class LogReader {
 					res.put("signal", resultArray[0]);
 					res.put("report", resultArray[1]);
 					
-					if (PredLkAnalysis.treatment.equals("prior2-basic")
-							|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+					if (treatment.equals("prior2-basic")
+							|| treatment.equals("prior2-outputagreement")) {
 						res.put("refPlayer", resultArray[2]);
 					}
 					
@@ -259,22 +262,22 @@ public class LogReader {
 							.toString();
 
 					Object refInfo = null;
-					if (PredLkAnalysis.treatment.equals("prior2-basic")
-							|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+					if (treatment.equals("prior2-basic")
+							|| treatment.equals("prior2-outputagreement")) {
 						String refPlayer = round.result.get(playerId)
 								.get("refPlayer").toString();
 						String refReport = round.result.get(refPlayer)
 								.get("report").toString();
 						refInfo = refReport;
-					} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")
-							|| PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+					} else if (treatment.equals("prior2-uniquetruthful")
+							|| treatment.equals("prior2-symmlowpay")) {
 						int numMM = Utils.getNumOfGivenReport(round.result,
 								"MM", playerId);
 						refInfo = numMM;
 					}
 
 					double reward = Utils
-							.getPayment(PredLkAnalysis.treatment, report, refInfo);
+							.getPayment(treatment, report, refInfo);
 					round.result.get(playerId).put("reward", reward);
 				}
 				
@@ -285,12 +288,14 @@ public class LogReader {
 		}
 
 		reader.close();
+		return expSet;
 	}
 
 	public static void writeRawDataToFile() throws IOException {
+		Experiment expSet = AnalysisContext.experiment();
 		System.out.println("Write raw data to file");
 
-		BufferedWriter writer = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
+		BufferedWriter writer = new BufferedWriter(new FileWriter(AnalysisContext.rootDir()
 				+ "rawData.txt"));
 
 		writer.write(String.format(
@@ -325,8 +330,8 @@ public class LogReader {
 					String signal = r.getSignal(hitId);
 					String report = r.getReport(hitId);
 
-					if (PredLkAnalysis.treatment.equals("prior2-basic")
-							|| PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+					if (AnalysisContext.treatment().equals("prior2-basic")
+							|| AnalysisContext.treatment().equals("prior2-outputagreement")) {
 						// Treatments 1 and 2, write reference player
 						String refPlayer = (String) r.getRefPlayer(hitId);
 						writer.write(String.format("(%s,%s,%d)", signal,
@@ -345,35 +350,35 @@ public class LogReader {
 			}
 		}
 
-		if (PredLkAnalysis.treatment.equals("prior2-basic")) {
+		if (AnalysisContext.treatment().equals("prior2-basic")) {
 			writer.write("Payment rule:\n"
 					+ "Each player's payoff depends on the player's report and the report of "
 					+ "another player randomly chosen among all other players, as follows:\n"
 					+ "(MM, MM) = 1.5, (MM, GB) = 0.1, (GB, GB) = 1.2, (GB, MM) = 0.3\n"
 					+ "where (A, B) = X denotes that if a player P's report is A, P's reference report is B, "
 					+ "then P's payoff is X.\n\n");
-		} else if (PredLkAnalysis.treatment.equals("prior2-outputagreement")) {
+		} else if (AnalysisContext.treatment().equals("prior2-outputagreement")) {
 			writer.write("Payment rule:\n"
 					+ "Each player's payoff depends on the player's report and the report of "
 					+ "another player randomly chosen among all other players, as follows:\n"
 					+ "(MM, MM) = 1.5, (MM, GB) = 0.1, (GB, GB) = 1.5, (GB, MM) = 0.1\n"
 					+ "where (A, B) = X denotes that if player P's report is A, P's reference report is B, "
 					+ "then P's payoff is X.\n\n");
-		} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		} else if (AnalysisContext.treatment().equals("prior2-uniquetruthful")) {
 			writer.write("Payment rule:\n"
 					+ "Each player's payoff depends on the player's report and all the other reports, as follows:\n"
 					+ "(MM, 3) = 0.8, (MM, 2) = 1.5, (MM, 1) = 0.1, (MM, 0) = 0.9, \n"
 					+ "(GB, 3) = 0.9, (GB, 2) = 0.1, (GB, 1) = 1.5, (GB, 0) = 0.8, \n"
 					+ "where (A, B) = X denotes that if player P's report is A, B of the other 3 reports are MM, "
 					+ "then P's payoff is X.\n\n");
-		} else if (PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+		} else if (AnalysisContext.treatment().equals("prior2-symmlowpay")) {
 			writer.write("Payment rule:\n"
 					+ "Each player's payoff depends on the player's report and all the other reports, as follows:\n"
 					+ "(MM, 3) = 0.15, (MM, 2) = 1.50, (MM, 1) = 0.10, (MM, 0) = 0.10, \n"
 					+ "(GB, 3) = 0.10, (GB, 2) = 0.15, (GB, 1) = 0.90, (GB, 0) = 0.15, \n"
 					+ "where (A, B) = X denotes that if player P's report is A, B of the other 3 reports are MM, "
 					+ "then P's payoff is X.\n\n");
-		} else if (PredLkAnalysis.treatment.equals("prior2-constant")) {
+		} else if (AnalysisContext.treatment().equals("prior2-constant")) {
 			writer.write("Payment rule:\n"
 					+ "Every player gets 0.90 for every round.\n\n");
 		}
@@ -526,13 +531,13 @@ public class LogReader {
 				currentLine = sc.nextLine();
 				lineIndex++;
 
-				Matcher matcherReport = MatchStrings.choseReport
+				Matcher matcherReport = MatchStrings.choseReport(AnalysisContext.treatment())
 						.matcher(currentLine);
 
 				if (matcherReport.matches()) {
 
-					if (PredLkAnalysis.treatment.equals("prior2-constant")
-							|| PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+					if (AnalysisContext.treatment().equals("prior2-constant")
+							|| AnalysisContext.treatment().equals("prior2-symmlowpay")) {
 						String radio = matcherReport.group(5);
 						r.saveRadio(radio);
 					}
@@ -602,9 +607,10 @@ public class LogReader {
 	}
 
 	private static void writePlayerCommentsToFile() throws IOException {
+		Experiment expSet = AnalysisContext.experiment();
 		System.out.println("Write player comments to file");
 
-		BufferedWriter writer = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
+		BufferedWriter writer = new BufferedWriter(new FileWriter(AnalysisContext.rootDir()
 				+ "playerComments.csv"));
 		writer.write("gameId,hitId,actions,bonus,strategy,otherStrategy,reason,change,comments\n");
 
@@ -639,6 +645,7 @@ public class LogReader {
 	}
 
 	static void printTreatmentInfo() {
+		Experiment expSet = AnalysisContext.experiment();
 		System.out.printf("treatment: %s\n"
 				+ "total num of games: %d\n"
 				+ "non-killed games: %d\n"
@@ -646,7 +653,7 @@ public class LogReader {
 //				+ "Prior worlds: %s\n"
 				+ "numPlayers per game: %d\n"
 				+ "numRounds: %d\n\n", 
-				PredLkAnalysis.treatment, 
+				AnalysisContext.treatment(), 
 				expSet.numGames,
 				expSet.nonKilledGames, 
 //				Arrays.toString(expSet.priorProbs),
@@ -657,6 +664,7 @@ public class LogReader {
 	}
 
 	public static void calcAvgBonus() {
+		Experiment expSet = AnalysisContext.experiment();
 		System.out.println("Write average bonus");
 
 		int numPlayersPerGame = expSet.numPlayers;
@@ -679,6 +687,7 @@ public class LogReader {
 	 * For the raw data figure in EC'14 paper
 	 */
 	public static void graphRawData() throws IOException {
+		Experiment expSet = AnalysisContext.experiment();
 		System.out.println("Graph raw data");
 	
 		int numPlayersPerGame = expSet.numPlayers;
@@ -722,7 +731,7 @@ public class LogReader {
 		}
 	
 		// write to rawData.m
-		BufferedWriter writerMatlab = new BufferedWriter(new FileWriter(PredLkAnalysis.rootDir
+		BufferedWriter writerMatlab = new BufferedWriter(new FileWriter(AnalysisContext.rootDir()
 				+ "rawData.m"));
 	
 		writerMatlab.write("MMsignalsMMreports = "
@@ -740,7 +749,7 @@ public class LogReader {
 								+ "hBar = bar(0:%d, [MMsignalsGBreports MMsignalsMMreports  GBsignalsGBreports GBsignalsMMreports], "
 								+ "'BarWidth', 0.7, 'BarLayout', 'stack', 'LineStyle', 'none');\n"
 								+ "box off;\n", expSet.numRounds - 1));
-		if (PredLkAnalysis.treatment.equals("prior2-constant")) {
+		if (AnalysisContext.treatment().equals("prior2-constant")) {
 			writerMatlab.write("set(fH, 'Position', [300, 300, 800, 400]);\n"
 					+ "set(gca,'Position',[.1 .15 .88 .8]);\n");
 		} else {
@@ -758,7 +767,7 @@ public class LogReader {
 						+ "axes = findobj(gcf,'type','axes');\n"
 						+ "set(axes, 'XTick', [0 19]);\n"
 						+ "set(hBar,{'FaceColor'},{[1 0.27 0];[1 0.64 0];'b';[0.1 0.1 0.4];});\n");
-		if (PredLkAnalysis.treatment.equals("prior2-constant")) {
+		if (AnalysisContext.treatment().equals("prior2-constant")) {
 			writerMatlab
 					.write("AX=legend('MM signals, GB reports', 'MM signals, MM reports', 'GB signals, GB reports', 'GB signals, MM reports', "
 							+ "'Location', 'BestOutside');\n"
@@ -22,13 +22,23 @@ public class MatchStrings {
 			.compile("^(\\d{2}:\\d{2}.\\d{3}) Round (\\d+) started");
 	static final Pattern gotSignal = Pattern
 			.compile("^(\\d{2}:\\d{2}.\\d{3}) ([a-zA-Z\\s0-9]+) @ HIT ([a-zA-Z\\s0-9]+) got signal ([A-Z]{2})");
-	static Pattern choseReport = null;
 	
 	// If radio is 0, then the choices are MM and GB.  Otherwise, the choices are GB and MM.
 	static final Pattern chosenReport1 = Pattern
 			.compile("^(\\d{2}:\\d{2}.\\d{3}) ([a-zA-Z\\s0-9]+) @ HIT ([a-zA-Z\\s0-9]+) chose report ([A-Z]{2}) \\(radio: ([0-9])\\)");
 	static final Pattern chosenReport2 = Pattern
 			.compile("^(\\d{2}:\\d{2}.\\d{3}) ([a-zA-Z\\s0-9]+) @ HIT ([a-zA-Z\\s0-9]+) chose report ([A-Z]{2})");
+
+	/**
+	 * The report message of a treatment's logs, which only include the radio
+	 * button order in prior2-constant and prior2-symmlowpay
+	 */
+	static Pattern choseReport(String treatment) {
+		if (treatment.equals("prior2-constant")
+				|| treatment.equals("prior2-symmlowpay"))
+			return chosenReport1;
+		return chosenReport2;
+	}
 	
 	
 	static final Pattern roundResult = Pattern
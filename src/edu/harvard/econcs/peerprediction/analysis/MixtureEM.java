@@ -0,0 +1,375 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.andrewmao.misc.Pair;
+
+/**
+ * EM for a mixture of K strategies, where each strategy reports MM with a
+ * fixed probability given an MM signal and given a GB signal.
+ *
+ * The likelihood of a sequence of signal-report pairs under a strategy only
+ * depends on four counts, so the sequences are reduced to distinct count
+ * rows with multiplicities once, when the object is built. A MixtureEM holds
+ * no fitting state and can be shared by concurrent fits.
+ */
+public class MixtureEM {
+
+	static final int MIN_ROWS_PER_TASK = 256;
+
+	// distinct count rows
+	final int numRows;
+	final double[] multiplicity;
+	final double[] numMMSignals;
+	final double[] numMMToMM;
+	final double[] numGBSignals;
+	final double[] numGBToMM;
+
+	final int numSequences;
+	final int numObservations;
+
+	// optional, for a parallel E-step
+	final ExecutorService executor;
+
+	int maxIterations = 100000;
+	double tolerance = Utils.eps;
+
+	// use squared extrapolation around the EM steps
+	boolean accelerate = false;
+
+	public MixtureEM(List<List<Pair<String, String>>> signalReportPairs) {
+		this(signalReportPairs, null);
+	}
+
+	public MixtureEM(List<List<Pair<String, String>>> signalReportPairs,
+			ExecutorService executor) {
+
+		this.executor = executor;
+
+		Map<List<Integer>, Integer> rowIndex = new HashMap<List<Integer>, Integer>();
+		List<int[]> rows = new ArrayList<int[]>();
+		List<Integer> counts = new ArrayList<Integer>();
+
+		int totalObservations = 0;
+		for (List<Pair<String, String>> sequence : signalReportPairs) {
+			int c_MMsignal = 0;
+			int c_GBsignal = 0;
+			int c_MMtoMM = 0;
+			int c_GBtoMM = 0;
+			for (Pair<String, String> onePair : sequence) {
+				if (onePair.t1.equals("MM")) {
+					c_MMsignal++;
+					if (onePair.t2.equals("MM"))
+						c_MMtoMM++;
+				} else {
+					c_GBsignal++;
+					if (onePair.t2.equals("MM"))
+						c_GBtoMM++;
+				}
+			}
+			totalObservations += sequence.size();
+
+			List<Integer> row = Arrays.asList(c_MMsignal, c_MMtoMM,
+					c_GBsignal, c_GBtoMM);
+			Integer index = rowIndex.get(row);
+			if (index == null) {
+				rowIndex.put(row, rows.size());
+				rows.add(new int[] { c_MMsignal, c_MMtoMM, c_GBsignal,
+						c_GBtoMM });
+				counts.add(1);
+			} else {
+				counts.set(index, counts.get(index) + 1);
+			}
+		}
+
+		numRows = rows.size();
+		multiplicity = new double[numRows];
+		numMMSignals = new double[numRows];
+		numMMToMM = new double[numRows];
+		numGBSignals = new double[numRows];
+		numGBToMM = new double[numRows];
+		for (int i = 0; i < numRows; i++) {
+			int[] row = rows.get(i);
+			multiplicity[i] = counts.get(i);
+			numMMSignals[i] = row[0];
+			numMMToMM[i] = row[1];
+			numGBSignals[i] = row[2];
+			numGBToMM[i] = row[3];
+		}
+
+		numSequences = signalReportPairs.size();
+		numObservations = totalObservations;
+	}
+
+	public int getNumSequences() {
+		return numSequences;
+	}
+
+	public int getNumObservations() {
+		return numObservations;
+	}
+
+	/**
+	 * Fit from a uniform mixture of K random strategies
+	 *
+	 * @param K
+	 * @param rnd
+	 * @return
+	 */
+	public MixtureEMResult fit(int K, Random rnd) {
+		double[] pi = new double[K];
+		double[] mmGivenMM = new double[K];
+		double[] mmGivenGB = new double[K];
+		for (int k = 0; k < K; k++) {
+			pi[k] = 1.0 / K;
+			Strategy strategy = Strategy.getRandomStrategy(rnd);
+			mmGivenMM[k] = strategy.getPercent("MM", "MM");
+			mmGivenGB[k] = strategy.getPercent("GB", "MM");
+		}
+		return fit(pi, mmGivenMM, mmGivenGB);
+	}
+
+	/**
+	 * Fit from the given starting point. The arrays are not modified.
+	 *
+	 * @param pi
+	 *            mixing weights
+	 * @param mmGivenMM
+	 *            probability of reporting MM given an MM signal, per strategy
+	 * @param mmGivenGB
+	 *            probability of reporting MM given a GB signal, per strategy
+	 * @return
+	 */
+	public MixtureEMResult fit(double[] pi, double[] mmGivenMM,
+			double[] mmGivenGB) {
+
+		int K = pi.length;
+		double[] params = new double[3 * K];
+		System.arraycopy(pi, 0, params, 0, K);
+		System.arraycopy(mmGivenMM, 0, params, K, K);
+		System.arraycopy(mmGivenGB, 0, params, 2 * K, K);
+
+		if (accelerate)
+			return fitAccelerated(K, params);
+
+		double[] stats = new double[5 * K + 1];
+		double likelihood = Double.NaN;
+		boolean converged = false;
+		int iteration = 0;
+
+		while (iteration < maxIterations) {
+
+			// E step at the current parameters, which also gives their loglk
+			double likelihood_temp = accumulate(K, params, stats);
+
+			if (iteration > 0
+					&& Math.abs((likelihood_temp - likelihood) / likelihood) < tolerance) {
+				likelihood = likelihood_temp;
+				converged = true;
+				break;
+			}
+			likelihood = likelihood_temp;
+
+			// M step
+			mStep(K, stats, params);
+			iteration++;
+		}
+
+		return new MixtureEMResult(Arrays.copyOfRange(params, 0, K),
+				Arrays.copyOfRange(params, K, 2 * K), Arrays.copyOfRange(
+						params, 2 * K, 3 * K), likelihood, iteration,
+				converged, numObservations);
+	}
+
+	/**
+	 * Fit with SquaremAccelerator. The number of iterations in the result is
+	 * the number of EM steps, so it can be compared with an unaccelerated fit.
+	 */
+	MixtureEMResult fitAccelerated(int K, double[] start) {
+		SquaremAccelerator accelerator = new SquaremAccelerator(maxIterations,
+				tolerance);
+		double[] params = accelerator.run(getEMUpdate(K), start);
+
+		return new MixtureEMResult(Arrays.copyOfRange(params, 0, K),
+				Arrays.copyOfRange(params, K, 2 * K), Arrays.copyOfRange(
+						params, 2 * K, 3 * K), accelerator.getLogLk(),
+				accelerator.getNumUpdates(), accelerator.isConverged(),
+				numObservations);
+	}
+
+	/**
+	 * The EM step for K components over the parameter layout {pi,
+	 * mmGivenMM, mmGivenGB}
+	 */
+	public EMUpdate getEMUpdate(final int K) {
+		return new EMUpdate() {
+
+			public double update(double[] params, double[] next) {
+				double[] stats = new double[5 * K + 1];
+				double loglk = accumulate(K, params, stats);
+				System.arraycopy(params, 0, next, 0, 3 * K);
+				mStep(K, stats, next);
+				return loglk;
+			}
+
+			public void project(double[] params) {
+				double sum = 0;
+				for (int k = 0; k < K; k++) {
+					params[k] = Math.max(params[k], 0);
+					sum += params[k];
+				}
+				for (int k = 0; k < K; k++) {
+					params[k] = sum > 0 ? params[k] / sum : 1.0 / K;
+				}
+				for (int j = K; j < 3 * K; j++) {
+					params[j] = Math.min(Math.max(params[j], 0), 1);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Log likelihood of the data under the given mixture
+	 */
+	public double getLogLikelihood(double[] pi, double[] mmGivenMM,
+			double[] mmGivenGB) {
+		int K = pi.length;
+		double[] params = new double[3 * K];
+		System.arraycopy(pi, 0, params, 0, K);
+		System.arraycopy(mmGivenMM, 0, params, K, K);
+		System.arraycopy(mmGivenGB, 0, params, 2 * K, K);
+		return accumulate(K, params, new double[5 * K + 1]);
+	}
+
+	void mStep(int K, double[] stats, double[] params) {
+		for (int k = 0; k < K; k++) {
+			double n_k = stats[k];
+			double d_MM = stats[K + k];
+			double n_MM = stats[2 * K + k];
+			double d_GB = stats[3 * K + k];
+			double n_GB = stats[4 * K + k];
+
+			params[k] = n_k / numSequences;
+			if (d_MM > 0)
+				params[K + k] = n_MM / d_MM;
+			if (d_GB > 0)
+				params[2 * K + k] = n_GB / d_GB;
+		}
+	}
+
+	/**
+	 * Compute the responsibility-weighted sufficient statistics {n_k, d_MM,
+	 * n_MM, d_GB, n_GB} into stats and return the log likelihood
+	 */
+	double accumulate(final int K, final double[] params, double[] stats) {
+
+		Arrays.fill(stats, 0.0);
+
+		if (executor == null || numRows < 2 * MIN_ROWS_PER_TASK) {
+			return accumulateRows(K, params, 0, numRows, stats);
+		}
+
+		int numTasks = Math.min(Runtime.getRuntime().availableProcessors(),
+				numRows / MIN_ROWS_PER_TASK);
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		for (int t = 0; t < numTasks; t++) {
+			final int start = (int) ((long) numRows * t / numTasks);
+			final int end = (int) ((long) numRows * (t + 1) / numTasks);
+			futures.add(executor.submit(new Callable<double[]>() {
+				public double[] call() {
+					double[] partial = new double[5 * K + 1];
+					partial[5 * K] = accumulateRows(K, params, start, end,
+							partial);
+					return partial;
+				}
+			}));
+		}
+
+		double loglk = 0;
+		try {
+			for (Future<double[]> future : futures) {
+				double[] partial = future.get();
+				for (int j = 0; j < 5 * K; j++) {
+					stats[j] += partial[j];
+				}
+				loglk += partial[5 * K];
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		return loglk;
+	}
+
+	double accumulateRows(int K, double[] params, int start, int end,
+			double[] stats) {
+
+		double[] logPi = new double[K];
+		double[] logMM = new double[K];
+		double[] logMMtoGB = new double[K];
+		double[] logGB = new double[K];
+		double[] logGBtoGB = new double[K];
+		for (int k = 0; k < K; k++) {
+			logPi[k] = Math.log(params[k]);
+			logMM[k] = Math.log(params[K + k]);
+			logMMtoGB[k] = Math.log(1 - params[K + k]);
+			logGB[k] = Math.log(params[2 * K + k]);
+			logGBtoGB[k] = Math.log(1 - params[2 * K + k]);
+		}
+
+		double loglk = 0;
+		double[] logP = new double[K];
+		for (int i = start; i < end; i++) {
+
+			double max = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < K; k++) {
+				double lp = logPi[k];
+				lp += term(numMMToMM[i], logMM[k]);
+				lp += term(numMMSignals[i] - numMMToMM[i], logMMtoGB[k]);
+				lp += term(numGBToMM[i], logGB[k]);
+				lp += term(numGBSignals[i] - numGBToMM[i], logGBtoGB[k]);
+				logP[k] = lp;
+				if (lp > max)
+					max = lp;
+			}
+
+			double d_i = 0.0;
+			for (int k = 0; k < K; k++) {
+				logP[k] = Math.exp(logP[k] - max);
+				d_i += logP[k];
+			}
+			loglk += multiplicity[i] * (max + Math.log(d_i));
+
+			for (int k = 0; k < K; k++) {
+				double gamma = multiplicity[i] * logP[k] / d_i;
+				stats[k] += gamma;
+				stats[K + k] += gamma * numMMSignals[i];
+				stats[2 * K + k] += gamma * numMMToMM[i];
+				stats[3 * K + k] += gamma * numGBSignals[i];
+				stats[4 * K + k] += gamma * numGBToMM[i];
+			}
+		}
+		return loglk;
+	}
+
+	/**
+	 * count * log(prob), taking 0 * log(0) as 0
+	 */
+	static double term(double count, double logProb) {
+		if (count == 0)
+			return 0;
+		return count * logProb;
+	}
+
+}
@@ -0,0 +1,88 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Result of a MixtureEM fit. Arrays are copied on the way in and out, so a
+ * result can be shared freely between threads.
+ */
+public final class MixtureEMResult {
+
+	private final double[] pi;
+	private final double[] mmGivenMM;
+	private final double[] mmGivenGB;
+	private final double logLk;
+	private final int numIterations;
+	private final boolean converged;
+	private final int numObservations;
+
+	public MixtureEMResult(double[] pi, double[] mmGivenMM,
+			double[] mmGivenGB, double logLk, int numIterations,
+			boolean converged, int numObservations) {
+		this.pi = pi.clone();
+		this.mmGivenMM = mmGivenMM.clone();
+		this.mmGivenGB = mmGivenGB.clone();
+		this.logLk = logLk;
+		this.numIterations = numIterations;
+		this.converged = converged;
+		this.numObservations = numObservations;
+	}
+
+	public int getNumComponents() {
+		return pi.length;
+	}
+
+	public double[] getPi() {
+		return pi.clone();
+	}
+
+	public double[] getMMGivenMM() {
+		return mmGivenMM.clone();
+	}
+
+	public double[] getMMGivenGB() {
+		return mmGivenGB.clone();
+	}
+
+	public Strategy[] getStrategies() {
+		Strategy[] strategies = new Strategy[pi.length];
+		for (int k = 0; k < pi.length; k++) {
+			strategies[k] = new Strategy(mmGivenMM[k], mmGivenGB[k]);
+		}
+		return strategies;
+	}
+
+	public double getLogLk() {
+		return logLk;
+	}
+
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * (K - 1) mixing weights plus two probabilities per strategy
+	 */
+	public int getNumParams() {
+		return 3 * pi.length - 1;
+	}
+
+	/**
+	 * Bayesian information criterion, with the number of signal-report
+	 * observations as the sample size, as in HMMAnalysis.graphLogLikelihood
+	 */
+	public double getBIC() {
+		return -2 * logLk + getNumParams() * Math.log(numObservations);
+	}
+
+	public String toString() {
+		return String.format("pi=%s, strategies=%s, loglk=%.5f, iterations=%d",
+				Arrays.toString(pi), Arrays.toString(getStrategies()), logLk,
+				numIterations);
+	}
+
+}
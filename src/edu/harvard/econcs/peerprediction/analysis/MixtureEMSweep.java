@@ -0,0 +1,145 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sweep over the number of mixture components K. Every (K, seed) pair is an
+ * independent fit on the same MixtureEM count table, so all of them run
+ * concurrently.
+ */
+public class MixtureEMSweep {
+
+	MixtureEM em;
+
+	public MixtureEMSweep(MixtureEM em) {
+		this.em = em;
+	}
+
+	/**
+	 * Fit every K in [minK, maxK] from every seed. The best seed for a K is
+	 * the one with the highest log likelihood, with ties going to the seed
+	 * that comes first in seeds, so the result does not depend on the order
+	 * in which the fits finish.
+	 *
+	 * @param minK
+	 * @param maxK
+	 * @param seeds
+	 * @param executor
+	 *            runs the fits; if null, a pool with one thread per core is
+	 *            used for the sweep
+	 * @return one entry per K, in increasing order of K
+	 */
+	public List<KResult> run(int minK, int maxK, long[] seeds,
+			ExecutorService executor) {
+
+		boolean ownExecutor = executor == null;
+		if (ownExecutor)
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors());
+
+		try {
+			List<List<Future<MixtureEMResult>>> futures = new ArrayList<List<Future<MixtureEMResult>>>();
+			for (int K = minK; K <= maxK; K++) {
+				List<Future<MixtureEMResult>> futuresForK = new ArrayList<Future<MixtureEMResult>>();
+				for (final long seed : seeds) {
+					final int numComponents = K;
+					futuresForK.add(executor
+							.submit(new Callable<MixtureEMResult>() {
+								public MixtureEMResult call() {
+									return em.fit(numComponents, new Random(
+											seed));
+								}
+							}));
+				}
+				futures.add(futuresForK);
+			}
+
+			List<KResult> results = new ArrayList<KResult>();
+			for (int K = minK; K <= maxK; K++) {
+				List<Future<MixtureEMResult>> futuresForK = futures.get(K
+						- minK);
+				MixtureEMResult best = null;
+				long bestSeed = -1;
+				for (int s = 0; s < seeds.length; s++) {
+					MixtureEMResult result = futuresForK.get(s).get();
+					if (best == null || result.getLogLk() > best.getLogLk()) {
+						best = result;
+						bestSeed = seeds[s];
+					}
+				}
+				results.add(new KResult(K, bestSeed, best));
+			}
+			return results;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			if (ownExecutor)
+				executor.shutdown();
+		}
+	}
+
+	public static void printResults(List<KResult> results) {
+		System.out.println("K,seed,loglk,bic,iterations,converged");
+		for (KResult result : results) {
+			System.out.println(result);
+		}
+	}
+
+	/**
+	 * Best fit for one number of components
+	 */
+	public static final class KResult {
+
+		private final int numComponents;
+		private final long bestSeed;
+		private final MixtureEMResult best;
+
+		KResult(int numComponents, long bestSeed, MixtureEMResult best) {
+			this.numComponents = numComponents;
+			this.bestSeed = bestSeed;
+			this.best = best;
+		}
+
+		public int getNumComponents() {
+			return numComponents;
+		}
+
+		public long getBestSeed() {
+			return bestSeed;
+		}
+
+		public MixtureEMResult getBest() {
+			return best;
+		}
+
+		public double getLogLk() {
+			return best.getLogLk();
+		}
+
+		public double getBIC() {
+			return best.getBIC();
+		}
+
+		public int getNumIterations() {
+			return best.getNumIterations();
+		}
+
+		public String toString() {
+			return String.format("%d,%d,%.5f,%.5f,%d,%s", numComponents,
+					bestSeed, getLogLk(), getBIC(), getNumIterations(),
+					best.isConverged());
+		}
+	}
+
+}
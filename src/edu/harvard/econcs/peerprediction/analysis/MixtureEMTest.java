@@ -0,0 +1,172 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.andrewmao.misc.Pair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MixtureEMTest {
+
+	List<List<Pair<String, String>>> signalReportPairs;
+
+	@Before
+	public void setUp() throws Exception {
+		Random rnd = new Random(17);
+
+		Strategy[] strategies = new Strategy[] { new Strategy(0.1, 0.2),
+				new Strategy(0.9, 0.7) };
+		double[] probs = new double[] { 0.3, 0.7 };
+
+		signalReportPairs = new ArrayList<List<Pair<String, String>>>();
+		for (int count = 0; count < 20000; count++) {
+			Strategy chosenStrategy = rnd.nextDouble() < probs[0] ? strategies[0]
+					: strategies[1];
+
+			List<Pair<String, String>> dataPoint = new ArrayList<Pair<String, String>>();
+			for (int index = 0; index < 20; index++) {
+				String chosenSignal = rnd.nextDouble() < 0.5 ? "MM" : "GB";
+				String chosenReport = rnd.nextDouble() < chosenStrategy
+						.getPercent(chosenSignal, "MM") ? "MM" : "GB";
+				dataPoint.add(new Pair<String, String>(chosenSignal,
+						chosenReport));
+			}
+			signalReportPairs.add(dataPoint);
+		}
+	}
+
+	@Test
+	public void testRecoversMixture() {
+		MixtureEM em = new MixtureEM(signalReportPairs);
+		MixtureEMResult result = em.fit(new double[] { 0.5, 0.5 },
+				new double[] { 0.3, 0.6 }, new double[] { 0.4, 0.5 });
+
+		assertTrue(result.isConverged());
+		double[] pi = result.getPi();
+		double[] mmGivenMM = result.getMMGivenMM();
+		double[] mmGivenGB = result.getMMGivenGB();
+
+		assertEquals(0.3, pi[0], 0.02);
+		assertEquals(0.7, pi[1], 0.02);
+		assertEquals(0.1, mmGivenMM[0], 0.02);
+		assertEquals(0.2, mmGivenGB[0], 0.02);
+		assertEquals(0.9, mmGivenMM[1], 0.02);
+		assertEquals(0.7, mmGivenGB[1], 0.02);
+
+		assertEquals(result.getLogLk(),
+				em.getLogLikelihood(pi, mmGivenMM, mmGivenGB), 1e-6);
+	}
+
+	@Test
+	public void testParallelEStepMatchesSerial() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MixtureEMResult serial = new MixtureEM(signalReportPairs).fit(2,
+					new Random(3));
+			MixtureEMResult parallel = new MixtureEM(signalReportPairs,
+					executor).fit(2, new Random(3));
+
+			assertEquals(serial.getLogLk(), parallel.getLogLk(), 1e-6);
+			assertEquals(serial.getNumIterations(),
+					parallel.getNumIterations());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testAcceleratedFitTakesFewerSteps() {
+		// an extra component makes plain EM crawl along a flat ridge
+		MixtureEM em = new MixtureEM(signalReportPairs);
+		em.tolerance = 1e-10;
+		MixtureEMResult plain = em.fit(3, new Random(2));
+		em.accelerate = true;
+		MixtureEMResult accelerated = em.fit(3, new Random(2));
+
+		assertTrue(accelerated.isConverged());
+		assertEquals(plain.getLogLk(), accelerated.getLogLk(), 1e-2);
+		assertTrue(accelerated.getNumIterations() < plain.getNumIterations());
+	}
+
+	@Test
+	public void testSquaremNeverDecreasesLogLk() {
+		final MixtureEM em = new MixtureEM(signalReportPairs);
+		final EMUpdate update = em.getEMUpdate(3);
+		final List<Double> logLks = new ArrayList<Double>();
+
+		// record the loglk at the start of every cycle
+		EMUpdate recording = new EMUpdate() {
+			int calls = 0;
+
+			public double update(double[] params, double[] next) {
+				double loglk = update.update(params, next);
+				if (calls++ % 3 == 0)
+					logLks.add(loglk);
+				return loglk;
+			}
+
+			public void project(double[] params) {
+				update.project(params);
+			}
+		};
+
+		SquaremAccelerator accelerator = new SquaremAccelerator(3000, 1e-10);
+		Random rnd = new Random(5);
+		double[] start = new double[9];
+		for (int k = 0; k < 3; k++) {
+			start[k] = 1.0 / 3;
+			start[3 + k] = rnd.nextDouble();
+			start[6 + k] = rnd.nextDouble();
+		}
+		accelerator.run(recording, start);
+
+		for (int i = 1; i < logLks.size(); i++) {
+			assertTrue(logLks.get(i) >= logLks.get(i - 1) - 1e-6);
+		}
+	}
+
+	@Test
+	public void testSweepPicksTrueNumComponents() {
+		MixtureEMSweep sweep = new MixtureEMSweep(new MixtureEM(
+				signalReportPairs));
+		long[] seeds = new long[] { 1, 2, 3 };
+
+		List<MixtureEMSweep.KResult> results = sweep.run(1, 3, seeds, null);
+		assertEquals(3, results.size());
+
+		MixtureEMSweep.KResult best = results.get(0);
+		for (MixtureEMSweep.KResult result : results) {
+			if (result.getBIC() < best.getBIC())
+				best = result;
+		}
+		assertEquals(2, best.getNumComponents());
+
+		// same seeds give the same choice
+		List<MixtureEMSweep.KResult> again = sweep.run(1, 3, seeds, null);
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals(results.get(i).getBestSeed(), again.get(i)
+					.getBestSeed());
+			assertEquals(results.get(i).getLogLk(), again.get(i).getLogLk(),
+					0.0);
+		}
+	}
+
+	@Test
+	public void testRunEMAlgorithmUsesMixtureEM() {
+		MixtureEMResult result = Utils.runEMAlgorithm(signalReportPairs, 2,
+				null, null);
+
+		assertEquals(2, result.getPi().length);
+		assertEquals(1.0, result.getPi()[0] + result.getPi()[1], 1e-9);
+		assertEquals(2, result.getStrategies().length);
+	}
+
+}
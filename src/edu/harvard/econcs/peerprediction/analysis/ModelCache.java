@@ -0,0 +1,189 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of fitted model parameters.
+ *
+ * An entry is keyed by the model name, the estimator's hyperparameters, a
+ * fingerprint of the ordered game IDs in the training set and the optimizer
+ * seed, so a model fitted on one fold is never returned for another. Each
+ * entry is stored as a small binary file named after the hash of its key.
+ */
+public class ModelCache {
+
+	static final int MAGIC = 0x50504D43; // "PPMC"
+	static final int FORMAT_VERSION = 1;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	File dir;
+
+	public ModelCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Build the cache key for a fit
+	 *
+	 * @param model
+	 * @param hyperParams
+	 *            estimator settings that change the result of the fit
+	 * @param trainingSet
+	 * @param seed
+	 *            optimizer seed
+	 * @return
+	 */
+	public static String key(String model, Map<String, Object> hyperParams,
+			List<Game> trainingSet, long seed) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(model);
+		sb.append('|');
+
+		List<String> names = new ArrayList<String>(hyperParams.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			sb.append(name).append('=').append(hyperParams.get(name))
+					.append(';');
+		}
+
+		sb.append('|');
+		sb.append(fingerprint(trainingSet));
+		sb.append('|');
+		sb.append(seed);
+		return sb.toString();
+	}
+
+	/**
+	 * Hash of the ordered game IDs. Two training sets have the same
+	 * fingerprint only if they contain the same games in the same order.
+	 *
+	 * @param games
+	 * @return
+	 */
+	public static String fingerprint(List<Game> games) {
+		MessageDigest digest = sha1();
+		for (Game game : games) {
+			digest.update(game.id.getBytes(UTF8));
+			digest.update((byte) '\n');
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Look up the parameters stored under a key
+	 *
+	 * @param key
+	 * @return the cached parameters, or null if there is no valid entry
+	 */
+	public double[] lookup(String key) {
+		File file = getFile(key);
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				return null;
+
+			// guard against hash collisions
+			if (!key.equals(in.readUTF()))
+				return null;
+
+			int length = in.readInt();
+			double[] params = new double[length];
+			for (int i = 0; i < length; i++) {
+				params[i] = in.readDouble();
+			}
+			return params;
+		} catch (IOException e) {
+			System.err.printf("Ignoring unreadable cache entry %s\n", file);
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Store parameters under a key. The entry is written to a temporary file
+	 * and then renamed, so concurrent readers never see a partial entry.
+	 *
+	 * @param key
+	 * @param params
+	 * @throws IOException
+	 */
+	public void store(String key, double[] params) throws IOException {
+		dir.mkdirs();
+		File file = getFile(key);
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(key);
+			out.writeInt(params.length);
+			for (double param : params) {
+				out.writeDouble(param);
+			}
+		} finally {
+			out.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	File getFile(String key) {
+		MessageDigest digest = sha1();
+		digest.update(key.getBytes(UTF8));
+		return new File(dir, toHex(digest.digest()) + ".bin");
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	static void closeQuietly(DataInputStream in) {
+		if (in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModelCacheTest {
+
+	File dir;
+	ModelCache cache;
+	List<Game> games;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("modelCache", "");
+		dir.delete();
+		cache = new ModelCache(dir);
+
+		games = new ArrayList<Game>();
+		for (int i = 0; i < 5; i++) {
+			Game game = new Game();
+			game.id = String.format("game%d", i);
+			games.add(game);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testStoreAndLookup() throws IOException {
+		Map<String, Object> hyperParams = new HashMap<String, Object>();
+		hyperParams.put("estimator", "cobyla");
+		String key = ModelCache.key("s1", hyperParams, games, 1000);
+
+		assertNull(cache.lookup(key));
+
+		double[] point = new double[] { 0.1, 0.2, 0.3, 0.25, 0.05 };
+		cache.store(key, point);
+
+		double[] cached = cache.lookup(key);
+		assertEquals(point.length, cached.length);
+		for (int i = 0; i < point.length; i++) {
+			assertEquals(point[i], cached[i], 0.0);
+		}
+
+		// another seed is another fit
+		assertNull(cache.lookup(ModelCache.key("s1", hyperParams, games, 1001)));
+	}
+
+	@Test
+	public void testFingerprintDependsOnOrder() {
+		String fingerprint = ModelCache.fingerprint(games);
+		assertEquals(fingerprint, ModelCache.fingerprint(new ArrayList<Game>(
+				games)));
+
+		List<Game> reordered = new ArrayList<Game>(games);
+		reordered.add(reordered.remove(0));
+		assertTrue(!fingerprint.equals(ModelCache.fingerprint(reordered)));
+
+		List<Game> subset = new ArrayList<Game>(games.subList(0, 4));
+		assertTrue(!fingerprint.equals(ModelCache.fingerprint(subset)));
+	}
+
+}
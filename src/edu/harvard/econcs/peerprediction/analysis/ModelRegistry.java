@@ -0,0 +1,55 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The models that PredLkAnalysis.fitParams can fit, in the order they are
+ * reported, with their number of free parameters.
+ */
+public class ModelRegistry {
+
+	static final List<String> models = Collections.unmodifiableList(Arrays
+			.asList("HMM", "s1", "s2-abs", "s2-rel", "s3-abs", "s3-rel", "s4",
+					"s5", "RLS", "RLNS", "SFPS", "SFPNS", "EWAS", "EWANS"));
+
+	public static List<String> getModels() {
+		return models;
+	}
+
+	public static boolean isRegistered(String model) {
+		return models.contains(model);
+	}
+
+	/**
+	 * Number of free parameters. The strategy probabilities of the custom
+	 * models count one less than the number of strategies, since they sum
+	 * to 1, and likewise the initial and transition probabilities of the
+	 * HMM. Each HMM state has two emission probabilities, P(MM | MM) and
+	 * P(MM | GB).
+	 */
+	public static int getNumParams(String model) {
+		if (model.equals("HMM")) {
+			int n = HMMAnalysis.numHmmStates;
+			return (n - 1) + 2 * n + n * (n - 1);
+		}
+		if (model.equals("s1"))
+			return 5;
+		if (model.startsWith("s2"))
+			return 7;
+		if (model.startsWith("s3"))
+			return 6;
+		if (model.equals("s4"))
+			return 7;
+		if (model.equals("s5"))
+			return 9;
+		if (model.equals("RLS") || model.equals("RLNS")
+				|| model.equals("SFPS") || model.equals("SFPNS"))
+			return 2;
+		if (model.equals("EWAS") || model.equals("EWANS"))
+			return 4;
+		throw new IllegalArgumentException("Unknown model " + model);
+	}
+
+}
@@ -0,0 +1,16 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+/**
+ * A function that can evaluate a block of points more cheaply than one
+ * point at a time
+ */
+public interface MultiPointFunction extends MultivariateFunction {
+
+	/**
+	 * @return the value at each point, in order
+	 */
+	double[] values(double[][] points);
+
+}
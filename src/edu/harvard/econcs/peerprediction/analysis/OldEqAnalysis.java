@@ -11,12 +11,12 @@ public class OldEqAnalysis {
 	public static void eqConvergenceSimpleMethod() throws IOException {
 		System.out.println("Equilibrium convergence by simple method");
 	
-		if (PredLkAnalysis.treatment.equals("prior2-basic")
-				|| PredLkAnalysis.treatment.equals("prior2-outputagreement")
-				|| PredLkAnalysis.treatment.equals("prior2-symmlowpay")) {
+		if (AnalysisContext.treatment().equals("prior2-basic")
+				|| AnalysisContext.treatment().equals("prior2-outputagreement")
+				|| AnalysisContext.treatment().equals("prior2-symmlowpay")) {
 			gameSymmetricConvergenceType();
 			// gameSymmetricConvergenceTypeRelaxed(3);
-		} else if (PredLkAnalysis.treatment.equals("prior2-uniquetruthful")) {
+		} else if (AnalysisContext.treatment().equals("prior2-uniquetruthful")) {
 			gameConvergenceTypeT3();
 			// gameAsymmetricConvergenceTypeRelaxed(3);
 		}
@@ -28,9 +28,9 @@ public class OldEqAnalysis {
 		int numMM = 0;
 		int numGB = 0;
 		int numUnclassified = 0;
-		int numTotal = LogReader.expSet.nonKilledGames;
+		int numTotal = AnalysisContext.experiment().nonKilledGames;
 	
-		for (Game game : LogReader.expSet.games) {
+		for (Game game : AnalysisContext.experiment().games) {
 	
 			OldEqAnalysis.fillConvergenceType(game);
 	
@@ -62,7 +62,7 @@ public class OldEqAnalysis {
 		int num1MM3GB = 0;
 		int numUnclassified = 0;
 	
-		for (Game game : LogReader.expSet.games) {
+		for (Game game : AnalysisContext.experiment().games) {
 	
 			OldEqAnalysis.fillAsymmetricConvergenceType(game);
 	
@@ -78,7 +78,7 @@ public class OldEqAnalysis {
 	
 		System.out.println(String.format(
 				"3GB: %d, 3MM: %d, HO: %d, Unclassified: %d, Total: %d",
-				num1MM3GB, num3MM1GB, numHO, numUnclassified, LogReader.expSet.nonKilledGames));
+				num1MM3GB, num3MM1GB, numHO, numUnclassified, AnalysisContext.experiment().nonKilledGames));
 	
 	}
 
@@ -90,7 +90,7 @@ public class OldEqAnalysis {
 		int numGB = 0;
 		int numUnclassified = 0;
 	
-		for (Game game : LogReader.expSet.games) {
+		for (Game game : AnalysisContext.experiment().games) {
 			OldEqAnalysis.fillConvergenceTypeRelaxed(game, i);
 	
 			if (game.convergenceTypeRelaxed.startsWith("MM"))
@@ -117,7 +117,7 @@ public class OldEqAnalysis {
 		int num3GB = 0;
 		int numUnclassified = 0;
 	
-		for (Game game : LogReader.expSet.games) {
+		for (Game game : AnalysisContext.experiment().games) {
 	
 			OldEqAnalysis.fillAsymmetricConvergenceTypeRelaxed(game, i);
 	
@@ -145,13 +145,13 @@ public class OldEqAnalysis {
 		int countLeft = 0;
 		int numAlwaysLeft = 0;
 		int numAlwaysRight = 0;
-		for (Game game : LogReader.expSet.games) {
+		for (Game game : AnalysisContext.experiment().games) {
 			for (String hitId : game.playerHitIds) {
 	
 				int numLeft = getNumLeftChosen(game, hitId);
 				countLeft += numLeft;
-				total += LogReader.expSet.numRounds;
-				if (numLeft == LogReader.expSet.numRounds)
+				total += AnalysisContext.experiment().numRounds;
+				if (numLeft == AnalysisContext.experiment().numRounds)
 					numAlwaysLeft++;
 				if (numLeft == 0)
 					numAlwaysRight++;
@@ -243,7 +243,7 @@ public class OldEqAnalysis {
 		game.roundConverged = min;
 		
 		String gameType = "";
-		if (min > (LogReader.expSet.numRounds - 5)) {
+		if (min > (AnalysisContext.experiment().numRounds - 5)) {
 			gameType = "undecided";
 		} else {
 			if (gameMMStart == min) {
@@ -281,7 +281,7 @@ public class OldEqAnalysis {
 		int min = Math.min(Math.min(gameMMStart, gameGBStart), gameHOStart);
 		game.roundConvergedRelaxed = min;
 		
-		if (min > ((LogReader.expSet.numRounds - 5) - i)) {
+		if (min > ((AnalysisContext.experiment().numRounds - 5) - i)) {
 			gameType = "undecided";
 		} else {
 			if (gameMMStart == min) {
@@ -354,7 +354,7 @@ public class OldEqAnalysis {
 		game.roundConverged = min;
 		
 		String gameType = "";
-		if (min > (LogReader.expSet.numRounds - 5)) {
+		if (min > (AnalysisContext.experiment().numRounds - 5)) {
 			gameType = "undecided";
 		} else {
 			if (min == best3MMStart) {
@@ -423,7 +423,7 @@ public class OldEqAnalysis {
 		game.roundConvergedRelaxed = min;
 	
 		String gameType = "";
-		if (min > ((LogReader.expSet.numRounds - 5) - i)) {
+		if (min > ((AnalysisContext.experiment().numRounds - 5) - i)) {
 			gameType = "undecided";
 		} else {
 			if (min == bestThreeMMOneGBStart) {
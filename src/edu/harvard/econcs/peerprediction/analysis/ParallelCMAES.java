@@ -0,0 +1,462 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * CMA-ES maximizer over a box, evaluating each generation concurrently.
+ *
+ * The search runs in coordinates normalized to [0, 1] per dimension. A
+ * sample outside the box is redrawn up to checkFeasibleCount times and then
+ * clipped to the box, with a penalty on the distance clipped. Samples are
+ * drawn on the calling thread from a seeded Random, so the result depends
+ * only on the seed and not on the number of threads.
+ *
+ * If the covariance matrix degenerates or every point of a generation is
+ * NaN, the search restarts from a random point in the box, up to
+ * maxRestarts times, instead of failing the whole fit.
+ */
+public class ParallelCMAES {
+
+	int populationSize = 25;
+	int maxIterations = 100000;
+	int maxRestarts = 10;
+	int checkFeasibleCount = 1;
+
+	// convergence of the best value between generations, as in
+	// SimpleValueChecker
+	double relativeThreshold = 1e-3;
+	double absoluteThreshold = 1e-6;
+	double stopTolX = 1e-11;
+	double maxCondition = 1e14;
+
+	// stop at this deadline with the best point so far, if not null
+	Deadline deadline;
+
+	Random rnd;
+	ExecutorService executor;
+	int numTasks;
+
+	// counters for the last run
+	int numEvaluations;
+	int numGenerations;
+	int numRestarts;
+
+	/**
+	 * @param seed
+	 * @param executor
+	 *            evaluates the population; if null, it is evaluated on the
+	 *            calling thread
+	 */
+	public ParallelCMAES(long seed, ExecutorService executor) {
+		this.rnd = new Random(seed);
+		this.executor = executor;
+		this.numTasks = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param function
+	 * @param start
+	 *            starting point, or null for a random point in the box
+	 * @param sigma
+	 *            initial step size per dimension, or null for 0.3 of the
+	 *            width of the box
+	 * @param lb
+	 * @param ub
+	 * @return the best point found
+	 */
+	public double[] maximize(MultivariateFunction function, double[] start,
+			double[] sigma, double[] lb, double[] ub) {
+
+		numEvaluations = 0;
+		numGenerations = 0;
+		numRestarts = 0;
+
+		int n = lb.length;
+		double[] width = new double[n];
+		for (int i = 0; i < n; i++) {
+			width[i] = ub[i] - lb[i];
+		}
+
+		double[] normSigma = new double[n];
+		for (int i = 0; i < n; i++) {
+			normSigma[i] = sigma == null ? 0.3 : sigma[i] / width[i];
+		}
+
+		double[] normStart = new double[n];
+		for (int i = 0; i < n; i++) {
+			normStart[i] = start == null ? rnd.nextDouble()
+					: (start[i] - lb[i]) / width[i];
+		}
+
+		Best best = new Best();
+		while (true) {
+			try {
+				run(function, normStart, normSigma, lb, width, best);
+				break;
+			} catch (RestartException e) {
+				if (numRestarts >= maxRestarts) {
+					System.err.printf("CMA-ES giving up after %d restarts: %s\n",
+							numRestarts, e.getMessage());
+					break;
+				}
+				numRestarts++;
+				System.err.printf("CMA-ES restarting: %s\n", e.getMessage());
+				for (int i = 0; i < n; i++) {
+					normStart[i] = rnd.nextDouble();
+				}
+			}
+		}
+
+		if (best.point == null)
+			throw new IllegalStateException("CMA-ES found no finite value");
+		return decode(best.point, lb, width);
+	}
+
+	void run(MultivariateFunction function, double[] xmean, double[] insigma,
+			double[] lb, double[] width, Best best) {
+
+		int n = xmean.length;
+		int lambda = populationSize;
+		int mu = lambda / 2;
+
+		double[] weights = new double[mu];
+		double sumWeights = 0;
+		for (int i = 0; i < mu; i++) {
+			weights[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+			sumWeights += weights[i];
+		}
+		double sumSquares = 0;
+		for (int i = 0; i < mu; i++) {
+			weights[i] /= sumWeights;
+			sumSquares += weights[i] * weights[i];
+		}
+		double mueff = 1 / sumSquares;
+
+		double cc = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+		double cs = (mueff + 2) / (n + mueff + 5);
+		double c1 = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+		double cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff)
+				/ ((n + 2) * (n + 2) + mueff));
+		double damps = 1 + 2 * Math.max(0, Math.sqrt((mueff - 1) / (n + 1)) - 1)
+				+ cs;
+		double chiN = Math.sqrt(n) * (1 - 1.0 / (4 * n) + 1.0 / (21 * n * n));
+
+		// overall step size and initial covariance from the per-dimension
+		// step sizes
+		double sigma = 0;
+		for (double s : insigma) {
+			sigma = Math.max(sigma, s);
+		}
+		double[][] C = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			C[i][i] = (insigma[i] / sigma) * (insigma[i] / sigma);
+		}
+
+		double[] mean = xmean.clone();
+		double[] pc = new double[n];
+		double[] ps = new double[n];
+		double[][] B = new double[n][n];
+		double[] D = new double[n];
+		decompose(C, B, D);
+
+		double[][] arz = new double[lambda][n];
+		double[][] arx = new double[lambda][n];
+		double[][] repaired = new double[lambda][];
+		double[] fitness = new double[lambda];
+
+		double previousBest = Double.NaN;
+		for (int iteration = 0; iteration < maxIterations; iteration++) {
+			if (best.point != null && deadline != null
+					&& deadline.isExpired())
+				return;
+			numGenerations++;
+
+			// sample
+			for (int k = 0; k < lambda; k++) {
+				for (int attempt = 0; attempt <= checkFeasibleCount; attempt++) {
+					for (int i = 0; i < n; i++) {
+						arz[k][i] = rnd.nextGaussian();
+					}
+					for (int i = 0; i < n; i++) {
+						double sum = 0;
+						for (int j = 0; j < n; j++) {
+							sum += B[i][j] * D[j] * arz[k][j];
+						}
+						arx[k][i] = mean[i] + sigma * sum;
+					}
+					if (isFeasible(arx[k]))
+						break;
+				}
+				repaired[k] = repair(arx[k]);
+			}
+
+			// evaluate
+			double[] values = evaluate(function, repaired, lb, width);
+			int numFinite = 0;
+			for (int k = 0; k < lambda; k++) {
+				double value = values[k];
+				if (Double.isNaN(value)) {
+					fitness[k] = Double.NEGATIVE_INFINITY;
+					continue;
+				}
+				numFinite++;
+				if (value > best.value || best.point == null) {
+					best.value = value;
+					best.point = repaired[k].clone();
+				}
+				double penalty = 0;
+				for (int i = 0; i < n; i++) {
+					penalty += Math.abs(arx[k][i] - repaired[k][i]);
+				}
+				fitness[k] = value - penalty * Math.max(1, Math.abs(value));
+			}
+			if (numFinite == 0)
+				throw new RestartException("every point was NaN");
+
+			// select
+			Integer[] order = new Integer[lambda];
+			for (int k = 0; k < lambda; k++) {
+				order[k] = k;
+			}
+			final double[] sortKey = fitness;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(sortKey[b], sortKey[a]);
+				}
+			});
+			double generationBest = fitness[order[0]];
+
+			// recombine
+			double[] oldMean = mean.clone();
+			double[] zmean = new double[n];
+			Arrays.fill(mean, 0);
+			for (int r = 0; r < mu; r++) {
+				int k = order[r];
+				for (int i = 0; i < n; i++) {
+					mean[i] += weights[r] * arx[k][i];
+					zmean[i] += weights[r] * arz[k][i];
+				}
+			}
+
+			// cumulation: ps uses B * zmean = C^(-1/2) (mean - oldMean) / sigma
+			double psNorm = 0;
+			for (int i = 0; i < n; i++) {
+				double bz = 0;
+				for (int j = 0; j < n; j++) {
+					bz += B[i][j] * zmean[j];
+				}
+				ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs) * mueff)
+						* bz;
+				psNorm += ps[i] * ps[i];
+			}
+			psNorm = Math.sqrt(psNorm);
+			boolean hsig = psNorm
+					/ Math.sqrt(1 - Math.pow(1 - cs, 2 * (iteration + 1)))
+					/ chiN < 1.4 + 2.0 / (n + 1);
+			for (int i = 0; i < n; i++) {
+				pc[i] = (1 - cc) * pc[i]
+						+ (hsig ? Math.sqrt(cc * (2 - cc) * mueff)
+								* (mean[i] - oldMean[i]) / sigma : 0);
+			}
+
+			// covariance update, rank one and rank mu
+			double oldScale = 1 - c1 - cmu + (hsig ? 0 : c1 * cc * (2 - cc));
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j <= i; j++) {
+					double rankMu = 0;
+					for (int r = 0; r < mu; r++) {
+						int k = order[r];
+						rankMu += weights[r] * (arx[k][i] - oldMean[i])
+								* (arx[k][j] - oldMean[j]);
+					}
+					C[i][j] = oldScale * C[i][j] + c1 * pc[i] * pc[j] + cmu
+							* rankMu / (sigma * sigma);
+					C[j][i] = C[i][j];
+				}
+			}
+
+			sigma *= Math.exp((cs / damps) * (psNorm / chiN - 1));
+
+			decompose(C, B, D);
+			double maxD = 0;
+			double minD = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				maxD = Math.max(maxD, D[i]);
+				minD = Math.min(minD, D[i]);
+			}
+			if (!(maxD > 0) || Double.isInfinite(maxD) || Double.isNaN(sigma))
+				throw new RestartException("degenerate covariance");
+			if (maxD * maxD > maxCondition * minD * minD) {
+				// cap the condition number, as commons-math does
+				double add = maxD * maxD / maxCondition - minD * minD;
+				for (int i = 0; i < n; i++) {
+					C[i][i] += add;
+				}
+				decompose(C, B, D);
+			}
+
+			// stopping criteria
+			if (iteration > 0
+					&& converged(previousBest, generationBest))
+				return;
+			previousBest = generationBest;
+
+			double maxStd = 0;
+			for (int i = 0; i < n; i++) {
+				maxStd = Math.max(maxStd, sigma * Math.sqrt(C[i][i]));
+			}
+			if (maxStd < stopTolX)
+				return;
+		}
+	}
+
+	boolean converged(double previous, double current) {
+		double difference = Math.abs(previous - current);
+		double size = Math.max(Math.abs(previous), Math.abs(current));
+		return difference <= size * relativeThreshold
+				|| difference <= absoluteThreshold;
+	}
+
+	/**
+	 * Evaluate the points, split into up to numTasks blocks
+	 */
+	double[] evaluate(final MultivariateFunction function,
+			double[][] normPoints, double[] lb, double[] width) {
+
+		final double[][] points = new double[normPoints.length][];
+		for (int k = 0; k < points.length; k++) {
+			points[k] = decode(normPoints[k], lb, width);
+		}
+		numEvaluations += points.length;
+
+		if (executor == null || numTasks <= 1)
+			return evaluateBlock(function, points);
+
+		int tasks = Math.min(numTasks, points.length);
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		for (int t = 0; t < tasks; t++) {
+			final int start = points.length * t / tasks;
+			final int end = points.length * (t + 1) / tasks;
+			futures.add(executor.submit(new Callable<double[]>() {
+				public double[] call() {
+					return evaluateBlock(function,
+							Arrays.copyOfRange(points, start, end));
+				}
+			}));
+		}
+
+		double[] values = new double[points.length];
+		try {
+			int index = 0;
+			for (Future<double[]> future : futures) {
+				for (double value : future.get()) {
+					values[index++] = value;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		return values;
+	}
+
+	static double[] evaluateBlock(MultivariateFunction function,
+			double[][] points) {
+		if (function instanceof MultiPointFunction)
+			return ((MultiPointFunction) function).values(points);
+
+		double[] values = new double[points.length];
+		for (int k = 0; k < points.length; k++) {
+			values[k] = function.value(points[k]);
+		}
+		return values;
+	}
+
+	static boolean isFeasible(double[] x) {
+		for (double xi : x) {
+			if (xi < 0 || xi > 1)
+				return false;
+		}
+		return true;
+	}
+
+	static double[] repair(double[] x) {
+		double[] repaired = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			repaired[i] = Math.min(Math.max(x[i], 0), 1);
+		}
+		return repaired;
+	}
+
+	static double[] decode(double[] x, double[] lb, double[] width) {
+		double[] point = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			point[i] = lb[i] + x[i] * width[i];
+		}
+		return point;
+	}
+
+	/**
+	 * C = B diag(D^2) B'
+	 */
+	static void decompose(double[][] C, double[][] B, double[] D) {
+		int n = D.length;
+		RealMatrix matrix = new Array2DRowRealMatrix(C);
+		EigenDecomposition eigen;
+		try {
+			eigen = new EigenDecomposition(matrix);
+		} catch (MathIllegalStateException e) {
+			throw new RestartException(e.getMessage());
+		}
+		RealMatrix V = eigen.getV();
+		double[] eigenvalues = eigen.getRealEigenvalues();
+		for (int i = 0; i < n; i++) {
+			D[i] = Math.sqrt(Math.max(eigenvalues[i], 0));
+			for (int j = 0; j < n; j++) {
+				B[i][j] = V.getEntry(i, j);
+			}
+		}
+	}
+
+	public int getNumEvaluations() {
+		return numEvaluations;
+	}
+
+	public int getNumGenerations() {
+		return numGenerations;
+	}
+
+	public int getNumRestarts() {
+		return numRestarts;
+	}
+
+	static class Best {
+		double[] point = null;
+		double value = Double.NEGATIVE_INFINITY;
+	}
+
+	static class RestartException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		RestartException(String message) {
+			super(message);
+		}
+	}
+
+}
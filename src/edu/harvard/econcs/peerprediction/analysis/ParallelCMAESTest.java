@@ -0,0 +1,96 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.junit.Test;
+
+public class ParallelCMAESTest {
+
+	static final double[] lb = new double[] { 0, 0, 0, 1 };
+	static final double[] ub = new double[] { 1, 1, 1, 10 };
+	static final double[] optimum = new double[] { 0.4, 0.7, 0.6, 3 };
+
+	MultivariateFunction quadratic = new MultivariateFunction() {
+		public double value(double[] point) {
+			double value = 0;
+			for (int i = 0; i < point.length; i++) {
+				double scaled = (point[i] - optimum[i]) / (ub[i] - lb[i]);
+				value -= scaled * scaled;
+			}
+			return value;
+		}
+	};
+
+	ParallelCMAES tightOptimizer(long seed, ExecutorService executor) {
+		ParallelCMAES optimizer = new ParallelCMAES(seed, executor);
+		optimizer.relativeThreshold = 0;
+		optimizer.absoluteThreshold = 1e-14;
+		return optimizer;
+	}
+
+	@Test
+	public void testFindsOptimum() {
+		double[] point = tightOptimizer(1503, null).maximize(quadratic, null,
+				null, lb, ub);
+		assertArrayEquals(optimum, point, 1e-3);
+	}
+
+	@Test
+	public void testStaysInBounds() {
+		// unconstrained optimum outside the box
+		final double[] outside = new double[] { -1, 2, 0.5, 20 };
+		MultivariateFunction function = new MultivariateFunction() {
+			public double value(double[] point) {
+				double value = 0;
+				for (int i = 0; i < point.length; i++) {
+					value -= (point[i] - outside[i]) * (point[i] - outside[i]);
+				}
+				return value;
+			}
+		};
+		double[] point = tightOptimizer(7, null).maximize(function, null,
+				null, lb, ub);
+		assertArrayEquals(new double[] { 0, 1, 0.5, 10 }, point, 1e-3);
+	}
+
+	@Test
+	public void testSameResultForAnyNumberOfThreads() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			double[] serial = tightOptimizer(42, null).maximize(quadratic,
+					null, null, lb, ub);
+			ParallelCMAES optimizer = tightOptimizer(42, executor);
+			optimizer.numTasks = 4;
+			double[] parallel = optimizer.maximize(quadratic, null, null, lb,
+					ub);
+			assertArrayEquals(serial, parallel, 0.0);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRestartsInsteadOfExiting() {
+		// NaN everywhere except near the optimum
+		MultivariateFunction function = new MultivariateFunction() {
+			public double value(double[] point) {
+				double value = quadratic.value(point);
+				return value < -0.05 ? Double.NaN : value;
+			}
+		};
+		ParallelCMAES optimizer = tightOptimizer(3, null);
+		optimizer.populationSize = 4;
+		optimizer.maxRestarts = 200;
+		double[] point = optimizer.maximize(function, new double[] { 0.95,
+				0.05, 0.05, 9.5 }, null, lb, ub);
+		assertTrue(optimizer.getNumRestarts() > 0);
+		assertEquals(0, quadratic.value(point), 1e-4);
+	}
+
+}
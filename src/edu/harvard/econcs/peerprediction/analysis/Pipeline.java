@@ -0,0 +1,278 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A graph of analysis stages, each computed from the outputs of the stages
+ * it names as inputs.
+ *
+ * The hash of a stage covers its name, its settings and the hashes of its
+ * inputs, so it changes whenever anything upstream of it changes. A stage
+ * with no inputs should include a digest of the data it reads in its
+ * settings. The outputs of cached stages are serialized to the cache
+ * directory under their hash and read back on the next run with the same
+ * hash. A stage whose output is read back does not need its inputs, so the
+ * stages above it are only run if something else needs them.
+ *
+ * Stages run as soon as their inputs are in, so stages that do not depend on
+ * each other run in parallel.
+ */
+public class Pipeline {
+
+	/**
+	 * One step of the analysis
+	 */
+	abstract static class Stage {
+		final String name;
+		final String[] inputs;
+
+		Stage(String name, String... inputs) {
+			this.name = name;
+			this.inputs = inputs;
+		}
+
+		/**
+		 * The settings that change the output, as part of the hash
+		 */
+		String getSettings() {
+			return "";
+		}
+
+		/**
+		 * Whether the output is kept in the cache directory. It must then be
+		 * Serializable.
+		 */
+		boolean isCached() {
+			return false;
+		}
+
+		/**
+		 * @param inputs
+		 *            the outputs of the input stages, in the order they are
+		 *            named
+		 */
+		abstract Object run(Object[] inputs) throws Exception;
+	}
+
+	final File cacheDir;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+
+	// in the order added, which is a topological order
+	final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	final Map<String, String> hashes = new HashMap<String, String>();
+	// the stages run by the last call to run, and those read from the cache
+	final List<String> ran = new ArrayList<String>();
+	final List<String> loaded = new ArrayList<String>();
+
+	public Pipeline(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Add a stage after all of its inputs
+	 */
+	public Pipeline add(Stage stage) {
+		if (stages.containsKey(stage.name))
+			throw new IllegalArgumentException("Duplicate stage " + stage.name);
+		MessageDigest digest = ModelCache.sha1();
+		digest.update(stage.name.getBytes(ModelCache.UTF8));
+		digest.update((byte) '|');
+		digest.update(stage.getSettings().getBytes(ModelCache.UTF8));
+		for (String input : stage.inputs) {
+			if (!stages.containsKey(input))
+				throw new IllegalArgumentException("Stage " + stage.name
+						+ " needs " + input + ", which is not added before it");
+			digest.update((byte) '|');
+			digest.update(hashes.get(input).getBytes(ModelCache.UTF8));
+		}
+		stages.put(stage.name, stage);
+		hashes.put(stage.name, ModelCache.toHex(digest.digest()));
+		return this;
+	}
+
+	File getFile(Stage stage) {
+		return new File(cacheDir, stage.name + "-" + hashes.get(stage.name)
+				+ ".ser");
+	}
+
+	/**
+	 * Run the stages that are neither cached nor only needed by cached ones
+	 *
+	 * @return the output of every stage that was run or read from the cache
+	 */
+	public Map<String, Object> run() throws IOException {
+		ran.clear();
+		loaded.clear();
+		final Map<String, Object> outputs = new HashMap<String, Object>();
+
+		// Read back cached outputs, from the last stage up, skipping the
+		// stages that no stage left to run needs
+		List<String> order = new ArrayList<String>(stages.keySet());
+		Set<String> needed = new HashSet<String>();
+		Set<String> toRun = new HashSet<String>();
+		Set<String> dependedOn = new HashSet<String>();
+		for (Stage stage : stages.values()) {
+			for (String input : stage.inputs) {
+				dependedOn.add(input);
+			}
+		}
+		for (int i = order.size() - 1; i >= 0; i--) {
+			Stage stage = stages.get(order.get(i));
+			if (!needed.contains(stage.name) && dependedOn.contains(stage.name))
+				continue;
+			Object cached = stage.isCached() ? read(getFile(stage)) : null;
+			if (cached != null) {
+				outputs.put(stage.name, cached);
+				loaded.add(stage.name);
+				continue;
+			}
+			toRun.add(stage.name);
+			for (String input : stage.inputs) {
+				needed.add(input);
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				numThreads));
+		CompletionService<String> completion = new ExecutorCompletionService<String>(
+				executor);
+		Set<String> submitted = new HashSet<String>();
+		try {
+			int running = 0;
+			while (true) {
+				for (String name : order) {
+					if (!toRun.contains(name) || submitted.contains(name)
+							|| !hasInputs(stages.get(name), outputs))
+						continue;
+					final Stage stage = stages.get(name);
+					final Object[] inputs = new Object[stage.inputs.length];
+					synchronized (outputs) {
+						for (int k = 0; k < inputs.length; k++) {
+							inputs[k] = outputs.get(stage.inputs[k]);
+						}
+					}
+					completion.submit(new Callable<String>() {
+						public String call() throws Exception {
+							Object output = stage.run(inputs);
+							if (stage.isCached())
+								write(getFile(stage), output);
+							synchronized (outputs) {
+								outputs.put(stage.name, output);
+							}
+							return stage.name;
+						}
+					});
+					submitted.add(name);
+					running++;
+				}
+				if (running == 0)
+					break;
+				Future<String> done = completion.take();
+				running--;
+				ran.add(done.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return outputs;
+	}
+
+	boolean hasInputs(Stage stage, Map<String, Object> outputs) {
+		synchronized (outputs) {
+			for (String input : stage.inputs) {
+				if (!outputs.containsKey(input))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the cached output, or null if there is no readable one
+	 */
+	static Object read(File file) {
+		if (!file.exists())
+			return null;
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			return in.readObject();
+		} catch (Exception e) {
+			System.err.printf("Ignoring unreadable cache entry %s\n", file);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Written to a temporary file and renamed, as in ModelCache
+	 */
+	static void write(File file, Object output) throws IOException {
+		if (!(output instanceof Serializable))
+			throw new IllegalArgumentException("The output of a cached stage"
+					+ " must be Serializable");
+		File dir = file.getParentFile();
+		dir.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeObject(output);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Digest of a file's contents, for the settings of a stage that reads it
+	 */
+	static String digest(File file) throws IOException {
+		MessageDigest digest = ModelCache.sha1();
+		digest.update(Files.readAllBytes(file.toPath()));
+		return ModelCache.toHex(digest.digest());
+	}
+
+}
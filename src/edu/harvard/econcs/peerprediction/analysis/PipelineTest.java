@@ -0,0 +1,127 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PipelineTest {
+
+	int numFits;
+
+	/**
+	 * data, then a cached fit with a setting, then two reports
+	 */
+	Pipeline build(File dir, final String data, final int setting,
+			final String reportOption) {
+		Pipeline pipeline = new Pipeline(dir);
+		pipeline.add(new Pipeline.Stage("data") {
+			String getSettings() {
+				return data;
+			}
+
+			Object run(Object[] inputs) {
+				return data;
+			}
+		});
+		pipeline.add(new Pipeline.Stage("fit", "data") {
+			String getSettings() {
+				return "setting=" + setting;
+			}
+
+			boolean isCached() {
+				return true;
+			}
+
+			Object run(Object[] inputs) {
+				numFits++;
+				return new double[] { ((String) inputs[0]).length() * setting };
+			}
+		});
+		pipeline.add(new Pipeline.Stage("report", "fit") {
+			String getSettings() {
+				return reportOption;
+			}
+
+			Object run(Object[] inputs) {
+				return reportOption + ((double[]) inputs[0])[0];
+			}
+		});
+		return pipeline;
+	}
+
+	@Test
+	public void testCachedStagesAreReused() throws IOException {
+		File dir = Files.createTempDirectory("pipeline").toFile();
+
+		Map<String, Object> outputs = build(dir, "abc", 2, "red").run();
+		assertEquals("red6.0", outputs.get("report"));
+		assertEquals(1, numFits);
+
+		// a report option does not fit again, nor read the data
+		Pipeline pipeline = build(dir, "abc", 2, "blue");
+		outputs = pipeline.run();
+		assertEquals("blue6.0", outputs.get("report"));
+		assertEquals(1, numFits);
+		assertEquals(Arrays.asList("report"), pipeline.ran);
+		assertEquals(Arrays.asList("fit"), pipeline.loaded);
+
+		// new data or a new setting fits again
+		outputs = build(dir, "abcd", 2, "blue").run();
+		assertEquals("blue8.0", outputs.get("report"));
+		assertEquals(2, numFits);
+		outputs = build(dir, "abcd", 3, "blue").run();
+		assertEquals("blue12.0", outputs.get("report"));
+		assertEquals(3, numFits);
+	}
+
+	@Test
+	public void testIndependentStagesRunInParallel() throws IOException {
+		final CountDownLatch latch = new CountDownLatch(2);
+		Pipeline pipeline = new Pipeline(Files.createTempDirectory("pipeline")
+				.toFile());
+		pipeline.numThreads = 2;
+		pipeline.add(new Pipeline.Stage("data") {
+			Object run(Object[] inputs) {
+				return 1;
+			}
+		});
+		for (String name : new String[] { "left", "right" }) {
+			pipeline.add(new Pipeline.Stage(name, "data") {
+				Object run(Object[] inputs) throws InterruptedException {
+					// each waits for the other to start
+					latch.countDown();
+					return latch.await(5, TimeUnit.SECONDS);
+				}
+			});
+		}
+		Map<String, Object> outputs = pipeline.run();
+		assertTrue((Boolean) outputs.get("left"));
+		assertTrue((Boolean) outputs.get("right"));
+		assertEquals("data", pipeline.ran.get(0));
+	}
+
+	@Test
+	public void testInputsMustBeAddedFirst() {
+		Pipeline pipeline = new Pipeline(new File("."));
+		try {
+			pipeline.add(new Pipeline.Stage("fit", "data") {
+				Object run(Object[] inputs) {
+					return null;
+				}
+			});
+			fail("A stage before its inputs should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+}
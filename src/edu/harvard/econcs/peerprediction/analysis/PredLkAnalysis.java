@@ -1,21 +1,28 @@
 package edu.harvard.econcs.peerprediction.analysis;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.andrewmao.models.games.BWToleranceLearner;
 import net.andrewmao.models.games.SigActObservation;
 import be.ac.ulg.montefiore.run.jahmm.Hmm;
 
+import com.google.common.base.Function;
+
 public class PredLkAnalysis {
 
 	static String rootDir = "/Users/alicexigao/Dropbox/peer-prediction/data/"
@@ -28,9 +35,16 @@ public class PredLkAnalysis {
 	//	 static String treatment = "prior2-constant";
 	
 	static int numFolds = 10;
+	// stratum of a game when dividing into folds, e.g.
+	// Folds.BY_CONVERGENCE_TYPE, or null
+	static Function<Game, String> foldStrata = null;
+	static Folds.Remainder foldRemainder = Folds.Remainder.DROP;
 	static double randomLogLk; 
 	static Random randForShuffle = new Random();
 	static int foldIndex;
+	// full data fits for warm starts, by model cache key
+	static Map<String, double[]> fullDataFits = new ConcurrentHashMap<String, double[]>();
+	static ConcurrentHashMap<String, Object> fullDataLocks = new ConcurrentHashMap<String, Object>();
 	
 	static double trainingLoglk;
 	static double testLoglk;
@@ -48,29 +62,43 @@ public class PredLkAnalysis {
 		LogReader.printTreatmentInfo();
 
 		if (args.length < 4) {
-			System.err.println("Please provide the arguments: treatment, model, seed, foldIndex");
+			System.err.println("Please provide the arguments: treatment, model, seed, foldIndex"
+					+ " and optionally a time budget in minutes");
 			System.exit(0);
 		}
 
 		treatment = args[0];
-		String model = args[1];
+		final String model = args[1];
 		long seed = Long.parseLong(args[2]);
 		foldIndex = Integer.parseInt(args[3]);
+		FitSettings settings = new FitSettings();
+		if (args.length > 4)
+			settings.deadline = new Deadline(Long.parseLong(args[4]) * 60 * 1000);
 		
 		randForShuffle.setSeed(seed);
+		settings.seed = seed;
+		Utils.rand.setSeed(seed);
+		settings.modelCache = new ModelCache(new File(rootDir + "modelCache"));
+		settings.logLkCache = new LogLkCache(100000);
 		
 		randomLogLk = getLogLkRandomModel();
 		
+		// the fit draws its random restarts as LocalTaskRunner and the
+		// daemon do, so every entry point gives the same fold the same result
 		printCurrentDateTime();
-		getPredictiveLogLk(model);
+		AnalysisContext.current().withSeed(seed).withSettings(settings)
+				.forFit(model, foldIndex).call(new Callable<Void>() {
+					public Void call() throws IOException {
+						getPredictiveLogLk(model);
+						return null;
+					}
+				});
 		printCurrentDateTime();
+		System.out.println("Log likelihood cache: " + settings.logLkCache);
 		
-		String logDir = String.format("/global/scratch/alicegao%spplogs%s%s-%s-%d-%d.log", 
-				separator, separator, treatment, model, seed, foldIndex);
-		BufferedWriter writer = new BufferedWriter(new FileWriter(logDir, true));
-		writer.write(String.format("%d,%d,%.2f,%.2f\n", seed, foldIndex, trainingLoglk, testLoglk));
-		writer.flush();
-		writer.close();
+		writeLog(treatment, model, seed, foldIndex, formatResult(seed,
+				foldIndex, trainingLoglk, testLoglk,
+				settings.isBudgetExhausted()));
 		
 		// models: HMM, s1, s4, s2-abs, s2-rel, s3-abs, s3-rel
 
@@ -87,44 +115,116 @@ public class PredLkAnalysis {
 //		TeePrintStream tee = new TeePrintStream(f, System.out);
 //		System.setOut(tee);
 
+		double[] loglks = getPredictiveLogLk(model, foldIndex, randForShuffle,
+				randomLogLk);
+		trainingLoglk = loglks[0];
+		testLoglk = loglks[1];
+	}
+
+	/**
+	 * Fit model on the training set of one fold and score it on the test
+	 * set
+	 *
+	 * @param rnd
+	 *            draws the permutation of the games
+	 * @return the training log likelihood, and the test log likelihood minus
+	 *         randomLogLk
+	 */
+	static double[] getPredictiveLogLk(String model, int foldIndex,
+			Random rnd, double randomLogLk) {
+
 		System.out.println("Get predictive likelihood for " + model);
 		System.out.printf("number of folds per round: %d\n", numFolds);
 		
-		Collections.shuffle(LogReader.expSet.games, randForShuffle);
-
 		System.out.printf("Fold %d:\n", foldIndex);
 
-		// Divide up data into test and training sets
-		List<Game> testSet = new ArrayList<Game>();
-		List<Game> trainingSet = new ArrayList<Game>();
-		int groupSize = LogReader.expSet.games.size() / PredLkAnalysis.numFolds;
-		int testStart = foldIndex * groupSize;
-		for (int j = 0; j < PredLkAnalysis.numFolds * groupSize; j++) {
-			if (j >= testStart && j < testStart + groupSize) {
-				testSet.add(LogReader.expSet.games.get(j));
-			} else {
-				trainingSet.add(LogReader.expSet.games.get(j));
-			}
-		}
+		// Divide up data into test and training sets, without shuffling or
+		// copying the games
+		Folds folds = getFolds(AnalysisContext.experiment().games, rnd);
+		List<Game> trainingSet = folds.trainingSet(foldIndex);
 
-		// Estimate best parameters on training set
-		Map<String, Object> bestParam = estimateParams(model, trainingSet);
-		trainingLoglk = LearningModelsCustom.computeLogLk(model, bestParam, trainingSet);
-		shiftToEquivalentParams(bestParam);
+		// Estimate best parameters on training set, and score both sets
+		// with one pass over the games
+		double[] point = estimatePoint(model, trainingSet);
+		GameLogLks gameLogLks = GameLogLks.get(model, point, folds.games);
+		double trainingLoglk = gameLogLks.trainingLogLks(folds)[foldIndex];
+		Map<String, Object> bestParam = pointToParams(model, point);
+		if (model.equals("s5"))
+			shiftToEquivalentParams(bestParam);
 		System.out.println("Best parameters: ");
 		if (!model.equals("HMM"))
 			Utils.printParams(bestParam);
 
 		// Compute loglk on test set
-		testLoglk = getTestLogLk(model, bestParam, testSet) - randomLogLk;
+		double testLoglk = gameLogLks.sum(folds.testSet(foldIndex))
+				- randomLogLk;
 		System.out.printf("\n\n"
 				+ "Fold: %d of %d\n"
 				+ "Training loglk = %.2f\n"
 				+ "Test loglk = %.2f\n", 
 				foldIndex, numFolds, trainingLoglk, testLoglk);
+		return new double[] { trainingLoglk, testLoglk };
+	}
+
+	/**
+	 * Append the result line of a fold to its log file in the log
+	 * directory, where ResultsGatherLogs reads it
+	 */
+	static void writeLog(String treatment, String model, long seed,
+			int foldIndex, String result) throws IOException {
+		File logFile = new File(getLogDir(), String.format("%s-%s-%d-%d.log",
+				treatment, model, seed, foldIndex));
+		BufferedWriter writer = new BufferedWriter(new FileWriter(logFile, true));
+		writer.write(result);
+		writer.flush();
+		writer.close();
+	}
+
+	/**
+	 * The directory of the fold logs, set by the system property
+	 * ppanalysis.logDir
+	 */
+	static File getLogDir() {
+		String separator = System.getProperty("file.separator");
+		return new File(System.getProperty("ppanalysis.logDir",
+				"/global/scratch/alicegao" + separator + "pplogs"));
+	}
+
+	/**
+	 * One line of a fold's log file, as read by ResultsGatherLogs
+	 */
+	static String formatResult(long seed, int foldIndex,
+			double trainingLoglk, double testLoglk, boolean budgetExhausted) {
+		return String.format("%d,%d,%.2f,%.2f,%s\n", seed, foldIndex,
+				trainingLoglk, testLoglk, budgetExhausted);
+	}
+
+	/**
+	 * The numFolds folds of games under a permutation drawn from rnd,
+	 * stratified by foldStrata
+	 */
+	static Folds getFolds(List<Game> games, Random rnd) {
+		return new Folds(games, numFolds, Folds.permutation(games.size(),
+				rnd), foldStrata, foldRemainder);
+	}
+
+	/**
+	 * The games of fold foldIndex, taking the games in order. The games left
+	 * over after dividing into numFolds equal groups are in neither set.
+	 */
+	static List<Game> getTestSet(List<Game> games, int foldIndex) {
+		return Folds.inOrder(games, numFolds).testSet(foldIndex);
+	}
+
+	static List<Game> getTrainingSet(List<Game> games, int foldIndex) {
+		return Folds.inOrder(games, numFolds).trainingSet(foldIndex);
 	}
 
-	private static void shiftToEquivalentParams(Map<String, Object> params) {
+	/**
+	 * Swap the custom and MM strategies of s5 if the fit labelled them the
+	 * other way around
+	 */
+	static void shiftToEquivalentParams(Map<String, Object> params) {
 		double mmGivenMMForMM = (Double) params.get("mmGivenMMForMM");
 		double mmGivenGBForMM = (Double) params.get("mmGivenGBForMM");
 		double mmGivenMMForCustom = (Double) params.get("mmGivenMM");
@@ -143,76 +243,266 @@ public class PredLkAnalysis {
 		}
 	}
 
+	/**
+	 * Estimate parameters on the training set, reusing a cached fit of the
+	 * same model on the same training set if there is one
+	 */
 	static Map<String, Object> estimateParams(String model,
 			List<Game> trainingSet) {
+		return pointToParams(model, estimatePoint(model, trainingSet));
+	}
+
+	/**
+	 * estimateParams in the layout of pointToParams
+	 */
+	static double[] estimatePoint(String model, List<Game> trainingSet) {
 	
-		Map<String, Object> params = new HashMap<String, Object>();
+		FitSettings settings = AnalysisContext.settings();
+		String key = ModelCache.key(model, getHyperParams(model),
+				trainingSet, settings.seed);
 	
+		double[] point = null;
+		if (settings.modelCache != null)
+			point = settings.modelCache.lookup(key);
+	
+		if (point != null) {
+			System.out.println("Loaded cached parameters for " + model);
+		} else {
+			double[] start = getWarmStart(model);
+			point = fitParams(model, trainingSet, start);
+			// a bound corner or a fixed point of EM can be the optimum of
+			// both, so this is not an error
+			if (start != null && Arrays.equals(point, start))
+				System.out.println("The fit of " + model
+						+ " is the full data warm start");
+			// a fit cut short by the deadline is not the estimator's result
+			if (settings.isBudgetExhausted()) {
+				System.out.println("Time budget ran out, using the best parameters so far");
+			} else if (settings.modelCache != null) {
+				try {
+					settings.modelCache.store(key, point);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return point;
+	}
+
+	/**
+	 * The point estimatePoint starts the fit of model from: the full data
+	 * fit if warm starts are on, or null. The full data includes the test
+	 * fold, so its optimum is only a starting point. With no time left to
+	 * move off it the fold fit would report it, so it is then not used.
+	 */
+	static double[] getWarmStart(String model) {
+		FitSettings settings = AnalysisContext.settings();
+		if (!settings.warmStart || settings.isExpired())
+			return null;
+		double[] start = getFullDataFit(model);
+		if (start != null && settings.isExpired())
+			return null;
+		return start;
+	}
+
+	/**
+	 * Fit on every game, ordered by ID so that all seeds and folds share one
+	 * fit. It is fitted once per key, under seed 0, so it does not depend on
+	 * which seed or fold needs it first.
+	 *
+	 * @return the fit, or null if the deadline cut it short
+	 */
+	static double[] getFullDataFit(final String model) {
+		final List<Game> allGames = new ArrayList<Game>(AnalysisContext.experiment().games);
+		Collections.sort(allGames, new Comparator<Game>() {
+			public int compare(Game a, Game b) {
+				return a.id.compareTo(b.id);
+			}
+		});
+
+		FitSettings settings = AnalysisContext.settings();
+		Map<String, Object> hyperParams = getHyperParams(model);
+		hyperParams.remove("warmStart");
+		String key = ModelCache.key(model, hyperParams, allGames, 0);
+
+		double[] point = fullDataFits.get(key);
+		if (point != null)
+			return point;
+
+		// callers that need the same fit wait for the first one, and retry
+		// if the deadline cut it short
+		Object lock = new Object();
+		Object existing = fullDataLocks.putIfAbsent(key, lock);
+		if (existing != null)
+			lock = existing;
+		synchronized (lock) {
+			point = fullDataFits.get(key);
+			if (point != null)
+				return point;
+			if (settings.modelCache != null)
+				point = settings.modelCache.lookup(key);
+
+			if (point == null) {
+				System.out.println("Fitting " + model
+						+ " on the full data set for warm starts");
+				try {
+					point = AnalysisContext.current().withSeed(0)
+							.call(new Callable<double[]>() {
+								public double[] call() {
+									return fitParams(model, allGames, null);
+								}
+							});
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+				if (settings.isBudgetExhausted())
+					return null;
+				if (settings.modelCache != null) {
+					try {
+						settings.modelCache.store(key, point);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			fullDataFits.put(key, point);
+			return point;
+		}
+	}
+
+	/**
+	 * Estimator settings that change the result of a fit. These are part of
+	 * the model cache key.
+	 */
+	static Map<String, Object> getHyperParams(String model) {
+		FitSettings settings = AnalysisContext.settings();
+		Map<String, Object> hyperParams = new HashMap<String, Object>();
+		if (model.equals("HMM")) {
+			hyperParams.put("estimator", "baumwelch");
+			hyperParams.put("numStates", HMMAnalysis.numHmmStates);
+			hyperParams.put("numRestarts", HMMAnalysis.numRestarts);
+			hyperParams.put("accelerateBaumWelch",
+					HMMAnalysis.accelerateBaumWelch);
+			hyperParams.put("tol", HMMAnalysis.tol);
+		} else if (model.startsWith("RL") || model.startsWith("SFP")
+				|| model.startsWith("EWA")) {
+			if (settings.existingModelEstimator.equals("lbfgs")) {
+				hyperParams.put("estimator", "lbfgs");
+				hyperParams.put("lbfgsSeed", LearningModelsExisting.lbfgsSeed);
+				hyperParams.put("lbfgsNumStarts",
+						LearningModelsExisting.lbfgsNumStarts);
+			} else {
+				hyperParams.put("estimator", "parallel-cmaes");
+				hyperParams.put("cmaesSeed", LearningModelsExisting.cmaesSeed);
+			}
+		} else if (settings.customModelEstimator.equals("em")
+				&& (model.equals("s1") || model.equals("s4") || model.equals("s5"))) {
+			hyperParams.put("estimator", "em");
+		} else if (settings.customModelEstimator.equals("simplex")) {
+			hyperParams.put("estimator", "simplex");
+			hyperParams.put("simplexMaxEval",
+					LearningModelsCustom.simplexMaxEval);
+		} else {
+			hyperParams.put("estimator", "cobyla");
+		}
+		// only present when on, so existing cache entries stay valid
+		if (settings.warmStart)
+			hyperParams.put("warmStart", settings.warmStartRestarts);
+		Object estimator = hyperParams.get("estimator");
+		if (settings.raceRestarts
+				&& (estimator.equals("cobyla") || estimator.equals("simplex")))
+			hyperParams.put("raceRestarts", true);
+		return hyperParams;
+	}
+
+	static double[] fitParams(String model, List<Game> trainingSet) {
+		return fitParams(model, trainingSet, null);
+	}
+
+	/**
+	 * Fit with the estimator and deadline of AnalysisContext.settings()
+	 *
+	 * @param warmStart
+	 *            point to start the first restart from, or null
+	 */
+	static double[] fitParams(String model, List<Game> trainingSet,
+			double[] warmStart) {
+	
+		FitSettings settings = AnalysisContext.settings();
 		if (model.startsWith("s2") || model.startsWith("s3") 
 				|| model.equals("s1") || model.equals("s4")
 				|| model.equals("s5")) {
 	
-			double[] point = LearningModelsCustom.estimateUsingCobyla(model, trainingSet);
-			params = LearningModelsCustom.pointToMap(model, point);
+			if (settings.customModelEstimator.equals("em")
+					&& !model.startsWith("s2") && !model.startsWith("s3"))
+				return LearningModelsCustom.estimateUsingEM(model, trainingSet,
+						warmStart, settings.deadline);
+			if (settings.customModelEstimator.equals("simplex"))
+				return LearningModelsCustom.estimateUsingSimplex(model,
+						trainingSet, warmStart, settings.deadline);
+			return LearningModelsCustom.estimateUsingCobyla(model, trainingSet,
+					warmStart, settings.deadline);
 	
 		} else if (model.equals("HMM")) {
 	
-			return HMMAnalysis.estimateHMM(trainingSet);
-	
-		} else if (model.equals("RLS")) {
-	
-			double[] point = LearningModelsExisting.estimateUsingApacheOptimizer(trainingSet, "RLS");
+			@SuppressWarnings("unchecked")
+			Hmm<SigActObservation<CandySignal, CandyReport>> bestHmm = (Hmm<SigActObservation<CandySignal, CandyReport>>) HMMAnalysis
+					.estimateHMM(trainingSet, warmStart, settings.deadline)
+					.get("HMM");
+			return HMMAnalysis.hmmToArray(bestHmm);
 	
-			params.put("phi", point[0]);
-			params.put("lambda", point[1]);
-			params.put("considerSignal", true);
+		} else if (model.equals("RLS") || model.equals("RLNS")
+				|| model.equals("SFPS") || model.equals("SFPNS")
+				|| model.equals("EWAS") || model.equals("EWANS")) {
 	
-		} else if (model.equals("RLNS")) {
+			if (settings.existingModelEstimator.equals("lbfgs"))
+				return LearningModelsExisting.estimateUsingLBFGS(trainingSet,
+						model, warmStart, settings.deadline);
+			return LearningModelsExisting.estimateUsingCMAES(trainingSet,
+					model, warmStart, settings.deadline);
 	
-			double[] point = LearningModelsExisting.estimateUsingApacheOptimizer(trainingSet, "RLNS");
+		} else {
+			System.err.println("Model not recognized!");
+			System.exit(0);
+		}
+		return null;
+	}
+
+	static Map<String, Object> pointToParams(String model, double[] point) {
 	
-			params.put("phi", point[0]);
-			params.put("lambda", point[1]);
-			params.put("considerSignal", false);
+		Map<String, Object> params = new HashMap<String, Object>();
 	
-		} else if (model.equals("SFPS")) {
+		if (model.startsWith("s2") || model.startsWith("s3") 
+				|| model.equals("s1") || model.equals("s4")
+				|| model.equals("s5")) {
 	
-			double[] point = LearningModelsExisting.estimateUsingApacheOptimizer(trainingSet, "SFPS");
+			params = LearningModelsCustom.pointToMap(model, point);
 	
-			params.put("rho", point[0]);
-			params.put("lambda", point[1]);
-			params.put("considerSignal", true);
+		} else if (model.equals("HMM")) {
 	
-		} else if (model.equals("SFPNS")) {
+			params.put("HMM", HMMAnalysis.arrayToHmm(point));
 	
-			double[] point = LearningModelsExisting.estimateUsingApacheOptimizer(trainingSet, "SFPNS");
+		} else if (model.equals("RLS") || model.equals("RLNS")) {
 	
-			params.put("rho", point[0]);
+			params.put("phi", point[0]);
 			params.put("lambda", point[1]);
-			params.put("considerSignal", false);
-	
-		} else if (model.equals("EWAS")) {
+			params.put("considerSignal", model.equals("RLS"));
 	
-			double[] point = LearningModelsExisting.estimateUsingApacheOptimizer(trainingSet, "EWAS");
+		} else if (model.equals("SFPS") || model.equals("SFPNS")) {
 	
 			params.put("rho", point[0]);
-			params.put("phi", point[1]);
-			params.put("delta", point[2]);
-			params.put("lambda", point[3]);
-			params.put("considerSignal", true);
-	
-		} else if (model.equals("EWANS")) {
+			params.put("lambda", point[1]);
+			params.put("considerSignal", model.equals("SFPS"));
 	
-			double[] point = LearningModelsExisting.estimateUsingApacheOptimizer(trainingSet, "EWANS");
+		} else if (model.equals("EWAS") || model.equals("EWANS")) {
 	
 			params.put("rho", point[0]);
 			params.put("phi", point[1]);
 			params.put("delta", point[2]);
 			params.put("lambda", point[3]);
-			params.put("considerSignal", false);
-		} else {
-			System.err.println("Model not recognized!");
-			System.exit(0);
+			params.put("considerSignal", model.equals("EWAS"));
 		}
 		return params;
 	}
@@ -252,9 +542,9 @@ public class PredLkAnalysis {
 	}
 
 	static double getLogLkRandomModel() {
-		int groupSize = LogReader.expSet.games.size() / 10;
-		double randomLogLk = Math.log(0.5) * groupSize * LogReader.expSet.numRounds
-				* LogReader.expSet.numPlayers;
+		int groupSize = AnalysisContext.experiment().games.size() / 10;
+		double randomLogLk = Math.log(0.5) * groupSize * AnalysisContext.experiment().numRounds
+				* AnalysisContext.experiment().numPlayers;
 		return randomLogLk;
 	}
 
@@ -0,0 +1,108 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+
+/**
+ * A bootstrap sample of games, given by how many times each game is drawn.
+ *
+ * As a list it holds each game as many times as it was drawn, in the order
+ * of the original list, so every estimator can fit it unchanged. The games
+ * are not copied. EncodedGames and StrategyMixtureEM encode each distinct
+ * game once and weight it by its count, so the kernels of the existing
+ * models and the EM for s1, s4 and s5 do no more work than on the distinct
+ * games.
+ */
+public class ResampledGames extends AbstractList<Game> implements
+		RandomAccess {
+
+	final List<Game> games;
+	final int[] counts;
+	// indices of the games drawn at least once
+	final int[] distinct;
+	// distinct[k] is at positions ends[k - 1] to ends[k] - 1
+	final int[] ends;
+
+	public ResampledGames(List<Game> games, int[] counts) {
+		if (counts.length != games.size())
+			throw new IllegalArgumentException(counts.length
+					+ " counts for " + games.size() + " games");
+		this.games = games;
+		this.counts = counts.clone();
+
+		int numDistinct = 0;
+		for (int count : counts) {
+			if (count < 0)
+				throw new IllegalArgumentException("Negative count " + count);
+			if (count > 0)
+				numDistinct++;
+		}
+		distinct = new int[numDistinct];
+		ends = new int[numDistinct];
+		int k = 0;
+		int end = 0;
+		for (int g = 0; g < counts.length; g++) {
+			if (counts[g] == 0)
+				continue;
+			end += counts[g];
+			distinct[k] = g;
+			ends[k] = end;
+			k++;
+		}
+	}
+
+	/**
+	 * Counts of n games drawn with replacement n times
+	 */
+	public static int[] drawCounts(int n, Random rnd) {
+		int[] counts = new int[n];
+		for (int i = 0; i < n; i++) {
+			counts[rnd.nextInt(n)]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * The games drawn at least once
+	 */
+	public List<Game> getDistinctGames() {
+		List<Game> result = new ArrayList<Game>(distinct.length);
+		for (int g : distinct) {
+			result.add(games.get(g));
+		}
+		return result;
+	}
+
+	/**
+	 * The counts of getDistinctGames
+	 */
+	public int[] getDistinctCounts() {
+		int[] result = new int[distinct.length];
+		for (int k = 0; k < distinct.length; k++) {
+			result[k] = counts[distinct[k]];
+		}
+		return result;
+	}
+
+	@Override
+	public Game get(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("Index " + index + ", size "
+					+ size());
+		// the first k with ends[k] > index
+		int k = Arrays.binarySearch(ends, index + 1);
+		if (k < 0)
+			k = -k - 1;
+		return games.get(distinct[k]);
+	}
+
+	@Override
+	public int size() {
+		return ends.length == 0 ? 0 : ends[ends.length - 1];
+	}
+
+}
@@ -0,0 +1,172 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Racing controller for multi-start optimizers that maximize a log
+ * likelihood.
+ *
+ * The objective function reports every evaluation through record, which
+ * keeps the trace of the best value of the current restart. Once a restart
+ * has run for warmup evaluations, its remaining progress is bounded
+ * optimistically by extrapolating the improvement of the last window
+ * evaluations, scaled up by optimism, over the rest of its evaluation
+ * budget. If even that cannot reach the incumbent, record throws
+ * RaceAbortedException, which the estimator catches to move on to the next
+ * restart. Once the incumbent optimum has been found numHitsToStop times
+ * within hitTolerance, shouldStop tells the estimator not to launch more
+ * restarts.
+ */
+public class RestartRacer {
+
+	int warmup = 200;
+	int window = 100;
+	double optimism = 10;
+	int numHitsToStop = 3;
+	double hitTolerance = 1e-4;
+
+	// evaluation budget of a single restart
+	final int maxEvaluations;
+
+	double incumbent = Double.NEGATIVE_INFINITY;
+	int numHits;
+
+	// best value so far after each evaluation of the current restart
+	double[] trace = new double[256];
+	int traceLength;
+
+	int numRestarts;
+	int numCompleted;
+	int numAborted;
+	int numSkipped;
+	long evaluationsCompleted;
+	long evaluationsAborted;
+
+	public RestartRacer(int maxEvaluations) {
+		this.maxEvaluations = maxEvaluations;
+	}
+
+	public void startRestart() {
+		numRestarts++;
+		traceLength = 0;
+	}
+
+	/**
+	 * Record one evaluation of the current restart
+	 *
+	 * @param loglk
+	 *            the objective value, possibly including penalty terms
+	 * @throws RaceAbortedException
+	 *             if the restart cannot reach the incumbent
+	 */
+	public void record(double loglk) {
+		double best = traceLength == 0 ? loglk : Math.max(
+				trace[traceLength - 1], loglk);
+		if (traceLength == trace.length)
+			trace = Arrays.copyOf(trace, 2 * trace.length);
+		trace[traceLength++] = best;
+
+		if (traceLength < warmup || traceLength < window
+				|| Double.isInfinite(incumbent))
+			return;
+
+		double improvement = best - trace[traceLength - 1 - window];
+		double remaining = maxEvaluations - traceLength;
+		double bound = best + optimism * improvement * remaining / window;
+		if (!(bound >= incumbent - hitTolerance)) {
+			numAborted++;
+			evaluationsAborted += traceLength;
+			throw new RaceAbortedException(best, bound, traceLength);
+		}
+	}
+
+	/**
+	 * The current restart ran to the end with a feasible optimum
+	 */
+	public void finishRestart(double loglk) {
+		numCompleted++;
+		evaluationsCompleted += traceLength;
+
+		if (loglk > incumbent + hitTolerance) {
+			incumbent = loglk;
+			numHits = 1;
+		} else if (loglk >= incumbent - hitTolerance) {
+			incumbent = Math.max(incumbent, loglk);
+			numHits++;
+		}
+	}
+
+	/**
+	 * The current restart ran to the end but its result is thrown away, for
+	 * example because it violates the constraints
+	 */
+	public void discardRestart() {
+		evaluationsCompleted += traceLength;
+	}
+
+	public boolean shouldStop() {
+		return numHits >= numHitsToStop;
+	}
+
+	/**
+	 * Restarts that were never launched because shouldStop was true
+	 */
+	public void skipRestarts(int count) {
+		numSkipped += count;
+	}
+
+	public long getEvaluations() {
+		return evaluationsCompleted + evaluationsAborted;
+	}
+
+	/**
+	 * Estimate of the evaluations saved, taking a completed restart's
+	 * average number of evaluations as the cost of each aborted or skipped
+	 * restart
+	 */
+	public long getEvaluationsSaved() {
+		if (numCompleted == 0)
+			return 0;
+		double average = (double) evaluationsCompleted / numCompleted;
+		double saved = average * (numAborted + numSkipped)
+				- evaluationsAborted;
+		return Math.max(0, Math.round(saved));
+	}
+
+	public int getNumAborted() {
+		return numAborted;
+	}
+
+	public int getNumSkipped() {
+		return numSkipped;
+	}
+
+	public double getIncumbent() {
+		return incumbent;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"restarts=%d, completed=%d, aborted=%d, skipped=%d, "
+						+ "evaluations=%d, saved=%d", numRestarts,
+				numCompleted, numAborted, numSkipped, getEvaluations(),
+				getEvaluationsSaved());
+	}
+
+	/**
+	 * Thrown from inside the objective function to stop the optimizer
+	 */
+	public static class RaceAbortedException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public RaceAbortedException(double best, double bound,
+				int numEvaluations) {
+			super(String.format(
+					"best %.4f, bound %.4f after %d evaluations", best,
+					bound, numEvaluations));
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class RestartRacerTest {
+
+	@Test
+	public void testAbortsStalledRestart() {
+		RestartRacer racer = new RestartRacer(1000);
+		racer.startRestart();
+		for (int t = 0; t < 300; t++) {
+			racer.record(-100 + t * 0.1);
+		}
+		racer.finishRestart(-70);
+
+		// stuck well below the incumbent
+		racer.startRestart();
+		try {
+			for (int t = 0; t < 1000; t++) {
+				racer.record(-90);
+			}
+			fail();
+		} catch (RestartRacer.RaceAbortedException e) {
+			assertEquals(1, racer.getNumAborted());
+		}
+		assertEquals(300 + racer.warmup, racer.getEvaluations());
+	}
+
+	@Test
+	public void testKeepsImprovingRestart() {
+		RestartRacer racer = new RestartRacer(1000);
+		racer.startRestart();
+		racer.record(-70);
+		racer.finishRestart(-70);
+
+		// still far below, but improving fast enough to get there
+		racer.startRestart();
+		for (int t = 0; t < 400; t++) {
+			racer.record(-110 + t * 0.1);
+		}
+		racer.finishRestart(-70.5);
+		assertEquals(0, racer.getNumAborted());
+	}
+
+	@Test
+	public void testStopsAfterRepeatedOptimum() {
+		RestartRacer racer = new RestartRacer(1000);
+		double[] optima = new double[] { -80, -70, -75, -70 + 1e-6, -70 };
+		for (int i = 0; i < optima.length; i++) {
+			assertFalse(racer.shouldStop());
+			racer.startRestart();
+			racer.record(optima[i]);
+			racer.finishRestart(optima[i]);
+		}
+		assertTrue(racer.shouldStop());
+		assertEquals(-70 + 1e-6, racer.getIncumbent(), 0.0);
+
+		racer.skipRestarts(5);
+		assertEquals(5, racer.getEvaluationsSaved());
+	}
+
+}
@@ -27,6 +27,8 @@ public class ResultsWritePBSScript {
 
 		int numFolds = 10;
 		int numRounds = 10;
+		// leave time under the walltime to write the results
+		int budgetMinutes = 690;
 		int totalNum = numRounds*numFolds;
 		BufferedWriter writer = new BufferedWriter(new FileWriter(script));
 		writer.write(String.format("#!/bin/sh\n"
@@ -47,7 +49,8 @@ public class ResultsWritePBSScript {
 			for (int f = 0; f < numFolds; f++) {
 				writer.write(index + ")\n");
 				writer.write(String.format(
-						"java -jar ppanalysis.jar %s %s %s %d;;\n", treatment, model, seed, f));
+						"java -jar ppanalysis.jar %s %s %s %d %d;;\n", treatment,
+						model, seed, f, budgetMinutes));
 				index++;
 			}
 		}
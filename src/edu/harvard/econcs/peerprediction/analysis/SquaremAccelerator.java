@@ -0,0 +1,190 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+/**
+ * Squared extrapolation (SQUAREM, scheme S3 of Varadhan and Roland) around
+ * an EM update map.
+ * 
+ * Each cycle takes two EM steps from the current point, extrapolates along
+ * the first and second differences, projects the extrapolated point back
+ * into the parameter space and takes one more EM step from it. If the
+ * extrapolated point has a lower likelihood than the first EM step, the
+ * cycle falls back to the plain two-step result, so the likelihood never
+ * decreases from cycle to cycle.
+ */
+public class SquaremAccelerator {
+
+	int maxUpdates = 100000;
+	double tolerance = Utils.eps;
+	// stop at this deadline with the last point reached, if not null
+	Deadline deadline;
+
+	// counters for the last run
+	int numCycles;
+	int numUpdates;
+	int numFallbacks;
+	long elapsedNanos;
+	double logLk;
+	boolean converged;
+
+	public SquaremAccelerator() {
+	}
+
+	public SquaremAccelerator(int maxUpdates, double tolerance) {
+		this.maxUpdates = maxUpdates;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Run accelerated EM from start until the relative change in log
+	 * likelihood between cycles is below the tolerance
+	 * 
+	 * @param map
+	 * @param start
+	 *            not modified
+	 * @return the final parameters
+	 */
+	public double[] run(EMUpdate map, double[] start) {
+		long startTime = System.nanoTime();
+		numCycles = 0;
+		numUpdates = 0;
+		numFallbacks = 0;
+		converged = false;
+
+		int n = start.length;
+		double[] theta0 = start.clone();
+		double[] theta1 = new double[n];
+		double[] theta2 = new double[n];
+		double[] thetaPrime = new double[n];
+		double[] thetaNew = new double[n];
+
+		double previousLogLk = Double.NaN;
+		while (numUpdates < maxUpdates) {
+			if (numCycles > 0 && deadline != null && deadline.isExpired())
+				break;
+
+			double logLk0 = map.update(theta0, theta1);
+			double logLk1 = map.update(theta1, theta2);
+			numUpdates += 2;
+
+			if (numCycles > 0
+					&& Math.abs((logLk0 - previousLogLk) / previousLogLk) < tolerance) {
+				logLk = logLk0;
+				converged = true;
+				break;
+			}
+			previousLogLk = logLk0;
+			numCycles++;
+
+			// steplength from the first and second differences
+			double rr = 0;
+			double vv = 0;
+			for (int i = 0; i < n; i++) {
+				double r = theta1[i] - theta0[i];
+				double v = theta2[i] - 2 * theta1[i] + theta0[i];
+				rr += r * r;
+				vv += v * v;
+			}
+			double alpha = vv == 0 ? -1 : -Math.sqrt(rr / vv);
+			if (alpha > -1)
+				alpha = -1;
+
+			for (int i = 0; i < n; i++) {
+				double r = theta1[i] - theta0[i];
+				double v = theta2[i] - 2 * theta1[i] + theta0[i];
+				thetaPrime[i] = theta0[i] - 2 * alpha * r + alpha * alpha * v;
+			}
+			map.project(thetaPrime);
+
+			// stabilizing EM step, which also gives loglk at thetaPrime
+			double logLkPrime = map.update(thetaPrime, thetaNew);
+			numUpdates++;
+
+			if (Double.isNaN(logLkPrime) || logLkPrime < logLk1) {
+				numFallbacks++;
+				System.arraycopy(theta2, 0, theta0, 0, n);
+			} else {
+				System.arraycopy(thetaNew, 0, theta0, 0, n);
+			}
+			logLk = logLk1;
+		}
+
+		elapsedNanos = System.nanoTime() - startTime;
+		return theta0;
+	}
+
+	/**
+	 * Plain EM with the same stopping rule and counters, for comparison
+	 */
+	public double[] runUnaccelerated(EMUpdate map, double[] start) {
+		long startTime = System.nanoTime();
+		numCycles = 0;
+		numUpdates = 0;
+		numFallbacks = 0;
+		converged = false;
+
+		double[] theta = start.clone();
+		double[] next = new double[theta.length];
+		double previousLogLk = Double.NaN;
+		while (numUpdates < maxUpdates) {
+			if (numCycles > 0 && deadline != null && deadline.isExpired())
+				break;
+			double logLkTheta = map.update(theta, next);
+			numUpdates++;
+
+			if (numCycles > 0
+					&& Math.abs((logLkTheta - previousLogLk) / previousLogLk) < tolerance) {
+				logLk = logLkTheta;
+				converged = true;
+				break;
+			}
+			previousLogLk = logLkTheta;
+			logLk = logLkTheta;
+			numCycles++;
+
+			double[] temp = theta;
+			theta = next;
+			next = temp;
+		}
+
+		elapsedNanos = System.nanoTime() - startTime;
+		return theta;
+	}
+
+	public int getNumCycles() {
+		return numCycles;
+	}
+
+	/**
+	 * Number of EM steps taken, the unit of work for comparing runs
+	 */
+	public int getNumUpdates() {
+		return numUpdates;
+	}
+
+	public int getNumFallbacks() {
+		return numFallbacks;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Log likelihood at the returned parameters, or at the last point
+	 * evaluated if the run did not converge
+	 */
+	public double getLogLk() {
+		return logLk;
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	public String toString() {
+		return String.format(
+				"cycles=%d, EM steps=%d, fallbacks=%d, time=%.1fms, loglk=%.5f",
+				numCycles, numUpdates, numFallbacks, elapsedNanos / 1e6, logLk);
+	}
+
+}
@@ -0,0 +1,191 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tables behind the HMM reports, computed in one pass over the decoded
+ * state sequences.
+ *
+ * The state sequences are copied into one matrix with a row per player, in
+ * the order of the games and their players. Going over it game by game and
+ * round by round gives the number of players of each strategy in each
+ * round, the equilibrium type of each game in each round and the number of
+ * games of each type in each round. The rows are then ordered once for the
+ * heat map. The writers only format these tables, so they can run side by
+ * side.
+ */
+public class StateAggregates {
+
+	/**
+	 * Classifies the strategies played in one round of one game
+	 */
+	interface ComboClassifier {
+		/**
+		 * @param numPlayerForStrategy
+		 *            number of players of each strategy in the round
+		 * @return the equilibrium type, or -1 if unclassified
+		 */
+		int comboType(int[] numPlayerForStrategy);
+	}
+
+	final int numStrategies;
+	final int numRounds;
+
+	// one row per player
+	final String[] hitIds;
+	final int[][] states;
+	final double[] bonuses;
+	// the rows of game g are gameStarts[g] to gameStarts[g + 1] - 1
+	final int[] gameStarts;
+	final String[] gameIds;
+
+	// [strategy][round]
+	final int[][] strategyCount;
+	// [game][round]
+	final int[][] comboTypes;
+	// [round][type], the types being the strategies and two more for
+	// prior2-uniquetruthful
+	final int[][] comboTypeCount;
+	// rows in the order of the heat map
+	final int[] heatMapOrder;
+
+	StateAggregates(List<Game> games, int numStrategies, int numRounds,
+			ComboClassifier classifier) {
+		this.numStrategies = numStrategies;
+		this.numRounds = numRounds;
+
+		int numRows = 0;
+		for (Game game : games) {
+			numRows += game.playerHitIds.length;
+		}
+		hitIds = new String[numRows];
+		states = new int[numRows][];
+		bonuses = new double[numRows];
+		gameStarts = new int[games.size() + 1];
+		gameIds = new String[games.size()];
+		strategyCount = new int[numStrategies][numRounds];
+		comboTypes = new int[games.size()][numRounds];
+		comboTypeCount = new int[numRounds][numStrategies + 2];
+
+		int row = 0;
+		int[] numPlayerForStrategy = new int[numStrategies];
+		for (int g = 0; g < games.size(); g++) {
+			Game game = games.get(g);
+			gameIds[g] = game.id;
+			gameStarts[g] = row;
+			for (String hitId : game.playerHitIds) {
+				hitIds[row] = hitId;
+				states[row] = game.stateSeq.get(hitId);
+				Double bonus = game.bonus == null ? null : game.bonus
+						.get(hitId);
+				bonuses[row] = bonus == null ? Double.NaN : bonus;
+				row++;
+			}
+			gameStarts[g + 1] = row;
+
+			for (int roundIndex = 0; roundIndex < numRounds; roundIndex++) {
+				Arrays.fill(numPlayerForStrategy, 0);
+				for (int r = gameStarts[g]; r < row; r++) {
+					numPlayerForStrategy[states[r][roundIndex]]++;
+				}
+				for (int s = 0; s < numStrategies; s++) {
+					strategyCount[s][roundIndex] += numPlayerForStrategy[s];
+				}
+				int type = classifier.comboType(numPlayerForStrategy);
+				comboTypes[g][roundIndex] = type;
+				if (type != -1)
+					comboTypeCount[roundIndex][type]++;
+			}
+		}
+
+		heatMapOrder = heatMapOrder(states, numStrategies);
+	}
+
+	/**
+	 * Rows grouped by the last strategy, then by the first, and within a
+	 * group compared from the second to last round backwards, the order
+	 * writeStrategyChangeHeatMap has always drawn them in. Equal sequences
+	 * keep the order of the games.
+	 *
+	 * The order is that of the sequences read as base numStrategies numbers
+	 * with the last round as the most significant digit, then the first,
+	 * then the rounds from the second to last back to the second. A least
+	 * significant digit radix sort over these digits takes one counting
+	 * pass per round, so it is linear in the number of players for any
+	 * number of strategies and any number of rounds.
+	 */
+	static int[] heatMapOrder(int[][] states, int numStrategies) {
+		int[] order = new int[states.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		if (states.length == 0)
+			return order;
+
+		// rounds from the least to the most significant digit
+		int last = states[0].length - 1;
+		int[] digits = new int[last + 1];
+		int d = 0;
+		for (int round = 1; round < last; round++) {
+			digits[d++] = round;
+		}
+		digits[d++] = 0;
+		if (last > 0)
+			digits[d++] = last;
+
+		int[] sorted = new int[order.length];
+		int[] counts = new int[numStrategies + 1];
+		for (int round : digits) {
+			Arrays.fill(counts, 0);
+			for (int row : order) {
+				counts[states[row][round] + 1]++;
+			}
+			for (int s = 0; s < numStrategies; s++) {
+				counts[s + 1] += counts[s];
+			}
+			for (int row : order) {
+				sorted[counts[states[row][round]]++] = row;
+			}
+			int[] swap = order;
+			order = sorted;
+			sorted = swap;
+		}
+		return order;
+	}
+
+	/**
+	 * Fraction of the players of each strategy in each round
+	 */
+	double[][] getStrategyDistribution(int totalNumPlayers) {
+		double[][] distribution = new double[numStrategies][numRounds];
+		for (int s = 0; s < numStrategies; s++) {
+			for (int roundIndex = 0; roundIndex < numRounds; roundIndex++) {
+				distribution[s][roundIndex] = strategyCount[s][roundIndex]
+						* 1.0 / totalNumPlayers;
+			}
+		}
+		return distribution;
+	}
+
+	/**
+	 * value with the given number of decimals, the same as String.format
+	 * with %.nf but without parsing a format for each number
+	 */
+	static String formatFixed(double value, int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return String.format("%." + decimals + "f", value);
+		BigDecimal rounded = BigDecimal.valueOf(value).setScale(decimals,
+				RoundingMode.HALF_UP);
+		String text = rounded.toPlainString();
+		// String.format keeps the sign of a negative number that rounds to
+		// zero
+		if (rounded.signum() == 0
+				&& (value < 0 || (value == 0 && 1 / value < 0)))
+			return "-" + text;
+		return text;
+	}
+
+}
@@ -0,0 +1,127 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StateAggregatesTest {
+
+	static Game game(String id, int[]... stateSeqs) {
+		Game game = new Game();
+		game.id = id;
+		game.playerHitIds = new String[stateSeqs.length];
+		game.stateSeq = new HashMap<String, int[]>();
+		for (int p = 0; p < stateSeqs.length; p++) {
+			game.playerHitIds[p] = id + "-" + p;
+			game.stateSeq.put(game.playerHitIds[p], stateSeqs[p]);
+		}
+		return game;
+	}
+
+	@Test
+	public void testOnePassTables() {
+		List<Game> games = new ArrayList<Game>();
+		games.add(game("a", new int[] { 0, 1, 1 }, new int[] { 2, 1, 1 }));
+		games.add(game("b", new int[] { 0, 0, 2 }, new int[] { 0, 1, 0 }));
+
+		// everyone on one strategy, or unclassified
+		StateAggregates aggregates = new StateAggregates(games, 3, 3,
+				new StateAggregates.ComboClassifier() {
+					public int comboType(int[] numPlayerForStrategy) {
+						for (int s = 0; s < numPlayerForStrategy.length; s++) {
+							if (numPlayerForStrategy[s] == 2)
+								return s;
+						}
+						return -1;
+					}
+				});
+
+		assertArrayEquals(new int[] { 3, 1, 1 }, aggregates.strategyCount[0]);
+		assertArrayEquals(new int[] { 0, 3, 2 }, aggregates.strategyCount[1]);
+		assertArrayEquals(new int[] { 1, 0, 1 }, aggregates.strategyCount[2]);
+		assertArrayEquals(new int[] { -1, 1, 1 }, aggregates.comboTypes[0]);
+		assertArrayEquals(new int[] { 0, -1, -1 }, aggregates.comboTypes[1]);
+		assertArrayEquals(new int[] { 1, 0, 0, 0, 0 },
+				aggregates.comboTypeCount[0]);
+		assertArrayEquals(new int[] { 0, 1, 0, 0, 0 },
+				aggregates.comboTypeCount[2]);
+		assertArrayEquals(new int[] { 0, 2, 4 }, aggregates.gameStarts);
+		assertEquals("b-1", aggregates.hitIds[3]);
+
+		// by last strategy, then first, then backwards from the middle
+		assertArrayEquals(new int[] { 3, 0, 1, 2 }, aggregates.heatMapOrder);
+	}
+
+	@Test
+	public void testHeatMapOrderForAnyNumberOfStates() {
+		Random rnd = new Random(11);
+		for (int numStrategies : new int[] { 2, 4, 5, 6 }) {
+			for (int numRounds : new int[] { 1, 2, 20 }) {
+				final int[][] states = new int[500][numRounds];
+				for (int[] seq : states) {
+					for (int r = 0; r < numRounds; r++) {
+						// some rounds fixed, so that some sequences are equal
+						seq[r] = r % 5 == 0 || r == numRounds - 1 ? rnd
+								.nextInt(numStrategies) : numStrategies - 1;
+					}
+				}
+
+				// last, then first, then backwards, stable
+				Integer[] expected = new Integer[states.length];
+				for (int i = 0; i < expected.length; i++) {
+					expected[i] = i;
+				}
+				Arrays.sort(expected, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						int[] s1 = states[a];
+						int[] s2 = states[b];
+						int last = s1.length - 1;
+						if (s1[last] != s2[last])
+							return s1[last] - s2[last];
+						if (s1[0] != s2[0])
+							return s1[0] - s2[0];
+						for (int i = last - 1; i > 0; i--) {
+							if (s1[i] != s2[i])
+								return s1[i] - s2[i];
+						}
+						return 0;
+					}
+				});
+
+				int[] order = StateAggregates.heatMapOrder(states,
+						numStrategies);
+				for (int i = 0; i < order.length; i++) {
+					assertEquals((int) expected[i], order[i]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFormatFixedMatchesFormat() {
+		Random rnd = new Random(7);
+		for (int i = 0; i < 100000; i++) {
+			double value = (rnd.nextDouble() - 0.3)
+					* Math.pow(10, rnd.nextInt(6) - 3);
+			if (i % 3 == 0)
+				value = rnd.nextInt(100000) / 1000.0 + 0.005;
+			for (int decimals : new int[] { 2, 10 }) {
+				assertEquals(String.format("%." + decimals + "f", value),
+						StateAggregates.formatFixed(value, decimals));
+			}
+		}
+		assertEquals("-0.00", StateAggregates.formatFixed(-1e-12, 2));
+		assertEquals("-0.0000000001",
+				StateAggregates.formatFixed(-0.0000000001, 10));
+		assertEquals("NaN", StateAggregates.formatFixed(Double.NaN, 2));
+	}
+
+}
@@ -7,7 +7,6 @@ import java.util.Random;
 public class Strategy {
 
 	Map<String, Map<String, Double>> str;
-	String label;
 
 //	public Strategy(Map<String, Map<String, Double>> strategy) {
 //		this.str = strategy;
@@ -25,8 +24,6 @@ public class Strategy {
 		gbValue.put("MM", gbtomm);
 		gbValue.put("GB", 1 - gbtomm);
 		str.put("GB", gbValue);
-
-		updateLabel();
 	}
 	
 
@@ -34,23 +31,23 @@ public class Strategy {
 		return str.get(signal).get(report);
 	}
 
+	/**
+	 * The label is only formatted when asked for, not on every update
+	 */
 	public String toString() {
-		return this.label;
+		return String.format("(%.2f,%.2f)", str.get("MM").get("MM"), str
+				.get("GB").get("MM"));
 	}
 
 	public void setPercent(String signal, String report, double percent) {
 		str.get(signal).put(report, percent);
-		updateLabel();
 	}
 
-	private void updateLabel() {
-		this.label = String.format("(%.2f,%.2f)", str.get("MM").get("MM"), str
-				.get("GB").get("MM"));
-		
+	public static Strategy getRandomStrategy() {
+		return getRandomStrategy(new Random());
 	}
 
-	public static Strategy getRandomStrategy() {
-		Random rnd = new Random();
+	public static Strategy getRandomStrategy(Random rnd) {
 		double first = rnd.nextDouble();
 		if (first < Utils.eps || (1 - first) < Utils.eps)
 			first = rnd.nextDouble();
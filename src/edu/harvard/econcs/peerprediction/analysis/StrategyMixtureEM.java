@@ -0,0 +1,294 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.List;
+
+/**
+ * EM for the strategy mixture models s1, s4 and s5, over the same point
+ * layout that LearningModelsCustom.pointToMap reads.
+ *
+ * Each player draws one of five strategies for the whole game, so the
+ * likelihood of a player only depends on a handful of counts, which are
+ * computed once. The E-step gives each player's responsibilities for the
+ * five components. In the M-step the mixture weights are the mean
+ * responsibilities, eps is the weighted fraction of rounds that deviate
+ * from the TR, MM, GB and OP strategies, and the custom strategies are
+ * weighted MM-given-signal frequencies. Each of these maximizes a concave
+ * one-dimensional objective, so clamping it to its bounds keeps every
+ * iterate feasible.
+ *
+ * The games of a ResampledGames are counted once each, with every player
+ * weighted by the number of times the game was drawn.
+ */
+public class StrategyMixtureEM implements EMUpdate {
+
+	static final int NUM_COMPONENTS = 5;
+
+	final String model;
+	final int numPlayers;
+	final int numRounds;
+	// how many times each player counts, and the sum of these
+	final double[] weights;
+	final double totalWeight;
+
+	// per player counts
+	final double[] numTruthful;
+	final double[] numMMReports;
+	final double[] numMMSignals;
+	final double[] numMMSignalMMReports;
+	final double[] numGBSignalMMReports;
+
+	public StrategyMixtureEM(String model, List<Game> games) {
+		int[] counts = null;
+		if (games instanceof ResampledGames) {
+			counts = ((ResampledGames) games).getDistinctCounts();
+			games = ((ResampledGames) games).getDistinctGames();
+		}
+		if (!model.equals("s1") && !model.equals("s4") && !model.equals("s5"))
+			throw new IllegalArgumentException("Not a strategy mixture model: "
+					+ model);
+
+		this.model = model;
+		numRounds = AnalysisContext.experiment().numRounds;
+
+		int count = 0;
+		for (Game game : games) {
+			count += game.playerHitIds.length;
+		}
+		numPlayers = count;
+
+		numTruthful = new double[numPlayers];
+		numMMReports = new double[numPlayers];
+		numMMSignals = new double[numPlayers];
+		numMMSignalMMReports = new double[numPlayers];
+		numGBSignalMMReports = new double[numPlayers];
+		weights = new double[numPlayers];
+
+		int p = 0;
+		double sum = 0;
+		for (int g = 0; g < games.size(); g++) {
+			Game game = games.get(g);
+			for (String playerId : game.playerHitIds) {
+				weights[p] = counts == null ? 1 : counts[g];
+				sum += weights[p];
+				for (int i = 0; i < numRounds; i++) {
+					String signal = game.rounds.get(i).getSignal(playerId);
+					String report = game.rounds.get(i).getReport(playerId);
+					boolean signalMM = signal.equals("MM");
+					boolean reportMM = report.equals("MM");
+
+					if (signal.equals(report))
+						numTruthful[p]++;
+					if (reportMM)
+						numMMReports[p]++;
+					if (signalMM)
+						numMMSignals[p]++;
+					if (signalMM && reportMM)
+						numMMSignalMMReports[p]++;
+					if (!signalMM && reportMM)
+						numGBSignalMMReports[p]++;
+				}
+				p++;
+			}
+		}
+		totalWeight = sum;
+	}
+
+	/**
+	 * Length of a point for this model
+	 */
+	public int getDimension() {
+		if (model.equals("s5"))
+			return 9;
+		if (model.equals("s4"))
+			return 7;
+		return 5;
+	}
+
+	/**
+	 * Log likelihood at point, equal to LearningModelsCustom.computeLogLk up
+	 * to rounding
+	 */
+	public double getLogLikelihood(double[] point) {
+		return accumulate(point, null);
+	}
+
+	public double update(double[] point, double[] next) {
+		double[] stats = new double[NUM_COMPONENTS + 10];
+		double loglk = accumulate(point, stats);
+		System.arraycopy(point, 0, next, 0, point.length);
+		mStep(stats, next);
+		return loglk;
+	}
+
+	public void project(double[] point) {
+		double sum = 0;
+		for (int k = 0; k < 4; k++) {
+			point[k] = Math.max(point[k], 0);
+			sum += point[k];
+		}
+		if (sum > 1) {
+			for (int k = 0; k < 4; k++) {
+				point[k] /= sum;
+			}
+		}
+		point[4] = clamp(point[4], LearningModelsCustom.getLBCobyla(model, "eps"),
+				LearningModelsCustom.getUBCobyla(model, "eps"));
+		if (model.equals("s4") || model.equals("s5")) {
+			point[5] = clamp(point[5], 0, 1);
+			point[6] = clamp(point[6], 0, 1);
+		}
+		if (model.equals("s5")) {
+			point[7] = clamp(point[7], 0.5, 1);
+			point[8] = clamp(point[8], 0.5, 1);
+		}
+	}
+
+	/**
+	 * E-step. If stats is not null, adds to it the total responsibility of
+	 * each component followed by the weighted counts the M-step needs: the
+	 * rounds that deviate from the eps strategies and all their rounds, then
+	 * {MM-signal MM reports, MM signals, GB-signal MM reports, GB signals}
+	 * for the last component and for the MM component of s5.
+	 *
+	 * @return log likelihood at point
+	 */
+	double accumulate(double[] point, double[] stats) {
+		double[] logWeights = new double[NUM_COMPONENTS];
+		double sum = 0;
+		for (int k = 0; k < 4; k++) {
+			logWeights[k] = Math.log(point[k]);
+			sum += point[k];
+		}
+		logWeights[4] = sum > 1 ? Double.NEGATIVE_INFINITY : Math.log(1 - sum);
+
+		double eps = point[4];
+		double logEps = Math.log(eps);
+		double log1mEps = Math.log(1 - eps);
+		boolean mmIsCustom = model.equals("s5");
+
+		double[] logLks = new double[NUM_COMPONENTS];
+		double loglk = 0;
+		for (int p = 0; p < numPlayers; p++) {
+			double n = numRounds;
+			double truthful = numTruthful[p];
+			double mmReports = numMMReports[p];
+
+			logLks[0] = MixtureEM.term(truthful, log1mEps)
+					+ MixtureEM.term(n - truthful, logEps);
+			logLks[1] = mmIsCustom ? logLkCustom(p, point[7], point[8])
+					: MixtureEM.term(mmReports, log1mEps)
+							+ MixtureEM.term(n - mmReports, logEps);
+			logLks[2] = MixtureEM.term(n - mmReports, log1mEps)
+					+ MixtureEM.term(mmReports, logEps);
+			logLks[3] = MixtureEM.term(n - truthful, log1mEps)
+					+ MixtureEM.term(truthful, logEps);
+			logLks[4] = model.equals("s1") ? n * Math.log(0.5) : logLkCustom(
+					p, point[5], point[6]);
+
+			double max = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < NUM_COMPONENTS; k++) {
+				logLks[k] += logWeights[k];
+				max = Math.max(max, logLks[k]);
+			}
+			if (max == Double.NEGATIVE_INFINITY) {
+				loglk = Double.NEGATIVE_INFINITY;
+				continue;
+			}
+			double total = 0;
+			for (int k = 0; k < NUM_COMPONENTS; k++) {
+				logLks[k] = Math.exp(logLks[k] - max);
+				total += logLks[k];
+			}
+			double weight = weights[p];
+			loglk += weight * (max + Math.log(total));
+
+			if (stats == null)
+				continue;
+
+			double mmSignals = numMMSignals[p];
+			double gbSignals = n - mmSignals;
+			double mmSignalMM = numMMSignalMMReports[p];
+			double gbSignalMM = numGBSignalMMReports[p];
+
+			// weighted responsibilities
+			for (int k = 0; k < NUM_COMPONENTS; k++) {
+				logLks[k] = logLks[k] / total * weight;
+				stats[k] += logLks[k];
+			}
+
+			// eps is shared by TR, GB, OP and, outside s5, MM
+			stats[5] += logLks[0] * (n - truthful) + logLks[2] * mmReports
+					+ logLks[3] * truthful;
+			stats[6] += (logLks[0] + logLks[2] + logLks[3]) * n;
+			if (mmIsCustom) {
+				stats[11] += logLks[1] * mmSignalMM;
+				stats[12] += logLks[1] * mmSignals;
+				stats[13] += logLks[1] * gbSignalMM;
+				stats[14] += logLks[1] * gbSignals;
+			} else {
+				stats[5] += logLks[1] * (n - mmReports);
+				stats[6] += logLks[1] * n;
+			}
+
+			stats[7] += logLks[4] * mmSignalMM;
+			stats[8] += logLks[4] * mmSignals;
+			stats[9] += logLks[4] * gbSignalMM;
+			stats[10] += logLks[4] * gbSignals;
+		}
+		return loglk;
+	}
+
+	double logLkCustom(int p, double mmGivenMM, double mmGivenGB) {
+		double mmSignals = numMMSignals[p];
+		double gbSignals = numRounds - mmSignals;
+		double mmSignalMM = numMMSignalMMReports[p];
+		double gbSignalMM = numGBSignalMMReports[p];
+		return MixtureEM.term(mmSignalMM, Math.log(mmGivenMM))
+				+ MixtureEM.term(mmSignals - mmSignalMM,
+						Math.log(1 - mmGivenMM))
+				+ MixtureEM.term(gbSignalMM, Math.log(mmGivenGB))
+				+ MixtureEM.term(gbSignals - gbSignalMM,
+						Math.log(1 - mmGivenGB));
+	}
+
+	void mStep(double[] stats, double[] point) {
+		double sum = 0;
+		for (int k = 0; k < 4; k++) {
+			point[k] = stats[k] / totalWeight;
+			sum += point[k];
+		}
+		// rounding can leave the sum just above 1
+		if (sum > 1) {
+			for (int k = 0; k < 4; k++) {
+				point[k] /= sum;
+			}
+		}
+		if (stats[6] > 0)
+			point[4] = clamp(stats[5] / stats[6],
+					LearningModelsCustom.getLBCobyla(model, "eps"),
+					LearningModelsCustom.getUBCobyla(model, "eps"));
+		if (model.equals("s4") || model.equals("s5")) {
+			point[5] = ratio(stats[7], stats[8], point[5], 0, 1);
+			point[6] = ratio(stats[9], stats[10], point[6], 0, 1);
+		}
+		if (model.equals("s5")) {
+			point[7] = ratio(stats[11], stats[12], point[7], 0.5, 1);
+			point[8] = ratio(stats[13], stats[14], point[8], 0.5, 1);
+		}
+	}
+
+	/**
+	 * Clamped ratio, or the current value if the component has no weight
+	 */
+	static double ratio(double numerator, double denominator,
+			double current, double lb, double ub) {
+		if (!(denominator > 0))
+			return current;
+		return clamp(numerator / denominator, lb, ub);
+	}
+
+	static double clamp(double value, double lb, double ub) {
+		return Math.min(Math.max(value, lb), ub);
+	}
+
+}
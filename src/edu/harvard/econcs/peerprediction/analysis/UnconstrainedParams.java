@@ -0,0 +1,181 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import java.util.Map;
+
+/**
+ * Unconstrained coordinates for the custom models s1 to s5, so that any
+ * unconstrained optimizer can fit them without constraint functions or
+ * penalty terms.
+ *
+ * Entry i of the unconstrained vector stands for entry i of the point that
+ * LearningModelsCustom.pointToMap reads. The strategy probabilities,
+ * including probRA in s2, are the softmax of their entries together with a
+ * logit of 0 for the strategy that gets the remaining probability. eps,
+ * delta and the custom strategy parameters are sigmoids scaled to their
+ * bounds.
+ */
+public class UnconstrainedParams {
+
+	// smallest probability or scaled distance from a bound when mapping a
+	// point back, so that every point has finite coordinates
+	static final double MIN_PROB = 1e-10;
+
+	final String model;
+	final int dimension;
+	final int[] strategyIndices;
+	final double[] lb;
+	final double[] ub;
+
+	public UnconstrainedParams(String model) {
+		this.model = model;
+
+		if (model.equals("s5")) {
+			dimension = 9;
+		} else if (model.equals("s4") || model.startsWith("s2")) {
+			dimension = 7;
+		} else if (model.startsWith("s3")) {
+			dimension = 6;
+		} else if (model.equals("s1")) {
+			dimension = 5;
+		} else {
+			throw new IllegalArgumentException("Not a custom model: " + model);
+		}
+
+		strategyIndices = model.startsWith("s2") ? new int[] { 0, 1, 2, 3, 6 }
+				: new int[] { 0, 1, 2, 3 };
+
+		lb = new double[dimension];
+		ub = new double[dimension];
+		lb[4] = LearningModelsCustom.getLBCobyla(model, "eps");
+		ub[4] = LearningModelsCustom.getUBCobyla(model, "eps");
+		if (model.startsWith("s2") || model.startsWith("s3")) {
+			lb[5] = LearningModelsCustom.getLBCobyla(model, "delta");
+			ub[5] = LearningModelsCustom.getUBCobyla(model, "delta");
+		}
+		if (model.equals("s4") || model.equals("s5")) {
+			lb[5] = 0;
+			ub[5] = 1;
+			lb[6] = 0;
+			ub[6] = 1;
+		}
+		if (model.equals("s5")) {
+			lb[7] = 0.5;
+			ub[7] = 1;
+			lb[8] = 0.5;
+			ub[8] = 1;
+		}
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @param coords
+	 *            unconstrained coordinates
+	 * @return the point, which always satisfies oConstraintsViolated
+	 */
+	public double[] toPoint(double[] coords) {
+		double[] point = new double[dimension];
+
+		double max = 0;
+		for (int k : strategyIndices) {
+			max = Math.max(max, coords[k]);
+		}
+		double total = Math.exp(-max);
+		for (int k : strategyIndices) {
+			point[k] = Math.exp(coords[k] - max);
+			total += point[k];
+		}
+		for (int k : strategyIndices) {
+			point[k] /= total;
+		}
+		// rounding can leave the sum a few ulps above 1 when the remaining
+		// probability is tiny, which the constraint check rejects
+		while (sumStrategies(point) > 1) {
+			for (int k : strategyIndices) {
+				point[k] *= 1 - 1e-15;
+			}
+		}
+
+		for (int i = 0; i < dimension; i++) {
+			if (isStrategy(i))
+				continue;
+			point[i] = lb[i] + (ub[i] - lb[i]) / (1 + Math.exp(-coords[i]));
+		}
+		return point;
+	}
+
+	/**
+	 * Inverse of toPoint. Probabilities and parameters on a bound are moved
+	 * MIN_PROB inside it first.
+	 */
+	public double[] fromPoint(double[] point) {
+		double[] coords = new double[dimension];
+
+		double remaining = 1;
+		for (int k : strategyIndices) {
+			remaining -= point[k];
+		}
+		double logRemaining = Math.log(Math.max(remaining, MIN_PROB));
+		for (int k : strategyIndices) {
+			coords[k] = Math.log(Math.max(point[k], MIN_PROB)) - logRemaining;
+		}
+
+		for (int i = 0; i < dimension; i++) {
+			if (isStrategy(i))
+				continue;
+			double x = (point[i] - lb[i]) / (ub[i] - lb[i]);
+			x = Math.min(Math.max(x, MIN_PROB), 1 - MIN_PROB);
+			coords[i] = Math.log(x / (1 - x));
+		}
+		return coords;
+	}
+
+	public Map<String, Object> toMap(double[] coords) {
+		return LearningModelsCustom.pointToMap(model, toPoint(coords));
+	}
+
+	/**
+	 * @param params
+	 *            parameters by their pointToMap names
+	 */
+	public double[] fromMap(Map<String, Object> params) {
+		double[] point = new double[dimension];
+		point[0] = (Double) params.get("probTR");
+		point[1] = (Double) params.get("probMM");
+		point[2] = (Double) params.get("probGB");
+		point[3] = (Double) params.get("probOP");
+		point[4] = (Double) params.get("eps");
+		if (model.startsWith("s2") || model.startsWith("s3"))
+			point[5] = (Double) params.get("delta");
+		if (model.startsWith("s2"))
+			point[6] = (Double) params.get("probRA");
+		if (model.equals("s4") || model.equals("s5")) {
+			point[5] = (Double) params.get("mmGivenMM");
+			point[6] = (Double) params.get("mmGivenGB");
+		}
+		if (model.equals("s5")) {
+			point[7] = (Double) params.get("mmGivenMMForMM");
+			point[8] = (Double) params.get("mmGivenGBForMM");
+		}
+		return fromPoint(point);
+	}
+
+	double sumStrategies(double[] point) {
+		double sum = 0;
+		for (int k : strategyIndices) {
+			sum += point[k];
+		}
+		return sum;
+	}
+
+	boolean isStrategy(int index) {
+		for (int k : strategyIndices) {
+			if (k == index)
+				return true;
+		}
+		return false;
+	}
+
+}
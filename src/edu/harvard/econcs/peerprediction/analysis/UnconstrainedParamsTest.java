@@ -0,0 +1,98 @@
+package edu.harvard.econcs.peerprediction.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class UnconstrainedParamsTest {
+
+	static String[] models = new String[] { "s1", "s2-abs", "s2-rel",
+			"s3-abs", "s3-rel", "s4", "s5" };
+
+	// the delta bounds of s2 and s3 depend on the number of rounds
+	static AnalysisContext context() {
+		Experiment experiment = new Experiment();
+		experiment.numRounds = 20;
+		return new AnalysisContext("prior2-basic", "", experiment, 1,
+				ModelRegistry.getModels());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		context().call(new Callable<Void>() {
+			public Void call() {
+				checkRoundTrip();
+				return null;
+			}
+		});
+	}
+
+	void checkRoundTrip() {
+		double[] point = new double[] { 0.3, 0.1, 0.2, 0.15, 0.07, 0.4, 0.2,
+				0.8, 0.6 };
+
+		for (String model : models) {
+			UnconstrainedParams reparam = new UnconstrainedParams(model);
+			double[] modelPoint = new double[reparam.getDimension()];
+			System.arraycopy(point, 0, modelPoint, 0, modelPoint.length);
+			if (model.startsWith("s2") || model.startsWith("s3")) {
+				// delta inside its bounds, and probRA of s2 leaving 0.05
+				double lb = LearningModelsCustom.getLBCobyla(model, "delta");
+				double ub = LearningModelsCustom.getUBCobyla(model, "delta");
+				modelPoint[5] = lb + 0.3 * (ub - lb);
+				if (model.startsWith("s2"))
+					modelPoint[6] = 0.2;
+			}
+
+			double[] back = reparam.toPoint(reparam.fromPoint(modelPoint));
+			for (int i = 0; i < modelPoint.length; i++) {
+				assertEquals(modelPoint[i], back[i], 1e-12);
+			}
+
+			Map<String, Object> params = LearningModelsCustom.pointToMap(
+					model, modelPoint);
+			Map<String, Object> backParams = reparam.toMap(reparam
+					.fromMap(params));
+			for (String name : params.keySet()) {
+				// s2 and s3 also carry the form of their delta
+				if (!(params.get(name) instanceof Double)) {
+					assertEquals(params.get(name), backParams.get(name));
+					continue;
+				}
+				assertEquals((Double) params.get(name),
+						(Double) backParams.get(name), 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testEveryPointIsFeasible() throws Exception {
+		context().call(new Callable<Void>() {
+			public Void call() {
+				checkEveryPointIsFeasible();
+				return null;
+			}
+		});
+	}
+
+	void checkEveryPointIsFeasible() {
+		Random rnd = new Random(11);
+		for (String model : models) {
+			UnconstrainedParams reparam = new UnconstrainedParams(model);
+			for (int t = 0; t < 1000; t++) {
+				double[] coords = new double[reparam.getDimension()];
+				for (int i = 0; i < coords.length; i++) {
+					coords[i] = rnd.nextGaussian() * 20;
+				}
+				assertFalse(LearningModelsCustom.oConstraintsViolated(model,
+						reparam.toPoint(coords)));
+			}
+		}
+	}
+
+}
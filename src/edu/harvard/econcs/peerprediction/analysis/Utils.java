@@ -22,163 +22,46 @@ public class Utils {
 
 	public static final Gson gson = new Gson();
 
-	static int em_N;
-	static int em_K;
-	static double[] em_pi;
-	static Strategy[] em_strategies;
-	static double em_likelihood;
-
 	// Use an even prior to fit shit
 	static double[] signalPrior = new double[] { 0.5, 0.5 };
 	static Random rand = new Random();
 
 	/**
-	 * EM Algorithms
+	 * EM for a mixture of K strategies. The fit is returned rather than
+	 * kept in static fields, so that several fits can run at once.
 	 * 
-	 * @param signalReportPairs
+	 * @param pi
+	 *            starting mixture weights, or null for uniform weights
+	 * @param strategies
+	 *            starting strategies, or null for random ones
 	 */
-	public static void runEMAlgorithm(
-			List<List<Pair<String, String>>> signalReportPairs) {
-
-		int N = signalReportPairs.size();
-
-		int K = Utils.em_K;
+	public static MixtureEMResult runEMAlgorithm(
+			List<List<Pair<String, String>>> signalReportPairs, int K,
+			double[] pi, Strategy[] strategies) {
 
-		if (Utils.em_pi == null) {
-			em_pi = new double[K];
+		if (pi == null) {
+			pi = new double[K];
 			for (int k = 0; k < K; k++) {
-				em_pi[k] = 1.0 / K;
+				pi[k] = 1.0 / K;
 			}
 		}
 
-		if (Utils.em_strategies == null) {
-			em_strategies = new Strategy[K];
+		if (strategies == null) {
+			strategies = new Strategy[K];
 			for (int k = 0; k < K; k++) {
-				em_strategies[k] = Strategy.getRandomStrategy();
+				strategies[k] = Strategy.getRandomStrategy(AnalysisContext
+						.random());
 			}
 		}
 
-		em_likelihood = Utils.getLogLikelihood(signalReportPairs, em_pi,
-				em_strategies);
-
-		while (true) {
-
-			// E step
-			double[] pi_temp = new double[K];
-
-			double[][] p = new double[N][K];
-			for (int i = 0; i < N; i++) {
-				for (int k = 0; k < K; k++) {
-					p[i][k] = em_pi[k];
-					for (Pair<String, String> onePair : signalReportPairs
-							.get(i)) {
-						String signal = onePair.t1;
-						String report = onePair.t2;
-						p[i][k] *= em_strategies[k].getPercent(signal, report);
-					}
-				}
-			}
-
-			double[][] gamma = new double[N][K];
-			for (int i = 0; i < N; i++) {
-				double d_i = 0.0;
-				for (int k = 0; k < K; k++) {
-					d_i += p[i][k];
-				}
-				for (int k = 0; k < K; k++) {
-					gamma[i][k] = p[i][k] / d_i;
-				}
-			}
-
-			for (int k = 0; k < K; k++) {
-				double n_k = 0.0;
-				for (int i = 0; i < N; i++) {
-					n_k += gamma[i][k];
-				}
-				pi_temp[k] = n_k / N;
-			}
-
-			// M step
-			Strategy[] strategies_temp = new Strategy[K];
-
-			for (int k = 0; k < K; k++) {
-				double d_MM = 0.0;
-				double d_GB = 0.0;
-				double n_MM = 0.0;
-				double n_GB = 0.0;
-
-				for (int i = 0; i < N; i++) {
-					int c_MMsignal = 0;
-					int c_GBsignal = 0;
-					int c_MMtoMM = 0;
-					int c_GBtoMM = 0;
-
-					for (Pair<String, String> onePair : signalReportPairs
-							.get(i)) {
-						if (onePair.t1.equals("MM")) {
-							c_MMsignal++;
-							if (onePair.t2.equals("MM")) {
-								c_MMtoMM++;
-							}
-						} else {
-							c_GBsignal++;
-							if (onePair.t2.equals("MM")) {
-								c_GBtoMM++;
-							}
-						}
-					}
-
-					d_MM += gamma[i][k] * c_MMsignal;
-					d_GB += gamma[i][k] * c_GBsignal;
-					n_MM += gamma[i][k] * c_MMtoMM;
-					n_GB += gamma[i][k] * c_GBtoMM;
-				}
-
-				if (strategies_temp[k] == null)
-					strategies_temp[k] = new Strategy(0.5, 0.5);
-
-				strategies_temp[k].setPercent("MM", "MM", n_MM / d_MM);
-				strategies_temp[k].setPercent("MM", "GB", 1 - (n_MM / d_MM));
-
-				strategies_temp[k].setPercent("GB", "MM", n_GB / d_GB);
-				strategies_temp[k].setPercent("GB", "GB", 1 - (n_GB / d_GB));
-			}
-
-			double likelihood_temp = Utils.getLogLikelihood(signalReportPairs,
-					pi_temp, strategies_temp);
-
-			// System.out.println("loglk: " + logLikelihood);
-
-			if (Math.abs((likelihood_temp - em_likelihood) / em_likelihood) < eps) {
-				break;
-			} else {
-				em_likelihood = likelihood_temp;
-				em_pi = pi_temp;
-				em_strategies = strategies_temp;
-			}
-
+		double[] mmGivenMM = new double[K];
+		double[] mmGivenGB = new double[K];
+		for (int k = 0; k < K; k++) {
+			mmGivenMM[k] = strategies[k].getPercent("MM", "MM");
+			mmGivenGB[k] = strategies[k].getPercent("GB", "MM");
 		}
-	}
 
-	private static double getLogLikelihood(
-			List<List<Pair<String, String>>> signalReportPairs, double[] pk,
-			Strategy[] strategies) {
-
-		double logLikelihood = 0.0;
-		for (List<Pair<String, String>> xi : signalReportPairs) {
-			double sumOverK = 0.0;
-			for (int k = 0; k < pk.length; k++) {
-				double addend = pk[k];
-				for (Pair<String, String> onePair : xi) {
-					String signal = onePair.t1;
-					String report = onePair.t2;
-					addend *= strategies[k].getPercent(signal, report);
-				}
-				sumOverK += addend;
-			}
-			logLikelihood += Math.log(sumOverK);
-		}
-		return logLikelihood;
+		return new MixtureEM(signalReportPairs).fit(pi, mmGivenMM, mmGivenGB);
 	}
 
 	public static double[] getRandomVec(int length) {
@@ -193,7 +76,7 @@ public class Utils {
 	public static List<Double> getRandomList(int length) {
 		List<Double> list = new ArrayList<Double>();
 		for (int i = 1; i <= length - 1; i++) {
-			list.add(rand.nextDouble());
+			list.add(AnalysisContext.random().nextDouble());
 		}
 		list.add(0.0);
 		list.add(1.0);
@@ -211,7 +94,7 @@ public class Utils {
 	public static List<Double> getRandomList(int length, double remaining) {
 		List<Double> list = new ArrayList<Double>();
 		if (length > 1) {
-			double num = remaining * rand.nextDouble();
+			double num = remaining * AnalysisContext.random().nextDouble();
 			list = getRandomList(length - 1, remaining - num);
 			list.add(num);
 			return list;
@@ -429,7 +312,7 @@ public class Utils {
 	}
 
 	public static int chooseRefPlayer(int currPlayerIndex) {
-		int shift = Utils.rand.nextInt(2);
+		int shift = AnalysisContext.random().nextInt(2);
 		if (shift >= currPlayerIndex)
 			return shift + 1;
 		else
@@ -438,7 +321,7 @@ public class Utils {
 	}
 
 	public static int selectByBinaryDist(double firstProb) {
-		double next = Utils.rand.nextDouble();
+		double next = AnalysisContext.random().nextDouble();
 		if (next >= firstProb)
 			return 1;
 		return 0;